@@ -0,0 +1,122 @@
+package benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import common.AppUtil;
+
+/**
+ * The byte codec, path and file name packing utilities.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AppUtilBenchmark {
+
+	private final static int FILE_COUNT = 1000;
+
+	private final byte[] bytes = new byte[256];
+	private final String str = "a-typical-file-name.txt";
+	private final String[] path = {"data", "2024", "logs", "server-01", "access.log"};
+
+	private File root;
+	private File file;
+	private List<File> files;
+	private byte[] packed;
+
+	@Setup
+	public void setup() throws IOException {
+		root = Files.createTempDirectory("appbench").toFile();
+		files = new ArrayList<File>();
+		for (int i = 0; i < FILE_COUNT; i++) {
+			File f = new File(root, "dir" + (i % 10) + File.separator + "file" + i + ".dat");
+			f.getParentFile().mkdirs();
+			f.createNewFile();
+			files.add(f);
+		}
+		file = AppUtil.toFile(root, path);
+		packed = AppUtil.packFilenames(root, files);
+		AppUtil.toBytes(str, bytes, 64);
+	}
+
+	@TearDown
+	public void tearDown() {
+		AppUtil.delete(root);
+	}
+
+	@Benchmark
+	public int toBytesInt() {
+		return AppUtil.toBytes(0x12345678, bytes, 0);
+	}
+
+	@Benchmark
+	public int toBytesLong() {
+		return AppUtil.toBytes(0x123456789abcdefL, bytes, 8);
+	}
+
+	@Benchmark
+	public int toBytesString() {
+		return AppUtil.toBytes(str, bytes, 64);
+	}
+
+	@Benchmark
+	public int toInteger() {
+		return AppUtil.toInteger(bytes, 0);
+	}
+
+	@Benchmark
+	public long toLong() {
+		return AppUtil.toLong(bytes, 8);
+	}
+
+	@Benchmark
+	public String toStringFromBytes() {
+		return AppUtil.toString(bytes, 64, str.length());
+	}
+
+	@Benchmark
+	public String toStringJoin() {
+		return AppUtil.toString(path, '/');
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public byte[] packFilenames() throws IOException {
+		return AppUtil.packFilenames(root, files);
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public String[] unpackFilenames() {
+		return AppUtil.unpackFilenames(packed);
+	}
+
+	@Benchmark
+	public File toFile() throws IOException {
+		return AppUtil.toFile(root, path);
+	}
+
+	@Benchmark
+	public boolean isLocatedInside() throws IOException {
+		return AppUtil.isLocatedInside(file, root);
+	}
+}
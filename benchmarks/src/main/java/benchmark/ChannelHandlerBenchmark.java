@@ -0,0 +1,182 @@
+package benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import common.AppConstant.Action;
+import common.AppUtil;
+import common.Header;
+import common.HeaderException;
+import server.ChannelHandler;
+import server.LocalStorage;
+import server.MemoryStorage;
+import server.Storage;
+
+/**
+ * Drive a ChannelHandler over a loopback socket pair in the benchmark thread:
+ * the client side writes a request and reads the response without blocking,
+ * while the server side is pumped with selectNow(), so there is no thread
+ * hand-off in the measured time, only the handler, the codec and the kernel.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ChannelHandlerBenchmark {
+
+	@Param({"1024", "65536", "1048576"})
+	private int fileSize;
+
+	@Param({"local", "memory"})
+	private String storage;
+
+	private File root;
+	private ServerSocketChannel listener;
+	private SocketChannel client;
+	private SocketChannel server;
+	private Selector selector;
+	private ChannelHandler handler;
+
+	private byte[] getRequest;
+	private byte[] missingRequest;
+	private final ByteBuffer clientBuf = ByteBuffer.allocateDirect(64*1024);
+	private byte[] headerBytes = new byte[4096];
+
+	@Setup
+	public void setup() throws IOException {
+		root = Files.createTempDirectory("handlerbench").toFile();
+		Storage files = storage.equals("memory") ? new MemoryStorage() : new LocalStorage(root);
+		WritableByteChannel out = files.create(new String[] { "file.dat" }, fileSize);
+		try {
+			out.write(ByteBuffer.allocate(fileSize));
+		} finally {
+			out.close();
+		}
+
+		listener = ServerSocketChannel.open();
+		listener.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		client = SocketChannel.open(listener.socket().getLocalSocketAddress());
+		client.configureBlocking(false);
+		server = listener.accept();
+		server.configureBlocking(false);
+		selector = Selector.open();
+		server.register(selector, SelectionKey.OP_READ);
+
+		handler = new ChannelHandler();
+		handler.setChannel(server);
+		handler.setSelector(selector);
+		handler.setStorage(files);
+
+		getRequest = request(Action.GET, "file.dat");
+		missingRequest = request(Action.GET, "missing.dat");
+	}
+
+	private static byte[] request(Action action, String name) {
+		Header header = new Header();
+		header.setAction(action);
+		header.setPath(new String[] { name });
+		return header.toBytes();
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		client.close();
+		server.close();
+		listener.close();
+		selector.close();
+		AppUtil.delete(root);
+	}
+
+	@Benchmark
+	public long get() throws IOException, HeaderException {
+		return exchange(getRequest);
+	}
+
+	@Benchmark
+	public long getMissing() throws IOException, HeaderException {
+		return exchange(missingRequest);
+	}
+
+	/**
+	 * Send the request, then pump the server and read the response until
+	 * the header and all the data it announces have been received.
+	 *
+	 * @param request
+	 * @return the number of data bytes received
+	 */
+	private long exchange(byte[] request) throws IOException, HeaderException {
+		ByteBuffer out = ByteBuffer.wrap(request);
+		int headerPos = 0;
+		int headerLength = 0;
+		long dataLength = -1;
+		long received = 0;
+		while (dataLength < 0 || received < dataLength) {
+			if (out.hasRemaining()) {
+				client.write(out);
+			}
+			pump();
+			clientBuf.clear();
+			int read = client.read(clientBuf);
+			if (read == -1) {
+				throw new IOException("socket closed");
+			}
+			clientBuf.flip();
+			while (dataLength < 0 && clientBuf.hasRemaining()) {
+				headerBytes[headerPos++] = clientBuf.get();
+				if (headerLength == 0 && headerPos == Integer.SIZE/Byte.SIZE) {
+					headerLength = AppUtil.toInteger(headerBytes, 0);
+				}
+				if (headerLength > 0 && headerPos == headerLength) {
+					Header response = new Header();
+					response.toHeader(headerBytes, 0, headerLength);
+					dataLength = response.getDataLength();
+				}
+			}
+			received += clientBuf.remaining();
+		}
+		return received;
+	}
+
+	private void pump() throws IOException {
+		if (selector.selectNow() == 0) {
+			return;
+		}
+		Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+		while (it.hasNext()) {
+			SelectionKey key = it.next();
+			if (key.isWritable()) {
+				handler.send();
+			}
+			if (key.isReadable()) {
+				handler.recv();
+			}
+			it.remove();
+		}
+	}
+}
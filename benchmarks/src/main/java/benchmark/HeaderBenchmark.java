@@ -0,0 +1,63 @@
+package benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import common.AppConstant.Action;
+import common.Header;
+import common.HeaderException;
+
+/**
+ * Encoding and decoding of the request header.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HeaderBenchmark {
+
+	@Param({"1", "4", "16"})
+	private int levels;
+
+	private Header header;
+	private byte[] bytes;
+
+	@Setup
+	public void setup() {
+		String[] path = new String[levels];
+		for (int i = 0; i < levels; i++) {
+			path[i] = "directory" + i;
+		}
+		path[levels - 1] = "file-name.dat";
+		header = new Header();
+		header.setAction(Action.PUT);
+		header.setDataLength(1L << 20);
+		header.setPath(path);
+		bytes = header.toBytes();
+	}
+
+	@Benchmark
+	public byte[] toBytes() {
+		return header.toBytes();
+	}
+
+	@Benchmark
+	public Header toHeader() throws HeaderException {
+		Header h = new Header();
+		h.toHeader(bytes, 0, bytes.length);
+		return h;
+	}
+}
@@ -0,0 +1,476 @@
+package client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import common.AppUtil;
+import common.Chunker;
+
+/**
+ * A cache of the files received from servers, in a directory of the local
+ * disk: each file is kept under the hash of its key, the server and path,
+ * with the length and modification time the server gave it, to revalidate
+ * it with a conditional GET, and the time it was last validated, so within
+ * the freshness window it is used without asking the server at all.
+ *
+ * The index is a journal of records, appended under a lock on the directory
+ * so the processes of a host can share the cache; each reads the records
+ * appended by the others before doing anything. The least recently used
+ * files are evicted when the cache grows over its size. Journal records,
+ * big endian:
+ *
+ *   length         4  of the rest of the record
+ *   type           1  STORE or REMOVE
+ *   key            2+ modified UTF-8
+ *   length         8  of the file
+ *   last modified  8  on the server
+ *   validated      8  when the server last said it was current
+ *
+ * The journal starts with a random generation; it is rewritten with a new
+ * one when mostly made of stale records, which tells the other processes to
+ * read it again from the start. A torn record at the end, from a process
+ * killed while appending, is cut off, and the files a killed process left
+ * out of the index are deleted when a cache is opened.
+ */
+public class FileCache {
+
+	private final static byte STORE = 1;
+	private final static byte REMOVE = 2;
+
+	private final static String JOURNAL = "journal";
+	private final static String LOCK = "lock";
+	private final static String TEMP_SUFFIX = ".tmp";
+	// older temporary files are left by a killed process
+	private final static long TEMP_AGE = TimeUnit.DAYS.toMillis(1);
+
+	// the cache directories locked by this process, the file lock only
+	// excludes the other processes.
+	private final static Map<String, Object> monitors = new ConcurrentHashMap<String, Object>();
+
+	/**
+	 * A cached file.
+	 */
+	public static class Entry {
+		public final String key;
+		public final long length;
+		public final long lastModified;
+		public final long validated;
+
+		Entry(String key, long length, long lastModified, long validated) {
+			this.key = key;
+			this.length = length;
+			this.lastModified = lastModified;
+			this.validated = validated;
+		}
+	}
+
+	private final File dir;
+	private final long maxBytes;
+	private final Object monitor;
+	private final File journal;
+	private final RandomAccessFile lockFile;
+	private long freshness;
+	private final Random random = new Random();
+
+	// the index, in the order of use, as of the journal read so far
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private long size;
+	private long generation;
+	private long journalOffset;
+	private int records;
+
+	/**
+	 * @param dir the directory of the cache, created if need be
+	 * @param maxBytes the size the files are evicted down to
+	 * @throws IOException
+	 */
+	public FileCache(File dir, long maxBytes) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("could not create cache folder " + dir);
+		}
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+		String canonical = dir.getCanonicalPath();
+		monitors.putIfAbsent(canonical, new Object());
+		this.monitor = monitors.get(canonical);
+		this.journal = new File(dir, JOURNAL);
+		this.lockFile = new RandomAccessFile(new File(dir, LOCK), "rw");
+		recover();
+	}
+
+	/**
+	 * Delete the files which are not in the index.
+	 */
+	private void recover() throws IOException {
+		synchronized (monitor) {
+			FileLock lock = lockFile.getChannel().lock();
+			try {
+				readJournal();
+				Set<String> live = new HashSet<String>();
+				for (String key : entries.keySet()) {
+					live.add(dataFile(key).getName());
+				}
+				File[] files = dir.listFiles();
+				if (files == null) {
+					return;
+				}
+				long now = System.currentTimeMillis();
+				for (File file : files) {
+					String name = file.getName();
+					if (name.equals(JOURNAL) || name.equals(LOCK) || live.contains(name)) {
+						continue;
+					}
+					if (!name.endsWith(TEMP_SUFFIX) || now - file.lastModified() > TEMP_AGE) {
+						file.delete();
+					}
+				}
+			} finally {
+				lock.release();
+			}
+		}
+	}
+
+	/**
+	 * Set how long after being validated a file is used without asking the
+	 * server, 0 (the default) to always ask.
+	 *
+	 * @param freshness in milliseconds
+	 */
+	public void setFreshness(long freshness) {
+		this.freshness = freshness;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * @param entry
+	 * @return whether the file may be used without asking the server
+	 */
+	public boolean isFresh(Entry entry) {
+		return System.currentTimeMillis() - entry.validated < freshness;
+	}
+
+	private File dataFile(String key) throws IOException {
+		byte[] bytes = key.getBytes("UTF-8");
+		return new File(dir, Chunker.toHex(Chunker.hash(bytes, 0, bytes.length)));
+	}
+
+	/**
+	 * Look a file up, counting as a use of it.
+	 *
+	 * @param key
+	 * @return the entry, null if the file is not cached
+	 * @throws IOException
+	 */
+	public Entry lookup(String key) throws IOException {
+		synchronized (monitor) {
+			FileLock lock = lockFile.getChannel().lock();
+			try {
+				readJournal();
+				Entry entry = entries.get(key);
+				if (entry != null) {
+					append(STORE, entry);
+					compact();
+				}
+				return entry;
+			} finally {
+				lock.release();
+			}
+		}
+	}
+
+	/**
+	 * Open a cached file.
+	 *
+	 * @param entry
+	 * @return the content, null if the file has been evicted since
+	 * @throws IOException
+	 */
+	public InputStream open(Entry entry) throws IOException {
+		File file = dataFile(entry.key);
+		FileInputStream in;
+		try {
+			in = new FileInputStream(file);
+		} catch (IOException e) {
+			return null;
+		}
+		// replaced by another version since
+		if (in.getChannel().size() != entry.length) {
+			in.close();
+			return null;
+		}
+		return in;
+	}
+
+	/**
+	 * @return a new temporary file for a file to store
+	 * @throws IOException
+	 */
+	public File createTempFile() throws IOException {
+		return File.createTempFile("cache", TEMP_SUFFIX, dir);
+	}
+
+	/**
+	 * Store a file, evicting the least recently used ones if the cache has
+	 * grown over its size.
+	 *
+	 * @param key
+	 * @param temp the content, from createTempFile(), moved into the cache
+	 * @param lastModified the modification time on the server
+	 * @throws IOException
+	 */
+	public void store(String key, File temp, long lastModified) throws IOException {
+		long length = temp.length();
+		if (length > maxBytes) {
+			temp.delete();
+			return;
+		}
+		synchronized (monitor) {
+			FileLock lock = lockFile.getChannel().lock();
+			try {
+				readJournal();
+				Files.move(temp.toPath(), dataFile(key).toPath(),
+						StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				append(STORE, new Entry(key, length, lastModified, System.currentTimeMillis()));
+				evict();
+				compact();
+			} finally {
+				lock.release();
+			}
+		}
+	}
+
+	/**
+	 * Record that the server said the cached file is current.
+	 *
+	 * @param entry
+	 * @throws IOException
+	 */
+	public void revalidated(Entry entry) throws IOException {
+		synchronized (monitor) {
+			FileLock lock = lockFile.getChannel().lock();
+			try {
+				readJournal();
+				if (entries.containsKey(entry.key)) {
+					append(STORE, new Entry(entry.key, entry.length, entry.lastModified, System.currentTimeMillis()));
+					compact();
+				}
+			} finally {
+				lock.release();
+			}
+		}
+	}
+
+	/**
+	 * Remove a file, e.g. deleted on the server.
+	 *
+	 * @param key
+	 * @throws IOException
+	 */
+	public void remove(String key) throws IOException {
+		synchronized (monitor) {
+			FileLock lock = lockFile.getChannel().lock();
+			try {
+				readJournal();
+				Entry entry = entries.get(key);
+				if (entry != null) {
+					append(REMOVE, entry);
+					dataFile(key).delete();
+				}
+			} finally {
+				lock.release();
+			}
+		}
+	}
+
+	/**
+	 * @return the number of bytes of the cached files
+	 * @throws IOException
+	 */
+	public long size() throws IOException {
+		synchronized (monitor) {
+			FileLock lock = lockFile.getChannel().lock();
+			try {
+				readJournal();
+				return size;
+			} finally {
+				lock.release();
+			}
+		}
+	}
+
+	public void close() throws IOException {
+		lockFile.close();
+	}
+
+	private void evict() throws IOException {
+		Iterator<Entry> eldest = entries.values().iterator();
+		while (size > maxBytes && eldest.hasNext()) {
+			Entry entry = eldest.next();
+			eldest.remove();
+			size -= entry.length;
+			write(REMOVE, entry);
+			dataFile(entry.key).delete();
+		}
+	}
+
+	/**
+	 * Append a record to the journal, and apply it.
+	 */
+	private void append(byte type, Entry entry) throws IOException {
+		write(type, entry);
+		apply(type, entry);
+	}
+
+	private void write(byte type, Entry entry) throws IOException {
+		if (journalOffset == 0) {
+			rewrite();
+		}
+		byte[] record = encode(type, entry);
+		RandomAccessFile raf = new RandomAccessFile(journal, "rw");
+		try {
+			raf.seek(journalOffset);
+			raf.write(record);
+		} finally {
+			raf.close();
+		}
+		journalOffset += record.length;
+		records++;
+	}
+
+	private static byte[] encode(byte type, Entry entry) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0);
+		out.writeByte(type);
+		out.writeUTF(entry.key);
+		out.writeLong(entry.length);
+		out.writeLong(entry.lastModified);
+		out.writeLong(entry.validated);
+		byte[] record = bytes.toByteArray();
+		AppUtil.toBytes(record.length - Integer.SIZE / Byte.SIZE, record, 0);
+		return record;
+	}
+
+	private void apply(byte type, Entry entry) {
+		Entry previous = type == STORE ? entries.put(entry.key, entry) : entries.remove(entry.key);
+		if (previous != null) {
+			size -= previous.length;
+		}
+		if (type == STORE) {
+			size += entry.length;
+		}
+	}
+
+	/**
+	 * Read the records appended since, by this process or the others.
+	 */
+	private void readJournal() throws IOException {
+		if (!journal.exists()) {
+			clear();
+			return;
+		}
+		RandomAccessFile raf = new RandomAccessFile(journal, "rw");
+		try {
+			long length = raf.length();
+			if (length < Long.SIZE / Byte.SIZE) {
+				clear();
+				return;
+			}
+			long current = raf.readLong();
+			if (current != generation || journalOffset == 0) {
+				// rewritten since
+				clear();
+				generation = current;
+				journalOffset = Long.SIZE / Byte.SIZE;
+			}
+			if (journalOffset == length) {
+				return;
+			}
+			raf.seek(journalOffset);
+			byte[] bytes = new byte[(int) (length - journalOffset)];
+			raf.readFully(bytes);
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+			int read = 0;
+			while (read < bytes.length) {
+				try {
+					int recordLength = in.readInt();
+					if (recordLength <= 0 || read + 4 + recordLength > bytes.length) {
+						break;
+					}
+					byte type = in.readByte();
+					Entry entry = new Entry(in.readUTF(), in.readLong(), in.readLong(), in.readLong());
+					apply(type, entry);
+					read += 4 + recordLength;
+					records++;
+				} catch (EOFException e) {
+					break;
+				}
+			}
+			journalOffset += read;
+			if (journalOffset < length) {
+				// torn record
+				raf.setLength(journalOffset);
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	private void clear() {
+		entries.clear();
+		size = 0;
+		records = 0;
+		journalOffset = 0;
+	}
+
+	/**
+	 * Rewrite the journal when most of its records are stale.
+	 */
+	private void compact() throws IOException {
+		if (records > 1024 && records > 4 * entries.size()) {
+			rewrite();
+		}
+	}
+
+	/**
+	 * Write the live entries to a new journal, with a new generation.
+	 */
+	private void rewrite() throws IOException {
+		long newGeneration = random.nextLong();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeLong(newGeneration);
+		for (Entry entry : entries.values()) {
+			out.write(encode(STORE, entry));
+		}
+		File temp = new File(dir, JOURNAL + TEMP_SUFFIX);
+		Files.write(temp.toPath(), bytes.toByteArray());
+		Files.move(temp.toPath(), journal.toPath(),
+				StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		generation = newGeneration;
+		journalOffset = bytes.size();
+		records = entries.size();
+	}
+}
@@ -2,35 +2,78 @@ package client;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Checksum;
 
 import common.AppConstant.Action;
+import common.AppConstant.Message;
 import common.AppUtil;
+import common.Archive;
+import common.Batch;
+import common.Changes;
+import common.Chunker;
+import common.Compression;
+import common.Crc32c;
+import common.DeleteProgress;
+import common.Delta;
+import common.FileStatus;
 import common.Header;
 import common.HeaderException;
+import common.ListOptions;
 
 public class FileClient {
 
+	// the files of an archive up to this length are written by the writers
+	private final static int ARCHIVE_BUFFERED = 1024 * 1024;
+	private final static int ARCHIVE_QUEUE = 64;
+
 	private volatile boolean stop;
+	private boolean verbose = true;
+	private boolean overwrite;
+	private boolean compression;
+	private int compressionLevel = 1;
+	private FileCache cache;
+	private int archiveWriters = 4;
 	private SocketChannel socketchannel;
 	
 	public void connects(String server, int port) throws IOException {
 		InetSocketAddress isa = new InetSocketAddress(server, port);
 		socketchannel = SocketChannel.open(isa);
+		// headers are small writes, do not let them wait for delayed ACKs
+		socketchannel.socket().setTcpNoDelay(true);
 	}
 	
 	public void close() throws IOException {
@@ -45,12 +88,101 @@ public class FileClient {
 		this.stop = stop;
 	}
 
+	public boolean isVerbose() {
+		return verbose;
+	}
+
+	/**
+	 * Print the outcome of every request, which is the default.
+	 *
+	 * @param verbose
+	 */
+	public void setVerbose(boolean verbose) {
+		this.verbose = verbose;
+	}
+
+	public boolean isOverwrite() {
+		return overwrite;
+	}
+
+	/**
+	 * Replace the existing files on PUT, off by default.
+	 *
+	 * @param overwrite
+	 */
+	public void setOverwrite(boolean overwrite) {
+		this.overwrite = overwrite;
+	}
+
+	public boolean isCompression() {
+		return compression;
+	}
+
+	/**
+	 * Offer to compress the uploads, and accept compressed downloads, off by
+	 * default. The server decides for each transfer.
+	 *
+	 * @param compression
+	 */
+	public void setCompression(boolean compression) {
+		this.compression = compression;
+	}
+
+	/**
+	 * Set the level of the compression of the uploads, 1 (the default) to 9.
+	 *
+	 * @param compressionLevel
+	 */
+	public void setCompressionLevel(int compressionLevel) {
+		this.compressionLevel = compressionLevel;
+	}
+
+	public FileCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * Keep the files received in a cache, revalidated with the server on
+	 * each GET unless fresh, see FileCache; null (the default) for none.
+	 *
+	 * @param cache
+	 */
+	public void setCache(FileCache cache) {
+		this.cache = cache;
+	}
+
+	public int getArchiveWriters() {
+		return archiveWriters;
+	}
+
+	/**
+	 * Set the number of threads writing the files of an archive received,
+	 * 4 by default.
+	 *
+	 * @param archiveWriters
+	 */
+	public void setArchiveWriters(int archiveWriters) {
+		if (archiveWriters <= 0) {
+			throw new IllegalArgumentException("archiveWriters: " + archiveWriters);
+		}
+		this.archiveWriters = archiveWriters;
+	}
+
+	private void log(String message) {
+		if (verbose) {
+			System.out.println(message);
+		}
+	}
+
 	private Header readHeaderResponse(InputStream is) throws IOException {
 		byte[] buffer = new byte[4096];
 		int pos = 0;
 		int headerLength = 0;
 		while (!isStop()) {
-			int read = is.read(buffer, pos, buffer.length - pos);
+			// never read past the header, the file content may follow it
+			// right away and must be left in the stream.
+			int want = (headerLength == 0 ? Integer.SIZE / Byte.SIZE : headerLength) - pos;
+			int read = is.read(buffer, pos, want);
 			if (read == -1) {
 				throw new IOException("socket closed.");
 			}
@@ -60,6 +192,9 @@ public class FileClient {
 			pos += read;
 			if (headerLength == 0 && pos >= Integer.SIZE / Byte.SIZE) {
 				headerLength = AppUtil.toInteger(buffer, 0);
+				if (headerLength < Integer.SIZE / Byte.SIZE) {
+					throw new IOException("Error in header");
+				}
 				if (headerLength > buffer.length) {
 					buffer = Arrays.copyOf(buffer, headerLength);
 				}
@@ -78,10 +213,97 @@ public class FileClient {
 		throw new IOException("operation stopped");
 	}
 
-	public void receive(File dir, String[] path) throws IOException {
+	/**
+	 * Get a file from the server into the given directory. A copy already
+	 * there, received before, is only replaced if the file has changed since
+	 * on the server, the copy keeping the modification time of the file.
+	 *
+	 * @param dir
+	 * @param path
+	 * @return the message of the server, NOT_MODIFIED if the copy is the file
+	 * @throws IOException
+	 */
+	public Message receive(File dir, String[] path) throws IOException {
+		if (cache != null) {
+			return receiveCached(dir, path);
+		}
+		InputStream is = socketchannel.socket().getInputStream();
+		String filename = AppUtil.toString(path, File.separatorChar);
+		File file = AppUtil.toFile(dir, path);
+		boolean copy = file.isFile();
+
+		Header response = copy ? requestGet(path, file.length(), file.lastModified())
+				: requestGet(path, -1, -1);
+		if (response == null) {
+			return Message.NONE;
+		}
+
+		switch (response.getMessage()) {
+		case FILE_EXIST:
+			boolean created = false;
+			if (!file.getParentFile().exists()) {
+				file.getParentFile().mkdirs();
+			}
+			// the copy is replaced once the new one is complete
+			File target = file;
+			if (copy) {
+				file = new File(file.getParentFile(), "." + file.getName() + ".part");
+				file.delete();
+			}
+			if (file.getParentFile().exists()) {
+				created = file.createNewFile();
+			}
+			if (!created) {
+				throw new IOException(String.format("failed to create file [%s]", filename));
+			}
+			try {
+				if (response.getDataLength() > 0) {
+					receiveFile(file, is, response);
+				}
+				if (response.isConditional()) {
+					file.setLastModified(response.getLastModified());
+				}
+				if (copy) {
+					Files.move(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				}
+			} catch (IOException e) {
+				file.delete();
+				throw e;
+			}
+			log(String.format("GET: file received [%s].", filename));
+			break;
+
+		case NOT_MODIFIED:
+			log(String.format("GET: file not modified [%s].", filename));
+			break;
+
+		default:
+			logGetResponse(response, filename);
+			break;
+		}
+		return response.getMessage();
+	}
+
+	/**
+	 * Get a directory from the server into the given directory, as the
+	 * archive of its files, see Archive, unpacked while it comes rather than
+	 * listed and got a file at a time. The small files are written by a pool
+	 * of writer threads, the large ones by the thread reading the archive.
+	 * The files there are replaced, each once complete. A path of a file gets
+	 * the file.
+	 *
+	 * @param dir
+	 * @param path
+	 * @return the message of the server
+	 * @throws IOException
+	 */
+	public Message receiveArchive(File dir, String[] path) throws IOException {
 		Header header = new Header();
 		header.setAction(Action.GET);
 		header.setPath(path);
+		header.setArchive(true);
+		header.setDataLength(-1);
+		header.setLastModified(-1);
 
 		OutputStream os = socketchannel.socket().getOutputStream();
 		os.write(header.toBytes());
@@ -89,58 +311,440 @@ public class FileClient {
 
 		InputStream is = socketchannel.socket().getInputStream();
 		String filename = AppUtil.toString(path, File.separatorChar);
-
 		Header response = readHeaderResponse(is);
 		if (response.getAction() != Action.GET_ACK) {
-			System.out.println(String.format("Unexpected action %s.", response.getAction()));
-			return;
+			log(String.format("Unexpected action %s.", response.getAction()));
+			return Message.NONE;
 		}
+		if (response.getMessage() != Message.FILE_EXIST) {
+			logGetResponse(response, filename);
+			return response.getMessage();
+		}
+		File target = AppUtil.toFile(dir, path);
+		if (!response.isArchive()) {
+			// a file
+			Files.createDirectories(target.getParentFile().toPath());
+			writeFile(target, is, response.getDataLength(), -1);
+			log(String.format("GET: file received [%s].", filename));
+			return response.getMessage();
+		}
+		int files = unpack(is, target);
+		log(String.format("GET: archive received [%s], %d files.", filename, files));
+		return response.getMessage();
+	}
 
-		switch (response.getMessage()) {
-		case PERMISSION_DENIED:
-			System.out.println(String.format("GET: permission denied [%s].", filename));
-			break;
+	/**
+	 * Unpack an archive into a directory.
+	 *
+	 * @return the number of files written
+	 */
+	private int unpack(InputStream is, File root) throws IOException {
+		// nothing follows the end entry, the buffer cannot take from the next
+		// response
+		DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+		// the reading thread writes the files itself when the writers are
+		// behind, so the files read ahead are bounded
+		ThreadPoolExecutor writers = new ThreadPoolExecutor(archiveWriters, archiveWriters,
+				0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(ARCHIVE_QUEUE),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+		final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+		int files = 0;
+		try {
+			Archive.Entry entry;
+			while ((entry = Archive.read(in)) != null) {
+				final File file = toArchiveFile(root, entry.path);
+				if (file == null) {
+					log(String.format("GET: archive entry skipped [%s].",
+							AppUtil.toString(entry.path, File.separatorChar)));
+					Archive.skip(in, entry.length);
+					continue;
+				}
+				// the rest is read all the same, to go on with the connection
+				if (failure.get() != null) {
+					Archive.skip(in, entry.length);
+					continue;
+				}
+				final long lastModified = entry.lastModified;
+				if (entry.length <= ARCHIVE_BUFFERED) {
+					final byte[] data = new byte[(int) entry.length];
+					in.readFully(data);
+					writers.execute(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								writeFile(file, new ByteArrayInputStream(data), data.length, lastModified);
+							} catch (ArchiveWriteException e) {
+								failure.compareAndSet(null, e.getCause());
+							} catch (IOException e) {
+								failure.compareAndSet(null, e);
+							}
+						}
+					});
+				}
+				else {
+					try {
+						writeFile(file, in, entry.length, lastModified);
+					} catch (ArchiveWriteException e) {
+						failure.compareAndSet(null, e.getCause());
+					}
+				}
+				files++;
+			}
+		} finally {
+			writers.shutdown();
+			try {
+				writers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+		return files;
+	}
 
-		case FILE_NOT_EXIST:
-			System.out.println(String.format("GET: file not exists [%s].", filename));
-			break;
+	/**
+	 * @return the file of an entry of an archive, null if its path is not
+	 * one inside the directory
+	 */
+	private static File toArchiveFile(File root, String[] path) throws IOException {
+		for (String level : path) {
+			if (level.isEmpty() || level.equals(".") || level.equals("..")
+					|| level.indexOf('/') != -1 || level.indexOf(File.separatorChar) != -1) {
+				return null;
+			}
+		}
+		File file = AppUtil.toFile(root, path);
+		return AppUtil.isLocatedInside(file, root) ? file : null;
+	}
 
-		case FILE_EXIST:
-			boolean created = false;
-			File file = AppUtil.toFile(dir, path);
-			if (!file.getParentFile().exists()) {
-				file.getParentFile().mkdirs();
+	/**
+	 * A file could not be written, its content having been read all the
+	 * same.
+	 */
+	private static class ArchiveWriteException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		ArchiveWriteException(IOException cause) {
+			super(cause);
+		}
+
+		@Override
+		public IOException getCause() {
+			return (IOException) super.getCause();
+		}
+	}
+
+	/**
+	 * Write a file from a stream, to a part file moved over it once complete.
+	 * The content is read to its end even if the file cannot be written.
+	 *
+	 * @param file
+	 * @param is
+	 * @param length
+	 * @param lastModified the modification time to set, -1 for none
+	 * @throws ArchiveWriteException if the file could not be written
+	 * @throws IOException if the content could not be read
+	 */
+	private static void writeFile(File file, InputStream is, long length, long lastModified) throws IOException {
+		File part = new File(file.getParentFile(), "." + file.getName() + ".part");
+		OutputStream os = null;
+		IOException failure = null;
+		try {
+			Files.createDirectories(file.getParentFile().toPath());
+			os = new FileOutputStream(part);
+		} catch (IOException e) {
+			failure = e;
+		}
+		byte[] buffer = new byte[(int) Math.min(length, 64 * 1024)];
+		long left = length;
+		while (left > 0) {
+			int read = is.read(buffer, 0, (int) Math.min(buffer.length, left));
+			if (read == -1) {
+				AppUtil.close(os);
+				part.delete();
+				throw new IOException("socket closed.");
 			}
-			if (file.getParentFile().exists()) {
-				created = file.createNewFile();
+			left -= read;
+			if (failure == null) {
+				try {
+					os.write(buffer, 0, read);
+				} catch (IOException e) {
+					failure = e;
+				}
 			}
-			if (!created) {
-				throw new IOException(String.format("failed to create file [%s]", filename));
+		}
+		if (failure == null) {
+			try {
+				os.close();
+				if (lastModified != -1) {
+					part.setLastModified(lastModified);
+				}
+				Files.move(part.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		if (failure != null) {
+			AppUtil.close(os);
+			part.delete();
+			throw new ArchiveWriteException(failure);
+		}
+	}
+
+	/**
+	 * Get a file through the cache into the given directory, the file there
+	 * being replaced.
+	 */
+	private Message receiveCached(File dir, String[] path) throws IOException {
+		File file = AppUtil.toFile(dir, path);
+		if (!file.getParentFile().exists()) {
+			file.getParentFile().mkdirs();
+		}
+		File part = new File(file.getParentFile(), "." + file.getName() + ".part");
+		Message message;
+		OutputStream os = new BufferedOutputStream(new FileOutputStream(part));
+		try {
+			message = receive(path, os);
+		} catch (IOException e) {
+			AppUtil.close(os);
+			part.delete();
+			throw e;
+		}
+		os.close();
+		if (message == Message.FILE_EXIST) {
+			Files.move(part.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		else {
+			part.delete();
+		}
+		return message;
+	}
+
+	/**
+	 * Get a file from the server, writing its content to the given stream.
+	 * With a cache, the file may come from it, FILE_EXIST being returned
+	 * whether or not the server sent it.
+	 *
+	 * @param path
+	 * @param os
+	 * @return the message of the server
+	 * @throws IOException
+	 */
+	public Message receive(String[] path, OutputStream os) throws IOException {
+		if (cache != null) {
+			return receiveCached(path, os);
+		}
+		InputStream is = socketchannel.socket().getInputStream();
+		String filename = AppUtil.toString(path, File.separatorChar);
+
+		Header response = requestGet(path, -1, -1);
+		if (response == null) {
+			return Message.NONE;
+		}
+		if (response.getMessage() == Message.FILE_EXIST) {
+			if (response.getDataLength() > 0) {
+				readData(is, response, os);
+			}
+			log(String.format("GET: file received [%s].", filename));
+		}
+		else {
+			logGetResponse(response, filename);
+		}
+		return response.getMessage();
+	}
+
+	private Message receiveCached(String[] path, OutputStream os) throws IOException {
+		InputStream is = socketchannel.socket().getInputStream();
+		String filename = AppUtil.toString(path, File.separatorChar);
+		String key = socketchannel.socket().getInetAddress().getHostAddress() + ":"
+				+ socketchannel.socket().getPort() + "/" + AppUtil.toString(path, '/');
+
+		FileCache.Entry entry = cache.lookup(key);
+		// opened now, so it cannot be evicted under us
+		InputStream cached = entry == null ? null : cache.open(entry);
+		try {
+			if (cached != null && cache.isFresh(entry)) {
+				AppUtil.read(cached, entry.length, os);
+				log(String.format("GET: file from the cache [%s].", filename));
+				return Message.FILE_EXIST;
 			}
-			long fileLength = response.getDataLength();
-			if (fileLength > 0) {
-				receiveFile(file, is, fileLength);
+			Header response = cached == null ? requestGet(path, -1, -1)
+					: requestGet(path, entry.length, entry.lastModified);
+			if (response == null) {
+				return Message.NONE;
+			}
+			switch (response.getMessage()) {
+			case NOT_MODIFIED:
+				cache.revalidated(entry);
+				AppUtil.read(cached, entry.length, os);
+				log(String.format("GET: file not modified [%s].", filename));
+				return Message.FILE_EXIST;
+
+			case FILE_EXIST:
+				if (!response.isConditional() || response.getDataLength() > cache.getMaxBytes()) {
+					if (response.getDataLength() > 0) {
+						readData(is, response, os);
+					}
+				}
+				else {
+					File temp = cache.createTempFile();
+					try {
+						OutputStream copy = new BufferedOutputStream(new FileOutputStream(temp));
+						try {
+							if (response.getDataLength() > 0) {
+								readData(is, response, new TeeOutputStream(os, copy));
+							}
+						} finally {
+							copy.close();
+						}
+						cache.store(key, temp, response.getLastModified());
+					} finally {
+						temp.delete();
+					}
+				}
+				log(String.format("GET: file received [%s].", filename));
+				return Message.FILE_EXIST;
+
+			case FILE_NOT_EXIST:
+				cache.remove(key);
+				logGetResponse(response, filename);
+				return response.getMessage();
+
+			default:
+				logGetResponse(response, filename);
+				return response.getMessage();
 			}
-			System.out.println(String.format("GET: file received [%s].", filename));
+		} finally {
+			AppUtil.close(cached);
+		}
+	}
+
+	/**
+	 * Writes to two streams.
+	 */
+	private static class TeeOutputStream extends OutputStream {
+		private final OutputStream first;
+		private final OutputStream second;
+
+		TeeOutputStream(OutputStream first, OutputStream second) {
+			this.first = first;
+			this.second = second;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			first.write(b);
+			second.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			first.write(b, off, len);
+			second.write(b, off, len);
+		}
+	}
+
+	/**
+	 * Send the GET request and read the acknowledgment.
+	 *
+	 * @param path
+	 * @param copyLength the length of the copy the client has
+	 * @param copyModified the modification time of the copy, -1 if none
+	 * @return the acknowledgment, or null if the server sent something else
+	 * @throws IOException
+	 */
+	private Header requestGet(String[] path, long copyLength, long copyModified) throws IOException {
+		Header header = new Header();
+		header.setAction(Action.GET);
+		header.setPath(path);
+		header.setCompressed(compression);
+		header.setChecksummed(true);
+		// asked for even without a copy, for the time of the file
+		header.setDataLength(copyLength);
+		header.setLastModified(copyModified);
+
+		OutputStream os = socketchannel.socket().getOutputStream();
+		os.write(header.toBytes());
+		os.flush();
+
+		InputStream is = socketchannel.socket().getInputStream();
+		Header response = readHeaderResponse(is);
+		if (response.getAction() != Action.GET_ACK) {
+			log(String.format("Unexpected action %s.", response.getAction()));
+			return null;
+		}
+		return response;
+	}
+
+	private void logGetResponse(Header response, String filename) {
+		switch (response.getMessage()) {
+		case PERMISSION_DENIED:
+			log(String.format("GET: permission denied [%s].", filename));
+			break;
+
+		case FILE_NOT_EXIST:
+			log(String.format("GET: file not exists [%s].", filename));
 			break;
 
 		default:
-			System.out.println(String.format("Unexpected message %s.", response.getMessage()));
+			log(String.format("Unexpected message %s.", response.getMessage()));
 			break;
 		}
 	}
 	
-	private void receiveFile(File file, InputStream is, long fileLength) throws IOException {
+	private void receiveFile(File file, InputStream is, Header response) throws IOException {
 		BufferedOutputStream bos = null;
 		try {
 			bos = new BufferedOutputStream(new FileOutputStream(file));
-			AppUtil.read(is, fileLength, bos);
+			readData(is, response, bos);
 		} finally {
 			AppUtil.close(bos);
 		}
 	}
+
+	/**
+	 * Read the data following the acknowledgment, decompressing it if it
+	 * comes compressed, and verifying its checksum if it comes with one.
+	 */
+	private void readData(InputStream is, Header response, OutputStream os) throws IOException {
+		if (response.isChecksummed()) {
+			CheckedOutputStream checked = new CheckedOutputStream(os, Crc32c.create());
+			readUnchecked(is, response, checked);
+			if ((int) checked.getChecksum().getValue() != response.getChecksum()) {
+				throw new IOException("checksum mismatch");
+			}
+		}
+		else {
+			readUnchecked(is, response, os);
+		}
+	}
+
+	private void readUnchecked(InputStream is, Header response, OutputStream os) throws IOException {
+		if (!response.isCompressed()) {
+			AppUtil.read(is, response.getDataLength(), os);
+			return;
+		}
+		Compression.Decoder decoder = new Compression.Decoder();
+		try {
+			byte[] buffer = new byte[Compression.FRAME_SIZE];
+			while (!decoder.isFinished()) {
+				int read = is.read(buffer, 0, Math.min(buffer.length, decoder.needed()));
+				if (read == -1) {
+					throw new IOException("socket closed.");
+				}
+				decoder.decode(buffer, 0, read, os);
+			}
+		} finally {
+			decoder.close();
+		}
+		if (decoder.getLength() != response.getDataLength()) {
+			throw new IOException("compressed data of the wrong length");
+		}
+	}
 	
-	public void delete(String[] path) throws IOException {
+	public Message delete(String[] path) throws IOException {
 		Header header = new Header();
 		header.setAction(Action.DEL);
 		header.setPath(path);
@@ -154,38 +758,306 @@ public class FileClient {
 
 		Header response = readHeaderResponse(is);
 		if (response.getAction() != Action.DEL_ACK) {
-			System.out.println(String.format("Unexpected action %s.", response.getAction()));
-			return;
+			log(String.format("Unexpected action %s.", response.getAction()));
+			return Message.NONE;
 		}
 
 		switch (response.getMessage()) {
 		case PERMISSION_DENIED:
-			System.out.println(String.format("DEL: permission denied [%s].", filename));
+			log(String.format("DEL: permission denied [%s].", filename));
 			break;
 
 		case FILE_NOT_EXIST:
-			System.out.println(String.format("DEL: file not exists [%s].", filename));
+			log(String.format("DEL: file not exists [%s].", filename));
 			break;
 
 		case FILE_DELETED:
-			System.out.println(String.format("DEL: file deleted [%s].", filename));
+			log(String.format("DEL: file deleted [%s].", filename));
 			break;
 
 		case FILE_NOT_DELETED:
-			System.out.println(String.format("DEL: file not deleted [%s].", filename));
+			log(String.format("DEL: file not deleted [%s].", filename));
 			break;
 
 		default:
 			break;
 		}
+		return response.getMessage();
 	}
 	
-	public void send(File file, String[] path) throws IOException {
+	/**
+	 * Delete a directory with all it holds, see deleteTree(String[],
+	 * ListOptions, DeleteProgress.Listener).
+	 *
+	 * @param path
+	 * @return the message of the server
+	 * @throws IOException
+	 */
+	public Message deleteTree(String[] path) throws IOException {
+		return deleteTree(path, null, null);
+	}
+
+	/**
+	 * Delete a tree on the server in one request: the files under the path
+	 * matching the options, or, without options, the whole tree, the
+	 * directory too. The server deletes them in the background, sending its
+	 * progress now and then until it is done.
+	 *
+	 * @param path
+	 * @param options the files to delete, null for all of them
+	 * @param listener told the progress, the last one being the final
+	 * counts, may be null
+	 * @return FILE_DELETED if all of them have been, FILE_NOT_DELETED if
+	 * some could not be, or why none were
+	 * @throws IOException
+	 */
+	public Message deleteTree(String[] path, ListOptions options, DeleteProgress.Listener listener) throws IOException {
+		byte[] body = options == null ? new byte[0] : options.toBytes();
+		Header header = new Header();
+		header.setAction(Action.DEL);
+		header.setPath(path);
+		header.setRecursive(true);
+		header.setDataLength(body.length);
+
+		OutputStream os = socketchannel.socket().getOutputStream();
+		os.write(header.toBytes());
+		os.write(body);
+		os.flush();
+
+		InputStream is = socketchannel.socket().getInputStream();
+		String filename = AppUtil.toString(path, File.separatorChar);
+		while (true) {
+			Header response = readHeaderResponse(is);
+			if (response.getAction() != Action.DEL_ACK) {
+				log(String.format("Unexpected action %s.", response.getAction()));
+				return Message.NONE;
+			}
+			DeleteProgress progress = null;
+			if (response.getDataLength() > 0) {
+				if (response.getDataLength() != DeleteProgress.LENGTH) {
+					throw new IOException("invalid delete progress");
+				}
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream(DeleteProgress.LENGTH);
+				AppUtil.read(is, response.getDataLength(), bytes);
+				progress = DeleteProgress.fromBytes(bytes.toByteArray());
+				if (listener != null) {
+					listener.progress(progress);
+				}
+			}
+			switch (response.getMessage()) {
+			case IN_PROGRESS:
+				log(String.format("DEL: deleting [%s], %s so far.", filename, progress));
+				continue;
+
+			case FILE_DELETED:
+				log(String.format("DEL: tree deleted [%s], %s.", filename, progress));
+				break;
+
+			case FILE_NOT_DELETED:
+				log(String.format("DEL: tree not deleted [%s], %s.", filename, progress));
+				break;
+
+			case PERMISSION_DENIED:
+				log(String.format("DEL: permission denied [%s].", filename));
+				break;
+
+			case FILE_NOT_EXIST:
+				log(String.format("DEL: file not exists [%s].", filename));
+				break;
+
+			default:
+				log(String.format("Unexpected message %s.", response.getMessage()));
+				break;
+			}
+			return response.getMessage();
+		}
+	}
+	
+	/**
+	 * Copy a file on the server, its content not crossing the network. An
+	 * existing target is only replaced with the overwrite option.
+	 *
+	 * @param source
+	 * @param target
+	 * @return FILE_CREATED if copied, or why not
+	 * @throws IOException
+	 */
+	public Message copy(String[] source, String[] target) throws IOException {
+		return transfer(Action.CPY, source, target);
+	}
+
+	/**
+	 * Move a file on the server, renaming it atomically. An existing target
+	 * is only replaced with the overwrite option.
+	 *
+	 * @param source
+	 * @param target
+	 * @return FILE_CREATED if moved, or why not
+	 * @throws IOException
+	 */
+	public Message move(String[] source, String[] target) throws IOException {
+		return transfer(Action.MOV, source, target);
+	}
+
+	/**
+	 * Send a CPY or MOV, the target coming after the header, and read the
+	 * acknowledgment.
+	 */
+	private Message transfer(Action action, String[] source, String[] target) throws IOException {
+		byte[] body = AppUtil.packPaths(Collections.singletonList(target));
+		Header header = new Header();
+		header.setAction(action);
+		header.setPath(source);
+		header.setOverwrite(overwrite);
+		header.setDataLength(body.length);
+
+		OutputStream os = socketchannel.socket().getOutputStream();
+		os.write(header.toBytes());
+		os.write(body);
+		os.flush();
+
+		InputStream is = socketchannel.socket().getInputStream();
+		String name = action == Action.CPY ? "COPY" : "MOVE";
+		String filenames = AppUtil.toString(source, File.separatorChar) + "] to ["
+				+ AppUtil.toString(target, File.separatorChar);
+
+		Header response = readHeaderResponse(is);
+		Action ack = action == Action.CPY ? Action.CPY_ACK : Action.MOV_ACK;
+		if (response.getAction() != ack) {
+			log(String.format("Unexpected action %s.", response.getAction()));
+			return Message.NONE;
+		}
+
+		switch (response.getMessage()) {
+		case FILE_CREATED:
+			log(String.format("%s: file %s [%s].", name, action == Action.CPY ? "copied" : "moved", filenames));
+			break;
+
+		case FILE_EXIST:
+			log(String.format("%s: target exists [%s].", name, filenames));
+			break;
+
+		case FILE_NOT_EXIST:
+			log(String.format("%s: file not exists [%s].", name, filenames));
+			break;
+
+		case PERMISSION_DENIED:
+			log(String.format("%s: permission denied [%s].", name, filenames));
+			break;
+
+		case NO_SPACE:
+			log(String.format("%s: no space [%s].", name, filenames));
+			break;
+
+		default:
+			log(String.format("%s: file not %s [%s].", name, action == Action.CPY ? "copied" : "moved", filenames));
+			break;
+		}
+		return response.getMessage();
+	}
+	
+	public Message send(File file, String[] path) throws IOException {
+		BufferedInputStream bis = null;
+		try {
+			bis = new BufferedInputStream(new FileInputStream(file));
+			return send(bis, file.length(), path);
+		}
+		finally {
+			AppUtil.close(bis);
+		}
+	}
+
+	/**
+	 * Send the given number of bytes read from the stream to the server,
+	 * to be stored at the given path.
+	 *
+	 * @param data
+	 * @param length
+	 * @param path
+	 * @return the message of the server
+	 * @throws IOException
+	 */
+	public Message send(final InputStream data, final long length, String[] path) throws IOException {
 		Header header = new Header();
 		header.setAction(Action.PUT);
 		header.setPath(path);
-		header.setDataLength(file.length());
-		header.setOverwrite(false);
+		header.setDataLength(length);
+		header.setOverwrite(overwrite);
+		header.setCompressed(compression && path.length > 0
+				&& Compression.isCompressible(path[path.length - 1], length));
+		header.setChecksummed(length > 0);
+		return put(header, new Body() {
+			@Override
+			public void writeTo(OutputStream os) throws IOException {
+				AppUtil.read(data, length, os);
+			}
+		});
+	}
+
+	/**
+	 * Writes the data as compressed frames, see Compression.
+	 */
+	private static class FrameOutputStream extends OutputStream {
+		private final OutputStream os;
+		private final Compression.Encoder encoder;
+		private final byte[] data = new byte[Compression.FRAME_SIZE];
+		private final byte[] frame = new byte[Compression.FRAME_HEADER_LENGTH + Compression.FRAME_SIZE];
+		private int length;
+
+		FrameOutputStream(OutputStream os, int level) {
+			this.os = os;
+			this.encoder = new Compression.Encoder(level);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				int n = Math.min(len, data.length - length);
+				System.arraycopy(b, off, data, length, n);
+				length += n;
+				off += n;
+				len -= n;
+				if (length == data.length) {
+					flushFrame();
+				}
+			}
+		}
+
+		private void flushFrame() throws IOException {
+			if (length > 0) {
+				os.write(frame, 0, encoder.encode(data, 0, length, frame));
+				length = 0;
+			}
+		}
+
+		/**
+		 * Write the last frames, leaving the stream open.
+		 */
+		void finish() throws IOException {
+			try {
+				flushFrame();
+				os.write(frame, 0, encoder.end(frame));
+			} finally {
+				encoder.close();
+			}
+		}
+	}
+
+	/**
+	 * The data of a request, written once the server is ready for it.
+	 */
+	private interface Body {
+		void writeTo(OutputStream os) throws IOException;
+	}
+
+	private Message put(Header header, Body body) throws IOException {
+		String[] path = header.getPath();
+		long length = header.getDataLength();
 
 		OutputStream os = socketchannel.socket().getOutputStream();
 		os.write(header.toBytes());
@@ -196,52 +1068,523 @@ public class FileClient {
 
 		Header response = readHeaderResponse(is);
 		if (response.getAction() != Action.PUT_ACK) {
-			System.out.println(String.format("Unexpected action %s.", response.getAction()));
-			return;
+			log(String.format("Unexpected action %s.", response.getAction()));
+			return Message.NONE;
 		}
 
 		switch (response.getMessage()) {
 		case PERMISSION_DENIED:
-			System.out.println(String.format("PUT: permission denied [%s].", filename));
+			log(String.format("PUT: permission denied [%s].", filename));
 			break;
 
 		case FILE_EXIST:
-			System.out.println(String.format("PUT: file exists [%s].", filename));
+			log(String.format("PUT: file exists [%s].", filename));
 			break;
 
 		case FILE_NOT_CREATED:
-			System.out.println(String.format("PUT: could not create file [%s].", filename));
+			log(String.format("PUT: could not create file [%s].", filename));
+			break;
+
+		case NO_SPACE:
+			log(String.format("PUT: not enough space on the server [%s].", filename));
+			break;
+
+		case FILE_NOT_EXIST:
+			log(String.format("PUT: no file to apply the delta to [%s].", filename));
 			break;
 
 		case FILE_CREATED:
-			if (file.length() == 0) {
-				System.out.println(String.format("PUT: file sent [%s].", filename));
+			if (length == 0) {
+				log(String.format("PUT: file sent [%s].", filename));
 				break;
 			}
-			sendFile(file, os, file.length());
+			// the checksum is of the data, computed as it is written
+			Checksum checksum = response.isChecksummed() ? Crc32c.create() : null;
+			FrameOutputStream frames = null;
+			OutputStream data = os;
+			if (response.isCompressed()) {
+				frames = new FrameOutputStream(os, compressionLevel);
+				data = frames;
+			}
+			if (checksum != null) {
+				data = new CheckedOutputStream(data, checksum);
+			}
+			body.writeTo(data);
+			if (frames != null) {
+				frames.finish();
+			}
+			if (checksum != null) {
+				byte[] trailer = new byte[Integer.SIZE / Byte.SIZE];
+				AppUtil.toBytes((int) checksum.getValue(), trailer, 0);
+				os.write(trailer);
+			}
+			os.flush();
 			Header fin = readHeaderResponse(is);
-			if (fin.getAction() == Action.PUT_FIN) {
-				System.out.println(String.format("PUT: file sent [%s].", filename));
+			if (fin.getAction() != Action.PUT_FIN) {
+				log(String.format("Unexpected action %s.", fin.getAction()));
+				return Message.NONE;
 			}
-			break;
+			switch (fin.getMessage()) {
+			case FILE_CREATED:
+				log(String.format("PUT: file sent [%s].", filename));
+				break;
+			case FILE_EXIST:
+				log(String.format("PUT: file exists [%s].", filename));
+				break;
+			case CHECKSUM_MISMATCH:
+				log(String.format("PUT: file corrupted on the way [%s].", filename));
+				break;
+			default:
+				log(String.format("PUT: could not create file [%s].", filename));
+				break;
+			}
+			return fin.getMessage();
 
 		default:
-			System.out.println(String.format("Unexpected message %s.", response.getMessage()));
+			log(String.format("Unexpected message %s.", response.getMessage()));
 			break;
 		}
+		return response.getMessage();
 	}
 	
-	private void sendFile(File file, OutputStream os, long fileLength) throws IOException {
-		BufferedInputStream bis = null;
+	/**
+	 * Send a file split into content-defined chunks, see Chunker, only the
+	 * chunks the server does not have yet being sent; the others are
+	 * referred to by their hash.
+	 *
+	 * @param file
+	 * @param path
+	 * @return the message of the server
+	 * @throws IOException
+	 */
+	public Message sendChunked(final File file, String[] path) throws IOException {
+		final List<long[]> chunks = new ArrayList<long[]>();
+		final List<byte[]> hashes = new ArrayList<byte[]>();
+		InputStream is = new FileInputStream(file);
 		try {
-			bis = new BufferedInputStream(new FileInputStream(file));
-			AppUtil.read(bis, fileLength, os);
+			Chunker chunker = new Chunker();
+			byte[] buffer = new byte[Chunker.MAX_SIZE];
+			int pending = 0;
+			long offset = 0;
+			while (true) {
+				int read = is.read(buffer, pending, buffer.length - pending);
+				if (read == -1) {
+					break;
+				}
+				int end = chunker.next(buffer, pending, read);
+				pending += read;
+				while (end != -1) {
+					chunks.add(new long[] { offset, end });
+					hashes.add(Chunker.hash(buffer, 0, end));
+					offset += end;
+					System.arraycopy(buffer, end, buffer, 0, pending - end);
+					pending -= end;
+					end = chunker.next(buffer, 0, pending);
+				}
+			}
+			if (pending > 0) {
+				chunks.add(new long[] { offset, pending });
+				hashes.add(Chunker.hash(buffer, 0, pending));
+			}
+		} finally {
+			AppUtil.close(is);
 		}
-		finally {
-			AppUtil.close(bis);
+
+		List<String> distinct = new ArrayList<String>(new LinkedHashSet<String>(toHex(hashes)));
+		final Set<String> missing = missingChunks(distinct);
+		long length = 0;
+		Set<String> sent = new HashSet<String>();
+		for (int i = 0; i < chunks.size(); i++) {
+			if (missing.contains(Chunker.toHex(hashes.get(i))) && sent.add(Chunker.toHex(hashes.get(i)))) {
+				length += 1 + Integer.SIZE / Byte.SIZE + chunks.get(i)[1];
+			}
+			else {
+				length += 1 + Chunker.HASH_LENGTH;
+			}
 		}
+
+		Header header = new Header();
+		header.setAction(Action.PUT);
+		header.setPath(path);
+		header.setDataLength(length);
+		header.setOverwrite(overwrite);
+		header.setChunked(true);
+		return put(header, new Body() {
+			@Override
+			public void writeTo(OutputStream os) throws IOException {
+				writeRecipe(file, chunks, hashes, missing, os);
+			}
+		});
 	}
-	
+
+	private static void writeRecipe(File file, List<long[]> chunks, List<byte[]> hashes,
+			Set<String> missing, OutputStream os) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os, 64 * 1024));
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			byte[] buffer = new byte[Chunker.MAX_SIZE];
+			Set<String> sent = new HashSet<String>();
+			for (int i = 0; i < chunks.size(); i++) {
+				String hash = Chunker.toHex(hashes.get(i));
+				if (missing.contains(hash) && sent.add(hash)) {
+					int length = (int) chunks.get(i)[1];
+					raf.seek(chunks.get(i)[0]);
+					raf.readFully(buffer, 0, length);
+					out.writeByte(Chunker.LITERAL);
+					out.writeInt(length);
+					out.write(buffer, 0, length);
+				}
+				else {
+					out.writeByte(Chunker.REFERENCE);
+					out.write(hashes.get(i));
+				}
+			}
+			out.flush();
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static List<String> toHex(List<byte[]> hashes) {
+		List<String> hex = new ArrayList<String>(hashes.size());
+		for (byte[] hash : hashes) {
+			hex.add(Chunker.toHex(hash));
+		}
+		return hex;
+	}
+
+	/**
+	 * Ask the server which of the given chunks it does not store.
+	 *
+	 * @param hashes the hashes of the chunks, in hexadecimal
+	 * @return the hashes of the missing chunks
+	 * @throws IOException
+	 */
+	public Set<String> missingChunks(List<String> hashes) throws IOException {
+		OutputStream os = socketchannel.socket().getOutputStream();
+		InputStream is = socketchannel.socket().getInputStream();
+		Set<String> missing = new HashSet<String>();
+		int batch = Chunker.MAX_CHECK_HASHES;
+		for (int from = 0; from < hashes.size(); from += batch) {
+			List<String> part = hashes.subList(from, Math.min(hashes.size(), from + batch));
+			ByteArrayOutputStream body = new ByteArrayOutputStream(part.size() * Chunker.HASH_LENGTH);
+			for (String hash : part) {
+				body.write(Chunker.fromHex(hash));
+			}
+			Header header = new Header();
+			header.setAction(Action.CHK);
+			header.setPath(new String[0]);
+			header.setDataLength(body.size());
+			os.write(header.toBytes());
+			body.writeTo(os);
+			os.flush();
+
+			Header response = readHeaderResponse(is);
+			if (response.getAction() != Action.CHK_ACK) {
+				throw new IOException(String.format("Unexpected action %s.", response.getAction()));
+			}
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) response.getDataLength());
+			AppUtil.read(is, response.getDataLength(), bytes);
+			byte[] hashBytes = bytes.toByteArray();
+			for (int i = 0; i < hashBytes.length; i += Chunker.HASH_LENGTH) {
+				missing.add(Chunker.toHex(hashBytes, i, Chunker.HASH_LENGTH));
+			}
+		}
+		return missing;
+	}
+
+	/**
+	 * Get the status of a file or directory, without its content.
+	 *
+	 * @param path
+	 * @return
+	 * @throws IOException
+	 */
+	public FileStatus stat(String[] path) throws IOException {
+		return requestStat(path, null).get(0);
+	}
+
+	/**
+	 * Get the statuses of many files or directories, in as few requests as
+	 * the server takes.
+	 *
+	 * @param paths
+	 * @return the statuses, in the order of the paths
+	 * @throws IOException
+	 */
+	public List<FileStatus> stat(List<String[]> paths) throws IOException {
+		List<FileStatus> statuses = new ArrayList<FileStatus>(paths.size());
+		int from = 0;
+		while (from < paths.size()) {
+			// the packed paths of a request stay under the limit
+			int to = from;
+			long length = Integer.SIZE / Byte.SIZE;
+			while (to < paths.size() && to - from < FileStatus.MAX_PATHS) {
+				long pathLength = Integer.SIZE / Byte.SIZE;
+				for (String level : paths.get(to)) {
+					pathLength += Integer.SIZE / Byte.SIZE + level.length() * Character.SIZE / Byte.SIZE;
+				}
+				if (to > from && length + pathLength > FileStatus.MAX_REQUEST_LENGTH) {
+					break;
+				}
+				length += pathLength;
+				to++;
+			}
+			statuses.addAll(requestStat(new String[0], paths.subList(from, to)));
+			from = to;
+		}
+		return statuses;
+	}
+
+	/**
+	 * @param path the path, or the base of the paths
+	 * @param paths relative to the base, null for the path itself
+	 */
+	private List<FileStatus> requestStat(String[] path, List<String[]> paths) throws IOException {
+		byte[] body = paths == null ? new byte[0] : AppUtil.packPaths(paths);
+		Header header = new Header();
+		header.setAction(Action.STAT);
+		header.setPath(path);
+		header.setDataLength(body.length);
+
+		OutputStream os = socketchannel.socket().getOutputStream();
+		os.write(header.toBytes());
+		os.write(body);
+		os.flush();
+
+		InputStream is = socketchannel.socket().getInputStream();
+		Header response = readHeaderResponse(is);
+		if (response.getAction() != Action.STAT_ACK) {
+			throw new IOException(String.format("Unexpected action %s.", response.getAction()));
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) response.getDataLength());
+		AppUtil.read(is, response.getDataLength(), bytes);
+		List<FileStatus> statuses = FileStatus.unpack(bytes.toByteArray());
+		if (statuses.size() != (paths == null ? 1 : paths.size())) {
+			throw new IOException("statuses do not match the paths");
+		}
+		return statuses;
+	}
+
+	/**
+	 * Update a file on the server by sending only what differs from its
+	 * current version: the server sends the signatures of the blocks of its
+	 * version, and the file is sent as copies of the blocks found in it
+	 * plus the data in between, see Delta. A file not on the server yet, or
+	 * changed meanwhile, is sent whole.
+	 *
+	 * @param file
+	 * @param path
+	 * @return the message of the server
+	 * @throws IOException
+	 */
+	public Message sendDelta(File file, String[] path) throws IOException {
+		String filename = AppUtil.toString(path, File.separatorChar);
+		Header header = new Header();
+		header.setAction(Action.SIG);
+		header.setPath(path);
+
+		OutputStream os = socketchannel.socket().getOutputStream();
+		os.write(header.toBytes());
+		os.flush();
+
+		InputStream is = socketchannel.socket().getInputStream();
+		Header response = readHeaderResponse(is);
+		if (response.getAction() != Action.SIG_ACK) {
+			log(String.format("Unexpected action %s.", response.getAction()));
+			return Message.NONE;
+		}
+		if (response.getMessage() == Message.PERMISSION_DENIED) {
+			log(String.format("PUT: permission denied [%s].", filename));
+			return response.getMessage();
+		}
+		if (response.getMessage() != Message.FILE_EXIST) {
+			return sendWhole(file, path);
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) response.getDataLength());
+		AppUtil.read(is, response.getDataLength(), bytes);
+
+		final File delta = File.createTempFile("delta", ".tmp");
+		try {
+			writeDelta(file, bytes.toByteArray(), delta);
+			header = new Header();
+			header.setAction(Action.PUT);
+			header.setPath(path);
+			header.setDataLength(delta.length());
+			header.setOverwrite(true);
+			header.setDelta(true);
+			Message message = put(header, new Body() {
+				@Override
+				public void writeTo(OutputStream os) throws IOException {
+					InputStream in = new FileInputStream(delta);
+					try {
+						AppUtil.read(in, delta.length(), os);
+					} finally {
+						AppUtil.close(in);
+					}
+				}
+			});
+			if (message != Message.FILE_CREATED) {
+				return sendWhole(file, path);
+			}
+			log(String.format("PUT: delta of %d bytes for %d [%s].", delta.length(), file.length(), filename));
+			return message;
+		} finally {
+			delta.delete();
+		}
+	}
+
+	private Message sendWhole(File file, String[] path) throws IOException {
+		boolean old = overwrite;
+		overwrite = true;
+		try {
+			return send(file, path);
+		} finally {
+			overwrite = old;
+		}
+	}
+
+	/**
+	 * Compute the delta of a file against the blocks of the given signatures.
+	 */
+	private static void writeDelta(File file, byte[] signatures, File delta) throws IOException {
+		int blockSize = AppUtil.toInteger(signatures, 0);
+		long basisLength = AppUtil.toLong(signatures, Integer.SIZE / Byte.SIZE);
+		int offset = Integer.SIZE / Byte.SIZE + Long.SIZE / Byte.SIZE;
+		int blocks = (signatures.length - offset) / Delta.SIGNATURE_LENGTH;
+		Map<Integer, List<Integer>> weaks = new HashMap<Integer, List<Integer>>();
+		for (int i = 0; i < blocks; i++) {
+			int weak = AppUtil.toInteger(signatures, offset + i * Delta.SIGNATURE_LENGTH);
+			List<Integer> indexes = weaks.get(weak);
+			if (indexes == null) {
+				indexes = new ArrayList<Integer>(1);
+				weaks.put(weak, indexes);
+			}
+			indexes.add(i);
+		}
+		int lastLength = (int) (basisLength - (long) (blocks - 1) * blockSize);
+
+		MessageDigest sha = Delta.digest("SHA-256");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(delta), 64 * 1024));
+		InputStream in = new FileInputStream(file);
+		try {
+			out.writeLong(basisLength);
+			out.writeInt(blockSize);
+			byte[] buf = new byte[Math.max(4 * blockSize, 1024 * 1024)];
+			int len = fill(in, buf, 0);
+			boolean eof = len < buf.length;
+			int p = 0;
+			int literal = 0;
+			int weak = 0;
+			boolean rolling = false;
+			while (true) {
+				if (len - p < blockSize) {
+					if (eof) {
+						break;
+					}
+					// slide the window: what is before it is literal data
+					writeLiteral(out, buf, literal, p);
+					sha.update(buf, 0, p);
+					System.arraycopy(buf, p, buf, 0, len - p);
+					len -= p;
+					p = 0;
+					literal = 0;
+					int read = fill(in, buf, len);
+					eof = read < buf.length;
+					len = read;
+					rolling = false;
+					continue;
+				}
+				if (!rolling) {
+					weak = Delta.weak(buf, p, blockSize);
+					rolling = true;
+				}
+				int match = match(weaks.get(weak), buf, p, blockSize, signatures, offset);
+				if (match >= 0 && (match < blocks - 1 || lastLength == blockSize)) {
+					writeLiteral(out, buf, literal, p);
+					out.writeByte(Delta.COPY);
+					out.writeInt(match);
+					p += blockSize;
+					literal = p;
+					rolling = false;
+				}
+				else {
+					if (p + blockSize < len) {
+						weak = Delta.roll(weak, blockSize, buf[p], buf[p + blockSize]);
+					}
+					else {
+						rolling = false;
+					}
+					p++;
+				}
+			}
+			// the tail may be the last block, shorter than the others
+			int tail = len - p;
+			if (blocks > 0 && tail > 0 && tail == lastLength
+					&& match(weaks.get(Delta.weak(buf, p, tail)), buf, p, tail, signatures, offset) == blocks - 1) {
+				writeLiteral(out, buf, literal, p);
+				out.writeByte(Delta.COPY);
+				out.writeInt(blocks - 1);
+			}
+			else {
+				writeLiteral(out, buf, literal, len);
+			}
+			sha.update(buf, 0, len);
+			out.writeByte(Delta.END);
+			out.write(sha.digest());
+		} finally {
+			AppUtil.close(in);
+			out.close();
+		}
+	}
+
+	/**
+	 * @return the index of the block with the weak checksum given by the
+	 * indexes, and the same strong hash, -1 if there is none
+	 */
+	private static int match(List<Integer> indexes, byte[] buf, int p, int length,
+			byte[] signatures, int offset) {
+		if (indexes == null) {
+			return -1;
+		}
+		byte[] strong = Delta.strong(buf, p, length);
+		for (int index : indexes) {
+			int from = offset + index * Delta.SIGNATURE_LENGTH + Integer.SIZE / Byte.SIZE;
+			boolean equal = true;
+			for (int i = 0; i < Delta.STRONG_LENGTH && equal; i++) {
+				equal = signatures[from + i] == strong[i];
+			}
+			if (equal) {
+				return index;
+			}
+		}
+		return -1;
+	}
+
+	private static void writeLiteral(DataOutputStream out, byte[] buf, int from, int to) throws IOException {
+		if (to > from) {
+			out.writeByte(Delta.LITERAL);
+			out.writeInt(to - from);
+			out.write(buf, from, to - from);
+		}
+	}
+
+	/**
+	 * @return the length of the data in the buffer, which is only less than
+	 * the buffer at the end of the stream
+	 */
+	private static int fill(InputStream in, byte[] buf, int from) throws IOException {
+		int len = from;
+		while (len < buf.length) {
+			int read = in.read(buf, len, buf.length - len);
+			if (read == -1) {
+				break;
+			}
+			len += read;
+		}
+		return len;
+	}
+
 	public String[] list(String[] path) throws IOException {
 		Header header = new Header();
 		header.setAction(Action.LST);
@@ -258,17 +1601,17 @@ public class FileClient {
 
 		Header response = readHeaderResponse(is);
 		if (response.getAction() != Action.LST_ACK) {
-			System.out.println(String.format("Unexpected action %s.", response.getAction()));
+			log(String.format("Unexpected action %s.", response.getAction()));
 			return filenames;
 		}
 
 		switch (response.getMessage()) {
 		case PERMISSION_DENIED:
-			System.out.println(String.format("LST: permission denied [%s].", filename));
+			log(String.format("LST: permission denied [%s].", filename));
 			break;
 
 		case FILE_NOT_EXIST:
-			System.out.println(String.format("LST: dir/file not exists [%s].", filename));
+			log(String.format("LST: dir/file not exists [%s].", filename));
 			break;
 
 		case FILE_EXIST:
@@ -276,17 +1619,210 @@ public class FileClient {
 			if (dataLength > 0) {
 				filenames = receiveList(is, dataLength);
 			}
-			System.out.println(String.format("LST: list received [%s].", filename));
+			log(String.format("LST: list received [%s].", filename));
 			break;
 
 		default:
-			System.out.println(String.format("Unexpected message %s.", response.getMessage()));
+			log(String.format("Unexpected message %s.", response.getMessage()));
 			break;
 		}
 
 		return filenames;
 	}
 	
+	/**
+	 * Do many GETs, PUTs and DELs of small files in as few requests as the
+	 * server takes, each request costing one round trip. The server does
+	 * them in order, and answers each with its message, see
+	 * Batch.Item.getMessage(), the GETs of a file with its content too. The
+	 * files too large to be got in the response of a batch are answered
+	 * TOO_LARGE, to be got on their own.
+	 *
+	 * @param items
+	 * @return the items, answered
+	 * @throws IOException
+	 */
+	public List<Batch.Item> batch(List<Batch.Item> items) throws IOException {
+		int from = 0;
+		while (from < items.size()) {
+			// the items of a request stay under the limit
+			int to = from;
+			long length = Integer.SIZE / Byte.SIZE;
+			while (to < items.size() && to - from < Batch.MAX_ITEMS) {
+				long itemLength = items.get(to).getLength();
+				if (length + itemLength > Batch.MAX_LENGTH) {
+					if (to == from) {
+						throw new IllegalArgumentException("too large for a batch: "
+								+ AppUtil.toString(items.get(to).path, '/'));
+					}
+					break;
+				}
+				length += itemLength;
+				to++;
+			}
+			requestBatch(items.subList(from, to));
+			from = to;
+		}
+		return items;
+	}
+
+	private void requestBatch(List<Batch.Item> items) throws IOException {
+		byte[] body = Batch.toRequest(items);
+		Header header = new Header();
+		header.setAction(Action.BAT);
+		header.setPath(new String[0]);
+		header.setDataLength(body.length);
+
+		OutputStream os = socketchannel.socket().getOutputStream();
+		os.write(header.toBytes());
+		os.write(body);
+		os.flush();
+
+		InputStream is = socketchannel.socket().getInputStream();
+		Header response = readHeaderResponse(is);
+		if (response.getAction() != Action.BAT_ACK) {
+			throw new IOException(String.format("Unexpected action %s.", response.getAction()));
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) response.getDataLength());
+		AppUtil.read(is, response.getDataLength(), bytes);
+		Batch.fromResponse(bytes.toByteArray(), items);
+		log(String.format("BAT: %d items done.", items.size()));
+	}
+
+	/**
+	 * Get the changes of the files since a cursor, the first ones if there
+	 * are more than a response carries.
+	 *
+	 * @param epoch the epoch of the cursor, 0 at first
+	 * @param cursor the cursor of the changes got last, 0 at first
+	 * @return the changes, expired if the files are to be listed again
+	 * @throws IOException
+	 */
+	public Changes changes(long epoch, long cursor) throws IOException {
+		requestChanges(epoch, cursor, false);
+		return awaitChanges();
+	}
+
+	/**
+	 * Get the changes of the files since a cursor, and have the next ones
+	 * pushed as they are made, to be got with awaitChanges(). The
+	 * connection is then used for nothing else.
+	 *
+	 * @param epoch the epoch of the cursor, 0 at first
+	 * @param cursor the cursor of the changes got last, 0 at first
+	 * @return the changes
+	 * @throws IOException
+	 */
+	public Changes subscribe(long epoch, long cursor) throws IOException {
+		requestChanges(epoch, cursor, true);
+		return awaitChanges();
+	}
+
+	private void requestChanges(long epoch, long cursor, boolean subscribe) throws IOException {
+		byte[] body = new byte[Changes.REQUEST_LENGTH];
+		int index = AppUtil.toBytes(epoch, body, 0);
+		index = AppUtil.toBytes(cursor, body, index);
+		index = AppUtil.toBytes(Changes.MAX_CHANGES, body, index);
+		body[index] = (byte) (subscribe ? 1 : 0);
+		Header header = new Header();
+		header.setAction(Action.CHG);
+		header.setPath(new String[0]);
+		header.setDataLength(body.length);
+
+		OutputStream os = socketchannel.socket().getOutputStream();
+		os.write(header.toBytes());
+		os.write(body);
+		os.flush();
+	}
+
+	/**
+	 * Wait for the next changes of a subscription.
+	 *
+	 * @return
+	 * @throws IOException
+	 */
+	public Changes awaitChanges() throws IOException {
+		InputStream is = socketchannel.socket().getInputStream();
+		Header response = readHeaderResponse(is);
+		if (response.getAction() != Action.CHG_ACK) {
+			throw new IOException(String.format("Unexpected action %s.", response.getAction()));
+		}
+		if (response.getMessage() != Message.FILE_EXIST) {
+			throw new IOException(String.format("CHG: %s.", response.getMessage()));
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) response.getDataLength());
+		AppUtil.read(is, response.getDataLength(), bytes);
+		return Changes.fromBytes(bytes.toByteArray());
+	}
+
+	/**
+	 * List the files under a path which match the options, the server
+	 * leaving the others out.
+	 *
+	 * @param path
+	 * @param options
+	 * @return the files, relative to the root
+	 * @throws IOException
+	 */
+	public List<ListOptions.Entry> list(String[] path, ListOptions options) throws IOException {
+		byte[] body = options.toBytes();
+		Header header = new Header();
+		header.setAction(Action.LST);
+		header.setPath(path);
+		header.setDataLength(body.length);
+
+		OutputStream os = socketchannel.socket().getOutputStream();
+		os.write(header.toBytes());
+		os.write(body);
+		os.flush();
+
+		InputStream is = socketchannel.socket().getInputStream();
+		String filename = AppUtil.toString(path, File.separatorChar);
+		List<ListOptions.Entry> entries = new ArrayList<ListOptions.Entry>();
+
+		Header response = readHeaderResponse(is);
+		if (response.getAction() != Action.LST_ACK) {
+			throw new IOException(String.format("Unexpected action %s.", response.getAction()));
+		}
+		switch (response.getMessage()) {
+		case PERMISSION_DENIED:
+			log(String.format("LST: permission denied [%s].", filename));
+			break;
+
+		case FILE_NOT_EXIST:
+			log(String.format("LST: dir/file not exists [%s].", filename));
+			break;
+
+		case FILE_EXIST:
+			ByteArrayOutputStream baos = new ByteArrayOutputStream((int) response.getDataLength());
+			AppUtil.read(is, response.getDataLength(), baos);
+			byte[] bytes = baos.toByteArray();
+			if (bytes.length == 0) {
+				break;
+			}
+			List<String[]> paths = AppUtil.unpackPaths(bytes);
+			// the length and modification time of each file follow the paths
+			int index = bytes.length - (options.isMetadata() ? paths.size() * 2 * Long.SIZE / Byte.SIZE : 0);
+			for (String[] p : paths) {
+				long length = -1;
+				long lastModified = -1;
+				if (options.isMetadata()) {
+					length = AppUtil.toLong(bytes, index);
+					lastModified = AppUtil.toLong(bytes, index + Long.SIZE / Byte.SIZE);
+					index += 2 * Long.SIZE / Byte.SIZE;
+				}
+				entries.add(new ListOptions.Entry(p, length, lastModified));
+			}
+			log(String.format("LST: list received [%s].", filename));
+			break;
+
+		default:
+			log(String.format("Unexpected message %s.", response.getMessage()));
+			break;
+		}
+		return entries;
+	}
+
 	private String[] receiveList(InputStream is, long dataLength) throws IOException {
 		ByteArrayOutputStream baos = new ByteArrayOutputStream((int) dataLength);
 		AppUtil.read(is, dataLength, baos);
@@ -324,11 +1860,12 @@ public class FileClient {
 		try {
 			FileClient client = new FileClient();
 			client.connects(server, port);
-			String[] filenames = client.list(new String[0]);
-			System.out.println("existing file count:" + filenames.length);
-			for (String filename : filenames) {
-				client.delete(filename.split(File.separator));
-			}
+			client.deleteTree(new String[0], null, new DeleteProgress.Listener() {
+				@Override
+				public void progress(DeleteProgress progress) {
+					System.out.println("existing files deleted:" + progress.files);
+				}
+			});
 			client.close();
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -363,8 +1900,12 @@ public class FileClient {
 			});
 		}
 		
-		while (success.get() + failure.get() < fileList.size());
 		threadPool.shutdown();
+		try {
+			threadPool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
 		
 		long endTimeMillis = System.currentTimeMillis();
 		System.out.println("time elapsed (ms):" + (endTimeMillis - startTimeMillis));
@@ -0,0 +1,137 @@
+package client;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A log-linear histogram in the manner of HdrHistogram: values below 2048
+ * are counted exactly, and above that every power of two is split into 1024
+ * sub-buckets, so any recorded value is reported within 0.1% of itself.
+ * Recording is lock free, so one histogram can be shared by many threads.
+ */
+public class Histogram {
+
+	private final static int SUB_BUCKET_BITS = 10;
+	private final static int SUB_BUCKET_HALF = 1 << SUB_BUCKET_BITS;
+	private final static int SUB_BUCKET_COUNT = SUB_BUCKET_HALF << 1;
+
+	private final AtomicLongArray counts = new AtomicLongArray(
+			(Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKET_HALF);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	static int indexOf(long value) {
+		if (value < SUB_BUCKET_COUNT) {
+			return (int) value;
+		}
+		int exp = (Long.SIZE - 1 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+		return (exp + 1) * SUB_BUCKET_HALF + (int) ((value >>> exp) - SUB_BUCKET_HALF);
+	}
+
+	/**
+	 * The highest value counted in the bucket at the given index.
+	 *
+	 * @param index
+	 * @return
+	 */
+	static long highestValueAt(int index) {
+		if (index < SUB_BUCKET_COUNT) {
+			return index;
+		}
+		int exp = index / SUB_BUCKET_HALF - 1;
+		long sub = index % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+		return (sub << exp) + (1L << exp) - 1;
+	}
+
+	/**
+	 * Record a value, negative values are counted as 0.
+	 *
+	 * @param value
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts.incrementAndGet(indexOf(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long m;
+		while (value > (m = max.get()) && !max.compareAndSet(m, value));
+	}
+
+	/**
+	 * Add all the values recorded in another histogram to this one.
+	 *
+	 * @param other
+	 */
+	public void add(Histogram other) {
+		for (int i = 0; i < counts.length(); i++) {
+			long n = other.counts.get(i);
+			if (n > 0) {
+				counts.addAndGet(i, n);
+			}
+		}
+		count.addAndGet(other.count.get());
+		sum.addAndGet(other.sum.get());
+		long m;
+		long value = other.max.get();
+		while (value > (m = max.get()) && !max.compareAndSet(m, value));
+	}
+
+	/**
+	 * Get the value at the given percentile.
+	 *
+	 * @param percentile between 0 and 100
+	 * @return
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long total = count.get();
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+		long seen = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(highestValueAt(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Append the mean, the percentiles p50, p90, p99, p99.9 and the max as
+	 * a JSON object, all the values divided by the given unit.
+	 *
+	 * @param sb
+	 * @param unit e.g. 1000 to report nanoseconds in microseconds
+	 */
+	public void appendJson(StringBuilder sb, double unit) {
+		sb.append("{\"mean\": ").append(format(getMean() / unit));
+		sb.append(", \"p50\": ").append(format(getValueAtPercentile(50) / unit));
+		sb.append(", \"p90\": ").append(format(getValueAtPercentile(90) / unit));
+		sb.append(", \"p99\": ").append(format(getValueAtPercentile(99) / unit));
+		sb.append(", \"p999\": ").append(format(getValueAtPercentile(99.9) / unit));
+		sb.append(", \"max\": ").append(format(getMax() / unit)).append("}");
+	}
+
+	static String format(double d) {
+		return String.format(Locale.ROOT, "%.3f", d);
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long total = count.get();
+		return total == 0 ? 0 : (double) sum.get() / total;
+	}
+}
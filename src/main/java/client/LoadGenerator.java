@@ -0,0 +1,545 @@
+package client;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import common.AppConstant.Action;
+import common.AppConstant.Message;
+
+/**
+ * A load generator for the file server. Every worker thread keeps one
+ * connection open and issues a mix of PUT, GET, DEL and LST requests over
+ * a fixed key space, either back to back (closed loop), or at a given total
+ * arrival rate (open loop). In the open loop the latency is measured from
+ * the time a request was due rather than from when it was sent, so a server
+ * falling behind shows up in the percentiles instead of hiding in a lower
+ * throughput. The result is printed as JSON, to be compared between runs.
+ *
+ * Options, all in the form --name=value:
+ *   host, port      server address, localhost:12345 by default
+ *   concurrency     number of connections/threads, 8 by default
+ *   rate            total requests per second, 0 (default) for closed loop
+ *   duration        seconds to run, 30 by default
+ *   files           number of distinct keys, 1000 by default
+ *   sizes           PUT sizes as weighted sizes or ranges, e.g. 4k:80,1m:20
+ *                   or 1k-64k, 4k by default
+ *   mix             weighted actions, PUT:20,GET:70,DEL:5,LST:5 by default
+ *   preload         PUT every key before measuring, true by default
+ *   prefix          top level directory of the keys, "loadgen" by default
+ *   seed            random seed, 1 by default
+ *   output          file to write the JSON to, stdout by default
+ */
+public class LoadGenerator {
+
+	private final static int LIST_DIRS = 64;
+
+	private String host = "localhost";
+	private int port = 12345;
+	private int concurrency = 8;
+	private double rate;
+	private long durationMillis = 30000;
+	private int files = 1000;
+	private SizeDistribution sizes = SizeDistribution.parse("4k");
+	private ActionMix mix = ActionMix.parse("PUT:20,GET:70,DEL:5,LST:5");
+	private boolean preload = true;
+	private String prefix = "loadgen";
+	private long seed = 1;
+
+	private final Map<Action, Histogram> latencies = new EnumMap<Action, Histogram>(Action.class);
+	private final Map<Action, AtomicLong> misses = new EnumMap<Action, AtomicLong>(Action.class);
+	private final AtomicLong errors = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong tickets = new AtomicLong();
+
+	public LoadGenerator() {
+		for (Action action : ActionMix.ACTIONS) {
+			latencies.put(action, new Histogram());
+			misses.put(action, new AtomicLong());
+		}
+	}
+
+	/**
+	 * Run the load and return the report as JSON.
+	 *
+	 * @return
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public String run() throws IOException, InterruptedException {
+		if (preload) {
+			preload();
+		}
+		final long start = System.nanoTime();
+		final long end = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < concurrency; i++) {
+			final Random random = new Random(seed + i);
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					work(random, start, end);
+				}
+			}, "loadgen-" + i);
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		long elapsed = System.nanoTime() - start;
+		return report(elapsed);
+	}
+
+	private void preload() throws IOException, InterruptedException {
+		final AtomicLong next = new AtomicLong();
+		final AtomicLong failed = new AtomicLong();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < concurrency; i++) {
+			final Random random = new Random(seed - i - 1);
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						FileClient client = connect();
+						try {
+							long key;
+							while ((key = next.getAndIncrement()) < files) {
+								long size = sizes.next(random);
+								client.send(new PatternInputStream(size), size, path(key));
+							}
+						} finally {
+							client.close();
+						}
+					} catch (IOException e) {
+						failed.incrementAndGet();
+					}
+				}
+			}, "loadgen-preload-" + i);
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		if (failed.get() > 0) {
+			throw new IOException("preload failed");
+		}
+	}
+
+	private void work(Random random, long start, long end) {
+		FileClient client = null;
+		OutputStream discard = new NullOutputStream();
+		while (true) {
+			long due;
+			if (rate > 0) {
+				// open loop: the n-th request of all the workers is due at
+				// start + n/rate, wait for it if it is not due yet.
+				long ticket = tickets.getAndIncrement();
+				due = start + (long) (ticket * 1e9 / rate);
+				if (due >= end || System.nanoTime() >= end) {
+					break;
+				}
+				long wait;
+				while ((wait = due - System.nanoTime()) > 0) {
+					LockSupport.parkNanos(wait);
+				}
+			}
+			else {
+				due = System.nanoTime();
+				if (due >= end) {
+					break;
+				}
+			}
+
+			Action action = mix.next(random);
+			long key = (long) (random.nextDouble() * files);
+			try {
+				if (client == null) {
+					client = connect();
+				}
+				Message message;
+				switch (action) {
+				case PUT:
+					long size = sizes.next(random);
+					message = client.send(new PatternInputStream(size), size, path(key));
+					bytes.addAndGet(size);
+					break;
+				case GET:
+					message = client.receive(path(key), discard);
+					break;
+				case DEL:
+					message = client.delete(path(key));
+					break;
+				default:
+					client.list(new String[] { prefix, "d" + (key % LIST_DIRS) });
+					message = Message.FILE_EXIST;
+					break;
+				}
+				latencies.get(action).record(System.nanoTime() - due);
+				if (message == Message.FILE_NOT_EXIST) {
+					misses.get(action).incrementAndGet();
+				}
+			} catch (IOException e) {
+				errors.incrementAndGet();
+				close(client);
+				client = null;
+			}
+		}
+		close(client);
+	}
+
+	private FileClient connect() throws IOException {
+		FileClient client = new FileClient();
+		client.setVerbose(false);
+		client.setOverwrite(true);
+		client.connects(host, port);
+		return client;
+	}
+
+	private static void close(FileClient client) {
+		if (client != null) {
+			try {
+				client.close();
+			} catch (IOException e) {
+				// nothing we can do about
+			}
+		}
+	}
+
+	private String[] path(long key) {
+		return new String[] { prefix, "d" + (key % LIST_DIRS), "f" + key };
+	}
+
+	private String report(long elapsedNanos) {
+		double seconds = elapsedNanos / 1e9;
+		Histogram all = new Histogram();
+		for (Histogram h : latencies.values()) {
+			all.add(h);
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\n");
+		sb.append("  \"config\": {");
+		sb.append("\"host\": \"").append(host).append("\", ");
+		sb.append("\"port\": ").append(port).append(", ");
+		sb.append("\"concurrency\": ").append(concurrency).append(", ");
+		sb.append("\"rate\": ").append(format(rate)).append(", ");
+		sb.append("\"durationSeconds\": ").append(format(durationMillis / 1000.0)).append(", ");
+		sb.append("\"files\": ").append(files).append(", ");
+		sb.append("\"sizes\": \"").append(sizes).append("\", ");
+		sb.append("\"mix\": \"").append(mix).append("\", ");
+		sb.append("\"seed\": ").append(seed).append("},\n");
+		sb.append("  \"elapsedSeconds\": ").append(format(seconds)).append(",\n");
+		sb.append("  \"operations\": ").append(all.getCount()).append(",\n");
+		sb.append("  \"throughput\": ").append(format(all.getCount() / seconds)).append(",\n");
+		sb.append("  \"putBytesPerSecond\": ").append(format(bytes.get() / seconds)).append(",\n");
+		sb.append("  \"errors\": ").append(errors.get()).append(",\n");
+		sb.append("  \"latencyMicros\": ");
+		all.appendJson(sb, 1000);
+		sb.append(",\n  \"actions\": {");
+		boolean first = true;
+		for (Action action : ActionMix.ACTIONS) {
+			Histogram h = latencies.get(action);
+			if (h.getCount() == 0) {
+				continue;
+			}
+			sb.append(first ? "\n" : ",\n");
+			first = false;
+			sb.append("    \"").append(action).append("\": {");
+			sb.append("\"operations\": ").append(h.getCount()).append(", ");
+			sb.append("\"throughput\": ").append(format(h.getCount() / seconds)).append(", ");
+			sb.append("\"notFound\": ").append(misses.get(action).get()).append(", ");
+			sb.append("\"latencyMicros\": ");
+			h.appendJson(sb, 1000);
+			sb.append("}");
+		}
+		sb.append("\n  }\n}\n");
+		return sb.toString();
+	}
+
+	private static String format(double d) {
+		return Histogram.format(d);
+	}
+
+	/**
+	 * Parse a size such as 512, 4k, 64K, 1m or 2g.
+	 *
+	 * @param str
+	 * @return
+	 */
+	static long parseSize(String str) {
+		str = str.trim().toLowerCase(Locale.ROOT);
+		long unit = 1;
+		char last = str.charAt(str.length() - 1);
+		if (last == 'k') {
+			unit = 1L << 10;
+		}
+		else if (last == 'm') {
+			unit = 1L << 20;
+		}
+		else if (last == 'g') {
+			unit = 1L << 30;
+		}
+		if (unit > 1) {
+			str = str.substring(0, str.length() - 1);
+		}
+		return Long.parseLong(str) * unit;
+	}
+
+	/**
+	 * Weighted entries "value:weight,value:weight", the weight being 1 if
+	 * it is omitted.
+	 */
+	private static abstract class Weighted<T> {
+		private final List<T> values = new ArrayList<T>();
+		private final List<Double> cumulative = new ArrayList<Double>();
+		private final String spec;
+
+		Weighted(String spec) {
+			this.spec = spec;
+			double total = 0;
+			for (String entry : spec.split(",")) {
+				int colon = entry.lastIndexOf(':');
+				String value = colon < 0 ? entry : entry.substring(0, colon);
+				double weight = colon < 0 ? 1 : Double.parseDouble(entry.substring(colon + 1));
+				if (weight <= 0) {
+					continue;
+				}
+				total += weight;
+				values.add(parseValue(value.trim()));
+				cumulative.add(total);
+			}
+			if (values.isEmpty()) {
+				throw new IllegalArgumentException("no entry in " + spec);
+			}
+			for (int i = 0; i < cumulative.size(); i++) {
+				cumulative.set(i, cumulative.get(i) / total);
+			}
+		}
+
+		abstract T parseValue(String value);
+
+		T pick(Random random) {
+			double r = random.nextDouble();
+			for (int i = 0; i < cumulative.size() - 1; i++) {
+				if (r < cumulative.get(i)) {
+					return values.get(i);
+				}
+			}
+			return values.get(values.size() - 1);
+		}
+
+		@Override
+		public String toString() {
+			return spec;
+		}
+	}
+
+	static class SizeDistribution extends Weighted<long[]> {
+
+		SizeDistribution(String spec) {
+			super(spec);
+		}
+
+		static SizeDistribution parse(String spec) {
+			return new SizeDistribution(spec);
+		}
+
+		@Override
+		long[] parseValue(String value) {
+			int dash = value.indexOf('-');
+			if (dash < 0) {
+				long size = parseSize(value);
+				return new long[] { size, size };
+			}
+			return new long[] { parseSize(value.substring(0, dash)), parseSize(value.substring(dash + 1)) };
+		}
+
+		long next(Random random) {
+			long[] range = pick(random);
+			if (range[0] == range[1]) {
+				return range[0];
+			}
+			return range[0] + (long) (random.nextDouble() * (range[1] - range[0] + 1));
+		}
+	}
+
+	static class ActionMix extends Weighted<Action> {
+
+		final static Action[] ACTIONS = { Action.PUT, Action.GET, Action.DEL, Action.LST };
+
+		ActionMix(String spec) {
+			super(spec);
+		}
+
+		static ActionMix parse(String spec) {
+			return new ActionMix(spec);
+		}
+
+		@Override
+		Action parseValue(String value) {
+			Action action = Action.valueOf(value.toUpperCase(Locale.ROOT));
+			for (Action a : ACTIONS) {
+				if (a == action) {
+					return action;
+				}
+			}
+			throw new IllegalArgumentException("unsupported action " + value);
+		}
+
+		Action next(Random random) {
+			return pick(random);
+		}
+	}
+
+	/**
+	 * Serves the given number of bytes, repeating a fixed random block,
+	 * so that PUTs of any size need no memory of their own.
+	 */
+	static class PatternInputStream extends InputStream {
+		private final static byte[] BLOCK = new byte[64*1024];
+		static {
+			new Random(0).nextBytes(BLOCK);
+		}
+		private long remaining;
+		private int pos;
+
+		PatternInputStream(long length) {
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() {
+			if (remaining <= 0) {
+				return -1;
+			}
+			remaining--;
+			int b = BLOCK[pos] & 0xff;
+			pos = (pos + 1) % BLOCK.length;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int n = (int) Math.min(Math.min(len, remaining), BLOCK.length - pos);
+			System.arraycopy(BLOCK, pos, b, off, n);
+			pos = (pos + n) % BLOCK.length;
+			remaining -= n;
+			return n;
+		}
+	}
+
+	static class NullOutputStream extends OutputStream {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	}
+
+	public void setHost(String host) {
+		this.host = host;
+	}
+
+	public void setPort(int port) {
+		this.port = port;
+	}
+
+	public void setConcurrency(int concurrency) {
+		this.concurrency = concurrency;
+	}
+
+	/**
+	 * Set the total arrival rate in requests per second, 0 to issue the
+	 * requests back to back.
+	 *
+	 * @param rate
+	 */
+	public void setRate(double rate) {
+		this.rate = rate;
+	}
+
+	public void setDurationMillis(long durationMillis) {
+		this.durationMillis = durationMillis;
+	}
+
+	public void setFiles(int files) {
+		this.files = files;
+	}
+
+	public void setSizes(String sizes) {
+		this.sizes = SizeDistribution.parse(sizes);
+	}
+
+	public void setMix(String mix) {
+		this.mix = ActionMix.parse(mix);
+	}
+
+	public void setPreload(boolean preload) {
+		this.preload = preload;
+	}
+
+	public void setPrefix(String prefix) {
+		this.prefix = prefix;
+	}
+
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	public static void main(String[] args) throws Exception {
+		LoadGenerator generator = new LoadGenerator();
+		String output = null;
+		for (String arg : args) {
+			if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+				System.err.println("usage: LoadGenerator [--name=value]...");
+				System.exit(-1);
+			}
+			String name = arg.substring(2, arg.indexOf('='));
+			String value = arg.substring(arg.indexOf('=') + 1);
+			if (name.equals("host")) generator.setHost(value);
+			else if (name.equals("port")) generator.setPort(Integer.parseInt(value));
+			else if (name.equals("concurrency")) generator.setConcurrency(Integer.parseInt(value));
+			else if (name.equals("rate")) generator.setRate(Double.parseDouble(value));
+			else if (name.equals("duration")) generator.setDurationMillis((long) (Double.parseDouble(value) * 1000));
+			else if (name.equals("files")) generator.setFiles(Integer.parseInt(value));
+			else if (name.equals("sizes")) generator.setSizes(value);
+			else if (name.equals("mix")) generator.setMix(value);
+			else if (name.equals("preload")) generator.setPreload(Boolean.parseBoolean(value));
+			else if (name.equals("prefix")) generator.setPrefix(value);
+			else if (name.equals("seed")) generator.setSeed(Long.parseLong(value));
+			else if (name.equals("output")) output = value;
+			else {
+				System.err.println("unknown option: " + name);
+				System.exit(-1);
+			}
+		}
+		String json = generator.run();
+		if (output == null) {
+			System.out.print(json);
+		}
+		else {
+			OutputStream os = new FileOutputStream(output);
+			try {
+				os.write(json.getBytes("UTF-8"));
+			} finally {
+				os.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,422 @@
+package client;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import common.AppConstant.Action;
+import common.AppConstant.Message;
+import common.TraceRecord;
+
+/**
+ * Replays a trace recorded by the file server against a server. Paths are
+ * only known by their hash, so every file of the trace is replayed as
+ * prefix/xx/hash, which keeps the access pattern (what is read, written,
+ * deleted again, how often and how big) without the original names. The
+ * files that already existed when the recording started are PUT first.
+ *
+ * The records are dispatched in the order the requests started, see
+ * OrderedReader, at their recorded times divided by the speed, to a pool of
+ * connections, and the latency is measured from the time a request was due,
+ * so the replay is open loop. With speed 0 the records are dispatched as
+ * fast as the connections can take them.
+ *
+ * Options, all in the form --name=value:
+ *   trace           the trace file, required
+ *   host, port      server address, localhost:12345 by default
+ *   speed           time scale, 1 (default) for the original speed
+ *   concurrency     number of connections, 16 by default
+ *   prefix          top level directory of the files, "replay" by default
+ *   output          file to write the JSON to, stdout by default
+ */
+public class TraceReplayer {
+
+	private File traceFile;
+	private String host = "localhost";
+	private int port = 12345;
+	private double speed = 1;
+	private int concurrency = 16;
+	private String prefix = "replay";
+
+	private final Map<Action, Histogram> latencies = new EnumMap<Action, Histogram>(Action.class);
+	private final Map<Action, Histogram> recorded = new EnumMap<Action, Histogram>(Action.class);
+	private final AtomicLong errors = new AtomicLong();
+	private final AtomicLong mismatches = new AtomicLong();
+
+	// handed to the workers to make them stop
+	private final Task endOfTrace = new Task();
+
+	private static class Task {
+		Action action;
+		Message message;
+		long pathHash;
+		long dataLength;
+		long due;
+	}
+
+	public TraceReplayer() {
+		for (Action action : LoadGenerator.ActionMix.ACTIONS) {
+			latencies.put(action, new Histogram());
+			recorded.put(action, new Histogram());
+		}
+	}
+
+	/**
+	 * Replay the trace and return the report as JSON.
+	 *
+	 * @return
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public String run() throws IOException, InterruptedException {
+		prepare();
+
+		final BlockingQueue<Task> tasks = new ArrayBlockingQueue<Task>(concurrency * 64);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < concurrency; i++) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					work(tasks);
+				}
+			}, "replay-" + i);
+			threads.add(thread);
+			thread.start();
+		}
+
+		long start = System.nanoTime();
+		long count = 0;
+		OrderedReader reader = new OrderedReader(traceFile);
+		try {
+			TraceRecord record;
+			while ((record = reader.next()) != null) {
+				if (!latencies.containsKey(record.action)) {
+					continue;
+				}
+				Task task = new Task();
+				task.action = record.action;
+				task.message = record.message;
+				task.pathHash = record.pathHash;
+				task.dataLength = record.dataLength;
+				if (speed > 0) {
+					task.due = start + (long) (record.offsetNanos / speed);
+					long wait;
+					while ((wait = task.due - System.nanoTime()) > 0) {
+						LockSupport.parkNanos(wait);
+					}
+				}
+				else {
+					task.due = -1;
+				}
+				recorded.get(record.action).record(record.latencyNanos);
+				tasks.put(task);
+				count++;
+			}
+		} finally {
+			reader.close();
+		}
+		for (int i = 0; i < concurrency; i++) {
+			tasks.put(endOfTrace);
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		return report(count, System.nanoTime() - start);
+	}
+
+	/**
+	 * Reads the records of a trace in the order the requests started. They
+	 * are recorded once complete, a slow request after the quicker ones
+	 * started since, so a record is held back until the trace has reached
+	 * REORDER_WINDOW_NANOS past its start: only a request slower than that
+	 * can still come out of order.
+	 */
+	static class OrderedReader implements Closeable {
+		final static long REORDER_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+		private final DataInputStream dis;
+		private final PriorityQueue<TraceRecord> pending = new PriorityQueue<TraceRecord>(64,
+				new Comparator<TraceRecord>() {
+					@Override
+					public int compare(TraceRecord a, TraceRecord b) {
+						return Long.compare(a.offsetNanos, b.offsetNanos);
+					}
+				});
+		// when the last request read completed
+		private long reached;
+		private boolean ended;
+
+		OrderedReader(File traceFile) throws IOException {
+			dis = new DataInputStream(new BufferedInputStream(new FileInputStream(traceFile), 64*1024));
+			try {
+				TraceRecord.readHeader(dis);
+			} catch (IOException e) {
+				dis.close();
+				throw e;
+			}
+		}
+
+		/**
+		 * @return the next record, null at the end of the trace
+		 * @throws IOException
+		 */
+		TraceRecord next() throws IOException {
+			while (!ended && (pending.isEmpty()
+					|| pending.peek().offsetNanos > reached - REORDER_WINDOW_NANOS)) {
+				TraceRecord record = new TraceRecord();
+				if (!record.read(dis)) {
+					ended = true;
+					break;
+				}
+				reached = Math.max(reached, record.offsetNanos + record.latencyNanos);
+				pending.add(record);
+			}
+			return pending.poll();
+		}
+
+		@Override
+		public void close() throws IOException {
+			dis.close();
+		}
+	}
+
+	/**
+	 * Create the files that existed before the recording started, i.e. the
+	 * ones found by the first request on them, with the size it reported.
+	 */
+	private void prepare() throws IOException {
+		Set<Long> seen = new HashSet<Long>();
+		Map<Long, Long> existing = new HashMap<Long, Long>();
+		OrderedReader reader = new OrderedReader(traceFile);
+		try {
+			TraceRecord record;
+			while ((record = reader.next()) != null) {
+				if (record.action == Action.LST || !seen.add(record.pathHash)) {
+					continue;
+				}
+				if (record.action == Action.GET && record.message == Message.FILE_EXIST) {
+					existing.put(record.pathHash, record.dataLength);
+				}
+				else if (record.action == Action.DEL && record.message == Message.FILE_DELETED) {
+					existing.put(record.pathHash, 0L);
+				}
+				else if (record.action == Action.PUT && record.message == Message.FILE_EXIST) {
+					existing.put(record.pathHash, 0L);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		FileClient client = connect();
+		try {
+			for (Map.Entry<Long, Long> entry : existing.entrySet()) {
+				long size = entry.getValue();
+				client.send(new LoadGenerator.PatternInputStream(size), size, path(entry.getKey()));
+			}
+		} finally {
+			client.close();
+		}
+	}
+
+	private void work(BlockingQueue<Task> tasks) {
+		FileClient client = null;
+		OutputStream discard = new LoadGenerator.NullOutputStream();
+		while (true) {
+			Task task;
+			try {
+				task = tasks.take();
+			} catch (InterruptedException e) {
+				break;
+			}
+			if (task == endOfTrace) {
+				break;
+			}
+			long due = task.due < 0 ? System.nanoTime() : task.due;
+			try {
+				if (client == null) {
+					client = connect();
+				}
+				String[] path = path(task.pathHash);
+				Message message;
+				switch (task.action) {
+				case PUT:
+					message = client.send(new LoadGenerator.PatternInputStream(task.dataLength),
+							task.dataLength, path);
+					break;
+				case GET:
+					message = client.receive(path, discard);
+					break;
+				case DEL:
+					message = client.delete(path);
+					break;
+				default:
+					client.list(new String[] { path[0], path[1] });
+					message = task.message;
+					break;
+				}
+				latencies.get(task.action).record(System.nanoTime() - due);
+				if (message != task.message) {
+					mismatches.incrementAndGet();
+				}
+			} catch (IOException e) {
+				errors.incrementAndGet();
+				close(client);
+				client = null;
+			}
+		}
+		close(client);
+	}
+
+	private FileClient connect() throws IOException {
+		FileClient client = new FileClient();
+		client.setVerbose(false);
+		client.setOverwrite(true);
+		client.connects(host, port);
+		return client;
+	}
+
+	private static void close(FileClient client) {
+		if (client != null) {
+			try {
+				client.close();
+			} catch (IOException e) {
+				// nothing we can do about
+			}
+		}
+	}
+
+	private String[] path(long hash) {
+		return new String[] { prefix, String.format("%02x", hash & 0xff), Long.toHexString(hash) };
+	}
+
+	private String report(long count, long elapsedNanos) {
+		double seconds = elapsedNanos / 1e9;
+		Histogram all = new Histogram();
+		for (Histogram h : latencies.values()) {
+			all.add(h);
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\n");
+		sb.append("  \"config\": {");
+		sb.append("\"trace\": \"").append(traceFile.getPath().replace("\\", "\\\\")).append("\", ");
+		sb.append("\"host\": \"").append(host).append("\", ");
+		sb.append("\"port\": ").append(port).append(", ");
+		sb.append("\"speed\": ").append(Histogram.format(speed)).append(", ");
+		sb.append("\"concurrency\": ").append(concurrency).append("},\n");
+		sb.append("  \"elapsedSeconds\": ").append(Histogram.format(seconds)).append(",\n");
+		sb.append("  \"operations\": ").append(count).append(",\n");
+		sb.append("  \"throughput\": ").append(Histogram.format(count / seconds)).append(",\n");
+		sb.append("  \"errors\": ").append(errors.get()).append(",\n");
+		sb.append("  \"messageMismatches\": ").append(mismatches.get()).append(",\n");
+		sb.append("  \"latencyMicros\": ");
+		all.appendJson(sb, 1000);
+		sb.append(",\n  \"actions\": {");
+		boolean first = true;
+		for (Action action : LoadGenerator.ActionMix.ACTIONS) {
+			Histogram h = latencies.get(action);
+			if (h.getCount() == 0) {
+				continue;
+			}
+			sb.append(first ? "\n" : ",\n");
+			first = false;
+			sb.append("    \"").append(action).append("\": {");
+			sb.append("\"operations\": ").append(h.getCount()).append(", ");
+			sb.append("\"latencyMicros\": ");
+			h.appendJson(sb, 1000);
+			sb.append(", \"recordedServerLatencyMicros\": ");
+			recorded.get(action).appendJson(sb, 1000);
+			sb.append("}");
+		}
+		sb.append("\n  }\n}\n");
+		return sb.toString();
+	}
+
+	public void setTraceFile(File traceFile) {
+		this.traceFile = traceFile;
+	}
+
+	public void setHost(String host) {
+		this.host = host;
+	}
+
+	public void setPort(int port) {
+		this.port = port;
+	}
+
+	/**
+	 * Set the time scale of the replay, 1 for the original speed, 2 for
+	 * twice as fast, 0 for as fast as possible.
+	 *
+	 * @param speed
+	 */
+	public void setSpeed(double speed) {
+		this.speed = speed;
+	}
+
+	public void setConcurrency(int concurrency) {
+		this.concurrency = concurrency;
+	}
+
+	public void setPrefix(String prefix) {
+		this.prefix = prefix;
+	}
+
+	public static void main(String[] args) throws Exception {
+		TraceReplayer replayer = new TraceReplayer();
+		String output = null;
+		for (String arg : args) {
+			if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+				System.err.println("usage: TraceReplayer --trace=file [--name=value]...");
+				System.exit(-1);
+			}
+			String name = arg.substring(2, arg.indexOf('='));
+			String value = arg.substring(arg.indexOf('=') + 1);
+			if (name.equals("trace")) replayer.setTraceFile(new File(value));
+			else if (name.equals("host")) replayer.setHost(value);
+			else if (name.equals("port")) replayer.setPort(Integer.parseInt(value));
+			else if (name.equals("speed")) replayer.setSpeed(Double.parseDouble(value));
+			else if (name.equals("concurrency")) replayer.setConcurrency(Integer.parseInt(value));
+			else if (name.equals("prefix")) replayer.setPrefix(value);
+			else if (name.equals("output")) output = value;
+			else {
+				System.err.println("unknown option: " + name);
+				System.exit(-1);
+			}
+		}
+		if (replayer.traceFile == null) {
+			System.err.println("no trace file given");
+			System.exit(-1);
+		}
+		String json = replayer.run();
+		if (output == null) {
+			System.out.print(json);
+		}
+		else {
+			OutputStream os = new FileOutputStream(output);
+			try {
+				os.write(json.getBytes("UTF-8"));
+			} finally {
+				os.close();
+			}
+		}
+	}
+}
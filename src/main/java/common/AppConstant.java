@@ -12,13 +12,30 @@ public class AppConstant {
 		DEL, 
 		DEL_ACK,
 		LST,
-		LST_ACK
+		LST_ACK,
+		CHK,
+		CHK_ACK,
+		SIG,
+		SIG_ACK,
+		STAT,
+		STAT_ACK,
+		CHG,
+		CHG_ACK,
+		BAT,
+		BAT_ACK,
+		CPY,
+		CPY_ACK,
+		MOV,
+		MOV_ACK
 	}
 	
 	public static enum State {
 		IDLE, 
 		RECV, 
-		SEND
+		SEND,
+		COMMIT,
+		DELETE,
+		COPY
 	}
 	
 	public static enum Message {
@@ -29,7 +46,12 @@ public class AppConstant {
 		FILE_NOT_CREATED,
 		FILE_DELETED, 
 		FILE_NOT_DELETED,
-		PERMISSION_DENIED
+		PERMISSION_DENIED,
+		NO_SPACE,
+		CHECKSUM_MISMATCH,
+		NOT_MODIFIED,
+		TOO_LARGE,
+		IN_PROGRESS
 	}
 	
 }
@@ -5,6 +5,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
@@ -239,11 +240,25 @@ public class AppUtil {
 	
 	
 	public static byte[] packFilenames(File dir, List<File> files) throws IOException {
+		List<String[]> paths = new ArrayList<String[]>(files.size());
+		for (File file : files) {
+			paths.add(toPath(dir, file));
+		}
+		return packPaths(paths);
+	}
+
+	/**
+	 * Pack the paths of files, relative to the root, into bytes to be sent
+	 * with the List acknowledgment.
+	 *
+	 * @param paths
+	 * @return
+	 */
+	public static byte[] packPaths(List<String[]> paths) {
 		byte[] bytes = new byte[1024*1024];
 		int index = 0;
-		index = toBytes(files.size(), bytes, index);
-		for (File file : files) {
-			String[] path = toPath(dir, file);
+		index = toBytes(paths.size(), bytes, index);
+		for (String[] path : paths) {
 			bytes = ensureCapacity(bytes, index+Integer.SIZE/Byte.SIZE);
 			index = toBytes(path.length, bytes, index);
 			for (String level : path) {
@@ -257,6 +272,46 @@ public class AppUtil {
 		return bytes;
 	}
 	
+	/**
+	 * Unpack the paths packed by packPaths().
+	 *
+	 * @param bytes
+	 * @return
+	 * @throws IndexOutOfBoundsException if the bytes are not packed paths
+	 */
+	public static List<String[]> unpackPaths(byte[] bytes) {
+		int index = 0;
+		checkBounds(bytes, index, Integer.SIZE/Byte.SIZE);
+		int count = toInteger(bytes, index);
+		index += Integer.SIZE/Byte.SIZE;
+		// each path takes its count of levels at least
+		if (count < 0 || count > (bytes.length - index)/(Integer.SIZE/Byte.SIZE)) {
+			throw new IndexOutOfBoundsException("Invalid path count: " + count);
+		}
+		List<String[]> paths = new ArrayList<String[]>(count);
+		for (int i = 0; i < count; i++) {
+			checkBounds(bytes, index, Integer.SIZE/Byte.SIZE);
+			int levels = toInteger(bytes, index);
+			index += Integer.SIZE/Byte.SIZE;
+			if (levels < 0 || levels > (bytes.length - index)/(Integer.SIZE/Byte.SIZE)) {
+				throw new IndexOutOfBoundsException("Invalid level count: " + levels);
+			}
+			String[] path = new String[levels];
+			for (int j = 0; j < levels; j++) {
+				checkBounds(bytes, index, Integer.SIZE/Byte.SIZE);
+				int strLeng = toInteger(bytes, index);
+				index += Integer.SIZE/Byte.SIZE;
+				if (strLeng < 0 || strLeng > (bytes.length - index)/(Character.SIZE/Byte.SIZE)) {
+					throw new IndexOutOfBoundsException("Invalid level length: " + strLeng);
+				}
+				path[j] = toString(bytes, index, strLeng);
+				index += strLeng*Character.SIZE/Byte.SIZE;
+			}
+			paths.add(path);
+		}
+		return paths;
+	}
+
 	public static String[] unpackFilenames(byte[] bytes) {
 		int index = 0;
 		int fileCount = toInteger(bytes, index);
@@ -341,26 +396,26 @@ public class AppUtil {
 		}
 	}
 	
+	/**
+	 * Copy the given number of bytes of a stream, and no more: what follows
+	 * them, e.g. the next response on a connection, is left in the stream.
+	 *
+	 * @param is
+	 * @param dataLength
+	 * @param os
+	 * @throws IOException
+	 */
 	public static void read(InputStream is, long dataLength, OutputStream os) throws IOException {
 		int read;
 		byte[] bytes = new byte[1024*4];
 		long readLength = 0;
-		while (true) {
-			read = is.read(bytes);
+		while (readLength < dataLength) {
+			read = is.read(bytes, 0, (int) Math.min(bytes.length, dataLength - readLength));
 			if (read == -1) {
 				break;
 			}
-			if (read == 0) {
-				continue;
-			}
 			readLength += read;
-			if (readLength > dataLength) {
-				read -= (readLength - dataLength);
-			}
 			os.write(bytes, 0, read);
-			if (readLength >= dataLength) {
-				break;
-			}
 		}
 		os.flush();
 	}
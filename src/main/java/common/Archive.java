@@ -0,0 +1,115 @@
+package common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The archive a directory is sent as, to a GET with the archive option:
+ * its files one after the other, each an entry header then its content,
+ * and an end entry, so the archive is built while the directory is walked
+ * and its length need not be known up front.
+ *
+ * An entry header is its type, the length and the modification time of the
+ * file, then the number of levels of its path, relative to the directory,
+ * and the levels. The end entry is its type only.
+ */
+public class Archive {
+
+	private final static byte END = 0;
+	private final static byte FILE = 1;
+
+	private Archive() {}
+
+	public static class Entry {
+		public final String[] path;
+		public final long length;
+		public final long lastModified;
+
+		public Entry(String[] path, long length, long lastModified) {
+			this.path = path;
+			this.length = length;
+			this.lastModified = lastModified;
+		}
+	}
+
+	/**
+	 * @param entry
+	 * @return the header of the entry of a file
+	 */
+	public static byte[] toBytes(Entry entry) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeByte(FILE);
+			out.writeLong(entry.length);
+			out.writeLong(entry.lastModified);
+			out.writeInt(entry.path.length);
+			for (String level : entry.path) {
+				out.writeUTF(level);
+			}
+		} catch (IOException e) {
+			// not from a byte array
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @return the end entry
+	 */
+	public static byte[] end() {
+		return new byte[] { END };
+	}
+
+	/**
+	 * Read the header of the next entry of an archive, its content is to be
+	 * read before the next one.
+	 *
+	 * @param in
+	 * @return the entry, null at the end of the archive
+	 * @throws IOException if the archive is corrupt
+	 */
+	public static Entry read(DataInputStream in) throws IOException {
+		byte type = in.readByte();
+		if (type == END) {
+			return null;
+		}
+		if (type != FILE) {
+			throw new IOException("corrupt archive");
+		}
+		long length = in.readLong();
+		long lastModified = in.readLong();
+		int levels = in.readInt();
+		if (length < 0 || levels <= 0 || levels > 4096) {
+			throw new IOException("corrupt archive");
+		}
+		String[] path = new String[levels];
+		for (int i = 0; i < levels; i++) {
+			path[i] = in.readUTF();
+		}
+		return new Entry(path, length, lastModified);
+	}
+
+	/**
+	 * Skip the content of an entry.
+	 *
+	 * @param in
+	 * @param length
+	 * @throws IOException
+	 */
+	public static void skip(InputStream in, long length) throws IOException {
+		while (length > 0) {
+			long n = in.skip(length);
+			if (n <= 0) {
+				if (in.read() == -1) {
+					throw new IOException("archive truncated");
+				}
+				n = 1;
+			}
+			length -= n;
+		}
+	}
+}
@@ -0,0 +1,243 @@
+package common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import common.AppConstant.Action;
+import common.AppConstant.Message;
+
+/**
+ * Many GETs, PUTs and DELs of small files in one BAT request, which the
+ * server does in order and answers in one BAT_ACK, so small files cost
+ * bandwidth rather than a round trip each. The data of the PUTs comes with
+ * the request, the content of the files got with the response.
+ *
+ * A request is the number of items, then each its action, whether it may
+ * overwrite, its path, and for a PUT the length of its data and the data.
+ * A response is the message of each item, in the same order, and for a GET
+ * of a file the length of its content and the content.
+ */
+public class Batch {
+
+	/**
+	 * The most items in a request.
+	 */
+	public final static int MAX_ITEMS = 65536;
+
+	/**
+	 * The most bytes of a request, and of the content of the files of a
+	 * response: the files that do not fit are answered TOO_LARGE, and are
+	 * to be got on their own.
+	 */
+	public final static int MAX_LENGTH = 16 * 1024 * 1024;
+
+	private Batch() {}
+
+	public static class Item {
+		public final Action action;
+		public final String[] path;
+		public final boolean overwrite;
+		private byte[] data;
+		private Message message = Message.NONE;
+
+		public Item(Action action, String[] path, boolean overwrite, byte[] data) {
+			if (action != Action.GET && action != Action.PUT && action != Action.DEL) {
+				throw new IllegalArgumentException("action: " + action);
+			}
+			if (action == Action.PUT && data == null) {
+				throw new IllegalArgumentException("no data to put");
+			}
+			this.action = action;
+			this.path = path;
+			this.overwrite = overwrite;
+			this.data = data;
+		}
+
+		public static Item get(String[] path) {
+			return new Item(Action.GET, path, false, null);
+		}
+
+		public static Item put(String[] path, byte[] data, boolean overwrite) {
+			return new Item(Action.PUT, path, overwrite, data);
+		}
+
+		public static Item delete(String[] path) {
+			return new Item(Action.DEL, path, false, null);
+		}
+
+		/**
+		 * @return the data of a PUT, or the content got by a GET
+		 */
+		public byte[] getData() {
+			return data;
+		}
+
+		public void setData(byte[] data) {
+			this.data = data;
+		}
+
+		/**
+		 * @return the message the server answered the item with
+		 */
+		public Message getMessage() {
+			return message;
+		}
+
+		public void setMessage(Message message) {
+			this.message = message;
+		}
+
+		/**
+		 * @return the number of bytes of the item in a request
+		 */
+		public long getLength() {
+			long length = 2 + Integer.SIZE / Byte.SIZE;
+			for (String level : path) {
+				// at most three bytes a char in modified UTF-8
+				length += 2 + 3 * level.length();
+			}
+			if (action == Action.PUT) {
+				length += Integer.SIZE / Byte.SIZE + data.length;
+			}
+			return length;
+		}
+	}
+
+	public static byte[] toRequest(List<Item> items) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(items.size());
+			for (Item item : items) {
+				out.writeByte(item.action.ordinal());
+				out.writeBoolean(item.overwrite);
+				writePath(out, item.path);
+				if (item.action == Action.PUT) {
+					out.writeInt(item.data.length);
+					out.write(item.data);
+				}
+			}
+		} catch (IOException e) {
+			// not from a byte array
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @param bytes
+	 * @return
+	 * @throws IOException if the bytes are not a request
+	 */
+	public static List<Item> fromRequest(byte[] bytes) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		int count = in.readInt();
+		if (count < 0 || count > MAX_ITEMS) {
+			throw new IOException("invalid batch");
+		}
+		List<Item> items = new ArrayList<Item>(count);
+		Action[] actions = Action.values();
+		for (int i = 0; i < count; i++) {
+			int action = in.readUnsignedByte();
+			boolean overwrite = in.readBoolean();
+			String[] path = readPath(in);
+			byte[] data = null;
+			if (action == Action.PUT.ordinal()) {
+				int length = in.readInt();
+				if (length < 0 || length > in.available()) {
+					throw new IOException("invalid batch");
+				}
+				data = new byte[length];
+				in.readFully(data);
+			}
+			try {
+				items.add(new Item(actions[Math.min(action, actions.length - 1)], path, overwrite, data));
+			} catch (IllegalArgumentException e) {
+				throw new IOException("invalid batch");
+			}
+		}
+		if (in.available() > 0) {
+			throw new IOException("invalid batch");
+		}
+		return items;
+	}
+
+	/**
+	 * @param items the items done, with their message, and their content
+	 * for the GETs of a file
+	 * @return
+	 */
+	public static byte[] toResponse(List<Item> items) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			for (Item item : items) {
+				out.writeByte(item.message.ordinal());
+				if (item.action == Action.GET && item.message == Message.FILE_EXIST) {
+					out.writeInt(item.data.length);
+					out.write(item.data);
+				}
+			}
+		} catch (IOException e) {
+			// not from a byte array
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Set the messages and contents of a response to the items of the
+	 * request.
+	 *
+	 * @param bytes
+	 * @param items
+	 * @throws IOException if the bytes are not the response to the items
+	 */
+	public static void fromResponse(byte[] bytes, List<Item> items) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		Message[] messages = Message.values();
+		for (Item item : items) {
+			int message = in.readUnsignedByte();
+			if (message >= messages.length) {
+				throw new IOException("invalid batch response");
+			}
+			item.setMessage(messages[message]);
+			if (item.action == Action.GET && item.message == Message.FILE_EXIST) {
+				int length = in.readInt();
+				if (length < 0 || length > in.available()) {
+					throw new IOException("invalid batch response");
+				}
+				byte[] data = new byte[length];
+				in.readFully(data);
+				item.setData(data);
+			}
+		}
+		if (in.available() > 0) {
+			throw new IOException("invalid batch response");
+		}
+	}
+
+	private static void writePath(DataOutputStream out, String[] path) throws IOException {
+		out.writeInt(path.length);
+		for (String level : path) {
+			out.writeUTF(level);
+		}
+	}
+
+	private static String[] readPath(DataInputStream in) throws IOException {
+		int levels = in.readInt();
+		if (levels < 0 || levels > in.available()) {
+			throw new IOException("invalid batch");
+		}
+		String[] path = new String[levels];
+		for (int i = 0; i < levels; i++) {
+			path[i] = in.readUTF();
+		}
+		return path;
+	}
+}
@@ -0,0 +1,128 @@
+package common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The changes of the files of the server since a cursor, as a CHG_ACK
+ * carries them: the epoch of the journal of the server, the cursor to ask
+ * for the next changes from, whether the cursor asked from has expired,
+ * then the changes, each its sequence number, its type, the time it was
+ * made at, and the path of the file.
+ *
+ * The journal of the server only keeps the latest changes, and starts over
+ * with a new epoch when the server does; a cursor of another epoch, or too
+ * old, has expired, and is answered with no changes and the cursor of the
+ * latest one: the client is to list the files again, then go on from
+ * there.
+ */
+public class Changes {
+
+	public final static byte PUT = 1;
+	public final static byte DEL = 2;
+
+	/**
+	 * The most changes a CHG_ACK carries.
+	 */
+	public final static int MAX_CHANGES = 4096;
+
+	/**
+	 * The length of the body of a CHG: the epoch, the cursor, the most
+	 * changes to send, and whether to subscribe.
+	 */
+	public final static int REQUEST_LENGTH = 2 * Long.SIZE / Byte.SIZE + Integer.SIZE / Byte.SIZE + 1;
+
+	public static class Change {
+		public final long sequence;
+		public final byte type;
+		public final long time;
+		public final String[] path;
+
+		public Change(long sequence, byte type, long time, String[] path) {
+			this.sequence = sequence;
+			this.type = type;
+			this.time = time;
+			this.path = path;
+		}
+	}
+
+	public final long epoch;
+	public final long cursor;
+	public final boolean expired;
+	public final List<Change> changes;
+
+	/**
+	 * @param epoch
+	 * @param cursor the sequence number of the last change, 0 if none
+	 * @param expired whether the cursor asked from has expired
+	 * @param changes
+	 */
+	public Changes(long epoch, long cursor, boolean expired, List<Change> changes) {
+		this.epoch = epoch;
+		this.cursor = cursor;
+		this.expired = expired;
+		this.changes = changes;
+	}
+
+	public byte[] toBytes() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeLong(epoch);
+			out.writeLong(cursor);
+			out.writeBoolean(expired);
+			out.writeInt(changes.size());
+			for (Change change : changes) {
+				out.writeLong(change.sequence);
+				out.writeByte(change.type);
+				out.writeLong(change.time);
+				out.writeInt(change.path.length);
+				for (String level : change.path) {
+					out.writeUTF(level);
+				}
+			}
+		} catch (IOException e) {
+			// not from a byte array
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @param bytes
+	 * @return
+	 * @throws IOException if the bytes are not changes
+	 */
+	public static Changes fromBytes(byte[] bytes) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		long epoch = in.readLong();
+		long cursor = in.readLong();
+		boolean expired = in.readBoolean();
+		int count = in.readInt();
+		if (count < 0 || count > MAX_CHANGES) {
+			throw new IOException("invalid changes");
+		}
+		List<Change> changes = new ArrayList<Change>(count);
+		for (int i = 0; i < count; i++) {
+			long sequence = in.readLong();
+			byte type = in.readByte();
+			long time = in.readLong();
+			int levels = in.readInt();
+			if (levels < 0 || levels > in.available()) {
+				throw new IOException("invalid changes");
+			}
+			String[] path = new String[levels];
+			for (int j = 0; j < levels; j++) {
+				path[j] = in.readUTF();
+			}
+			changes.add(new Change(sequence, type, time, path));
+		}
+		return new Changes(epoch, cursor, expired, Collections.unmodifiableList(changes));
+	}
+}
@@ -0,0 +1,132 @@
+package common;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+
+/**
+ * Splits a stream of bytes into content-defined chunks: a chunk ends where a
+ * rolling hash of the last bytes matches a pattern, so an insertion only
+ * changes the chunks around it, and the identical parts of two versions of a
+ * file give identical chunks. The client and the server have to cut the same
+ * chunks, so the parameters are fixed.
+ *
+ * The rolling hash is a gear hash, shifting one bit per byte, so it only
+ * depends on the last 64 bytes.
+ */
+public class Chunker {
+
+	public final static int MIN_SIZE = 2 * 1024;
+	public final static int AVERAGE_SIZE = 8 * 1024;
+	public final static int MAX_SIZE = 64 * 1024;
+
+	/**
+	 * The length of the hash identifying a chunk, SHA-256.
+	 */
+	public final static int HASH_LENGTH = 32;
+
+	/**
+	 * The most chunk hashes a CHK request may ask about.
+	 */
+	public final static int MAX_CHECK_HASHES = 65536;
+
+	// the records of a chunked upload: a literal chunk is the type, the
+	// length and the bytes, a reference to a stored chunk the type and hash.
+	public final static byte LITERAL = 0;
+	public final static byte REFERENCE = 1;
+
+	private final static long[] GEAR = new long[256];
+	// the top bits, which depend on the most bytes
+	private final static long MASK = (long) (AVERAGE_SIZE - 1) << (64 - Integer.numberOfTrailingZeros(AVERAGE_SIZE));
+
+	static {
+		Random random = new Random(0x4e494f4653L);
+		for (int i = 0; i < GEAR.length; i++) {
+			GEAR[i] = random.nextLong();
+		}
+	}
+
+	private long hash;
+	private int size;
+
+	/**
+	 * Scan the data for the end of the current chunk.
+	 *
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @return the index after the last byte of the chunk, or -1 if the chunk
+	 * goes on past the data
+	 */
+	public int next(byte[] data, int offset, int length) {
+		int end = offset + length;
+		for (int i = offset; i < end; i++) {
+			size++;
+			// the bytes before the last 64 of the minimum size do not matter
+			if (size > MIN_SIZE - 64) {
+				hash = (hash << 1) + GEAR[data[i] & 0xff];
+				if ((size >= MIN_SIZE && (hash & MASK) == 0) || size == MAX_SIZE) {
+					reset();
+					return i + 1;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Start a new chunk.
+	 */
+	public void reset() {
+		hash = 0;
+		size = 0;
+	}
+
+	/**
+	 * @return the number of bytes in the current chunk
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Get the hash identifying a chunk.
+	 *
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @return
+	 */
+	public static byte[] hash(byte[] data, int offset, int length) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(data, offset, length);
+			return digest.digest();
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform has SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public static String toHex(byte[] hash) {
+		return toHex(hash, 0, hash.length);
+	}
+
+	public static String toHex(byte[] bytes, int offset, int length) {
+		char[] chars = new char[length * 2];
+		for (int i = 0; i < length; i++) {
+			int b = bytes[offset + i] & 0xff;
+			chars[2 * i] = Character.forDigit(b >>> 4, 16);
+			chars[2 * i + 1] = Character.forDigit(b & 0x0f, 16);
+		}
+		return new String(chars);
+	}
+
+	public static byte[] fromHex(String hex) {
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,318 @@
+package common;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The compression of a transfer on the wire. The data is sent in frames of
+ * up to FRAME_SIZE bytes, each deflated, or stored as is if it does not
+ * compress, and then an end frame, so the stream delimits itself and the
+ * dataLength of the header keeps being the length of the file.
+ *
+ * A frame is its type, its length, and the length of its bytes on the wire,
+ * then those bytes. The deflaters and inflaters are pooled, their native
+ * state being costly to set up for every transfer.
+ */
+public class Compression {
+
+	public final static int FRAME_SIZE = 64 * 1024;
+	public final static int FRAME_HEADER_LENGTH = 1 + 2 * Integer.SIZE / Byte.SIZE;
+
+	/**
+	 * Files smaller than this are not worth compressing.
+	 */
+	public final static int MIN_LENGTH = 1024;
+
+	private final static byte STORED = 0;
+	private final static byte DEFLATED = 1;
+	private final static byte END = 2;
+
+	// after that many frames in a row not compressing, the content is taken
+	// as compressed already, and only one frame in RETRY_FRAMES is tried.
+	private final static int GIVE_UP_FRAMES = 4;
+	private final static int RETRY_FRAMES = 32;
+
+	// the formats which are compressed already
+	private final static String[] COMPRESSED_EXTENSIONS = {
+		".gz", ".tgz", ".zip", ".jar", ".bz2", ".xz", ".zst", ".lz4", ".7z", ".rar",
+		".jpg", ".jpeg", ".png", ".gif", ".webp", ".mp3", ".mp4", ".mkv", ".avi", ".mov",
+		".pdf", ".docx", ".xlsx", ".pptx", ".parquet", ".orc"
+	};
+
+	private final static Queue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+	private final static Queue<Inflater> inflaters = new ConcurrentLinkedQueue<Inflater>();
+
+	private Compression() {}
+
+	/**
+	 * Test if a file is worth compressing, by its name and length.
+	 *
+	 * @param name
+	 * @param length
+	 * @return
+	 */
+	public static boolean isCompressible(String name, long length) {
+		if (length < MIN_LENGTH) {
+			return false;
+		}
+		String lower = name.toLowerCase(Locale.ROOT);
+		for (String extension : COMPRESSED_EXTENSIONS) {
+			if (lower.endsWith(extension)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static Deflater acquireDeflater(int level) {
+		Deflater deflater = deflaters.poll();
+		if (deflater == null) {
+			deflater = new Deflater(level);
+		}
+		else {
+			deflater.reset();
+			deflater.setLevel(level);
+		}
+		return deflater;
+	}
+
+	private static Inflater acquireInflater() {
+		Inflater inflater = inflaters.poll();
+		if (inflater == null) {
+			inflater = new Inflater();
+		}
+		return inflater;
+	}
+
+	/**
+	 * Cuts the data into frames, compressing them.
+	 */
+	public static class Encoder {
+		private final int level;
+		private Deflater deflater;
+		private int stored;
+		private int skipped;
+		private long length;
+		private long wireLength;
+
+		/**
+		 * @param level the level of the deflater, 1 is the fastest
+		 */
+		public Encoder(int level) {
+			this.level = level;
+		}
+
+		/**
+		 * Encode a frame of data.
+		 *
+		 * @param data
+		 * @param offset
+		 * @param length at most FRAME_SIZE
+		 * @param frame at least FRAME_HEADER_LENGTH + FRAME_SIZE long
+		 * @return the length of the frame
+		 */
+		public int encode(byte[] data, int offset, int length, byte[] frame) {
+			int compressed = 0;
+			if (stored < GIVE_UP_FRAMES || ++skipped % RETRY_FRAMES == 0) {
+				if (deflater == null) {
+					deflater = acquireDeflater(level);
+				}
+				deflater.reset();
+				deflater.setInput(data, offset, length);
+				deflater.finish();
+				// less than the data, or it is stored
+				compressed = deflater.deflate(frame, FRAME_HEADER_LENGTH, length - 1);
+				if (!deflater.finished()) {
+					compressed = 0;
+				}
+				stored = compressed == 0 ? stored + 1 : 0;
+			}
+			int index;
+			if (compressed > 0) {
+				frame[0] = DEFLATED;
+				index = AppUtil.toBytes(length, frame, 1);
+				AppUtil.toBytes(compressed, frame, index);
+			}
+			else {
+				frame[0] = STORED;
+				index = AppUtil.toBytes(length, frame, 1);
+				AppUtil.toBytes(length, frame, index);
+				System.arraycopy(data, offset, frame, FRAME_HEADER_LENGTH, length);
+				compressed = length;
+			}
+			this.length += length;
+			this.wireLength += FRAME_HEADER_LENGTH + compressed;
+			return FRAME_HEADER_LENGTH + compressed;
+		}
+
+		/**
+		 * Encode the end frame, and give the deflater back.
+		 *
+		 * @param frame
+		 * @return the length of the frame
+		 */
+		public int end(byte[] frame) {
+			frame[0] = END;
+			int index = AppUtil.toBytes(0, frame, 1);
+			AppUtil.toBytes(0, frame, index);
+			wireLength += FRAME_HEADER_LENGTH;
+			close();
+			return FRAME_HEADER_LENGTH;
+		}
+
+		/**
+		 * Give the deflater back, if the stream is not ended.
+		 */
+		public void close() {
+			if (deflater != null) {
+				deflaters.offer(deflater);
+				deflater = null;
+			}
+		}
+
+		public long getLength() {
+			return length;
+		}
+
+		public long getWireLength() {
+			return wireLength;
+		}
+	}
+
+	/**
+	 * Decodes the frames, as they come in whatever pieces.
+	 */
+	public static class Decoder {
+		private final byte[] frameHeader = new byte[FRAME_HEADER_LENGTH];
+		private final byte[] payload = new byte[FRAME_SIZE + 256];
+		private byte[] data;
+		private int headerLength;
+		private int payloadLength;
+		private int frameLength;
+		private int wireLength;
+		private boolean finished;
+		private Inflater inflater;
+		private long length;
+
+		/**
+		 * @return the number of bytes the current part of the frame still
+		 * needs, so as not to read past the end of the stream
+		 */
+		public int needed() {
+			if (finished) {
+				return 0;
+			}
+			if (headerLength < FRAME_HEADER_LENGTH) {
+				return FRAME_HEADER_LENGTH - headerLength;
+			}
+			return wireLength - payloadLength;
+		}
+
+		/**
+		 * Decode the given bytes, writing the data of the frames completed.
+		 *
+		 * @param bytes
+		 * @param offset
+		 * @param length
+		 * @param out
+		 * @return the number of bytes used, less than the length only if the
+		 * stream has ended
+		 * @throws IOException if the stream is corrupt
+		 */
+		public int decode(byte[] bytes, int offset, int length, OutputStream out) throws IOException {
+			int used = 0;
+			while (used < length && !finished) {
+				if (headerLength < FRAME_HEADER_LENGTH) {
+					int n = Math.min(length - used, FRAME_HEADER_LENGTH - headerLength);
+					System.arraycopy(bytes, offset + used, frameHeader, headerLength, n);
+					headerLength += n;
+					used += n;
+					if (headerLength < FRAME_HEADER_LENGTH) {
+						break;
+					}
+					frameLength = AppUtil.toInteger(frameHeader, 1);
+					wireLength = AppUtil.toInteger(frameHeader, 1 + Integer.SIZE / Byte.SIZE);
+					if (frameLength < 0 || frameLength > FRAME_SIZE || wireLength < 0 || wireLength > payload.length) {
+						throw new IOException("corrupt compressed frame");
+					}
+				}
+				int n = Math.min(length - used, wireLength - payloadLength);
+				System.arraycopy(bytes, offset + used, payload, payloadLength, n);
+				payloadLength += n;
+				used += n;
+				if (payloadLength == wireLength) {
+					frame(out);
+					headerLength = 0;
+					payloadLength = 0;
+				}
+			}
+			return used;
+		}
+
+		private void frame(OutputStream out) throws IOException {
+			switch (frameHeader[0]) {
+			case STORED:
+				if (wireLength != frameLength) {
+					throw new IOException("corrupt compressed frame");
+				}
+				out.write(payload, 0, frameLength);
+				break;
+
+			case DEFLATED:
+				if (inflater == null) {
+					inflater = acquireInflater();
+				}
+				if (data == null) {
+					data = new byte[FRAME_SIZE];
+				}
+				inflater.reset();
+				inflater.setInput(payload, 0, wireLength);
+				try {
+					if (inflater.inflate(data, 0, frameLength) != frameLength || !inflater.finished()) {
+						throw new IOException("corrupt compressed frame");
+					}
+				} catch (DataFormatException e) {
+					throw new IOException("corrupt compressed frame");
+				}
+				out.write(data, 0, frameLength);
+				break;
+
+			case END:
+				finished = true;
+				close();
+				return;
+
+			default:
+				throw new IOException("corrupt compressed frame");
+			}
+			length += frameLength;
+		}
+
+		public boolean isFinished() {
+			return finished;
+		}
+
+		/**
+		 * @return the number of bytes decoded
+		 */
+		public long getLength() {
+			return length;
+		}
+
+		/**
+		 * Give the inflater back.
+		 */
+		public void close() {
+			if (inflater != null) {
+				inflaters.offer(inflater);
+				inflater = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package common;
+
+import java.util.zip.Checksum;
+
+/**
+ * The CRC32C (Castagnoli) checksum of the transfers. Java 9 has it as
+ * java.util.zip.CRC32C, computed with the CRC32 instructions of the CPU,
+ * which create() uses when there; otherwise this implementation computes it
+ * eight bytes at a time from tables.
+ */
+public class Crc32c implements Checksum {
+
+	// the reversed Castagnoli polynomial
+	private final static int POLYNOMIAL = 0x82f63b78;
+
+	private final static int[][] TABLES = new int[8][256];
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			int crc = i;
+			for (int bit = 0; bit < 8; bit++) {
+				crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+			}
+			TABLES[0][i] = crc;
+		}
+		for (int i = 0; i < 256; i++) {
+			for (int t = 1; t < TABLES.length; t++) {
+				int crc = TABLES[t - 1][i];
+				TABLES[t][i] = (crc >>> 8) ^ TABLES[0][crc & 0xff];
+			}
+		}
+	}
+
+	private int crc = 0xffffffff;
+
+	/**
+	 * Create a checksum, the one of the platform if it has one.
+	 *
+	 * @return
+	 */
+	public static Checksum create() {
+		try {
+			return (Checksum) Class.forName("java.util.zip.CRC32C").getDeclaredConstructor().newInstance();
+		} catch (Exception e) {
+			// Java 8
+			return new Crc32c();
+		}
+	}
+
+	@Override
+	public void update(int b) {
+		crc = (crc >>> 8) ^ TABLES[0][(crc ^ b) & 0xff];
+	}
+
+	@Override
+	public void update(byte[] b, int off, int len) {
+		int c = crc;
+		int end = off + len;
+		int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3];
+		int[] t4 = TABLES[4], t5 = TABLES[5], t6 = TABLES[6], t7 = TABLES[7];
+		while (end - off >= 8) {
+			int lo = c ^ ((b[off] & 0xff) | (b[off + 1] & 0xff) << 8
+					| (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24);
+			c = t7[lo & 0xff] ^ t6[(lo >>> 8) & 0xff] ^ t5[(lo >>> 16) & 0xff] ^ t4[lo >>> 24]
+					^ t3[b[off + 4] & 0xff] ^ t2[b[off + 5] & 0xff]
+					^ t1[b[off + 6] & 0xff] ^ t0[b[off + 7] & 0xff];
+			off += 8;
+		}
+		while (off < end) {
+			c = (c >>> 8) ^ t0[(c ^ b[off++]) & 0xff];
+		}
+		crc = c;
+	}
+
+	@Override
+	public long getValue() {
+		return ~crc & 0xffffffffL;
+	}
+
+	@Override
+	public void reset() {
+		crc = 0xffffffff;
+	}
+}
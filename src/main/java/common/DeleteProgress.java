@@ -0,0 +1,70 @@
+package common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * How far a recursive DEL has got, as the DEL_ACKs of it carry it: the
+ * number of files deleted, of directories deleted once emptied, and of
+ * files which could not be deleted. The server sends it with IN_PROGRESS
+ * while it deletes, then with the message of the whole DEL once done.
+ */
+public class DeleteProgress {
+
+	/**
+	 * The length of its bytes.
+	 */
+	public final static int LENGTH = 3 * Long.SIZE / Byte.SIZE;
+
+	/**
+	 * Told the progress of a recursive DEL as it comes.
+	 */
+	public interface Listener {
+		void progress(DeleteProgress progress);
+	}
+
+	public final long files;
+	public final long directories;
+	public final long failed;
+
+	public DeleteProgress(long files, long directories, long failed) {
+		this.files = files;
+		this.directories = directories;
+		this.failed = failed;
+	}
+
+	public byte[] toBytes() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(LENGTH);
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeLong(files);
+			out.writeLong(directories);
+			out.writeLong(failed);
+		} catch (IOException e) {
+			// not from a byte array
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @param bytes
+	 * @return
+	 * @throws IOException if the bytes are not a progress
+	 */
+	public static DeleteProgress fromBytes(byte[] bytes) throws IOException {
+		if (bytes.length != LENGTH) {
+			throw new IOException("invalid delete progress");
+		}
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		return new DeleteProgress(in.readLong(), in.readLong(), in.readLong());
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d files, %d directories deleted, %d failed", files, directories, failed);
+	}
+}
@@ -0,0 +1,116 @@
+package common;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The checksums of a delta transfer, the way rsync does it: the server sends
+ * a weak rolling checksum and a strong hash of each block of its version of
+ * a file, the client looks for those blocks at every offset of its own
+ * version, sliding the weak checksum a byte at a time, and sends the blocks
+ * found as copy instructions, the rest as literal data.
+ *
+ * The signatures are the block size, the length of the file, then for each
+ * block its weak checksum and strong hash. The delta is the length of the
+ * file it applies to and the block size, then the instructions, then the
+ * SHA-256 of the resulting file to verify it.
+ */
+public class Delta {
+
+	public final static int MIN_BLOCK_SIZE = 1024;
+	public final static int MAX_BLOCK_SIZE = 128 * 1024;
+
+	/**
+	 * The length of the strong hash of a block, its MD5.
+	 */
+	public final static int STRONG_LENGTH = 16;
+
+	/**
+	 * The length of the signature of a block.
+	 */
+	public final static int SIGNATURE_LENGTH = Integer.SIZE / Byte.SIZE + STRONG_LENGTH;
+
+	// the instructions of a delta: a copy is the type and the block index,
+	// literal data the type, the length and the bytes.
+	public final static byte COPY = 0;
+	public final static byte LITERAL = 1;
+	public final static byte END = 2;
+
+	private Delta() {}
+
+	/**
+	 * Choose the block size of a file, about its square root, so that the
+	 * signatures grow no faster than the literal data a change costs.
+	 *
+	 * @param length
+	 * @return
+	 */
+	public static int blockSize(long length) {
+		long size = (long) Math.sqrt((double) length);
+		// a multiple of 1K
+		size = (size + 1023) & ~1023L;
+		return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size));
+	}
+
+	/**
+	 * Compute the weak checksum of a block.
+	 *
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @return
+	 */
+	public static int weak(byte[] data, int offset, int length) {
+		int a = 0;
+		int b = 0;
+		for (int i = 0; i < length; i++) {
+			int x = data[offset + i] & 0xff;
+			a += x;
+			b += (length - i) * x;
+		}
+		return (a & 0xffff) | (b << 16);
+	}
+
+	/**
+	 * Slide the weak checksum of a block one byte forward.
+	 *
+	 * @param weak the checksum of the block
+	 * @param length the length of the block
+	 * @param out the first byte of the block
+	 * @param in the byte after the block
+	 * @return the checksum of the block one byte further
+	 */
+	public static int roll(int weak, int length, byte out, byte in) {
+		int x = out & 0xff;
+		int y = in & 0xff;
+		int a = (weak - x + y) & 0xffff;
+		int b = ((weak >>> 16) - length * x + a) & 0xffff;
+		return a | (b << 16);
+	}
+
+	/**
+	 * Compute the strong hash of a block.
+	 *
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @return
+	 */
+	public static byte[] strong(byte[] data, int offset, int length) {
+		MessageDigest digest = digest("MD5");
+		digest.update(data, offset, length);
+		return digest.digest();
+	}
+
+	/**
+	 * @param algorithm
+	 * @return a digest of an algorithm every Java platform has
+	 */
+	public static MessageDigest digest(String algorithm) {
+		try {
+			return MessageDigest.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What a STAT tells of a path: whether it is a file or a directory, its
+ * length and modification time, and its checksum if the server has one,
+ * see Crc32c. The statuses of a STAT_ACK follow one another, each its type
+ * then, for a file or a directory, the length, the modification time, a
+ * byte telling whether a checksum follows, and the checksum.
+ */
+public class FileStatus {
+
+	public final static byte NOT_EXIST = 0;
+	public final static byte FILE = 1;
+	public final static byte DIRECTORY = 2;
+	public final static byte PERMISSION_DENIED = 3;
+
+	/**
+	 * The most paths a STAT request may ask about.
+	 */
+	public final static int MAX_PATHS = 65536;
+
+	/**
+	 * The most bytes of paths a STAT request may send.
+	 */
+	public final static int MAX_REQUEST_LENGTH = 16 * 1024 * 1024;
+
+	public final byte type;
+	public final long length;
+	public final long lastModified;
+	public final boolean checksummed;
+	public final int checksum;
+
+	public FileStatus(byte type, long length, long lastModified, boolean checksummed, int checksum) {
+		this.type = type;
+		this.length = length;
+		this.lastModified = lastModified;
+		this.checksummed = checksummed;
+		this.checksum = checksum;
+	}
+
+	/**
+	 * @param type NOT_EXIST or PERMISSION_DENIED
+	 */
+	public FileStatus(byte type) {
+		this(type, 0, 0, false, 0);
+	}
+
+	public boolean exists() {
+		return type == FILE || type == DIRECTORY;
+	}
+
+	public static byte[] pack(List<FileStatus> statuses) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(statuses.size() * 22);
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			for (FileStatus status : statuses) {
+				out.writeByte(status.type);
+				if (status.exists()) {
+					out.writeLong(status.length);
+					out.writeLong(status.lastModified);
+					out.writeBoolean(status.checksummed);
+					if (status.checksummed) {
+						out.writeInt(status.checksum);
+					}
+				}
+			}
+		} catch (IOException e) {
+			// not from a byte array
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @param bytes
+	 * @return
+	 * @throws IOException if the bytes are not statuses
+	 */
+	public static List<FileStatus> unpack(byte[] bytes) throws IOException {
+		List<FileStatus> statuses = new ArrayList<FileStatus>();
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		while (in.available() > 0) {
+			byte type = in.readByte();
+			if (type == FILE || type == DIRECTORY) {
+				long length = in.readLong();
+				long lastModified = in.readLong();
+				boolean checksummed = in.readBoolean();
+				statuses.add(new FileStatus(type, length, lastModified, checksummed,
+						checksummed ? in.readInt() : 0));
+			}
+			else if (type == NOT_EXIST || type == PERMISSION_DENIED) {
+				statuses.add(new FileStatus(type));
+			}
+			else {
+				throw new IOException("invalid status " + type);
+			}
+		}
+		return statuses;
+	}
+}
@@ -8,6 +8,13 @@ public class Header {
 
 	// option bit masks
 	private final static int OVERWRITE_BITMASK = 0x01;
+	private final static int CHUNKED_BITMASK = 0x02;
+	private final static int DELTA_BITMASK = 0x04;
+	private final static int COMPRESSED_BITMASK = 0x08;
+	private final static int CHECKSUM_BITMASK = 0x10;
+	private final static int CONDITIONAL_BITMASK = 0x20;
+	private final static int ARCHIVE_BITMASK = 0x40;
+	private final static int RECURSIVE_BITMASK = 0x80;
 
 	// fields
 	private Action action = Action.NONE;
@@ -15,6 +22,8 @@ public class Header {
 	private int option;
 	private Message message = Message.NONE;
 	private String[] path;
+	private int checksum;
+	private long lastModified;
 
 	public boolean isOverwrite() {
 		return (option & OVERWRITE_BITMASK) != 0;
@@ -24,6 +33,103 @@ public class Header {
 		setOptionBit(overwrite, OVERWRITE_BITMASK);
 	}
 
+	/**
+	 * @return whether the data of a PUT is a chunk recipe, see Chunker
+	 */
+	public boolean isChunked() {
+		return (option & CHUNKED_BITMASK) != 0;
+	}
+
+	public void setChunked(boolean chunked) {
+		setOptionBit(chunked, CHUNKED_BITMASK);
+	}
+
+	/**
+	 * @return whether the data of a PUT is a delta against the existing
+	 * file, see Delta
+	 */
+	public boolean isDelta() {
+		return (option & DELTA_BITMASK) != 0;
+	}
+
+	public void setDelta(boolean delta) {
+		setOptionBit(delta, DELTA_BITMASK);
+	}
+
+	/**
+	 * In a request, whether the client offers, or accepts, to transfer the
+	 * data compressed; in an acknowledgment, whether it is. See Compression.
+	 *
+	 * @return
+	 */
+	public boolean isCompressed() {
+		return (option & COMPRESSED_BITMASK) != 0;
+	}
+
+	public void setCompressed(boolean compressed) {
+		setOptionBit(compressed, COMPRESSED_BITMASK);
+	}
+
+	/**
+	 * In a PUT, whether the data is followed by its CRC32C, see Crc32c; in
+	 * a GET, whether the client wants the checksum of the file, and in the
+	 * acknowledgment, whether it is there.
+	 *
+	 * @return
+	 */
+	public boolean isChecksummed() {
+		return (option & CHECKSUM_BITMASK) != 0;
+	}
+
+	public void setChecksummed(boolean checksummed) {
+		setOptionBit(checksummed, CHECKSUM_BITMASK);
+	}
+
+	/**
+	 * In a GET, whether the dataLength and lastModified are those of the
+	 * copy the client has, to be sent only if the file is not the same; in
+	 * the acknowledgment, whether the lastModified of the file is there.
+	 *
+	 * @return
+	 */
+	public boolean isConditional() {
+		return (option & CONDITIONAL_BITMASK) != 0;
+	}
+
+	public void setConditional(boolean conditional) {
+		setOptionBit(conditional, CONDITIONAL_BITMASK);
+	}
+
+	/**
+	 * In a GET, whether the client takes a directory as the archive of its
+	 * files, see Archive; in the acknowledgment, whether the data is one,
+	 * sent up to its end entry whatever the dataLength.
+	 *
+	 * @return
+	 */
+	public boolean isArchive() {
+		return (option & ARCHIVE_BITMASK) != 0;
+	}
+
+	public void setArchive(boolean archive) {
+		setOptionBit(archive, ARCHIVE_BITMASK);
+	}
+
+	/**
+	 * In a DEL, whether a directory is deleted with all it holds, or only
+	 * the files under it matching the ListOptions sent with it, by the
+	 * server in the background, see DeleteProgress.
+	 *
+	 * @return
+	 */
+	public boolean isRecursive() {
+		return (option & RECURSIVE_BITMASK) != 0;
+	}
+
+	public void setRecursive(boolean recursive) {
+		setOptionBit(recursive, RECURSIVE_BITMASK);
+	}
+
 	private void setOptionBit(boolean b, int mask) {
 		if (b) {
 			option |= mask;
@@ -55,6 +161,12 @@ public class Header {
 				length += Integer.SIZE/Byte.SIZE; // level length
 				length += path[i].length()*(Character.SIZE/Byte.SIZE); // number of chars (2bytes/char)
 			}
+			if (isChecksummed()) {
+				length += Integer.SIZE/Byte.SIZE; // checksum
+			}
+			if (isConditional()) {
+				length += Long.SIZE/Byte.SIZE; // last modified
+			}
 		}
 		return length;
 	}
@@ -81,6 +193,12 @@ public class Header {
 				index = AppUtil.toBytes(str.length(), bytes, index);
 				index = AppUtil.toBytes(str, bytes, index);
 			}
+			if (isChecksummed()) {
+				index = AppUtil.toBytes(checksum, bytes, index);
+			}
+			if (isConditional()) {
+				index = AppUtil.toBytes(lastModified, bytes, index);
+			}
 		}
 		return bytes;
 	}
@@ -143,6 +261,19 @@ public class Header {
 				path[i] = AppUtil.toString(bytes, index, strLeng);
 				index += strLeng*(Character.SIZE/Byte.SIZE);
 			}
+			if (isChecksummed()) {
+				if (index + Integer.SIZE/Byte.SIZE > offset + length) {
+					throw new HeaderException();
+				}
+				checksum = AppUtil.toInteger(bytes, index);
+				index += (Integer.SIZE/Byte.SIZE);
+			}
+			if (isConditional()) {
+				if (index + Long.SIZE/Byte.SIZE > offset + length) {
+					throw new HeaderException();
+				}
+				lastModified = AppUtil.toLong(bytes, index);
+			}
 		}
 	}
 	
@@ -170,6 +301,40 @@ public class Header {
 		this.message = message;
 	}
 
+	/**
+	 * @return the CRC32C of the file of a GET acknowledgment
+	 */
+	public int getChecksum() {
+		return checksum;
+	}
+
+	/**
+	 * Set the checksum, and the option saying it is there.
+	 *
+	 * @param checksum
+	 */
+	public void setChecksum(int checksum) {
+		this.checksum = checksum;
+		setChecksummed(true);
+	}
+
+	/**
+	 * @return the modification time of the file, in milliseconds
+	 */
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * Set the modification time, and the option saying it is there.
+	 *
+	 * @param lastModified
+	 */
+	public void setLastModified(long lastModified) {
+		this.lastModified = lastModified;
+		setConditional(true);
+	}
+
 	public String[] getPath() {
 		return path;
 	}
@@ -0,0 +1,338 @@
+package common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The options of a LST, sent with it, so the server walks only as deep as
+ * asked, leaves out the files not matching, and tells their length and
+ * modification time if asked, rather than the client filtering the whole
+ * list. The paths matched are relative to the path listed, their levels
+ * joined with '/'.
+ *
+ * A glob matches a level with '*' and a char of it with '?', '**' matches
+ * any number of levels, none as well when followed by '/', anything else
+ * matches itself.
+ * It is matched by walking its states along the path, so it costs the
+ * length of the glob times the one of the path at most, whatever the glob.
+ */
+public class ListOptions {
+
+	/**
+	 * The most bytes the options of a LST may take.
+	 */
+	public final static int MAX_LENGTH = 256 * 1024;
+
+	/**
+	 * The most chars of a glob.
+	 */
+	public final static int MAX_GLOB_LENGTH = 1024;
+
+	// the tokens of a glob other than its literal chars
+	private final static int ONE = -1;
+	private final static int STAR = -2;
+	private final static int ANY = -3;
+	private final static int DIRS = -4;
+
+	private int maxDepth;
+	private String glob;
+	private String prefix;
+	private long modifiedSince;
+	private boolean metadata;
+	private int[] tokens;
+
+	/**
+	 * A file listed, with its length and modification time if they have
+	 * been asked for, -1 otherwise.
+	 */
+	public static class Entry {
+		public final String[] path;
+		public final long length;
+		public final long lastModified;
+
+		public Entry(String[] path, long length, long lastModified) {
+			this.path = path;
+			this.length = length;
+			this.lastModified = lastModified;
+		}
+	}
+
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	/**
+	 * @param maxDepth the most levels under the path listed, 1 for the files
+	 * directly in it, 0 for no limit
+	 */
+	public void setMaxDepth(int maxDepth) {
+		if (maxDepth < 0) {
+			throw new IllegalArgumentException("maxDepth: " + maxDepth);
+		}
+		this.maxDepth = maxDepth;
+	}
+
+	public String getGlob() {
+		return glob;
+	}
+
+	/**
+	 * @param glob the pattern the files are to match, null for any
+	 * @throws IllegalArgumentException if the glob is longer than
+	 * MAX_GLOB_LENGTH
+	 */
+	public void setGlob(String glob) {
+		if (glob != null && glob.length() > MAX_GLOB_LENGTH) {
+			throw new IllegalArgumentException("glob longer than " + MAX_GLOB_LENGTH);
+		}
+		this.glob = glob;
+		this.tokens = glob == null ? null : tokenize(glob);
+	}
+
+	public String getPrefix() {
+		return prefix;
+	}
+
+	/**
+	 * @param prefix what the files are to start with, null for any
+	 * @throws IllegalArgumentException if a directory of the prefix is not
+	 * a plain name
+	 */
+	public void setPrefix(String prefix) {
+		if (prefix != null && prefix.lastIndexOf('/') >= 0) {
+			for (String level : prefix.substring(0, prefix.lastIndexOf('/')).split("/", -1)) {
+				if (level.isEmpty() || level.equals(".") || level.equals("..")) {
+					throw new IllegalArgumentException("prefix: " + prefix);
+				}
+			}
+		}
+		this.prefix = prefix;
+	}
+
+	public long getModifiedSince() {
+		return modifiedSince;
+	}
+
+	/**
+	 * @param modifiedSince the time the files are to be modified after, 0
+	 * for any
+	 */
+	public void setModifiedSince(long modifiedSince) {
+		this.modifiedSince = modifiedSince;
+	}
+
+	public boolean isMetadata() {
+		return metadata;
+	}
+
+	/**
+	 * @param metadata whether to list the length and modification time of
+	 * the files
+	 */
+	public void setMetadata(boolean metadata) {
+		this.metadata = metadata;
+	}
+
+	/**
+	 * @return the levels of the prefix which are whole, the directories
+	 * every file listed is under
+	 */
+	public String[] getPrefixDirectories() {
+		if (prefix == null || prefix.lastIndexOf('/') < 0) {
+			return new String[0];
+		}
+		return prefix.substring(0, prefix.lastIndexOf('/')).split("/", -1);
+	}
+
+	/**
+	 * Test whether a file is listed, but for its modification time.
+	 *
+	 * @param relative the path of the file relative to the path listed
+	 * @return
+	 */
+	public boolean matches(String[] relative) {
+		if (maxDepth > 0 && relative.length > maxDepth) {
+			return false;
+		}
+		if (prefix == null && tokens == null) {
+			return true;
+		}
+		String path = AppUtil.toString(relative, '/');
+		return (prefix == null || path.startsWith(prefix))
+				&& (tokens == null || matches(tokens, path));
+	}
+
+	/**
+	 * Test whether a file comes after all the files of the prefix, in the
+	 * order of the listings, so none of the next ones can match. The file
+	 * is to be under the directories of the prefix.
+	 *
+	 * @param relative the path of the file relative to the path listed
+	 * @return
+	 */
+	public boolean isPastPrefix(String[] relative) {
+		if (prefix == null) {
+			return false;
+		}
+		int level = prefix.split("/", -1).length - 1;
+		String name = prefix.substring(prefix.lastIndexOf('/') + 1);
+		return relative.length > level && relative[level].compareTo(name) > 0
+				&& !relative[level].startsWith(name);
+	}
+
+	/**
+	 * @return the tokens of a glob: its literal chars, and ONE for '?',
+	 * STAR for '*', ANY for '**' and DIRS for '**' followed by '/'
+	 */
+	private static int[] tokenize(String glob) {
+		int[] tokens = new int[glob.length()];
+		int n = 0;
+		for (int i = 0; i < glob.length(); i++) {
+			char c = glob.charAt(i);
+			if (c == '*' && i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+				i++;
+				if (i + 1 < glob.length() && glob.charAt(i + 1) == '/') {
+					i++;
+					tokens[n++] = DIRS;
+				}
+				else {
+					tokens[n++] = ANY;
+				}
+			}
+			else if (c == '*') {
+				tokens[n++] = STAR;
+			}
+			else if (c == '?') {
+				tokens[n++] = ONE;
+			}
+			else {
+				tokens[n++] = c;
+			}
+		}
+		return Arrays.copyOf(tokens, n);
+	}
+
+	/**
+	 * Match a path against the tokens of a glob, keeping the set of the
+	 * tokens reached after each char rather than backtracking. A state is
+	 * the index of the next token, and for DIRS, whether its levels have
+	 * been started.
+	 */
+	private static boolean matches(int[] tokens, String path) {
+		int m = tokens.length;
+		boolean[] at = new boolean[m + 1];
+		boolean[] inDirs = new boolean[m];
+		boolean[] nextAt = new boolean[m + 1];
+		boolean[] nextInDirs = new boolean[m];
+		at[0] = true;
+		skipEmpty(tokens, at);
+		for (int k = 0; k < path.length(); k++) {
+			char c = path.charAt(k);
+			Arrays.fill(nextAt, false);
+			Arrays.fill(nextInDirs, false);
+			boolean any = false;
+			for (int i = 0; i < m; i++) {
+				if (!at[i] && !inDirs[i]) {
+					continue;
+				}
+				int token = tokens[i];
+				if (token == DIRS) {
+					// the levels go on up to a '/', which may end them
+					nextInDirs[i] = true;
+					if (c == '/') {
+						nextAt[i + 1] = true;
+					}
+				}
+				else if (token == ANY) {
+					nextAt[i] = true;
+				}
+				else if (token == STAR) {
+					if (c != '/') {
+						nextAt[i] = true;
+					}
+				}
+				else if (token == ONE) {
+					if (c != '/') {
+						nextAt[i + 1] = true;
+					}
+				}
+				else if (token == c) {
+					nextAt[i + 1] = true;
+				}
+				any = true;
+			}
+			if (!any) {
+				return false;
+			}
+			boolean[] swap = at;
+			at = nextAt;
+			nextAt = swap;
+			swap = inDirs;
+			inDirs = nextInDirs;
+			nextInDirs = swap;
+			skipEmpty(tokens, at);
+		}
+		return at[m];
+	}
+
+	/**
+	 * Reach the tokens after those which may match nothing.
+	 */
+	private static void skipEmpty(int[] tokens, boolean[] at) {
+		for (int i = 0; i < tokens.length; i++) {
+			if (at[i] && tokens[i] <= STAR) {
+				at[i + 1] = true;
+			}
+		}
+	}
+
+	public byte[] toBytes() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(maxDepth);
+			out.writeLong(modifiedSince);
+			out.writeBoolean(metadata);
+			writeString(out, glob);
+			writeString(out, prefix);
+		} catch (IOException e) {
+			// not from a byte array
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		out.writeBoolean(s != null);
+		if (s != null) {
+			out.writeUTF(s);
+		}
+	}
+
+	/**
+	 * @param bytes
+	 * @return
+	 * @throws IOException if the bytes are not options
+	 */
+	public static ListOptions fromBytes(byte[] bytes) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		ListOptions options = new ListOptions();
+		try {
+			options.setMaxDepth(in.readInt());
+			options.setModifiedSince(in.readLong());
+			options.setMetadata(in.readBoolean());
+			options.setGlob(in.readBoolean() ? in.readUTF() : null);
+			options.setPrefix(in.readBoolean() ? in.readUTF() : null);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("invalid list options");
+		}
+		if (in.available() > 0) {
+			throw new IOException("invalid list options");
+		}
+		return options;
+	}
+}
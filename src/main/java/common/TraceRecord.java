@@ -0,0 +1,123 @@
+package common;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import common.AppConstant.Action;
+import common.AppConstant.Message;
+
+/**
+ * One request of a workload trace. A trace file is a header: magic, version
+ * and the wall clock time the recording started at, followed by fixed-length
+ * records in big endian:
+ *
+ *   offset nanos   8  time since the start of the recording
+ *   action         1  ordinal of the request action
+ *   message        1  ordinal of the response message
+ *   path hash      8  FNV-1a hash of the path
+ *   data length    8  bytes sent or received
+ *   latency nanos  8  from the header decoded to the response completed
+ *
+ * The records are in the order the requests completed, not the one of
+ * their offsets.
+ */
+public class TraceRecord {
+
+	public final static int MAGIC = 0x4e465354; // "NFST"
+	public final static int VERSION = 1;
+	public final static int HEADER_LENGTH = 4 + 4 + 8;
+	public final static int RECORD_LENGTH = 8 + 1 + 1 + 8 + 8 + 8;
+
+	private final static long FNV_OFFSET = 0xcbf29ce484222325L;
+	private final static long FNV_PRIME = 0x100000001b3L;
+
+	public long offsetNanos;
+	public Action action = Action.NONE;
+	public Message message = Message.NONE;
+	public long pathHash;
+	public long dataLength;
+	public long latencyNanos;
+
+	/**
+	 * Hash a path, level by level, so the same file always gets the same
+	 * hash whatever the path separator is.
+	 *
+	 * @param path
+	 * @return
+	 */
+	public static long hash(String[] path) {
+		long h = FNV_OFFSET;
+		if (path == null) {
+			return h;
+		}
+		for (String level : path) {
+			for (int i = 0; i < level.length(); i++) {
+				char c = level.charAt(i);
+				h = (h ^ (c & 0xff)) * FNV_PRIME;
+				h = (h ^ (c >>> 8)) * FNV_PRIME;
+			}
+			h = (h ^ '/') * FNV_PRIME;
+		}
+		return h;
+	}
+
+	public static void writeHeader(ByteBuffer buf, long startMillis) {
+		buf.putInt(MAGIC);
+		buf.putInt(VERSION);
+		buf.putLong(startMillis);
+	}
+
+	/**
+	 * Read the trace file header.
+	 *
+	 * @param dis
+	 * @return the wall clock time the recording started at
+	 * @throws IOException if it is not a trace file of a known version
+	 */
+	public static long readHeader(DataInputStream dis) throws IOException {
+		if (dis.readInt() != MAGIC) {
+			throw new IOException("not a trace file");
+		}
+		int version = dis.readInt();
+		if (version != VERSION) {
+			throw new IOException("unsupported trace version " + version);
+		}
+		return dis.readLong();
+	}
+
+	public void write(ByteBuffer buf) {
+		buf.putLong(offsetNanos);
+		buf.put((byte) action.ordinal());
+		buf.put((byte) message.ordinal());
+		buf.putLong(pathHash);
+		buf.putLong(dataLength);
+		buf.putLong(latencyNanos);
+	}
+
+	/**
+	 * Read the next record.
+	 *
+	 * @param dis
+	 * @return false at the end of the trace
+	 * @throws IOException
+	 */
+	public boolean read(DataInputStream dis) throws IOException {
+		try {
+			offsetNanos = dis.readLong();
+		} catch (EOFException e) {
+			return false;
+		}
+		int actionOrdinal = dis.readUnsignedByte();
+		int messageOrdinal = dis.readUnsignedByte();
+		Action[] actions = Action.values();
+		Message[] messages = Message.values();
+		action = actionOrdinal < actions.length ? actions[actionOrdinal] : Action.NONE;
+		message = messageOrdinal < messages.length ? messages[messageOrdinal] : Message.NONE;
+		pathHash = dis.readLong();
+		dataLength = dis.readLong();
+		latencyNanos = dis.readLong();
+		return true;
+	}
+}
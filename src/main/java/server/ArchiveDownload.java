@@ -0,0 +1,190 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import common.Archive;
+
+/**
+ * The archive of a directory being sent, see Archive, built while the
+ * directory is walked a page of the listing at a time. The entry headers
+ * are read into the buffer of the connection, and the content of the files
+ * is sent with FileRange.transferTo() if the storage gives ranges, without
+ * copying it through the user space.
+ */
+public class ArchiveDownload implements ReadableByteChannel {
+
+	private final static int PAGE_SIZE = 1024;
+
+	private final Storage storage;
+	private final String[] dir;
+	private String cursor;
+	private boolean listed;
+	private Iterator<String[]> paths;
+
+	// the header being read, then the content of the file
+	private ByteBuffer entryHeader;
+	private ReadableByteChannel content;
+	private long contentLeft;
+	private boolean ended;
+	private int files;
+	private boolean open = true;
+
+	/**
+	 * @param storage
+	 * @param dir the directory
+	 */
+	public ArchiveDownload(Storage storage, String[] dir) {
+		this.storage = storage;
+		this.dir = dir;
+	}
+
+	/**
+	 * Send what the target takes of the content of the current file, if it
+	 * is a file range and its header has been read.
+	 *
+	 * @param target
+	 * @return the number of bytes sent, -1 if the content is to be read
+	 * @throws IOException
+	 */
+	public long transferTo(WritableByteChannel target) throws IOException {
+		if (!(content instanceof FileRange) || entryHeader.hasRemaining() || contentLeft == 0) {
+			return -1;
+		}
+		long sent = ((FileRange) content).transferTo(target, contentLeft);
+		if (sent == -1) {
+			throw new IOException("file truncated while being sent");
+		}
+		contentLeft -= sent;
+		return sent;
+	}
+
+	/**
+	 * Read the entry headers, and the content of the files not sent with
+	 * transferTo(), up to the content of a file range.
+	 */
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		if (!open) {
+			throw new ClosedChannelException();
+		}
+		int n = 0;
+		while (dst.hasRemaining()) {
+			if (entryHeader != null && entryHeader.hasRemaining()) {
+				n += put(entryHeader, dst);
+			}
+			else if (contentLeft > 0) {
+				if (content instanceof FileRange) {
+					// left for transferTo()
+					break;
+				}
+				int limit = dst.limit();
+				if (dst.remaining() > contentLeft) {
+					dst.limit(dst.position() + (int) contentLeft);
+				}
+				int read;
+				try {
+					read = content.read(dst);
+				} finally {
+					dst.limit(limit);
+				}
+				if (read == -1) {
+					throw new IOException("file truncated while being sent");
+				}
+				contentLeft -= read;
+				n += read;
+			}
+			else if (!nextEntry()) {
+				if (ended) {
+					break;
+				}
+				ended = true;
+				entryHeader = ByteBuffer.wrap(Archive.end());
+			}
+		}
+		return n == 0 && ended && !entryHeader.hasRemaining() ? -1 : n;
+	}
+
+	private static int put(ByteBuffer src, ByteBuffer dst) {
+		int n = Math.min(src.remaining(), dst.remaining());
+		int limit = src.limit();
+		src.limit(src.position() + n);
+		dst.put(src);
+		src.limit(limit);
+		return n;
+	}
+
+	/**
+	 * Open the next file, and make its entry header.
+	 *
+	 * @return false if there are no more files
+	 * @throws IOException
+	 */
+	private boolean nextEntry() throws IOException {
+		if (content != null) {
+			content.close();
+			content = null;
+		}
+		while (true) {
+			if (paths == null || !paths.hasNext()) {
+				if (listed) {
+					return false;
+				}
+				Storage.Page page = storage.list(dir, cursor, PAGE_SIZE, 0);
+				paths = page.paths.iterator();
+				cursor = page.next;
+				listed = cursor == null;
+				continue;
+			}
+			String[] path = paths.next();
+			if (ChannelHandler.isHidden(path)) {
+				continue;
+			}
+			Storage.Stat stat = storage.stat(path);
+			if (stat == null || stat.directory) {
+				// deleted since
+				continue;
+			}
+			try {
+				content = storage.openRead(path);
+			} catch (IOException e) {
+				continue;
+			}
+			// what the range has of the file, if it has changed since
+			long length = content instanceof FileRange ? ((FileRange) content).getLength() : stat.length;
+			String[] relative = Arrays.copyOfRange(path, dir.length, path.length);
+			entryHeader = ByteBuffer.wrap(Archive.toBytes(new Archive.Entry(relative, length, stat.lastModified)));
+			contentLeft = length;
+			files++;
+			return true;
+		}
+	}
+
+	/**
+	 * @return the number of files sent, or being sent
+	 */
+	public int getFiles() {
+		return files;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (open) {
+			open = false;
+			if (content != null) {
+				content.close();
+				content = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import common.Changes;
+
+/**
+ * The latest PUTs and DELs of the server, numbered in sequence, so the
+ * clients keeping a copy of the files ask for what changed since they last
+ * looked rather than listing them all. It holds a bounded number of
+ * changes, in memory: a restart starts a new epoch, and the clients
+ * behind by more than it holds list the files again.
+ *
+ * It is used by the selector thread only, which records the changes and
+ * pushes them to the subscribers.
+ */
+public class ChangeJournal {
+
+	/**
+	 * A connection the changes are pushed to as they are recorded.
+	 */
+	public interface Subscriber {
+		void changesRecorded();
+	}
+
+	private final int capacity;
+	private final long epoch = new Random().nextLong() & Long.MAX_VALUE;
+	private final ArrayDeque<Changes.Change> changes = new ArrayDeque<Changes.Change>();
+	private long last;
+	private final Set<Subscriber> subscribers = new LinkedHashSet<Subscriber>();
+
+	/**
+	 * @param capacity the number of changes kept
+	 */
+	public ChangeJournal(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity: " + capacity);
+		}
+		this.capacity = capacity;
+	}
+
+	public long getEpoch() {
+		return epoch;
+	}
+
+	/**
+	 * @return the sequence number of the latest change, 0 if none
+	 */
+	public long getCursor() {
+		return last;
+	}
+
+	/**
+	 * Record a change, and tell the subscribers.
+	 *
+	 * @param type Changes.PUT or Changes.DEL
+	 * @param path
+	 */
+	public void record(byte type, String[] path) {
+		if (changes.size() == capacity) {
+			changes.removeFirst();
+		}
+		changes.addLast(new Changes.Change(++last, type, System.currentTimeMillis(), path));
+		// a subscriber may unsubscribe when told
+		for (Subscriber subscriber : new ArrayList<Subscriber>(subscribers)) {
+			subscriber.changesRecorded();
+		}
+	}
+
+	/**
+	 * Get the changes after a cursor.
+	 *
+	 * @param epoch the epoch of the cursor
+	 * @param cursor the sequence number of the last change known
+	 * @param max the most changes to get
+	 * @return the changes, none and the latest cursor if the cursor has
+	 * expired
+	 */
+	public Changes since(long epoch, long cursor, int max) {
+		long first = last - changes.size() + 1;
+		if (epoch != this.epoch || cursor < first - 1 || cursor > last) {
+			return new Changes(this.epoch, last, true, Collections.<Changes.Change>emptyList());
+		}
+		int count = (int) Math.min(max, last - cursor);
+		if (count == 0) {
+			return new Changes(this.epoch, cursor, false, Collections.<Changes.Change>emptyList());
+		}
+		List<Changes.Change> list = new ArrayList<Changes.Change>(count);
+		// the latest changes are the ones most asked for
+		Iterator<Changes.Change> it = changes.descendingIterator();
+		for (long skip = last - cursor - count; skip > 0; skip--) {
+			it.next();
+		}
+		for (int i = 0; i < count; i++) {
+			list.add(it.next());
+		}
+		Collections.reverse(list);
+		return new Changes(this.epoch, cursor + count, false, list);
+	}
+
+	public void subscribe(Subscriber subscriber) {
+		subscribers.add(subscriber);
+	}
+
+	public void unsubscribe(Subscriber subscriber) {
+		subscribers.remove(subscriber);
+	}
+}
@@ -1,29 +1,61 @@
 package server;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Checksum;
 
 import common.AppConstant.Action;
 import common.AppConstant.Message;
 import common.AppConstant.State;
 import common.AppUtil;
+import common.Batch;
+import common.Changes;
+import common.Chunker;
+import common.Compression;
+import common.Crc32c;
+import common.FileStatus;
 import common.Header;
 import common.HeaderException;
+import common.ListOptions;
+import jdk.jfr.EventType;
 
 public class ChannelHandler {
 
+	// uploads are written to a temporary file next to their target,
+	// then renamed into place once complete.
+	public final static String TEMP_PREFIX = ".upload-";
+
+	private final static int LIST_PAGE_SIZE = 1024;
+
+	// the most bytes of the target of a CPY or MOV
+	private final static int MAX_TARGET_LENGTH = 64 * 1024;
+
+	// the most bytes copied in a round of the selector
+	private final static long COPY_STEP = 8 * 1024 * 1024;
+
+	private final static AtomicLong requestIds = new AtomicLong();
+
+	private final static EventType headerDecodeType = EventType.getEventType(ServerEvents.HeaderDecode.class);
+	private final static EventType firstByteType = EventType.getEventType(ServerEvents.FirstByte.class);
+	private final static EventType requestCompleteType = EventType.getEventType(ServerEvents.RequestComplete.class);
+
 	private State state = State.IDLE;
 	private long readLength = 0;
 	private int headerLength = 0;
@@ -31,19 +63,127 @@ public class ChannelHandler {
 	private byte[] bytes = new byte[4096];
 	private final ByteBuffer inBuf  = ByteBuffer.allocateDirect(4096);
 	private ByteBuffer outBuf = ByteBuffer.allocateDirect(4096);
-	private BufferedInputStream bis;
-	private BufferedOutputStream bos;
+	private ReadableByteChannel in;
+	private WritableByteChannel out;
 
 	private SocketChannel channel;
 	private Selector selector;
 	private File root;
+	private Storage storage;
+	private ServerStats stats = new ServerStats();
+	private TraceRecorder trace;
+	private GroupCommitter committer;
+	private TreeDeleter deleter;
+	private boolean compression;
+	private int compressionLevel = 1;
+
+	// the upload being received
+	private String[] tempPath;
+	private String[] targetPath;
+	private List<String[]> syncDirs;
+	// the checksum computed of the upload, and the one sent after it
+	private ChecksumChannel checksum;
+	private final byte[] trailer = new byte[Integer.SIZE / Byte.SIZE];
+	private int trailerLength;
+
+	// the length of the frames of a file stored compressed being sent,
+	// -1 if the data sent is as long as the header says
+	private long storedLength = -1;
+
+	// the hashes of a CHK being received
+	private ByteArrayOutputStream checkHashes;
+
+	// the paths of a STAT being received
+	private ByteArrayOutputStream statPaths;
+
+	// the options of a LST being received
+	private ByteArrayOutputStream lstOptions;
+
+	// the body of a CHG being received
+	private ByteArrayOutputStream changesRequest;
+
+	// the items of a BAT being received
+	private ByteArrayOutputStream batchRequest;
+
+	// the items of a BAT being done, from batchNext on left to do, and the
+	// PUTs of them waiting for the committer
+	private List<Batch.Item> batchItems;
+	private int batchNext;
+	private long batchBudget;
+	private final Map<GroupCommitter.Commit, Batch.Item> batchCommits =
+			new LinkedHashMap<GroupCommitter.Commit, Batch.Item>();
+
+	// the options of a recursive DEL being received, then the deletion
+	// done by the deleter, while its progress is being sent
+	private ByteArrayOutputStream deleteOptions;
+	private TreeDeleter.Deletion deletion;
+	private boolean deletionReporting;
+
+	// the target of a CPY or MOV being received, then the file being
+	// copied, from in to out, with the checksum of the source if known
+	private ByteArrayOutputStream transferTarget;
+	private long copyLeft;
+	private Integer copyChecksum;
+	private ByteBuffer copyBuf;
+
+	// the changes pushed to the connection once it has subscribed, from
+	// the cursor of the epoch, while some are pending
+	private ChangeJournal journal;
+	private boolean subscribed;
+	private long changesEpoch;
+	private long changesCursor;
+	private int changesMax;
+	private boolean changesPending;
+	private final ChangeJournal.Subscriber subscriber = new ChangeJournal.Subscriber() {
+		@Override
+		public void changesRecorded() {
+			changesPending = true;
+			// otherwise pushed once the changes being sent are
+			if (state == State.IDLE) {
+				try {
+					pushChanges();
+				} catch (IOException e) {
+					// the connection is closed, and removed when its key is
+				}
+			}
+		}
+	};
+
+	// the request being served, for the latency stats
+	private Action requestAction = Action.NONE;
+	private long requestStart;
+	private long requestId;
+
+	// flight recorder events spanning more than one selector round,
+	// only created when enabled in a running recording.
+	private ServerEvents.HeaderDecode decodeEvent;
+	private ServerEvents.FirstByte firstByteEvent;
+	private ServerEvents.RequestComplete completeEvent;
 
 	public void closeIOStream() throws IOException {
-		if (bis != null) {
-			bis.close();
+		if (deletion != null) {
+			deletion.cancel();
+			deletion = null;
+		}
+		if (subscribed) {
+			journal.unsubscribe(subscriber);
+			subscribed = false;
 		}
-		if (bos != null) {
-			bos.close();
+		if (in != null) {
+			in.close();
+			in = null;
+		}
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				// an upload cut short, deleted below anyway
+			}
+			out = null;
+		}
+		if (tempPath != null) {
+			storage.delete(tempPath);
+			tempPath = null;
 		}
 	}
 
@@ -53,6 +193,7 @@ public class ChannelHandler {
 		// all data in the buffer has been sent.
 		int remaining = outBuf.remaining();
 		int written = channel.write(outBuf);
+		stats.bytesSent(written);
 		if (written < remaining) {
 			channel.register(selector, SelectionKey.OP_WRITE);
 			return;
@@ -60,47 +201,140 @@ public class ChannelHandler {
 
 		switch (state) {
 		case SEND:
-			// the file content has not been completely read,
-			// read some more into the buffer "bytes", then 
-			// put them into outgoing buffer.
-			if (readLength < header.getDataLength()) {
-				int read = bis.read(bytes);
-				if (read == -1) {
-					readLength = 0;
-					bis.close();
-					bis = null;
-					inBuf.clear();
+			// an archive is sent until its end entry, the content of its
+			// files by the kernel when they are file ranges.
+			if (in instanceof ArchiveDownload) {
+				long sent = ((ArchiveDownload) in).transferTo(channel);
+				if (sent == -1) {
 					outBuf.clear();
-					state = State.IDLE;
-					channel.register(selector, SelectionKey.OP_READ);
-					break;
+					sent = in.read(outBuf);
+					outBuf.flip();
+				}
+				else {
+					stats.bytesSent(sent);
+					outBuf.clear();
+					outBuf.flip();
+				}
+				if (sent == -1) {
+					sendCompleted();
+				}
+				else {
+					if (readLength == 0 && sent > 0) {
+						firstByte();
+					}
+					readLength += sent;
+					channel.register(selector, SelectionKey.OP_WRITE);
+				}
+			}
+			// compressed frames are sent until the end one, their length
+			// is not known up front.
+			else if (in instanceof CompressedDownload) {
+				outBuf.clear();
+				int read = in.read(outBuf);
+				outBuf.flip();
+				if (read == -1) {
+					sendCompleted();
+				}
+				else {
+					if (readLength == 0) {
+						firstByte();
+					}
+					readLength += read;
+					channel.register(selector, SelectionKey.OP_WRITE);
 				}
+			}
+			// the file content has not been completely sent, and it is a
+			// file range: let the kernel send what the socket takes of it.
+			else if (readLength < sendLength() && in instanceof FileRange) {
+				long sent = ((FileRange) in).transferTo(channel, sendLength() - readLength);
+				if (sent == -1) {
+					throw new IOException("file truncated while being sent");
+				}
+				if (readLength == 0 && sent > 0) {
+					firstByte();
+				}
+				stats.bytesSent(sent);
+				readLength += sent;
+				outBuf.clear();
+				outBuf.flip();
+				channel.register(selector, SelectionKey.OP_WRITE);
+			}
+			// the file content has not been completely read,
+			// read some more into the outgoing buffer.
+			else if (readLength < sendLength()) {
 				outBuf.clear();
-				outBuf.put(bytes, 0, read);
+				int read = in.read(outBuf);
+				if (read == -1) {
+					// the file has been truncated since the acknowledgment,
+					// the client is waiting for more data than there is, so
+					// there is no way to go on with this connection.
+					throw new IOException("file truncated while being sent");
+				}
 				outBuf.flip();
+				// the file may have grown since the acknowledgment
+				long left = sendLength() - readLength;
+				if (read > left) {
+					read = (int) left;
+					outBuf.limit(read);
+				}
+				if (readLength == 0) {
+					firstByte();
+				}
 				readLength += read;
 				channel.register(selector, SelectionKey.OP_WRITE);		
 			}
-			// the file reading has completed, finish it properly
-			// by clearing all the buffers, and go back to idle.
 			else {
-				readLength = 0;
-				bis.close();
-				bis = null;
-				inBuf.clear();
-				outBuf.clear();
-				state = State.IDLE;
-				channel.register(selector, SelectionKey.OP_READ);
+				sendCompleted();
 			}
 			break;
 
+		case COPY:
+			copyStep();
+			break;
+
 		default:
+			// an acknowledgment has been sent, the request is complete
+			// unless the file content is still to be received.
+			if (state == State.IDLE) {
+				finishRequest();
+			}
 			outBuf.clear();
+			if (state == State.DELETE) {
+				// the progress has been sent, there may be more since
+				deletionReporting = false;
+				deletionReported();
+				break;
+			}
 			channel.register(selector, SelectionKey.OP_READ);
 			break;
 		}
 	}
 
+	private long sendLength() {
+		return storedLength == -1 ? header.getDataLength() : storedLength;
+	}
+
+	/**
+	 * the file reading has completed, finish it properly by clearing all
+	 * the buffers, and go back to idle.
+	 * @throws IOException
+	 */
+	private void sendCompleted() throws IOException {
+		readLength = 0;
+		storedLength = -1;
+		in.close();
+		in = null;
+		inBuf.clear();
+		outBuf.clear();
+		state = State.IDLE;
+		finishRequest();
+		if (subscribed && changesPending) {
+			pushChanges();
+			return;
+		}
+		channel.register(selector, SelectionKey.OP_READ);
+	}
+
 	public void recv() throws IOException {
 		inBuf.clear();
 		int read = channel.read(inBuf);
@@ -110,29 +344,16 @@ public class ChannelHandler {
 		if (read == 0) {
 			return;
 		}
+		stats.bytesReceived(read);
 
 		switch (state) {
 		case IDLE:
-			// copy received data to buffer "bytes".
-			inBuf.flip();
-			inBuf.get(bytes, (int)readLength, inBuf.limit());
-			readLength += inBuf.limit();
-
-			// header length is 0, meaning the header is not yet received.
-			// the first 4 bytes is header length, if 4 or more than 4 bytes
-			// has been read, convert it to an integer which is the
-			// length of header that will come next.
-			if (headerLength == 0 && readLength >= Integer.SIZE/Byte.SIZE) {
-				headerLength = AppUtil.toInteger(bytes, 0);
-				// the header length is now known, the bytes is buffer
-				// for received data, if its size is not enough to store
-				// the whole header to come, create a new buffer in size
-				// of the header length, with the data in the old buffer
-				// copied to the beginning of the new buffer.
-				if (headerLength > bytes.length) {
-					bytes = Arrays.copyOf(bytes, headerLength);
-				}
+			if (readLength == 0 && headerDecodeType.isEnabled()) {
+				decodeEvent = new ServerEvents.HeaderDecode();
+				decodeEvent.begin();
 			}
+			inBuf.flip();
+			copyHeader();
 			// the whole header has been received, check what message it brings.
 			if (headerLength > 0 && readLength >= headerLength) {
 				try {
@@ -140,11 +361,24 @@ public class ChannelHandler {
 				} catch (HeaderException e) {
 					throw new IOException("Error in header");
 				}
-				
+				// a subscribed connection only gets the changes pushed
+				if (subscribed) {
+					throw new IOException("request on a subscribed connection");
+				}
+				requestAction = header.getAction();
+				requestStart = System.nanoTime();
+				requestId = requestIds.incrementAndGet();
+				stats.requestReceived(requestAction);
+				beginRequestEvents();
+
+				ServerEvents.AckPrepare ackEvent = new ServerEvents.AckPrepare();
+				ackEvent.begin();
 				switch (header.getAction()) {
 				case PUT: // the client wants to send a file to the server
 					preparePutAck();
-					sendHeader();
+					if (state != State.COMMIT) {
+						sendHeader();
+					}
 					break;
 
 				case GET: // the client wants to get a file from the server
@@ -152,44 +386,72 @@ public class ChannelHandler {
 					sendHeader();
 					break;
 
-				case DEL: // the client wants to delete a file on the server
-					prepareDelAck();
-					sendHeader();
+				case DEL: // the client wants to delete a file on the server,
+					// or a tree, the options of which may come with the request
+					if (header.isRecursive()) {
+						prepareRecursiveDel();
+					}
+					else {
+						prepareDelAck();
+						sendHeader();
+					}
 					break;
 					
-				case LST:
-					prepareLstAck();
+				case LST: // the options of the listing may come with the request
+					prepareLst();
+					break;
+
+				case SIG: // the client wants the block signatures of a file
+					prepareSigAck();
 					sendHeader();
 					break;
+
+				case CHK: // the hashes to check come with the request
+					prepareChk();
+					break;
+
+				case STAT: // the paths to stat may come with the request
+					prepareStat();
+					break;
+
+				case CHG: // the cursor to get the changes from comes with the request
+					prepareChanges();
+					break;
+
+				case BAT: // the items of the batch come with the request
+					prepareBatch();
+					break;
+
+				case CPY: // the target of the copy, or the move, comes with the request
+				case MOV:
+					prepareTransfer();
+					break;
 					
 				default:
 					break;
 				}
+				// the acknowledgment of a request with data comes after it
+				if (header.getAction() != requestAction) {
+					ackEvent.end();
+					if (ackEvent.shouldCommit()) {
+						ackEvent.requestId = requestId;
+						ackEvent.action = requestAction.name();
+						ackEvent.path = header.getPath() == null ? null : AppUtil.toString(header.getPath(), '/');
+						ackEvent.message = header.getMessage().name();
+						ackEvent.commit();
+					}
+				}
 				readLength = 0;
 				headerLength = 0;
+				if (state == State.RECV && inBuf.hasRemaining()) {
+					receiveData();
+				}
 			}
 			break;
 
 		case RECV:
-			// write received data to output stream
 			inBuf.flip();
-			inBuf.get(bytes, 0, read);
-			bos.write(bytes, 0, read);
-			readLength += read;
-			// the whole file has been received, finish it properly
-			// by sending the acknowledgment, clearing buffers,
-			// closing input/output streams.
-			if (readLength == header.getDataLength()) {
-				readLength = 0;
-				bos.flush();
-				bos.close();
-				bos = null;
-				inBuf.clear();
-				outBuf.clear();
-				state = State.IDLE;
-				header.setAction(Action.PUT_FIN);
-				sendHeader();
-			}
+			receiveData();
 			break;
 			
 		default:
@@ -197,19 +459,322 @@ public class ChannelHandler {
 		}
 	}
 
+	/**
+	 * copy the received data to buffer "bytes", up to the end of the header:
+	 * what follows it is the data of the request, left in the buffer.
+	 * @throws IOException
+	 */
+	private void copyHeader() throws IOException {
+		int intSize = Integer.SIZE/Byte.SIZE;
+		// header length is 0, meaning the header length is not yet received.
+		// the first 4 bytes is header length, once they have been read,
+		// convert them to an integer which is the length of the header.
+		if (headerLength == 0) {
+			int n = Math.min(inBuf.remaining(), intSize - (int) readLength);
+			inBuf.get(bytes, (int) readLength, n);
+			readLength += n;
+			if (readLength < intSize) {
+				return;
+			}
+			headerLength = AppUtil.toInteger(bytes, 0);
+			if (headerLength < header.requiredLength()) {
+				throw new IOException("Error in header");
+			}
+			// the bytes is buffer for received data, if its size is not
+			// enough to store the whole header to come, create a new buffer
+			// in size of the header length, with the data in the old buffer
+			// copied to the beginning of the new buffer.
+			if (headerLength > bytes.length) {
+				bytes = Arrays.copyOf(bytes, headerLength);
+			}
+		}
+		int n = Math.min(inBuf.remaining(), headerLength - (int) readLength);
+		inBuf.get(bytes, (int) readLength, n);
+		readLength += n;
+	}
+
+	/**
+	 * write the received data in the buffer, and finish the request once all
+	 * of its data has been received.
+	 * @throws IOException
+	 */
+	private void receiveData() throws IOException {
+		if (readLength == 0) {
+			firstByte();
+		}
+		if (!isDataReceived()) {
+			// the data may be followed by its checksum
+			int limit = inBuf.limit();
+			if (!(out instanceof CompressedUpload)) {
+				inBuf.limit(inBuf.position() + (int) Math.min(inBuf.remaining(),
+						header.getDataLength() - readLength));
+			}
+			int position = inBuf.position();
+			while (inBuf.hasRemaining() && !isDataReceived()) {
+				out.write(inBuf);
+			}
+			readLength += inBuf.position() - position;
+			inBuf.limit(limit);
+		}
+		boolean complete = isDataReceived();
+		if (complete && requestAction == Action.PUT && header.isChecksummed()) {
+			int n = Math.min(inBuf.remaining(), trailer.length - trailerLength);
+			inBuf.get(trailer, trailerLength, n);
+			trailerLength += n;
+			complete = trailerLength == trailer.length;
+		}
+		if (complete && inBuf.hasRemaining()) {
+			throw new IOException("data after the end of the upload");
+		}
+		if (complete) {
+			readLength = 0;
+			trailerLength = 0;
+			inBuf.clear();
+			outBuf.clear();
+			if (requestAction == Action.CHK) {
+				checkReceived();
+			}
+			else if (requestAction == Action.STAT) {
+				statReceived();
+			}
+			else if (requestAction == Action.LST) {
+				lstReceived();
+			}
+			else if (requestAction == Action.CHG) {
+				changesReceived();
+			}
+			else if (requestAction == Action.BAT) {
+				batchReceived();
+			}
+			else if (requestAction == Action.CPY || requestAction == Action.MOV) {
+				targetReceived();
+			}
+			else if (requestAction == Action.DEL) {
+				deleteOptionsReceived();
+			}
+			else {
+				putReceived();
+			}
+		}
+	}
+
+	/**
+	 * @return whether the data of the request has been received, which for
+	 * a compressed upload ends with its end frame
+	 */
+	private boolean isDataReceived() {
+		return out instanceof CompressedUpload
+				? ((CompressedUpload) out).isFinished()
+				: readLength == header.getDataLength();
+	}
+
+	/**
+	 * the whole file has been received, finish it properly by closing the
+	 * output stream, and committing it.
+	 * @throws IOException
+	 */
+	private void putReceived() throws IOException {
+		boolean closed = true;
+		try {
+			out.close();
+		} catch (IOException e) {
+			// e.g. a chunked upload referring to a chunk deleted since
+			closed = false;
+		}
+		out = null;
+		if (!closed) {
+			storage.delete(tempPath);
+			tempPath = null;
+			checksum = null;
+			putFinished(Message.FILE_NOT_CREATED);
+		}
+		else if (checksum != null && header.isChecksummed()
+				&& checksum.getValue() != AppUtil.toInteger(trailer, 0)) {
+			// corrupted on the way
+			storage.delete(tempPath);
+			tempPath = null;
+			checksum = null;
+			putFinished(Message.CHECKSUM_MISMATCH);
+		}
+		else if (committer != null) {
+			// durable upload: wait, without reading anything, until the
+			// committer has synced and renamed the file, then the PUT_FIN
+			// is sent by commitCompleted().
+			state = State.COMMIT;
+			channel.register(selector, 0);
+			committer.submit(new GroupCommitter.Commit(this, storage, tempPath,
+					targetPath, header.isOverwrite(), syncDirs));
+			tempPath = null;
+		}
+		else {
+			Message message = GroupCommitter.rename(storage, tempPath,
+					targetPath, header.isOverwrite());
+			tempPath = null;
+			putCommitted(message);
+			putFinished(message);
+		}
+	}
+
+	/**
+	 * the upload, the copy, the move, or a PUT of a batch, has been
+	 * committed by the group committer, send the PUT_FIN (the PUT_ACK of an
+	 * empty upload), the CPY_ACK or the MOV_ACK, or go on with the batch.
+	 *
+	 * @param commit
+	 * @throws IOException
+	 */
+	public void commitCompleted(GroupCommitter.Commit commit) throws IOException {
+		if (requestAction == Action.CPY) {
+			copyCommitted(commit.getMessage());
+			return;
+		}
+		if (requestAction == Action.MOV) {
+			transferFinished(commit.getMessage());
+			return;
+		}
+		if (requestAction == Action.BAT) {
+			Batch.Item item = batchCommits.remove(commit);
+			item.setMessage(commit.getMessage());
+			batchPutCommitted(item);
+			if (batchCommits.isEmpty()) {
+				batchContinue();
+			}
+			return;
+		}
+		putCommitted(commit.getMessage());
+		if (header.getDataLength() == 0) {
+			// an empty upload, answered by its PUT_ACK
+			state = State.IDLE;
+			header.setMessage(commit.getMessage());
+			header.setAction(Action.PUT_ACK);
+			sendHeader();
+			return;
+		}
+		putFinished(commit.getMessage());
+	}
+
+	/**
+	 * The upload has been renamed into place, or not.
+	 *
+	 * @param message
+	 */
+	private void putCommitted(Message message) {
+		if (message == Message.FILE_CREATED) {
+			storeChecksum(targetPath, checksum != null ? Integer.valueOf(checksum.getValue()) : null);
+			recordChange(Changes.PUT, targetPath);
+		}
+		checksum = null;
+	}
+
+	private void recordChange(byte type, String[] path) {
+		if (journal != null) {
+			journal.record(type, path);
+		}
+	}
+
+	private void putFinished(Message message) throws IOException {
+		state = State.IDLE;
+		header.setMessage(message);
+		header.setAction(Action.PUT_FIN);
+		sendHeader();
+	}
+
+	/**
+	 * record the latency and the last response of the request that has just
+	 * been completed.
+	 */
+	private void finishRequest() {
+		if (requestStart != 0) {
+			long now = System.nanoTime();
+			stats.requestCompleted(requestAction, now - requestStart);
+			// the last response of the request, the one it ends with
+			stats.responseSent(header.getMessage());
+			if (trace != null) {
+				trace.record(requestAction, header.getMessage(), header.getPath(),
+						header.getDataLength(), requestStart, now);
+			}
+			requestStart = 0;
+		}
+		if (completeEvent != null) {
+			completeEvent.end();
+			if (completeEvent.shouldCommit()) {
+				completeEvent.requestId = requestId;
+				completeEvent.action = requestAction.name();
+				completeEvent.message = header.getMessage().name();
+				completeEvent.dataLength = header.getDataLength();
+				completeEvent.commit();
+			}
+			completeEvent = null;
+		}
+		firstByteEvent = null;
+	}
+
+	/**
+	 * commit the header decode event, if any, and begin the events that
+	 * last until the first byte or the end of the request.
+	 */
+	private void beginRequestEvents() {
+		if (decodeEvent != null) {
+			decodeEvent.end();
+			if (decodeEvent.shouldCommit()) {
+				decodeEvent.requestId = requestId;
+				decodeEvent.headerLength = headerLength;
+				decodeEvent.commit();
+			}
+			decodeEvent = null;
+		}
+		if (firstByteType.isEnabled()) {
+			firstByteEvent = new ServerEvents.FirstByte();
+			firstByteEvent.begin();
+		}
+		if (requestCompleteType.isEnabled()) {
+			completeEvent = new ServerEvents.RequestComplete();
+			completeEvent.begin();
+		}
+	}
+
+	/**
+	 * the first byte of the file content is being transferred.
+	 */
+	private void firstByte() {
+		if (firstByteEvent != null) {
+			firstByteEvent.end();
+			if (firstByteEvent.shouldCommit()) {
+				firstByteEvent.requestId = requestId;
+				firstByteEvent.action = requestAction.name();
+				firstByteEvent.commit();
+			}
+			firstByteEvent = null;
+		}
+	}
+
 	/**
 	 * send the header that has been prepared.
 	 * @throws IOException
 	 */
 	private void sendHeader() throws IOException {
+		sendHeader(null);
+	}
+
+	/**
+	 * Send the header followed by a body small enough for the buffer.
+	 *
+	 * @param body the body, null for none
+	 * @throws IOException
+	 */
+	private void sendHeader(byte[] body) throws IOException {
 		byte[] bytes = header.toBytes();
-		if (outBuf.capacity() >= bytes.length) {
+		int length = bytes.length + (body == null ? 0 : body.length);
+		if (outBuf.capacity() >= length) {
 			outBuf.clear();
 		}
 		else {
-			outBuf = ByteBuffer.allocateDirect(bytes.length);
+			outBuf = ByteBuffer.allocateDirect(length);
 		}
 		outBuf.put(bytes, 0, bytes.length);
+		if (body != null) {
+			outBuf.put(body);
+		}
 		outBuf.flip();
 		channel.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE );	
 	}
@@ -219,64 +784,213 @@ public class ChannelHandler {
 	 * @throws IOException
 	 */
 	private void preparePutAck() throws IOException {
-		File file = AppUtil.toFile(root, header.getPath());
-		if (!AppUtil.isLocatedInside(file, root)) {
+		String[] path = header.getPath();
+		Storage.Stat basis = null;
+		// the client offers to compress the upload, said yes to below
+		boolean compressed = header.isCompressed();
+		header.setCompressed(false);
+		// the client offers to send the checksum of the data after it
+		boolean checksummed = header.isChecksummed();
+		header.setChecksummed(false);
+		if (!storage.permits(path) || isInternal(path)) {
 			header.setMessage(Message.PERMISSION_DENIED);
 			state = State.IDLE;
 		}
-		else if (file.exists() && !header.isOverwrite()) {
+		else if (header.isDelta() && ((basis = storage.stat(path)) == null || basis.directory)) {
+			// a delta needs the file it applies to
+			header.setMessage(Message.FILE_NOT_EXIST);
+			state = State.IDLE;
+		}
+		else if (storage.stat(path) != null && !header.isOverwrite()) {
 			header.setMessage(Message.FILE_EXIST);
 			state = State.IDLE;
 		}
+		else if (header.getDataLength() > storage.getUsableSpace(path)) {
+			header.setMessage(Message.NO_SPACE);
+			state = State.IDLE;
+		}
 		else {
-			boolean created = false;
-			if (!file.getParentFile().exists()) {
-				file.getParentFile().mkdirs();
+			String[] temp = null;
+			List<String[]> dirs = null;
+			if (path.length > 0) {
+				temp = Arrays.copyOf(path, path.length);
+				temp[path.length - 1] = TEMP_PREFIX + path[path.length - 1] + "." + requestId;
+				dirs = changedDirs(path);
+				try {
+					// the length of a chunked or delta upload is not the file's
+					boolean encoded = header.isChunked() || header.isDelta();
+					out = storage.create(temp, encoded ? 0 : header.getDataLength());
+					// the chunks referred to by a chunked upload are not
+					// written, so it cannot be checksummed.
+					if (header.isChunked()) {
+						out = new ChunkedUpload(out);
+					}
+					else {
+						checksum = new ChecksumChannel(out);
+						out = checksum;
+					}
+					if (header.isDelta()) {
+						out = new DeltaUpload(out, storage, path, basis.length);
+					}
+				} catch (IOException e) {
+					out = null;
+				}
 			}
-			if (file.getParentFile().exists()) {
-				created = file.createNewFile();
+			if (out == null) {
+				header.setMessage(Message.FILE_NOT_CREATED);
+				state = State.IDLE;
 			}
-			if (created) {
+			else if (header.getDataLength() > 0) {
 				header.setMessage(Message.FILE_CREATED);
-				if (header.getDataLength() > 0) {
-					bos = new BufferedOutputStream(new FileOutputStream(file));
-					state = State.RECV;
+				// the checksum is taken only if the upload can be checked
+				header.setChecksummed(checksummed && checksum != null);
+				if (compressed && compression && !header.isChunked() && !header.isDelta()) {
+					header.setCompressed(true);
+					out = new CompressedUpload(out, header.getDataLength());
+				}
+				tempPath = temp;
+				targetPath = path;
+				syncDirs = dirs;
+				state = State.RECV;
+			}
+			else {
+				// an empty file has no data to wait for, it is committed
+				// right away.
+				out.close();
+				out = null;
+				targetPath = path;
+				if (committer != null) {
+					// durable: the PUT_ACK is sent by commitCompleted()
+					// once the committer has synced and renamed the file.
+					state = State.COMMIT;
+					channel.register(selector, 0);
+					committer.submit(new GroupCommitter.Commit(this, storage, temp,
+							path, header.isOverwrite(), dirs));
 				}
 				else {
+					Message message = GroupCommitter.rename(storage, temp, path, header.isOverwrite());
+					putCommitted(message);
+					header.setMessage(message);
 					state = State.IDLE;
 				}
 			}
-			else {
-				header.setMessage(Message.FILE_NOT_CREATED);
-				state = State.IDLE;
-			}
 		}
 		header.setAction(Action.PUT_ACK);
 	}
 
+	/**
+	 * @param path
+	 * @return whether the path is one of the files the server keeps for
+	 * itself, a checksum or an upload in progress, which the clients may not
+	 * read, write nor delete
+	 */
+	private static boolean isInternal(String[] path) {
+		return path.length > 0 && isHidden(path);
+	}
+
+	/**
+	 * the directories whose entries change when the file of the given path
+	 * is created: its parent, and, for each of the ancestors that does not
+	 * exist yet, the parent where it is to be created.
+	 *
+	 * @param path
+	 * @return
+	 * @throws IOException
+	 */
+	private List<String[]> changedDirs(String[] path) throws IOException {
+		List<String[]> dirs = new ArrayList<String[]>();
+		String[] dir = Arrays.copyOf(path, path.length - 1);
+		dirs.add(dir);
+		while (dir.length > 0 && storage.stat(dir) == null) {
+			dir = Arrays.copyOf(dir, dir.length - 1);
+			dirs.add(dir);
+		}
+		return dirs;
+	}
+
 	/**
 	 * prepare the acknowledgment to the Get request.
 	 * @throws IOException
 	 */
 	private void prepareGetAck() throws IOException {
-		File file = AppUtil.toFile(root, header.getPath());
-		if (!AppUtil.isLocatedInside(file, root)) {
+		String[] path = header.getPath();
+		Storage.Stat stat;
+		// the client accepts a compressed download
+		boolean compressed = header.isCompressed();
+		header.setCompressed(false);
+		// the client wants the checksum of the file
+		boolean checksummed = header.isChecksummed();
+		header.setChecksummed(false);
+		// the client has a copy, the one of that length and time
+		boolean conditional = header.isConditional();
+		header.setConditional(false);
+		long copyLength = header.getDataLength();
+		long copyModified = header.getLastModified();
+		// the client takes a directory as an archive
+		boolean archive = header.isArchive();
+		header.setArchive(false);
+		if (!storage.permits(path) || isInternal(path)) {
 			header.setMessage(Message.PERMISSION_DENIED);
 			state = State.IDLE;
 		}
-		else if (!file.exists()) {
+		else if ((stat = storage.stat(path)) != null && stat.directory && archive) {
+			// built while sent, its length is not known up front
+			header.setMessage(Message.FILE_EXIST);
+			header.setArchive(true);
+			header.setDataLength(0);
+			in = new ArchiveDownload(storage, path);
+			state = State.SEND;
+		}
+		else if (stat == null || stat.directory) {
 			header.setMessage(Message.FILE_NOT_EXIST);
 			state = State.IDLE;
 		}
+		else if (conditional && stat.length == copyLength && stat.lastModified == copyModified) {
+			// the copy is the file, no need to send it again
+			header.setMessage(Message.NOT_MODIFIED);
+			header.setDataLength(0);
+			header.setLastModified(stat.lastModified);
+			state = State.IDLE;
+		}
 		else {
 			header.setMessage(Message.FILE_EXIST);
-			header.setDataLength(file.length());
-			if (header.getDataLength() > 0) {
-				state = State.SEND;
-				bis = new BufferedInputStream(new FileInputStream(file));
+			header.setDataLength(stat.length);
+			if (conditional) {
+				header.setLastModified(stat.lastModified);
 			}
-			else {
-				state = State.IDLE;
+			state = State.IDLE;
+			if (stat.length > 0) {
+				Integer crc = checksummed ? Checksums.load(storage, path, stat) : null;
+				if (crc != null) {
+					header.setChecksum(crc);
+				}
+				try {
+					// the frames of a file stored compressed are sent as
+					// they are to a client accepting them.
+					FileRange stored = null;
+					if (compressed && storage instanceof LocalStorage) {
+						stored = ((LocalStorage) storage).openCompressed(path);
+					}
+					if (stored != null) {
+						header.setCompressed(true);
+						in = stored;
+						storedLength = stored.getLength();
+					}
+					else {
+						in = storage.openRead(path);
+					}
+					state = State.SEND;
+					if (stored == null && compressed && compression
+							&& Compression.isCompressible(path[path.length - 1], stat.length)) {
+						header.setCompressed(true);
+						in = new CompressedDownload(in, stat.length, compressionLevel);
+					}
+				} catch (IOException e) {
+					// deleted since
+					header.setMessage(Message.FILE_NOT_EXIST);
+					header.setDataLength(0);
+					header.setChecksummed(false);
+				}
 			}
 		}
 		header.setAction(Action.GET_ACK);
@@ -287,55 +1001,1011 @@ public class ChannelHandler {
 	 * @throws IOException
 	 */
 	private void prepareDelAck() throws IOException {
-		File file = AppUtil.toFile(root, header.getPath());
-		if (!AppUtil.isLocatedInside(file, root)) {
-			header.setMessage(Message.PERMISSION_DENIED);
-		}
-		else if (!file.exists()) {
-			header.setMessage(Message.FILE_NOT_EXIST);
+		header.setMessage(delete(header.getPath()));
+		state = State.IDLE;
+		header.setAction(Action.DEL_ACK);
+	}
+
+	/**
+	 * prepare a recursive DEL, done by the deleter once its options, if
+	 * any, have been received.
+	 * @throws IOException
+	 */
+	private void prepareRecursiveDel() throws IOException {
+		long length = header.getDataLength();
+		if (length < 0 || length > ListOptions.MAX_LENGTH) {
+			throw new IOException("Error in header");
 		}
-		else if (file.delete()) {
-			header.setMessage(Message.FILE_DELETED);
+		if (length == 0) {
+			startDeletion(null);
 		}
 		else {
-			header.setMessage(Message.FILE_NOT_DELETED);
+			deleteOptions = new ByteArrayOutputStream((int) length);
+			out = Channels.newChannel(deleteOptions);
+			state = State.RECV;
 		}
-		state = State.IDLE;
-		header.setAction(Action.DEL_ACK);
 	}
-	
+
 	/**
-	 * prepare the acknowledgment to the List request.
+	 * the options of a recursive DEL have been received, start it.
+	 * @throws IOException
+	 */
+	private void deleteOptionsReceived() throws IOException {
+		out = null;
+		ListOptions options = ListOptions.fromBytes(deleteOptions.toByteArray());
+		deleteOptions = null;
+		startDeletion(options);
+	}
+
+	/**
+	 * Hand a recursive DEL to the deleter, its progress being sent by
+	 * deletionReported() until it is done, without reading anything.
+	 *
+	 * @param options the files to delete, null for the whole tree
 	 * @throws IOException
 	 */
-	private void prepareLstAck() throws IOException {
-		File file = AppUtil.toFile(root, header.getPath());
-		if (!AppUtil.isLocatedInside(file, root)) {
+	private void startDeletion(ListOptions options) throws IOException {
+		String[] path = header.getPath();
+		header.setRecursive(false);
+		header.setDataLength(0);
+		if (deleter == null || !storage.permits(path) || isInternal(path)) {
 			header.setMessage(Message.PERMISSION_DENIED);
-			state = State.IDLE;
 		}
-		else if (!file.exists()) {
+		else if (storage.stat(path) == null) {
+			header.setMessage(Message.FILE_NOT_EXIST);
+		}
+		else {
+			state = State.DELETE;
+			channel.register(selector, 0);
+			deletion = new TreeDeleter.Deletion(this, storage, path, options);
+			deleter.submit(deletion);
+			return;
+		}
+		state = State.IDLE;
+		header.setAction(Action.DEL_ACK);
+		sendHeader();
+	}
+
+	/**
+	 * The deleter has reported the progress of the recursive DEL: record the
+	 * files deleted, and send the progress unless some is being sent, or
+	 * the final DEL_ACK once done.
+	 *
+	 * @throws IOException
+	 */
+	public void deletionReported() throws IOException {
+		if (state != State.DELETE || deletionReporting) {
+			return;
+		}
+		TreeDeleter.Report report = deletion.take();
+		for (String[] path : report.deleted) {
+			recordChange(Changes.DEL, path);
+		}
+		byte[] bytes = report.progress.toBytes();
+		header.setAction(Action.DEL_ACK);
+		header.setDataLength(bytes.length);
+		if (report.message != null) {
+			deletion = null;
+			header.setMessage(report.message);
+			state = State.SEND;
+			in = Channels.newChannel(new ByteArrayInputStream(bytes));
+			sendHeader();
+		}
+		else if (report.deleted.isEmpty()) {
+			// nothing new to tell
+			channel.register(selector, 0);
+		}
+		else {
+			header.setMessage(Message.IN_PROGRESS);
+			deletionReporting = true;
+			sendHeader(bytes);
+		}
+	}
+
+	/**
+	 * prepare a CPY or a MOV, done once its target has been received.
+	 * @throws IOException
+	 */
+	private void prepareTransfer() throws IOException {
+		long length = header.getDataLength();
+		if (header.getPath() == null || length <= 0 || length > MAX_TARGET_LENGTH) {
+			throw new IOException("Error in header");
+		}
+		transferTarget = new ByteArrayOutputStream((int) length);
+		out = Channels.newChannel(transferTarget);
+		state = State.RECV;
+	}
+
+	/**
+	 * the target of a CPY or a MOV has been received: move the file at
+	 * once, or start copying it.
+	 * @throws IOException
+	 */
+	private void targetReceived() throws IOException {
+		out = null;
+		List<String[]> paths;
+		try {
+			paths = AppUtil.unpackPaths(transferTarget.toByteArray());
+		} catch (IndexOutOfBoundsException e) {
+			throw new IOException("Error in header");
+		}
+		transferTarget = null;
+		if (paths.size() != 1) {
+			throw new IOException("Error in header");
+		}
+		String[] source = header.getPath();
+		String[] target = paths.get(0);
+		Message message = checkTransfer(source, target);
+		if (message != null) {
+			transferFinished(message);
+		}
+		else if (requestAction == Action.MOV) {
+			move(source, target);
+		}
+		else {
+			startCopy(source, target);
+		}
+	}
+
+	/**
+	 * @param source
+	 * @param target
+	 * @return why the file cannot be copied or moved, null if it can
+	 * @throws IOException
+	 */
+	private Message checkTransfer(String[] source, String[] target) throws IOException {
+		if (source.length == 0 || target.length == 0 || !storage.permits(source) || !storage.permits(target)
+				|| isHidden(source) || isHidden(target)) {
+			return Message.PERMISSION_DENIED;
+		}
+		Storage.Stat stat = storage.stat(source);
+		if (stat == null || stat.directory) {
+			return Message.FILE_NOT_EXIST;
+		}
+		Storage.Stat existing = storage.stat(target);
+		if (existing != null && (existing.directory || !header.isOverwrite())) {
+			return Message.FILE_EXIST;
+		}
+		return null;
+	}
+
+	/**
+	 * Rename a file, with its checksum, then send the MOV_ACK: FILE_CREATED
+	 * if moved, FILE_EXIST if the target has been created meanwhile, or
+	 * FILE_NOT_CREATED.
+	 *
+	 * @param source
+	 * @param target
+	 * @throws IOException
+	 */
+	private void move(String[] source, String[] target) throws IOException {
+		Integer crc = Checksums.load(storage, source, storage.stat(source));
+		List<String[]> dirs = changedDirs(target);
+		try {
+			storage.rename(source, target, header.isOverwrite());
+		} catch (FileAlreadyExistsException e) {
+			transferFinished(Message.FILE_EXIST);
+			return;
+		} catch (IOException e) {
+			transferFinished(Message.FILE_NOT_CREATED);
+			return;
+		}
+		Checksums.delete(storage, source);
+		storeChecksum(target, crc);
+		recordChange(Changes.DEL, source);
+		recordChange(Changes.PUT, target);
+		if (committer != null) {
+			// durable: wait, without reading anything, until the committer
+			// has synced the entries of both directories, then the MOV_ACK
+			// is sent by commitCompleted().
+			String[] sourceDir = Arrays.copyOf(source, source.length - 1);
+			if (!containsPath(dirs, sourceDir)) {
+				dirs.add(sourceDir);
+			}
+			state = State.COMMIT;
+			channel.register(selector, 0);
+			committer.submit(new GroupCommitter.Commit(this, storage, null,
+					target, header.isOverwrite(), dirs));
+			return;
+		}
+		transferFinished(Message.FILE_CREATED);
+	}
+
+	/**
+	 * Store the checksum of a file just created, uploaded, copied or moved,
+	 * or drop the one of the file it replaced if there is none.
+	 *
+	 * @param path
+	 * @param crc the CRC32C of the content, null if not known
+	 */
+	private void storeChecksum(String[] path, Integer crc) {
+		try {
+			if (crc != null) {
+				Checksums.store(storage, path, crc, requestId);
+			}
+			else {
+				Checksums.delete(storage, path);
+			}
+		} catch (IOException e) {
+			// the file is stored, only without its checksum
+			System.out.println("could not store the checksum of " + AppUtil.toString(path, '/'));
+		}
+	}
+
+	/**
+	 * Open the source and a temporary file next to the target, the copy
+	 * being done a step at a time by copyStep(), each time the selector
+	 * finds the connection writable, so a large file does not hold up the
+	 * other connections.
+	 *
+	 * @param source
+	 * @param target
+	 * @throws IOException
+	 */
+	private void startCopy(String[] source, String[] target) throws IOException {
+		Storage.Stat stat = storage.stat(source);
+		if (stat.length > storage.getUsableSpace(target)) {
+			transferFinished(Message.NO_SPACE);
+			return;
+		}
+		String[] temp = Arrays.copyOf(target, target.length);
+		temp[target.length - 1] = TEMP_PREFIX + target[target.length - 1] + "." + requestId;
+		targetPath = target;
+		syncDirs = changedDirs(target);
+		try {
+			in = storage.openRead(source);
+			// what the range has of the file, if it has changed since
+			copyLeft = in instanceof FileRange ? ((FileRange) in).getLength() : stat.length;
+			out = storage.create(temp, copyLeft);
+			tempPath = temp;
+		} catch (IOException e) {
+			closeCopy();
+			transferFinished(Message.FILE_NOT_CREATED);
+			return;
+		}
+		copyChecksum = copyLeft == stat.length ? Checksums.load(storage, source, stat) : null;
+		state = State.COPY;
+		// nothing to send meanwhile
+		outBuf.clear();
+		outBuf.flip();
+		channel.register(selector, SelectionKey.OP_WRITE);
+	}
+
+	/**
+	 * Copy the next step of the file, by the kernel from file to file when
+	 * the source is a file range, then commit the copy once complete.
+	 * @throws IOException
+	 */
+	private void copyStep() throws IOException {
+		try {
+			long step = Math.min(COPY_STEP, copyLeft);
+			while (step > 0) {
+				long copied;
+				if (in instanceof FileRange) {
+					copied = ((FileRange) in).transferTo(out, step);
+				}
+				else {
+					if (copyBuf == null) {
+						copyBuf = ByteBuffer.allocate(64 * 1024);
+					}
+					copyBuf.clear();
+					copyBuf.limit((int) Math.min(copyBuf.capacity(), step));
+					copied = in.read(copyBuf);
+					copyBuf.flip();
+					while (copyBuf.hasRemaining()) {
+						out.write(copyBuf);
+					}
+				}
+				if (copied == -1) {
+					throw new IOException("file truncated while being copied");
+				}
+				step -= copied;
+				copyLeft -= copied;
+			}
+			if (copyLeft > 0) {
+				channel.register(selector, SelectionKey.OP_WRITE);
+				return;
+			}
+			in.close();
+			in = null;
+			out.close();
+			out = null;
+		} catch (IOException e) {
+			closeCopy();
+			transferFinished(Message.FILE_NOT_CREATED);
+			return;
+		}
+		if (committer != null) {
+			// durable copy: wait, without reading anything, until the
+			// committer has synced and renamed the file, then the CPY_ACK
+			// is sent by commitCompleted().
+			state = State.COMMIT;
+			channel.register(selector, 0);
+			committer.submit(new GroupCommitter.Commit(this, storage, tempPath,
+					targetPath, header.isOverwrite(), syncDirs));
+			tempPath = null;
+		}
+		else {
+			Message message = GroupCommitter.rename(storage, tempPath,
+					targetPath, header.isOverwrite());
+			tempPath = null;
+			copyCommitted(message);
+		}
+	}
+
+	/**
+	 * Close the files of a copy that failed, and delete the temporary one.
+	 */
+	private void closeCopy() {
+		AppUtil.close(in);
+		in = null;
+		AppUtil.close(out);
+		out = null;
+		if (tempPath != null) {
+			try {
+				storage.delete(tempPath);
+			} catch (IOException e) {
+				// nothing we can do about
+			}
+			tempPath = null;
+		}
+		copyChecksum = null;
+	}
+
+	/**
+	 * The copy has been renamed into place, or not, send the CPY_ACK.
+	 *
+	 * @param message
+	 * @throws IOException
+	 */
+	private void copyCommitted(Message message) throws IOException {
+		if (message == Message.FILE_CREATED) {
+			storeChecksum(targetPath, copyChecksum);
+			recordChange(Changes.PUT, targetPath);
+		}
+		copyChecksum = null;
+		transferFinished(message);
+	}
+
+	private void transferFinished(Message message) throws IOException {
+		state = State.IDLE;
+		header.setMessage(message);
+		header.setAction(requestAction == Action.CPY ? Action.CPY_ACK : Action.MOV_ACK);
+		header.setDataLength(0);
+		sendHeader();
+	}
+
+	private Message delete(String[] path) throws IOException {
+		if (!storage.permits(path) || isInternal(path)) {
+			return Message.PERMISSION_DENIED;
+		}
+		if (storage.stat(path) == null) {
+			return Message.FILE_NOT_EXIST;
+		}
+		if (!storage.delete(path)) {
+			return Message.FILE_NOT_DELETED;
+		}
+		if (path.length > 0) {
+			Checksums.delete(storage, path);
+		}
+		recordChange(Changes.DEL, path);
+		return Message.FILE_DELETED;
+	}
+	
+	/**
+	 * prepare to answer a List request, at once unless its options come
+	 * with it.
+	 * @throws IOException
+	 */
+	private void prepareLst() throws IOException {
+		long length = header.getDataLength();
+		if (length < 0 || length > ListOptions.MAX_LENGTH) {
+			throw new IOException("Error in header");
+		}
+		if (length == 0) {
+			prepareLstAck(null);
+			sendHeader();
+		}
+		else {
+			lstOptions = new ByteArrayOutputStream((int) length);
+			out = Channels.newChannel(lstOptions);
+			state = State.RECV;
+		}
+	}
+
+	/**
+	 * the options of a List request have been received, answer it.
+	 * @throws IOException
+	 */
+	private void lstReceived() throws IOException {
+		out = null;
+		ListOptions options = ListOptions.fromBytes(lstOptions.toByteArray());
+		lstOptions = null;
+		prepareLstAck(options);
+		sendHeader();
+	}
+
+	/**
+	 * prepare the acknowledgment to the List request.
+	 * @param options the options of the listing, null for all the files
+	 * with their paths only
+	 * @throws IOException
+	 */
+	private void prepareLstAck(ListOptions options) throws IOException {
+		String[] path = header.getPath();
+		Storage.Stat stat = null;
+		if (!storage.permits(path)) {
+			header.setMessage(Message.PERMISSION_DENIED);
+			state = State.IDLE;
+		}
+		else if ((stat = storage.stat(path)) == null) {
 			header.setMessage(Message.FILE_NOT_EXIST);
 			state = State.IDLE;
 		}
 		else {
 			header.setMessage(Message.FILE_EXIST);
-			List<File> files = new ArrayList<File>();
-			AppUtil.collectFiles(file, files);
-			if (files.size() == 0) {
+			byte[] bytes = options == null ? listAll(path) : listMatching(path, stat, options);
+			if (bytes == null) {
 				header.setDataLength(0);
 				state = State.IDLE;
 			}
 			else {
-				byte[] bytes = AppUtil.packFilenames(root, files);
 				header.setDataLength(bytes.length);
 				state = State.SEND;
-				bis = new BufferedInputStream(new ByteArrayInputStream(bytes));
+				in = Channels.newChannel(new ByteArrayInputStream(bytes));
 			}
 		}
 		header.setAction(Action.LST_ACK);
 	}
+
+	/**
+	 * @return the packed paths of the files under the path, null if there
+	 * are none
+	 */
+	private byte[] listAll(String[] path) throws IOException {
+		List<String[]> paths = new ArrayList<String[]>();
+		String cursor = null;
+		do {
+			Storage.Page page = storage.list(path, cursor, LIST_PAGE_SIZE, 0);
+			for (String[] p : page.paths) {
+				if (!isHidden(p)) {
+					paths.add(p);
+				}
+			}
+			cursor = page.next;
+		} while (cursor != null);
+		return paths.isEmpty() ? null : AppUtil.packPaths(paths);
+	}
+
+	/**
+	 * List the files under the path matching the options, while walking
+	 * them: only the directories of the prefix are walked, the walk stops
+	 * past the files of the prefix, and the storage does not walk the
+	 * subtrees deeper than the maximum depth.
+	 *
+	 * @return the packed paths of the files, then the length and the
+	 * modification time of each if asked for, null if there are none
+	 */
+	private byte[] listMatching(String[] path, Storage.Stat stat, ListOptions options) throws IOException {
+		// the paths matched are relative to the directory listed
+		String[] base = stat.directory ? path : Arrays.copyOf(path, path.length - 1);
+		String[] from = path;
+		String[] directories = options.getPrefixDirectories();
+		if (stat.directory && directories.length > 0) {
+			from = Arrays.copyOf(path, path.length + directories.length);
+			System.arraycopy(directories, 0, from, path.length, directories.length);
+			if (!storage.permits(from) || storage.stat(from) == null) {
+				return null;
+			}
+		}
+		int depth = depth(options, stat, from.length - base.length);
+		if (depth < 0) {
+			return null;
+		}
+		boolean needStat = options.isMetadata() || options.getModifiedSince() > 0;
+		List<String[]> paths = new ArrayList<String[]>();
+		ByteArrayOutputStream metadata = new ByteArrayOutputStream();
+		byte[] longBytes = new byte[Long.SIZE / Byte.SIZE];
+		String cursor = null;
+		do {
+			Storage.Page page = storage.list(from, cursor, LIST_PAGE_SIZE, depth);
+			String next = page.next;
+			for (String[] p : page.paths) {
+				if (isHidden(p)) {
+					continue;
+				}
+				String[] relative = Arrays.copyOfRange(p, base.length, p.length);
+				if (options.isPastPrefix(relative)) {
+					next = null;
+					break;
+				}
+				if (!options.matches(relative)) {
+					continue;
+				}
+				Storage.Stat fileStat = null;
+				if (needStat) {
+					fileStat = storage.stat(p);
+					if (fileStat == null || fileStat.lastModified <= options.getModifiedSince()) {
+						continue;
+					}
+				}
+				paths.add(p);
+				if (options.isMetadata()) {
+					AppUtil.toBytes(fileStat.length, longBytes, 0);
+					metadata.write(longBytes);
+					AppUtil.toBytes(fileStat.lastModified, longBytes, 0);
+					metadata.write(longBytes);
+				}
+			}
+			cursor = next;
+		} while (cursor != null);
+		if (paths.isEmpty()) {
+			return null;
+		}
+		byte[] packed = AppUtil.packPaths(paths);
+		byte[] bytes = Arrays.copyOf(packed, packed.length + metadata.size());
+		System.arraycopy(metadata.toByteArray(), 0, bytes, packed.length, metadata.size());
+		return bytes;
+	}
+
+	/**
+	 * @param options
+	 * @param stat the path listed
+	 * @param walked the levels of the prefix walked down from the path
+	 * @return the depth to list from there, 0 for any, -1 if no file can
+	 * be as shallow as the options ask
+	 */
+	static int depth(ListOptions options, Storage.Stat stat, int walked) {
+		if (options.getMaxDepth() == 0 || !stat.directory) {
+			return 0;
+		}
+		int depth = options.getMaxDepth() - walked;
+		return depth > 0 ? depth : -1;
+	}
+
+	/**
+	 * @return whether a file is not to be listed: uploads in progress and
+	 * checksums are not to be seen
+	 */
+	static boolean isHidden(String[] path) {
+		return path[path.length - 1].startsWith(TEMP_PREFIX) || Checksums.isSidecar(path[path.length - 1]);
+	}
 	
+	/**
+	 * prepare the acknowledgment to the Signature request, with the
+	 * signatures of the blocks of the file.
+	 * @throws IOException
+	 */
+	private void prepareSigAck() throws IOException {
+		String[] path = header.getPath();
+		Storage.Stat stat;
+		if (!storage.permits(path) || isInternal(path)) {
+			header.setMessage(Message.PERMISSION_DENIED);
+			state = State.IDLE;
+		}
+		else if ((stat = storage.stat(path)) == null || stat.directory) {
+			header.setMessage(Message.FILE_NOT_EXIST);
+			state = State.IDLE;
+		}
+		else {
+			byte[] signatures = null;
+			try {
+				ReadableByteChannel file = storage.openRead(path);
+				try {
+					signatures = DeltaUpload.signatures(file, stat.length);
+				} finally {
+					file.close();
+				}
+			} catch (IOException e) {
+				// deleted, or truncated, since
+			}
+			if (signatures == null) {
+				header.setMessage(Message.FILE_NOT_EXIST);
+				state = State.IDLE;
+			}
+			else {
+				header.setMessage(Message.FILE_EXIST);
+				header.setDataLength(signatures.length);
+				state = State.SEND;
+				in = Channels.newChannel(new ByteArrayInputStream(signatures));
+			}
+		}
+		header.setAction(Action.SIG_ACK);
+	}
+
+	/**
+	 * prepare to receive the chunk hashes of the Check request.
+	 * @throws IOException
+	 */
+	private void prepareChk() throws IOException {
+		long length = header.getDataLength();
+		if (length % Chunker.HASH_LENGTH != 0 || length > Chunker.MAX_CHECK_HASHES * Chunker.HASH_LENGTH) {
+			throw new IOException("Error in header");
+		}
+		checkHashes = new ByteArrayOutputStream((int) length);
+		if (length == 0) {
+			checkReceived();
+		}
+		else {
+			out = Channels.newChannel(checkHashes);
+			state = State.RECV;
+		}
+	}
+
+	/**
+	 * the chunk hashes have been received, answer the ones that are not
+	 * stored, all of them unless the storage is a ChunkStorage.
+	 * @throws IOException
+	 */
+	private void checkReceived() throws IOException {
+		out = null;
+		byte[] hashes = checkHashes.toByteArray();
+		checkHashes = null;
+		ByteArrayOutputStream missing = new ByteArrayOutputStream();
+		for (int i = 0; i < hashes.length; i += Chunker.HASH_LENGTH) {
+			if (!(storage instanceof ChunkStorage)
+					|| !((ChunkStorage) storage).contains(Chunker.toHex(hashes, i, Chunker.HASH_LENGTH))) {
+				missing.write(hashes, i, Chunker.HASH_LENGTH);
+			}
+		}
+		header.setAction(Action.CHK_ACK);
+		header.setMessage(Message.FILE_EXIST);
+		header.setDataLength(missing.size());
+		if (missing.size() == 0) {
+			state = State.IDLE;
+		}
+		else {
+			state = State.SEND;
+			in = Channels.newChannel(new ByteArrayInputStream(missing.toByteArray()));
+		}
+		sendHeader();
+	}
+
+	/**
+	 * prepare to do a batch, once its items have been received.
+	 * @throws IOException
+	 */
+	private void prepareBatch() throws IOException {
+		long length = header.getDataLength();
+		if (header.getPath() == null || length <= 0 || length > Batch.MAX_LENGTH) {
+			throw new IOException("Error in header");
+		}
+		batchRequest = new ByteArrayOutputStream((int) length);
+		out = Channels.newChannel(batchRequest);
+		state = State.RECV;
+	}
+
+	/**
+	 * the items of a batch have been received, do them in order and
+	 * answer the message of each, with the content of the files got.
+	 * @throws IOException
+	 */
+	private void batchReceived() throws IOException {
+		out = null;
+		batchItems = Batch.fromRequest(batchRequest.toByteArray());
+		batchRequest = null;
+		batchNext = 0;
+		// the content of the files got is sent from memory
+		batchBudget = Batch.MAX_LENGTH;
+		batchContinue();
+	}
+
+	/**
+	 * do the items of the batch left, until the end of it, or until an item
+	 * needs the PUTs before it to be in place while they wait for the
+	 * committer, which calls commitCompleted() for each of them.
+	 * @throws IOException
+	 */
+	private void batchContinue() throws IOException {
+		while (batchNext < batchItems.size()) {
+			Batch.Item item = batchItems.get(batchNext);
+			if (!batchCommits.isEmpty() && (item.action != Action.PUT || isBatchCommitting(item.path))) {
+				break;
+			}
+			batchNext++;
+			switch (item.action) {
+			case PUT:
+				item.setMessage(batchPut(item));
+				break;
+
+			case GET:
+				item.setMessage(batchGet(item, batchBudget));
+				if (item.getMessage() == Message.FILE_EXIST) {
+					batchBudget -= item.getData().length;
+				}
+				break;
+
+			default:
+				item.setMessage(delete(item.path));
+				break;
+			}
+		}
+		if (!batchCommits.isEmpty()) {
+			// durable: the PUTs are synced and renamed as one group, without
+			// reading anything meanwhile
+			state = State.COMMIT;
+			channel.register(selector, 0);
+			committer.submit(new ArrayList<GroupCommitter.Commit>(batchCommits.keySet()));
+			return;
+		}
+		byte[] bytes = Batch.toResponse(batchItems);
+		batchItems = null;
+		header.setAction(Action.BAT_ACK);
+		header.setMessage(Message.FILE_EXIST);
+		header.setDataLength(bytes.length);
+		state = State.SEND;
+		in = Channels.newChannel(new ByteArrayInputStream(bytes));
+		sendHeader();
+	}
+
+	private boolean isBatchCommitting(String[] path) {
+		for (GroupCommitter.Commit commit : batchCommits.keySet()) {
+			if (Arrays.equals(commit.target, path)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * store the data of a PUT of a batch, as an upload is: written to a
+	 * temporary file, checksummed, then renamed into place, by the
+	 * committer with the other PUTs of the batch if the server is durable.
+	 *
+	 * @param item
+	 * @return the message of the PUT, NONE if it waits for the committer
+	 * @throws IOException
+	 */
+	private Message batchPut(Batch.Item item) throws IOException {
+		String[] path = item.path;
+		byte[] data = item.getData();
+		if (path.length == 0 || !storage.permits(path) || isInternal(path)) {
+			return Message.PERMISSION_DENIED;
+		}
+		Storage.Stat stat = storage.stat(path);
+		if (stat != null && (stat.directory || !item.overwrite)) {
+			return Message.FILE_EXIST;
+		}
+		if (data.length > storage.getUsableSpace(path)) {
+			return Message.NO_SPACE;
+		}
+		String[] temp = Arrays.copyOf(path, path.length);
+		temp[path.length - 1] = TEMP_PREFIX + path[path.length - 1] + "." + requestId;
+		List<String[]> dirs = changedDirs(path);
+		WritableByteChannel file = null;
+		try {
+			file = storage.create(temp, data.length);
+			ByteBuffer buf = ByteBuffer.wrap(data);
+			while (buf.hasRemaining()) {
+				file.write(buf);
+			}
+			file.close();
+			file = null;
+		} catch (IOException e) {
+			AppUtil.close(file);
+			storage.delete(temp);
+			return Message.FILE_NOT_CREATED;
+		}
+		if (committer != null) {
+			batchCommits.put(new GroupCommitter.Commit(this, storage, temp, path,
+					item.overwrite, dirs), item);
+			return Message.NONE;
+		}
+		item.setMessage(GroupCommitter.rename(storage, temp, path, item.overwrite));
+		batchPutCommitted(item);
+		return item.getMessage();
+	}
+
+	/**
+	 * The PUT of a batch has been renamed into place, or not.
+	 *
+	 * @param item
+	 */
+	private void batchPutCommitted(Batch.Item item) {
+		if (item.getMessage() != Message.FILE_CREATED) {
+			return;
+		}
+		byte[] data = item.getData();
+		Integer crc = null;
+		if (data.length > 0) {
+			Checksum crc32c = Crc32c.create();
+			crc32c.update(data, 0, data.length);
+			crc = (int) crc32c.getValue();
+		}
+		storeChecksum(item.path, crc);
+		recordChange(Changes.PUT, item.path);
+	}
+
+	private static boolean containsPath(List<String[]> paths, String[] path) {
+		for (String[] p : paths) {
+			if (Arrays.equals(p, path)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * read the content of a file got by a batch, if it fits in what is
+	 * left of the response.
+	 *
+	 * @param item
+	 * @param budget the bytes left for the content of the files
+	 * @return
+	 * @throws IOException
+	 */
+	private Message batchGet(Batch.Item item, long budget) throws IOException {
+		String[] path = item.path;
+		if (!storage.permits(path) || isInternal(path)) {
+			return Message.PERMISSION_DENIED;
+		}
+		Storage.Stat stat = storage.stat(path);
+		if (stat == null || stat.directory) {
+			return Message.FILE_NOT_EXIST;
+		}
+		if (stat.length > budget) {
+			return Message.TOO_LARGE;
+		}
+		ByteBuffer buf = ByteBuffer.allocate((int) stat.length);
+		ReadableByteChannel file = storage.openRead(path);
+		try {
+			while (buf.hasRemaining()) {
+				if (file.read(buf) == -1) {
+					// deleted or truncated since
+					return Message.FILE_NOT_EXIST;
+				}
+			}
+		} finally {
+			file.close();
+		}
+		item.setData(buf.array());
+		return Message.FILE_EXIST;
+	}
+
+	/**
+	 * prepare to answer a CHG, once its cursor has been received.
+	 * @throws IOException
+	 */
+	private void prepareChanges() throws IOException {
+		if (header.getPath() == null || header.getDataLength() != Changes.REQUEST_LENGTH) {
+			throw new IOException("Error in header");
+		}
+		changesRequest = new ByteArrayOutputStream(Changes.REQUEST_LENGTH);
+		out = Channels.newChannel(changesRequest);
+		state = State.RECV;
+	}
+
+	/**
+	 * the cursor of a CHG has been received, answer the changes after it,
+	 * and subscribe the connection to the next ones if asked to.
+	 * @throws IOException
+	 */
+	private void changesReceived() throws IOException {
+		out = null;
+		byte[] request = changesRequest.toByteArray();
+		changesRequest = null;
+		changesEpoch = AppUtil.toLong(request, 0);
+		changesCursor = AppUtil.toLong(request, Long.SIZE / Byte.SIZE);
+		changesMax = AppUtil.toInteger(request, 2 * Long.SIZE / Byte.SIZE);
+		if (changesMax <= 0 || changesMax > Changes.MAX_CHANGES) {
+			changesMax = Changes.MAX_CHANGES;
+		}
+		boolean subscribe = request[request.length - 1] != 0;
+		if (journal == null) {
+			header.setMessage(Message.PERMISSION_DENIED);
+			header.setAction(Action.CHG_ACK);
+			header.setDataLength(0);
+			state = State.IDLE;
+			sendHeader();
+			return;
+		}
+		if (subscribe) {
+			subscribed = true;
+			journal.subscribe(subscriber);
+		}
+		pushChanges();
+	}
+
+	/**
+	 * send the changes after the cursor of the connection, the first ones
+	 * if there are more than it takes at once.
+	 * @throws IOException
+	 */
+	private void pushChanges() throws IOException {
+		Changes changes = journal.since(changesEpoch, changesCursor, changesMax);
+		changesEpoch = changes.epoch;
+		changesCursor = changes.cursor;
+		changesPending = changesCursor < journal.getCursor();
+		byte[] bytes = changes.toBytes();
+		header.setAction(Action.CHG_ACK);
+		header.setMessage(Message.FILE_EXIST);
+		header.setPath(new String[0]);
+		header.setDataLength(bytes.length);
+		state = State.SEND;
+		in = Channels.newChannel(new ByteArrayInputStream(bytes));
+		sendHeader();
+	}
+
+	/**
+	 * prepare to answer a STAT, of the path of the header, or of the paths
+	 * relative to it which come with the request.
+	 * @throws IOException
+	 */
+	private void prepareStat() throws IOException {
+		long length = header.getDataLength();
+		if (header.getPath() == null || length < 0 || length > FileStatus.MAX_REQUEST_LENGTH) {
+			throw new IOException("Error in header");
+		}
+		statPaths = new ByteArrayOutputStream((int) length);
+		if (length == 0) {
+			statReceived();
+		}
+		else {
+			out = Channels.newChannel(statPaths);
+			state = State.RECV;
+		}
+	}
+
+	/**
+	 * the paths of a STAT have been received, answer the status of each.
+	 * @throws IOException
+	 */
+	private void statReceived() throws IOException {
+		out = null;
+		String[] base = header.getPath();
+		List<String[]> paths;
+		if (statPaths.size() == 0) {
+			paths = Collections.singletonList(base);
+		}
+		else {
+			try {
+				paths = AppUtil.unpackPaths(statPaths.toByteArray());
+			} catch (IndexOutOfBoundsException e) {
+				throw new IOException("Error in header");
+			}
+			if (paths.size() > FileStatus.MAX_PATHS) {
+				throw new IOException("Error in header");
+			}
+		}
+		statPaths = null;
+		List<FileStatus> statuses = new ArrayList<FileStatus>(paths.size());
+		for (String[] relative : paths) {
+			String[] path = relative;
+			if (relative != base) {
+				path = Arrays.copyOf(base, base.length + relative.length);
+				System.arraycopy(relative, 0, path, base.length, relative.length);
+			}
+			statuses.add(status(path));
+		}
+		byte[] bytes = FileStatus.pack(statuses);
+		header.setAction(Action.STAT_ACK);
+		header.setMessage(Message.FILE_EXIST);
+		header.setDataLength(bytes.length);
+		state = State.SEND;
+		in = Channels.newChannel(new ByteArrayInputStream(bytes));
+		sendHeader();
+	}
+
+	private FileStatus status(String[] path) throws IOException {
+		if (!storage.permits(path) || isInternal(path)) {
+			return new FileStatus(FileStatus.PERMISSION_DENIED);
+		}
+		Storage.Stat stat = storage.stat(path);
+		if (stat == null) {
+			return new FileStatus(FileStatus.NOT_EXIST);
+		}
+		if (stat.directory) {
+			return new FileStatus(FileStatus.DIRECTORY, 0, stat.lastModified, false, 0);
+		}
+		Integer crc = stat.length > 0 ? Checksums.load(storage, path, stat) : null;
+		return new FileStatus(FileStatus.FILE, stat.length, stat.lastModified,
+				crc != null, crc == null ? 0 : crc);
+	}
+
+	public long getRequestId() {
+		return requestId;
+	}
+
 	public Selector getSelector() {
 		return selector;
 	}
@@ -348,8 +2018,98 @@ public class ChannelHandler {
 		return root;
 	}
 
+	/**
+	 * Store the files in the given directory of the local file system.
+	 *
+	 * @param root
+	 */
 	public void setRoot(File root) {
 		this.root = root;
+		this.storage = new LocalStorage(root);
+	}
+
+	public Storage getStorage() {
+		return storage;
+	}
+
+	public void setStorage(Storage storage) {
+		this.storage = storage;
+	}
+
+	public ServerStats getStats() {
+		return stats;
+	}
+
+	public void setStats(ServerStats stats) {
+		this.stats = stats;
+	}
+
+	public TraceRecorder getTrace() {
+		return trace;
+	}
+
+	public void setTrace(TraceRecorder trace) {
+		this.trace = trace;
+	}
+
+	public GroupCommitter getCommitter() {
+		return committer;
+	}
+
+	/**
+	 * Set the group committer making the uploads durable, null (the default)
+	 * to rename them into place without syncing them.
+	 *
+	 * @param committer
+	 */
+	public void setCommitter(GroupCommitter committer) {
+		this.committer = committer;
+	}
+
+	public TreeDeleter getDeleter() {
+		return deleter;
+	}
+
+	/**
+	 * Set the deleter of the trees of the recursive DELs, null (the default)
+	 * for none, the recursive DELs being denied.
+	 *
+	 * @param deleter
+	 */
+	public void setDeleter(TreeDeleter deleter) {
+		this.deleter = deleter;
+	}
+
+	/**
+	 * Set the journal the changes are recorded to, null for none.
+	 *
+	 * @param journal
+	 */
+	public void setJournal(ChangeJournal journal) {
+		this.journal = journal;
+	}
+
+	public boolean isCompression() {
+		return compression;
+	}
+
+	/**
+	 * Compress the transfers the clients ask to, off by default.
+	 *
+	 * @param compression
+	 */
+	public void setCompression(boolean compression) {
+		this.compression = compression;
+	}
+
+	/**
+	 * Set the level of the compression, from 1, the fastest and the default,
+	 * to 9, the smallest.
+	 *
+	 * @param compressionLevel
+	 */
+	public void setCompressionLevel(int compressionLevel) {
+		this.compressionLevel = compressionLevel;
 	}
 
 	public SocketChannel getChannel() {
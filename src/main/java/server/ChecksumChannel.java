@@ -0,0 +1,61 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.Checksum;
+
+import common.Crc32c;
+
+/**
+ * Computes the CRC32C of the data written through it to the given channel,
+ * so an upload is checksummed as it is received, not read again afterwards.
+ */
+public class ChecksumChannel implements WritableByteChannel {
+
+	private final WritableByteChannel out;
+	private final Checksum checksum = Crc32c.create();
+	private byte[] bytes = new byte[8192];
+
+	public ChecksumChannel(WritableByteChannel out) {
+		this.out = out;
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		int position = src.position();
+		int n = out.write(src);
+		if (src.hasArray()) {
+			checksum.update(src.array(), src.arrayOffset() + position, n);
+		}
+		else {
+			// e.g. the direct buffer of the socket, copied a piece at a time
+			ByteBuffer written = src.duplicate();
+			written.position(position);
+			written.limit(position + n);
+			while (written.hasRemaining()) {
+				int count = Math.min(bytes.length, written.remaining());
+				written.get(bytes, 0, count);
+				checksum.update(bytes, 0, count);
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * @return the CRC32C of the data written so far
+	 */
+	public int getValue() {
+		return (int) checksum.getValue();
+	}
+
+	@Override
+	public boolean isOpen() {
+		return out.isOpen();
+	}
+
+	@Override
+	public void close() throws IOException {
+		out.close();
+	}
+}
@@ -0,0 +1,130 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+import common.AppUtil;
+
+/**
+ * The checksums of the stored files, each in a sidecar next to its file:
+ * the CRC32C, and the length and modification time of the file it was
+ * computed for, so a sidecar left behind by a file replaced some other way
+ * is ignored rather than trusted. The sidecars go through the storage, like
+ * the files, and are hidden from the listings.
+ */
+public class Checksums {
+
+	public final static String SIDECAR_PREFIX = ".crc-";
+
+	private final static int SIDECAR_LENGTH = Integer.SIZE / Byte.SIZE + 2 * Long.SIZE / Byte.SIZE;
+
+	private Checksums() {}
+
+	/**
+	 * @param name
+	 * @return whether a file of that name is a sidecar
+	 */
+	public static boolean isSidecar(String name) {
+		return name.startsWith(SIDECAR_PREFIX);
+	}
+
+	private static String[] sidecar(String[] path, String prefix) {
+		String[] sidecar = Arrays.copyOf(path, path.length);
+		sidecar[path.length - 1] = prefix + path[path.length - 1];
+		return sidecar;
+	}
+
+	/**
+	 * Store the checksum of a file, written to a temporary sidecar first and
+	 * renamed over the previous one.
+	 *
+	 * @param storage
+	 * @param path the file, stored
+	 * @param checksum
+	 * @param requestId to name the temporary sidecar
+	 * @throws IOException
+	 */
+	public static void store(Storage storage, String[] path, int checksum, long requestId) throws IOException {
+		Storage.Stat stat = storage.stat(path);
+		if (stat == null || stat.directory) {
+			return;
+		}
+		byte[] bytes = new byte[SIDECAR_LENGTH];
+		int index = AppUtil.toBytes(checksum, bytes, 0);
+		index = AppUtil.toBytes(stat.length, bytes, index);
+		AppUtil.toBytes(stat.lastModified, bytes, index);
+		String[] temp = sidecar(path, ChannelHandler.TEMP_PREFIX + SIDECAR_PREFIX);
+		temp[temp.length - 1] += "." + requestId;
+		WritableByteChannel out = storage.create(temp, bytes.length);
+		try {
+			ByteBuffer buf = ByteBuffer.wrap(bytes);
+			while (buf.hasRemaining()) {
+				out.write(buf);
+			}
+		} catch (IOException e) {
+			out.close();
+			storage.delete(temp);
+			throw e;
+		}
+		out.close();
+		try {
+			storage.rename(temp, sidecar(path, SIDECAR_PREFIX), true);
+		} catch (IOException e) {
+			storage.delete(temp);
+			throw e;
+		}
+	}
+
+	/**
+	 * Load the checksum of a file.
+	 *
+	 * @param storage
+	 * @param path
+	 * @param stat the file as it is now
+	 * @return the checksum, null if there is none for this version
+	 * @throws IOException
+	 */
+	public static Integer load(Storage storage, String[] path, Storage.Stat stat) throws IOException {
+		ReadableByteChannel in;
+		try {
+			in = storage.openRead(sidecar(path, SIDECAR_PREFIX));
+		} catch (IOException e) {
+			// no sidecar
+			return null;
+		}
+		ByteBuffer buf = ByteBuffer.allocate(SIDECAR_LENGTH);
+		try {
+			while (buf.hasRemaining() && in.read(buf) != -1) {
+			}
+		} finally {
+			in.close();
+		}
+		if (buf.hasRemaining()) {
+			return null;
+		}
+		byte[] bytes = buf.array();
+		int index = Integer.SIZE / Byte.SIZE;
+		if (AppUtil.toLong(bytes, index) != stat.length
+				|| AppUtil.toLong(bytes, index + Long.SIZE / Byte.SIZE) != stat.lastModified) {
+			return null;
+		}
+		return AppUtil.toInteger(bytes, 0);
+	}
+
+	/**
+	 * Delete the checksum of a file, if any.
+	 *
+	 * @param storage
+	 * @param path
+	 * @throws IOException
+	 */
+	public static void delete(Storage storage, String[] path) throws IOException {
+		String[] sidecar = sidecar(path, SIDECAR_PREFIX);
+		if (storage.stat(sidecar) != null) {
+			storage.delete(sidecar);
+		}
+	}
+}
@@ -0,0 +1,511 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import common.Chunker;
+
+/**
+ * Stores each file as a manifest listing its content-defined chunks, see
+ * Chunker, with every distinct chunk stored once in a chunk store, so the
+ * near-identical versions of a file share most of their chunks. The chunks
+ * are counted by the manifests referring to them, and deleted once none
+ * does; the counts are rebuilt from the manifests on start.
+ *
+ * The manifests are kept under root/files by a LocalStorage, the chunks under
+ * root/chunks, named by their hash.
+ */
+public class ChunkStorage implements Storage {
+
+	private final static int MAGIC = 0x4e46434d;
+	private final static String TEMP_SUFFIX = ".tmp";
+
+	private static class Manifest {
+		final long length;
+		final List<String> hashes;
+
+		Manifest(long length, List<String> hashes) {
+			this.length = length;
+			this.hashes = hashes;
+		}
+	}
+
+	private final File chunks;
+	private final LocalStorage manifests;
+	// guarded by this
+	private final Map<String, Integer> refs = new HashMap<String, Integer>();
+	private long storedBytes;
+	// the chunks written since their last sync
+	private final Set<File> unsynced = ConcurrentHashMap.newKeySet();
+	// the chunks to sync with each file not synced yet
+	private final Map<String, List<File>> pendingSyncs = new ConcurrentHashMap<String, List<File>>();
+
+	/**
+	 * Open the storage, counting the references of the chunks.
+	 *
+	 * @param root
+	 * @throws IOException
+	 */
+	public ChunkStorage(File root) throws IOException {
+		this.chunks = new File(root, "chunks");
+		File files = new File(root, "files");
+		if (!files.exists() && !files.mkdirs()) {
+			throw new IOException("could not create " + files);
+		}
+		this.manifests = new LocalStorage(files);
+		recover();
+	}
+
+	private void recover() throws IOException {
+		String cursor = null;
+		do {
+			Page page = manifests.list(new String[0], cursor, 1024, 0);
+			for (String[] path : page.paths) {
+				// an upload cut short before its manifest was written
+				if (manifests.toFile(path).length() == 0) {
+					continue;
+				}
+				for (String hash : readManifest(path).hashes) {
+					Integer count = refs.get(hash);
+					refs.put(hash, count == null ? 1 : count + 1);
+				}
+			}
+			cursor = page.next;
+		} while (cursor != null);
+		// the chunks of uploads which did not make it to a manifest
+		File[] dirs = chunks.listFiles();
+		if (dirs != null) {
+			for (File dir : dirs) {
+				File[] files = dir.listFiles();
+				if (files == null) {
+					continue;
+				}
+				for (File file : files) {
+					if (refs.containsKey(file.getName())) {
+						storedBytes += file.length();
+					}
+					else {
+						file.delete();
+					}
+				}
+			}
+		}
+	}
+
+	private File chunkFile(String hash) {
+		return new File(new File(chunks, hash.substring(0, 2)), hash);
+	}
+
+	/**
+	 * Test if a chunk is stored.
+	 *
+	 * @param hash
+	 * @return
+	 */
+	public synchronized boolean contains(String hash) {
+		return refs.containsKey(hash);
+	}
+
+	/**
+	 * Add a reference to a chunk, storing it if it is a new one.
+	 *
+	 * @param hash
+	 * @param data the chunk, null if it is only to be referenced
+	 * @param length
+	 * @return the chunk file, null if there is no such chunk to reference
+	 * @throws IOException
+	 */
+	private synchronized File acquire(String hash, byte[] data, int length) throws IOException {
+		File file = chunkFile(hash);
+		Integer count = refs.get(hash);
+		if (count != null) {
+			refs.put(hash, count + 1);
+			return file;
+		}
+		if (data == null) {
+			return null;
+		}
+		File dir = file.getParentFile();
+		if (!dir.exists()) {
+			dir.mkdirs();
+		}
+		// renamed into place once complete, a torn chunk is never seen
+		File temp = new File(dir, hash + TEMP_SUFFIX);
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			out.write(data, 0, length);
+		} finally {
+			out.close();
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		unsynced.add(file);
+		refs.put(hash, 1);
+		storedBytes += length;
+		return file;
+	}
+
+	private synchronized void release(List<String> hashes) {
+		for (String hash : hashes) {
+			Integer count = refs.get(hash);
+			if (count == null) {
+				continue;
+			}
+			if (count > 1) {
+				refs.put(hash, count - 1);
+			}
+			else {
+				refs.remove(hash);
+				File file = chunkFile(hash);
+				storedBytes -= file.length();
+				file.delete();
+				unsynced.remove(file);
+			}
+		}
+	}
+
+	private Manifest readManifest(String[] path) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(manifests.toFile(path))));
+		try {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("not a manifest: " + manifests.toFile(path));
+			}
+			long length = in.readLong();
+			int count = in.readInt();
+			List<String> hashes = new ArrayList<String>(count);
+			byte[] hash = new byte[Chunker.HASH_LENGTH];
+			for (int i = 0; i < count; i++) {
+				in.readFully(hash);
+				hashes.add(Chunker.toHex(hash));
+			}
+			return new Manifest(length, hashes);
+		} finally {
+			in.close();
+		}
+	}
+
+	@Override
+	public boolean permits(String[] path) throws IOException {
+		return manifests.permits(path);
+	}
+
+	@Override
+	public Stat stat(String[] path) throws IOException {
+		Stat stat = manifests.stat(path);
+		if (stat == null || stat.directory) {
+			return stat;
+		}
+		// an upload still being written has no manifest yet
+		long length = stat.length == 0 ? 0 : readManifest(path).length;
+		return new Stat(length, stat.lastModified, false);
+	}
+
+	@Override
+	public long getUsableSpace(String[] path) throws IOException {
+		return manifests.getUsableSpace(path);
+	}
+
+	@Override
+	public ReadableByteChannel openRead(String[] path) throws IOException {
+		return new Reader(readManifest(path).hashes);
+	}
+
+	@Override
+	public WritableByteChannel create(String[] path, long length) throws IOException {
+		return new Writer(path, manifests.create(path, 0));
+	}
+
+	@Override
+	public boolean delete(String[] path) throws IOException {
+		Stat stat = manifests.stat(path);
+		if (stat == null || stat.directory || stat.length == 0) {
+			return manifests.delete(path);
+		}
+		Manifest manifest = readManifest(path);
+		if (!manifests.delete(path)) {
+			return false;
+		}
+		pendingSyncs.remove(PathKeys.key(path));
+		release(manifest.hashes);
+		return true;
+	}
+
+	@Override
+	public Page list(String[] path, String cursor, int limit, int depth) throws IOException {
+		return manifests.list(path, cursor, limit, depth);
+	}
+
+	/**
+	 * Rename the manifest, releasing the chunks of the replaced one.
+	 */
+	@Override
+	public void rename(String[] source, String[] target, boolean replace) throws IOException {
+		Manifest old = null;
+		if (replace) {
+			Stat stat = manifests.stat(target);
+			if (stat != null && !stat.directory && stat.length > 0) {
+				old = readManifest(target);
+			}
+		}
+		manifests.rename(source, target, replace);
+		List<File> files = pendingSyncs.remove(PathKeys.key(source));
+		if (files != null) {
+			pendingSyncs.put(PathKeys.key(target), files);
+		}
+		if (old != null) {
+			release(old.hashes);
+		}
+	}
+
+	/**
+	 * Sync the new chunks of a file before its manifest.
+	 */
+	@Override
+	public void sync(String[] path) throws IOException {
+		List<File> files = pendingSyncs.remove(PathKeys.key(path));
+		if (files != null) {
+			Set<File> dirs = new HashSet<File>();
+			for (File file : files) {
+				if (unsynced.remove(file)) {
+					force(file, StandardOpenOption.WRITE);
+					dirs.add(file.getParentFile());
+				}
+			}
+			for (File dir : dirs) {
+				force(dir, StandardOpenOption.READ);
+			}
+		}
+		manifests.sync(path);
+	}
+
+	private static void force(File file, StandardOpenOption option) throws IOException {
+		FileChannel fc;
+		try {
+			fc = FileChannel.open(file.toPath(), option);
+		} catch (NoSuchFileException e) {
+			// released meanwhile
+			return;
+		} catch (IOException e) {
+			if (option == StandardOpenOption.READ) {
+				// directories cannot be opened on some platforms
+				return;
+			}
+			throw e;
+		}
+		try {
+			fc.force(true);
+		} finally {
+			fc.close();
+		}
+	}
+
+	/**
+	 * @return the number of distinct chunks stored
+	 */
+	public synchronized int getChunkCount() {
+		return refs.size();
+	}
+
+	/**
+	 * @return the number of bytes of the distinct chunks stored
+	 */
+	public synchronized long getStoredBytes() {
+		return storedBytes;
+	}
+
+	/**
+	 * Reads the chunks of a file one after another.
+	 */
+	private class Reader implements ReadableByteChannel {
+		private final List<String> hashes;
+		private int next;
+		private FileChannel current;
+		private boolean open = true;
+
+		Reader(List<String> hashes) {
+			this.hashes = hashes;
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			if (!open) {
+				throw new ClosedChannelException();
+			}
+			while (true) {
+				if (current == null) {
+					if (next == hashes.size()) {
+						return -1;
+					}
+					// a chunk released since the file was deleted
+					current = FileChannel.open(chunkFile(hashes.get(next++)).toPath(), StandardOpenOption.READ);
+				}
+				int n = current.read(dst);
+				if (n != -1) {
+					return n;
+				}
+				current.close();
+				current = null;
+			}
+		}
+
+		@Override
+		public boolean isOpen() {
+			return open;
+		}
+
+		@Override
+		public void close() throws IOException {
+			open = false;
+			if (current != null) {
+				current.close();
+				current = null;
+			}
+		}
+	}
+
+	/**
+	 * Cuts the content written into chunks, storing the new ones, and writes
+	 * the manifest when closed. The chunks of a chunked upload may also be
+	 * referenced by their hash, see appendChunk().
+	 */
+	public class Writer implements WritableByteChannel {
+		private final String key;
+		private final WritableByteChannel manifest;
+		private final Chunker chunker = new Chunker();
+		private final byte[] buffer = new byte[Chunker.MAX_SIZE];
+		private final ByteArrayOutputStream hashes = new ByteArrayOutputStream();
+		private final List<String> acquired = new ArrayList<String>();
+		private final List<File> files = new ArrayList<File>();
+		private int pending;
+		private long length;
+		private boolean open = true;
+
+		Writer(String[] path, WritableByteChannel manifest) {
+			this.key = PathKeys.key(path);
+			this.manifest = manifest;
+		}
+
+		@Override
+		public int write(ByteBuffer src) throws IOException {
+			if (!open) {
+				throw new ClosedChannelException();
+			}
+			int written = 0;
+			while (src.hasRemaining()) {
+				int n = Math.min(src.remaining(), buffer.length - pending);
+				src.get(buffer, pending, n);
+				int end = chunker.next(buffer, pending, n);
+				if (end == -1) {
+					pending += n;
+					written += n;
+				}
+				else {
+					// what is past the chunk is left for the next one
+					src.position(src.position() - (pending + n - end));
+					written += end - pending;
+					pending = end;
+					flush();
+				}
+			}
+			return written;
+		}
+
+		/**
+		 * Append a stored chunk, ending the current one.
+		 *
+		 * @param hash
+		 * @return false if there is no such chunk
+		 * @throws IOException
+		 */
+		public boolean appendChunk(byte[] hash) throws IOException {
+			flush();
+			chunker.reset();
+			String hex = Chunker.toHex(hash);
+			File file = acquire(hex, null, 0);
+			if (file == null) {
+				return false;
+			}
+			added(hex, file);
+			length += file.length();
+			return true;
+		}
+
+		private void flush() throws IOException {
+			if (pending == 0) {
+				return;
+			}
+			byte[] hash = Chunker.hash(buffer, 0, pending);
+			String hex = Chunker.toHex(hash);
+			added(hex, acquire(hex, buffer, pending));
+			length += pending;
+			pending = 0;
+		}
+
+		private void added(String hash, File file) {
+			acquired.add(hash);
+			hashes.write(Chunker.fromHex(hash), 0, Chunker.HASH_LENGTH);
+			if (unsynced.contains(file)) {
+				files.add(file);
+			}
+		}
+
+		@Override
+		public boolean isOpen() {
+			return open;
+		}
+
+		/**
+		 * Write the manifest; if that fails, the chunks are released.
+		 */
+		@Override
+		public void close() throws IOException {
+			if (!open) {
+				return;
+			}
+			open = false;
+			try {
+				flush();
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + hashes.size());
+				DataOutputStream out = new DataOutputStream(bytes);
+				out.writeInt(MAGIC);
+				out.writeLong(length);
+				out.writeInt(acquired.size());
+				hashes.writeTo(out);
+				out.flush();
+				ByteBuffer buf = ByteBuffer.wrap(bytes.toByteArray());
+				while (buf.hasRemaining()) {
+					manifest.write(buf);
+				}
+				manifest.close();
+			} catch (IOException e) {
+				manifest.close();
+				release(acquired);
+				acquired.clear();
+				throw e;
+			}
+			pendingSyncs.put(key, files);
+		}
+	}
+}
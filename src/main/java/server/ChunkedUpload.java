@@ -0,0 +1,109 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+import common.AppUtil;
+import common.Chunker;
+
+/**
+ * Decodes a chunked upload, i.e. the records of literal chunks and references
+ * to stored chunks, see Chunker, writing the file to the given channel. The
+ * references can only be resolved by a ChunkStorage; any other storage is
+ * told all the chunks are missing by the CHK request, so only gets literals.
+ *
+ * A reference to a chunk not stored, e.g. one deleted since the CHK, fails
+ * the upload when the channel is closed.
+ */
+public class ChunkedUpload implements WritableByteChannel {
+
+	private final WritableByteChannel out;
+	private final byte[] record = new byte[1 + Chunker.HASH_LENGTH];
+	private int recordLength;
+	private int literal;
+	private String missing;
+	private boolean open = true;
+
+	public ChunkedUpload(WritableByteChannel out) {
+		this.out = out;
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		if (!open) {
+			throw new ClosedChannelException();
+		}
+		int n = src.remaining();
+		while (src.hasRemaining()) {
+			if (literal > 0) {
+				ByteBuffer data = src.duplicate();
+				data.limit(data.position() + Math.min(literal, data.remaining()));
+				int length = data.remaining();
+				if (missing == null) {
+					while (data.hasRemaining()) {
+						out.write(data);
+					}
+				}
+				src.position(src.position() + length);
+				literal -= length;
+				continue;
+			}
+			record[recordLength++] = src.get();
+			if (record[0] == Chunker.LITERAL) {
+				if (recordLength == 1 + Integer.SIZE / Byte.SIZE) {
+					literal = AppUtil.toInteger(record, 1);
+					if (literal <= 0 || literal > Chunker.MAX_SIZE) {
+						throw new IOException("invalid chunk length " + literal);
+					}
+					recordLength = 0;
+				}
+			}
+			else if (record[0] == Chunker.REFERENCE) {
+				if (recordLength == record.length) {
+					reference(Arrays.copyOfRange(record, 1, record.length));
+					recordLength = 0;
+				}
+			}
+			else {
+				throw new IOException("invalid chunk record " + record[0]);
+			}
+		}
+		return n;
+	}
+
+	private void reference(byte[] hash) throws IOException {
+		if (missing != null) {
+			return;
+		}
+		if (!(out instanceof ChunkStorage.Writer) || !((ChunkStorage.Writer) out).appendChunk(hash)) {
+			missing = Chunker.toHex(hash);
+		}
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	/**
+	 * @throws IOException if a referenced chunk is missing, or the upload
+	 * ends in the middle of a record
+	 */
+	@Override
+	public void close() throws IOException {
+		if (!open) {
+			return;
+		}
+		open = false;
+		out.close();
+		if (missing != null) {
+			throw new IOException("chunk not stored: " + missing);
+		}
+		if (literal > 0 || recordLength > 0) {
+			throw new IOException("chunked upload cut short");
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+
+import common.Compression;
+
+/**
+ * Reads a file as compressed frames, see Compression, ending with the end
+ * frame once the given length of the file has been read.
+ */
+public class CompressedDownload implements ReadableByteChannel {
+
+	private final ReadableByteChannel in;
+	private final Compression.Encoder encoder;
+	private final byte[] data = new byte[Compression.FRAME_SIZE];
+	private final byte[] frame = new byte[Compression.FRAME_HEADER_LENGTH + Compression.FRAME_SIZE];
+	private long remaining;
+	private int framePosition;
+	private int frameLength;
+	private boolean ended;
+	private boolean open = true;
+
+	/**
+	 * @param in the file
+	 * @param length the number of bytes of the file to send
+	 * @param level the level of the deflater
+	 */
+	public CompressedDownload(ReadableByteChannel in, long length, int level) {
+		this.in = in;
+		this.remaining = length;
+		this.encoder = new Compression.Encoder(level);
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		if (!open) {
+			throw new ClosedChannelException();
+		}
+		if (framePosition == frameLength) {
+			if (ended) {
+				return -1;
+			}
+			nextFrame();
+		}
+		int n = Math.min(dst.remaining(), frameLength - framePosition);
+		dst.put(frame, framePosition, n);
+		framePosition += n;
+		return n;
+	}
+
+	private void nextFrame() throws IOException {
+		framePosition = 0;
+		if (remaining == 0) {
+			frameLength = encoder.end(frame);
+			ended = true;
+			return;
+		}
+		ByteBuffer buf = ByteBuffer.wrap(data, 0, (int) Math.min(data.length, remaining));
+		while (buf.hasRemaining()) {
+			if (in.read(buf) == -1) {
+				throw new IOException("file truncated while being sent");
+			}
+		}
+		remaining -= buf.position();
+		frameLength = encoder.encode(data, 0, buf.position(), frame);
+	}
+
+	/**
+	 * @return the number of bytes sent for the file so far
+	 */
+	public long getWireLength() {
+		return encoder.getWireLength();
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (open) {
+			open = false;
+			encoder.close();
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,247 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+import common.AppUtil;
+import common.Compression;
+
+/**
+ * A file stored compressed: a header with the length of the content, then
+ * the content in the compressed frames of the wire, see Compression, so a
+ * client accepting compressed downloads is sent the frames as they are,
+ * with transferTo(), and the server never decompresses them.
+ */
+public class CompressedFile {
+
+	private final static byte[] MAGIC = { 'N', 'F', 'S', 'Z', 0, 1, '\r', '\n' };
+
+	/**
+	 * The length of the header, where the frames start.
+	 */
+	public final static int HEADER_LENGTH = MAGIC.length + Long.SIZE / Byte.SIZE;
+
+	private CompressedFile() {}
+
+	/**
+	 * Get the length of the content of a file stored compressed.
+	 *
+	 * @param file
+	 * @return the length of the content, -1 if the file is not compressed
+	 * @throws IOException
+	 */
+	public static long length(File file) throws IOException {
+		if (file.length() < HEADER_LENGTH) {
+			return -1;
+		}
+		byte[] header = new byte[HEADER_LENGTH];
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			raf.readFully(header);
+		} finally {
+			raf.close();
+		}
+		if (!startsWithMagic(header, header.length)) {
+			return -1;
+		}
+		return AppUtil.toLong(header, MAGIC.length);
+	}
+
+	private static boolean startsWithMagic(byte[] data, int length) {
+		return length >= MAGIC.length && Arrays.equals(Arrays.copyOf(data, MAGIC.length), MAGIC);
+	}
+
+	/**
+	 * Writes a file compressed if its first frame compresses, and as is
+	 * otherwise. Content which looks like a compressed file is always stored
+	 * compressed, not to be taken for one. At level 0 the files are only
+	 * stored compressed for that.
+	 */
+	public static class Writer implements WritableByteChannel {
+		private final FileChannel channel;
+		private final Compression.Encoder encoder;
+		private final int level;
+		private final byte[] data = new byte[Compression.FRAME_SIZE];
+		private final byte[] frame = new byte[Compression.FRAME_HEADER_LENGTH + Compression.FRAME_SIZE];
+		private int pending;
+		private boolean decided;
+		private boolean compressed;
+		private long length;
+		private boolean open = true;
+
+		/**
+		 * @param channel the file, empty
+		 * @param level the level of the deflater, 0 not to compress
+		 */
+		public Writer(FileChannel channel, int level) {
+			this.channel = channel;
+			this.encoder = new Compression.Encoder(level);
+			this.level = level;
+		}
+
+		@Override
+		public int write(ByteBuffer src) throws IOException {
+			if (!open) {
+				throw new ClosedChannelException();
+			}
+			int n = src.remaining();
+			while (src.hasRemaining()) {
+				if (decided && !compressed) {
+					length += src.remaining();
+					writeFully(src);
+					break;
+				}
+				int count = Math.min(src.remaining(), data.length - pending);
+				src.get(data, pending, count);
+				pending += count;
+				if (pending == data.length) {
+					flushFrame();
+				}
+			}
+			return n;
+		}
+
+		private void flushFrame() throws IOException {
+			if (pending == 0) {
+				return;
+			}
+			int frameLength = 0;
+			if (!decided) {
+				decided = true;
+				if (level > 0 && pending >= Compression.MIN_LENGTH) {
+					frameLength = encoder.encode(data, 0, pending, frame);
+					compressed = frameLength < Compression.FRAME_HEADER_LENGTH + pending;
+				}
+				if (!compressed && startsWithMagic(data, pending)) {
+					compressed = true;
+				}
+				if (compressed) {
+					// the length is written once known
+					writeFully(ByteBuffer.wrap(Arrays.copyOf(MAGIC, HEADER_LENGTH)));
+				}
+				else {
+					encoder.close();
+				}
+			}
+			if (!compressed) {
+				writeFully(ByteBuffer.wrap(data, 0, pending));
+			}
+			else {
+				if (frameLength == 0) {
+					frameLength = encoder.encode(data, 0, pending, frame);
+				}
+				writeFully(ByteBuffer.wrap(frame, 0, frameLength));
+			}
+			length += pending;
+			pending = 0;
+		}
+
+		private void writeFully(ByteBuffer buf) throws IOException {
+			while (buf.hasRemaining()) {
+				channel.write(buf);
+			}
+		}
+
+		@Override
+		public boolean isOpen() {
+			return open;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!open) {
+				return;
+			}
+			open = false;
+			try {
+				flushFrame();
+				if (compressed) {
+					writeFully(ByteBuffer.wrap(frame, 0, encoder.end(frame)));
+					byte[] bytes = new byte[Long.SIZE / Byte.SIZE];
+					AppUtil.toBytes(length, bytes, 0);
+					ByteBuffer buf = ByteBuffer.wrap(bytes);
+					while (buf.hasRemaining()) {
+						channel.write(buf, MAGIC.length + buf.position());
+					}
+				}
+			} finally {
+				encoder.close();
+				channel.close();
+			}
+		}
+	}
+
+	/**
+	 * Reads the content of a file stored compressed, decompressing it.
+	 */
+	public static class Reader implements ReadableByteChannel {
+		private final FileChannel channel;
+		private final Compression.Decoder decoder = new Compression.Decoder();
+		private final ByteBuffer wire = ByteBuffer.allocate(8192);
+		private final Output output = new Output();
+		private int position;
+		private boolean open = true;
+
+		private static class Output extends ByteArrayOutputStream {
+			Output() {
+				super(Compression.FRAME_SIZE);
+			}
+
+			byte[] bytes() {
+				return buf;
+			}
+		}
+
+		/**
+		 * @param channel the file, positioned after its header
+		 */
+		public Reader(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			if (!open) {
+				throw new ClosedChannelException();
+			}
+			while (position == output.size()) {
+				if (decoder.isFinished()) {
+					return -1;
+				}
+				output.reset();
+				position = 0;
+				wire.clear();
+				if (channel.read(wire) == -1) {
+					throw new IOException("compressed file truncated");
+				}
+				decoder.decode(wire.array(), 0, wire.position(), output);
+			}
+			int n = Math.min(dst.remaining(), output.size() - position);
+			dst.put(output.bytes(), position, n);
+			position += n;
+			return n;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return open;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (open) {
+				open = false;
+				decoder.close();
+				channel.close();
+			}
+		}
+	}
+}
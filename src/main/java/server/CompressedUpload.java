@@ -0,0 +1,84 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+
+import common.Compression;
+
+/**
+ * Decompresses an upload sent in compressed frames, see Compression, writing
+ * the file to the given channel. The upload is complete with its end frame;
+ * the bytes after it are left in the buffer written.
+ */
+public class CompressedUpload implements WritableByteChannel {
+
+	private final WritableByteChannel out;
+	private final OutputStream stream;
+	private final long length;
+	private final Compression.Decoder decoder = new Compression.Decoder();
+	private final byte[] bytes = new byte[8192];
+	private boolean open = true;
+
+	/**
+	 * @param out
+	 * @param length the length of the file
+	 */
+	public CompressedUpload(WritableByteChannel out, long length) {
+		this.out = out;
+		this.stream = Channels.newOutputStream(out);
+		this.length = length;
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		if (!open) {
+			throw new ClosedChannelException();
+		}
+		int n = src.remaining();
+		while (src.hasRemaining()) {
+			int count = Math.min(bytes.length, src.remaining());
+			src.get(bytes, 0, count);
+			int used = decoder.decode(bytes, 0, count, stream);
+			if (decoder.getLength() > length) {
+				throw new IOException("compressed upload longer than declared");
+			}
+			if (used < count) {
+				src.position(src.position() - (count - used));
+				return n - src.remaining();
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * @return whether the end frame has been received
+	 */
+	public boolean isFinished() {
+		return decoder.isFinished();
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	/**
+	 * @throws IOException if the upload is not complete
+	 */
+	@Override
+	public void close() throws IOException {
+		if (!open) {
+			return;
+		}
+		open = false;
+		decoder.close();
+		out.close();
+		if (!decoder.isFinished() || decoder.getLength() != length) {
+			throw new IOException("compressed upload cut short");
+		}
+	}
+}
@@ -0,0 +1,257 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import common.AppUtil;
+import common.Delta;
+
+/**
+ * Rebuilds a new version of a file from a delta, see Delta: the blocks
+ * copied are read from the current version, the basis, and the literal data
+ * comes with the delta. The result is written to the given channel.
+ *
+ * A delta computed against another version than the basis, e.g. one
+ * replaced since the signatures were sent, fails the upload when the channel
+ * is closed, as does a result not matching the hash at the end of the delta.
+ */
+public class DeltaUpload implements WritableByteChannel {
+
+	private final static int PRELUDE_LENGTH = Long.SIZE / Byte.SIZE + Integer.SIZE / Byte.SIZE;
+	private final static int HASH_LENGTH = 32;
+
+	private final WritableByteChannel out;
+	private final Storage storage;
+	private final String[] basisPath;
+	private final long basisLength;
+	private final MessageDigest digest = Delta.digest("SHA-256");
+	private final byte[] record = new byte[1 + HASH_LENGTH];
+	private int recordLength;
+	private boolean prelude = true;
+	private boolean ended;
+	private int blockSize;
+	private int literal;
+	private String failure;
+	private boolean open = true;
+
+	// the basis, opened on the first copy
+	private ReadableByteChannel basis;
+	private long basisPosition;
+	private ByteBuffer block;
+
+	/**
+	 * @param out
+	 * @param storage
+	 * @param basisPath the file the delta applies to
+	 * @param basisLength its length
+	 */
+	public DeltaUpload(WritableByteChannel out, Storage storage, String[] basisPath, long basisLength) {
+		this.out = out;
+		this.storage = storage;
+		this.basisPath = basisPath;
+		this.basisLength = basisLength;
+	}
+
+	/**
+	 * Compute the signatures of the blocks of a file.
+	 *
+	 * @param in the file
+	 * @param length the length of the file
+	 * @return
+	 * @throws IOException
+	 */
+	public static byte[] signatures(ReadableByteChannel in, long length) throws IOException {
+		int blockSize = Delta.blockSize(length);
+		long blocks = (length + blockSize - 1) / blockSize;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) (PRELUDE_LENGTH + blocks * Delta.SIGNATURE_LENGTH));
+		byte[] field = new byte[Long.SIZE / Byte.SIZE];
+		AppUtil.toBytes(blockSize, field, 0);
+		bytes.write(field, 0, Integer.SIZE / Byte.SIZE);
+		AppUtil.toBytes(length, field, 0);
+		bytes.write(field, 0, Long.SIZE / Byte.SIZE);
+		ByteBuffer buf = ByteBuffer.allocate(blockSize);
+		for (long i = 0; i < blocks; i++) {
+			buf.clear();
+			buf.limit((int) Math.min(blockSize, length - i * blockSize));
+			while (buf.hasRemaining()) {
+				if (in.read(buf) == -1) {
+					throw new IOException("file truncated while being read");
+				}
+			}
+			AppUtil.toBytes(Delta.weak(buf.array(), 0, buf.limit()), field, 0);
+			bytes.write(field, 0, Integer.SIZE / Byte.SIZE);
+			bytes.write(Delta.strong(buf.array(), 0, buf.limit()));
+		}
+		return bytes.toByteArray();
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		if (!open) {
+			throw new ClosedChannelException();
+		}
+		int n = src.remaining();
+		while (src.hasRemaining()) {
+			if (ended) {
+				throw new IOException("data after the end of the delta");
+			}
+			if (literal > 0) {
+				ByteBuffer data = src.duplicate();
+				data.limit(data.position() + Math.min(literal, data.remaining()));
+				int length = data.remaining();
+				output(data);
+				src.position(src.position() + length);
+				literal -= length;
+				continue;
+			}
+			record[recordLength++] = src.get();
+			if (prelude) {
+				if (recordLength == PRELUDE_LENGTH) {
+					prelude(AppUtil.toLong(record, 0), AppUtil.toInteger(record, Long.SIZE / Byte.SIZE));
+					recordLength = 0;
+				}
+			}
+			else if (record[0] == Delta.COPY) {
+				if (recordLength == 1 + Integer.SIZE / Byte.SIZE) {
+					copy(AppUtil.toInteger(record, 1));
+					recordLength = 0;
+				}
+			}
+			else if (record[0] == Delta.LITERAL) {
+				if (recordLength == 1 + Integer.SIZE / Byte.SIZE) {
+					literal = AppUtil.toInteger(record, 1);
+					if (literal <= 0) {
+						throw new IOException("invalid literal length " + literal);
+					}
+					recordLength = 0;
+				}
+			}
+			else if (record[0] == Delta.END) {
+				if (recordLength == record.length) {
+					if (failure == null && !Arrays.equals(digest.digest(), Arrays.copyOfRange(record, 1, record.length))) {
+						failure = "rebuilt file does not match";
+					}
+					ended = true;
+					recordLength = 0;
+				}
+			}
+			else {
+				throw new IOException("invalid delta instruction " + record[0]);
+			}
+		}
+		return n;
+	}
+
+	private void prelude(long length, int size) throws IOException {
+		prelude = false;
+		if (size < Delta.MIN_BLOCK_SIZE || size > Delta.MAX_BLOCK_SIZE) {
+			throw new IOException("invalid block size " + size);
+		}
+		blockSize = size;
+		if (length != basisLength) {
+			failure = "delta of another version";
+		}
+	}
+
+	private void output(ByteBuffer data) throws IOException {
+		if (failure != null) {
+			return;
+		}
+		digest.update(data.duplicate());
+		while (data.hasRemaining()) {
+			out.write(data);
+		}
+	}
+
+	private void copy(int index) throws IOException {
+		long position = (long) index * blockSize;
+		if (index < 0 || position >= basisLength) {
+			failure = "no block " + index;
+		}
+		if (failure != null) {
+			return;
+		}
+		if (block == null) {
+			block = ByteBuffer.allocate(blockSize);
+		}
+		block.clear();
+		block.limit((int) Math.min(blockSize, basisLength - position));
+		readBasis(position);
+		block.flip();
+		output(block);
+	}
+
+	private void readBasis(long position) throws IOException {
+		if (basis == null || (position < basisPosition && !(basis instanceof FileRange))) {
+			if (basis != null) {
+				basis.close();
+			}
+			basis = storage.openRead(basisPath);
+			basisPosition = 0;
+		}
+		while (block.hasRemaining()) {
+			int read;
+			if (basis instanceof FileRange) {
+				read = ((FileRange) basis).read(block, position + block.position());
+			}
+			else if (basisPosition < position) {
+				// skip to the block, through the buffer
+				int limit = block.limit();
+				block.limit((int) Math.min(limit, position - basisPosition));
+				read = basis.read(block);
+				block.clear();
+				block.limit(limit);
+				if (read > 0) {
+					basisPosition += read;
+				}
+				if (read != -1) {
+					continue;
+				}
+			}
+			else {
+				read = basis.read(block);
+				if (read > 0) {
+					basisPosition += read;
+				}
+			}
+			if (read == -1) {
+				throw new IOException("basis truncated while being read");
+			}
+		}
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	/**
+	 * @throws IOException if the delta does not apply, or ends before its end
+	 */
+	@Override
+	public void close() throws IOException {
+		if (!open) {
+			return;
+		}
+		open = false;
+		try {
+			if (basis != null) {
+				basis.close();
+			}
+		} finally {
+			out.close();
+		}
+		if (failure != null) {
+			throw new IOException(failure);
+		}
+		if (!ended) {
+			throw new IOException("delta cut short");
+		}
+	}
+}
@@ -0,0 +1,324 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Direct I/O for the bulk transfers, bypassing the page cache so that
+ * streaming a large file through does not evict the small hot ones. With
+ * O_DIRECT the file position, the buffer address and the transfer length all
+ * have to be multiples of the block size, so the transfers go through block
+ * aligned buffers, pooled as they are large and costly to allocate.
+ *
+ * The files are wrapped in channels that read or write whole buffers at
+ * block aligned positions, only the unaligned tail of an upload is padded
+ * with zeros and cut off again once written.
+ *
+ * ExtendedOpenOption.DIRECT and the aligned buffers come with Java 10, they
+ * are looked up at run time so the server still builds and runs on Java 8,
+ * only without direct I/O.
+ */
+public class DirectIO {
+
+	public final static int DEFAULT_BLOCK_SIZE = 4096;
+
+	private final static OpenOption DIRECT = lookupDirect();
+	private final static Method alignedSlice = lookupMethod(ByteBuffer.class, "alignedSlice", int.class);
+	private final static Method getBlockSize = lookupMethod(FileStore.class, "getBlockSize");
+
+	private final long threshold;
+	private final int blockSize;
+	private final int bufferSize;
+	private final int maxPooled;
+	private final Deque<ByteBuffer> pool = new ArrayDeque<ByteBuffer>();
+
+	/**
+	 * @param root the directory the files are in, for the block size
+	 * @param threshold the size from which the files are transferred directly
+	 * @param bufferSize size of the transfer buffers, rounded up to blocks
+	 * @param maxPooled number of buffers kept for reuse
+	 */
+	public DirectIO(File root, long threshold, int bufferSize, int maxPooled) {
+		this.threshold = threshold;
+		this.blockSize = blockSize(root);
+		this.bufferSize = (int) align(Math.max(bufferSize, 1), blockSize);
+		this.maxPooled = maxPooled;
+	}
+
+	private static OpenOption lookupDirect() {
+		try {
+			Class<?> c = Class.forName("com.sun.nio.file.ExtendedOpenOption");
+			for (Object option : c.getEnumConstants()) {
+				if (((Enum<?>) option).name().equals("DIRECT")) {
+					return (OpenOption) option;
+				}
+			}
+		} catch (ClassNotFoundException e) {
+			// not a JDK with the extended options
+		}
+		return null;
+	}
+
+	private static Method lookupMethod(Class<?> c, String name, Class<?>... types) {
+		try {
+			return c.getMethod(name, types);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	private static int blockSize(File root) {
+		if (getBlockSize != null) {
+			try {
+				long size = (Long) getBlockSize.invoke(Files.getFileStore(root.toPath()));
+				if (size > 0 && size <= 1 << 20) {
+					return (int) size;
+				}
+			} catch (IOException e) {
+				// fall back on the default
+			} catch (IllegalAccessException e) {
+				// fall back on the default
+			} catch (InvocationTargetException e) {
+				// fall back on the default
+			}
+		}
+		return DEFAULT_BLOCK_SIZE;
+	}
+
+	/**
+	 * @return whether this JVM can open files for direct I/O
+	 */
+	public static boolean isSupported() {
+		return DIRECT != null && alignedSlice != null;
+	}
+
+	/**
+	 * Round a length up to a multiple of the alignment.
+	 *
+	 * @param length
+	 * @param alignment
+	 * @return
+	 */
+	public static long align(long length, int alignment) {
+		return (length + alignment - 1) / alignment * alignment;
+	}
+
+	/**
+	 * @param length
+	 * @return whether a file of the given length is to be transferred directly
+	 */
+	public boolean isDirect(long length) {
+		return isSupported() && threshold > 0 && length >= threshold;
+	}
+
+	private FileChannel open(File file, OpenOption option) {
+		try {
+			return FileChannel.open(file.toPath(), option, DIRECT);
+		} catch (IOException e) {
+			return null;
+		} catch (UnsupportedOperationException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Open a file for reading with direct I/O.
+	 *
+	 * @param file
+	 * @return the channel, or null if the file system does not support
+	 * direct I/O, e.g. tmpfs, in which case the file is to be read through
+	 * the page cache.
+	 */
+	public ReadableByteChannel openRead(File file) {
+		FileChannel fc = open(file, StandardOpenOption.READ);
+		return fc == null ? null : new Reader(fc);
+	}
+
+	/**
+	 * Open an existing file for writing with direct I/O.
+	 *
+	 * @param file
+	 * @return the channel, or null if the file system does not support
+	 * direct I/O.
+	 */
+	public WritableByteChannel openWrite(File file) {
+		FileChannel fc = open(file, StandardOpenOption.WRITE);
+		return fc == null ? null : new Writer(fc);
+	}
+
+	/**
+	 * Reads the file a whole buffer at a time, so the file position stays
+	 * block aligned, only the last read may come short at the end of the file.
+	 */
+	private class Reader implements ReadableByteChannel {
+		private final FileChannel fc;
+		private ByteBuffer buf = acquire();
+
+		Reader(FileChannel fc) {
+			this.fc = fc;
+			buf.limit(0);
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			if (!buf.hasRemaining()) {
+				buf.clear();
+				int read = fc.read(buf);
+				buf.flip();
+				if (read <= 0) {
+					return -1;
+				}
+			}
+			int n = Math.min(dst.remaining(), buf.remaining());
+			int limit = buf.limit();
+			buf.limit(buf.position() + n);
+			dst.put(buf);
+			buf.limit(limit);
+			return n;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return fc.isOpen();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (buf != null) {
+				release(buf);
+				buf = null;
+			}
+			fc.close();
+		}
+	}
+
+	/**
+	 * Collects the data into a buffer, written out each time it is full.
+	 */
+	private class Writer implements WritableByteChannel {
+		private final FileChannel fc;
+		private ByteBuffer buf = acquire();
+		private long written;
+
+		Writer(FileChannel fc) {
+			this.fc = fc;
+		}
+
+		@Override
+		public int write(ByteBuffer src) throws IOException {
+			int n = src.remaining();
+			while (src.hasRemaining()) {
+				if (src.remaining() <= buf.remaining()) {
+					buf.put(src);
+				}
+				else {
+					int limit = src.limit();
+					src.limit(src.position() + buf.remaining());
+					buf.put(src);
+					src.limit(limit);
+				}
+				if (!buf.hasRemaining()) {
+					flush();
+				}
+			}
+			written += n;
+			return n;
+		}
+
+		private void flush() throws IOException {
+			buf.flip();
+			while (buf.hasRemaining()) {
+				fc.write(buf);
+			}
+			buf.clear();
+		}
+
+		@Override
+		public boolean isOpen() {
+			return fc.isOpen();
+		}
+
+		/**
+		 * Write out the unaligned tail padded with zeros to a whole block,
+		 * then cut the file back to the length written.
+		 */
+		@Override
+		public void close() throws IOException {
+			if (buf == null) {
+				return;
+			}
+			try {
+				if (buf.position() > 0) {
+					long padded = align(buf.position(), blockSize);
+					while (buf.position() < padded) {
+						buf.put((byte) 0);
+					}
+					flush();
+				}
+				fc.truncate(written);
+			} finally {
+				release(buf);
+				buf = null;
+				fc.close();
+			}
+		}
+	}
+
+	/**
+	 * Take a block aligned buffer from the pool, or allocate a new one.
+	 *
+	 * @return
+	 */
+	public synchronized ByteBuffer acquire() {
+		ByteBuffer buf = pool.poll();
+		if (buf == null) {
+			ByteBuffer raw = ByteBuffer.allocateDirect(bufferSize + blockSize);
+			try {
+				buf = (ByteBuffer) alignedSlice.invoke(raw, blockSize);
+			} catch (IllegalAccessException e) {
+				throw new IllegalStateException(e);
+			} catch (InvocationTargetException e) {
+				throw new IllegalStateException(e.getCause());
+			}
+			buf.limit(bufferSize);
+			buf = buf.slice();
+		}
+		buf.clear();
+		return buf;
+	}
+
+	/**
+	 * Give a buffer back to the pool.
+	 *
+	 * @param buf
+	 */
+	public synchronized void release(ByteBuffer buf) {
+		if (pool.size() < maxPooled) {
+			pool.push(buf);
+		}
+	}
+
+	public long getThreshold() {
+		return threshold;
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+}
@@ -0,0 +1,124 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A range of a file to be read, which the ChannelHandler sends with
+ * FileChannel.transferTo(), i.e. without copying the data through the user
+ * space, rather than reading it into a buffer.
+ */
+public class FileRange implements ReadableByteChannel {
+
+	private final FileChannel channel;
+	private final long start;
+	private final long end;
+	private final Closeable owner;
+	private long position;
+	private boolean open = true;
+
+	/**
+	 * @param channel
+	 * @param position where the range starts
+	 * @param length
+	 * @param owner what to close with the range, e.g. the channel itself
+	 */
+	public FileRange(FileChannel channel, long position, long length, Closeable owner) {
+		this.channel = channel;
+		this.start = position;
+		this.position = position;
+		this.end = position + length;
+		this.owner = owner;
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		if (position >= end) {
+			return -1;
+		}
+		int limit = dst.limit();
+		if (dst.remaining() > end - position) {
+			dst.limit(dst.position() + (int) (end - position));
+		}
+		int read;
+		try {
+			read = channel.read(dst, position);
+		} finally {
+			dst.limit(limit);
+		}
+		if (read > 0) {
+			position += read;
+		}
+		return read;
+	}
+
+	/**
+	 * Read from the given offset of the range, leaving the position as is.
+	 *
+	 * @param dst
+	 * @param offset relative to the start of the range
+	 * @return the number of bytes read, or -1 past the end of the range
+	 * @throws IOException
+	 */
+	public int read(ByteBuffer dst, long offset) throws IOException {
+		long from = start + offset;
+		if (from >= end) {
+			return -1;
+		}
+		int limit = dst.limit();
+		if (dst.remaining() > end - from) {
+			dst.limit(dst.position() + (int) (end - from));
+		}
+		try {
+			return channel.read(dst, from);
+		} finally {
+			dst.limit(limit);
+		}
+	}
+
+	/**
+	 * Transfer the range, or what the target takes of it, to the target.
+	 *
+	 * @param target
+	 * @param max maximum number of bytes to transfer
+	 * @return the number of bytes transferred, possibly 0 if the target is
+	 * non-blocking, or -1 if the file ends before the range
+	 * @throws IOException
+	 */
+	public long transferTo(WritableByteChannel target, long max) throws IOException {
+		long count = Math.min(max, end - position);
+		if (count <= 0) {
+			return -1;
+		}
+		long n = channel.transferTo(position, count, target);
+		if (n == 0 && position >= channel.size()) {
+			return -1;
+		}
+		position += n;
+		return n;
+	}
+
+	/**
+	 * @return the length of the range
+	 */
+	public long getLength() {
+		return end - start;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (open) {
+			open = false;
+			owner.close();
+		}
+	}
+}
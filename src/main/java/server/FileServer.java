@@ -1,27 +1,135 @@
 package server;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 public class FileServer extends NIOServer {
 
 	private File root;
+	private int statsPort;
+	private ServerStats stats = new ServerStats();
+	private StatsServer statsServer;
+	private File traceFile;
+	private TraceRecorder trace;
+	private boolean durable;
+	private int commitMaxBatchSize = 64;
+	private long commitMaxDelayMicros = 2000;
+	private GroupCommitter committer;
+	private TreeDeleter deleter;
+	private boolean preallocate;
+	private long directThreshold;
+	private int directBufferSize = 1024*1024;
+	private int shardFanout;
+	private boolean compression;
+	private int compressionLevel = 1;
+	private boolean compressAtRest;
+	private boolean compressedRoot;
+	private int journalSize = 65536;
+	private ChangeJournal journal;
+	private Storage storage;
 
 	private Map<SocketChannel, ChannelHandler> clients = new HashMap<SocketChannel, ChannelHandler>();
 
 	@Override
 	protected void startServer() throws IOException {
+		if (storage == null) {
+			storage = createLocalStorage();
+		}
+		if (traceFile != null) {
+			trace = new TraceRecorder(traceFile);
+		}
+		if (journalSize > 0) {
+			journal = new ChangeJournal(journalSize);
+		}
+		super.startServer();
+		if (durable) {
+			startCommitter();
+		}
+		startDeleter();
+		if (statsPort != 0) {
+			startStatsServer();
+		}
+	}
+
+	private LocalStorage createLocalStorage() throws IOException {
 		if (!root.exists()) {
 			boolean made = root.mkdirs();
 			if (!made) {
 				throw new IOException("could not create root folder");
 			}
 		}
-		super.startServer();
+		// a root laid out in shards stays so, even if not asked for
+		int fanout = shardFanout > 0 ? shardFanout : ShardedStorage.readFanout(root);
+		LocalStorage local = fanout > 0 ? new ShardedStorage(root, fanout) : new LocalStorage(root);
+		local.setPreallocate(preallocate);
+		if (compressAtRest) {
+			local.setCompression(compressionLevel);
+		}
+		local.setCompressedRoot(compressedRoot);
+		if (directThreshold > 0) {
+			if (DirectIO.isSupported()) {
+				local.setDirectIO(new DirectIO(root, directThreshold, directBufferSize, 16));
+			}
+			else {
+				System.out.println("direct I/O is not supported by this JVM");
+			}
+		}
+		return local;
+	}
+
+	private void startCommitter() {
+		committer = new GroupCommitter();
+		committer.setMaxBatchSize(commitMaxBatchSize);
+		committer.setMaxDelayNanos(TimeUnit.MICROSECONDS.toNanos(commitMaxDelayMicros));
+		committer.setSelector(getSelector());
+		committer.setStats(stats);
+		Thread thread = new Thread(committer, "file-server-committer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void startDeleter() {
+		deleter = new TreeDeleter();
+		deleter.setSelector(getSelector());
+		Thread thread = new Thread(deleter, "file-server-deleter");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Start the stats listener in a thread of its own, so that the scraping
+	 * is served by a separate selector from the file transfers.
+	 */
+	private void startStatsServer() {
+		statsServer = new StatsServer();
+		statsServer.setPort(statsPort);
+		statsServer.setStats(stats);
+		Thread thread = new Thread(statsServer, "file-server-stats");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	protected synchronized void stopServer() throws IOException {
+		if (statsServer != null) {
+			statsServer.stopServer();
+		}
+		super.stopServer();
+		if (committer != null) {
+			committer.stop();
+		}
+		if (deleter != null) {
+			deleter.stop();
+		}
+		if (trace != null) {
+			trace.close();
+		}
 	}
 
 	@Override
@@ -38,21 +146,77 @@ public class FileServer extends NIOServer {
 				handler.recv();
 			}	
 		} catch (IOException e) {
-			handler.closeIOStream();
-			System.out.println("remove client: " + key.channel());
-			clients.remove(key.channel());
-			key.channel().close();
+			removeClient(handler);
 			throw e;
 		}
 	}
 
+	private void removeClient(ChannelHandler handler) throws IOException {
+		handler.closeIOStream();
+		System.out.println("remove client: " + handler.getChannel());
+		clients.remove(handler.getChannel());
+		stats.connectionClosed();
+		handler.getChannel().close();
+	}
+
+	/**
+	 * Send the PUT_FIN of the uploads the group committer has completed,
+	 * and the progress of the trees the deleter is deleting.
+	 */
+	@Override
+	protected void afterSelect() {
+		if (committer != null) {
+			for (GroupCommitter.Commit commit : committer.drainCompleted()) {
+				ChannelHandler handler = commit.getHandler();
+				if (!handler.getChannel().isOpen()) {
+					continue;
+				}
+				try {
+					handler.commitCompleted(commit);
+				} catch (IOException e) {
+					removeQuietly(handler);
+				}
+			}
+		}
+		if (deleter != null) {
+			for (TreeDeleter.Deletion deletion : deleter.drainReported()) {
+				ChannelHandler handler = deletion.getHandler();
+				if (!handler.getChannel().isOpen()) {
+					continue;
+				}
+				try {
+					handler.deletionReported();
+				} catch (IOException e) {
+					removeQuietly(handler);
+				}
+			}
+		}
+	}
+
+	private void removeQuietly(ChannelHandler handler) {
+		try {
+			removeClient(handler);
+		} catch (IOException ioe) {
+			// nothing we can do about
+		}
+	}
+
 	@Override
 	protected void registeredClient(SocketChannel sc) throws IOException {
+		sc.socket().setTcpNoDelay(true);
 		ChannelHandler handler = new ChannelHandler();
 		handler.setChannel(sc);
-		handler.setRoot(getRoot());
+		handler.setStorage(storage);
 		handler.setSelector(getSelector());
+		handler.setStats(stats);
+		handler.setTrace(trace);
+		handler.setCommitter(committer);
+		handler.setDeleter(deleter);
+		handler.setCompression(compression);
+		handler.setCompressionLevel(compressionLevel);
+		handler.setJournal(journal);
 		clients.put(sc, handler);
+		stats.connectionAccepted();
 	}
 
 	public File getRoot() {
@@ -63,6 +227,177 @@ public class FileServer extends NIOServer {
 		this.root = root;
 	}
 
+	public Storage getStorage() {
+		return storage;
+	}
+
+	/**
+	 * Set where the files are stored, by default in the root directory
+	 * of the local file system.
+	 *
+	 * @param storage
+	 */
+	public void setStorage(Storage storage) {
+		this.storage = storage;
+	}
+
+	public int getStatsPort() {
+		return statsPort;
+	}
+
+	/**
+	 * Set the port of the Prometheus stats listener, 0 to disable it.
+	 *
+	 * @param statsPort
+	 */
+	public void setStatsPort(int statsPort) {
+		this.statsPort = statsPort;
+	}
+
+	public File getTraceFile() {
+		return traceFile;
+	}
+
+	/**
+	 * Set the file to record the trace of all the requests to, null (the
+	 * default) for no recording.
+	 *
+	 * @param traceFile
+	 */
+	public void setTraceFile(File traceFile) {
+		this.traceFile = traceFile;
+	}
+
+	public boolean isDurable() {
+		return durable;
+	}
+
+	/**
+	 * Make the uploads durable before acknowledging them with PUT_FIN,
+	 * fsyncing them in batches by a group committer.
+	 *
+	 * @param durable
+	 */
+	public void setDurable(boolean durable) {
+		this.durable = durable;
+	}
+
+	/**
+	 * Set the maximum number of uploads synced together.
+	 *
+	 * @param commitMaxBatchSize
+	 */
+	public void setCommitMaxBatchSize(int commitMaxBatchSize) {
+		this.commitMaxBatchSize = commitMaxBatchSize;
+	}
+
+	/**
+	 * Set the maximum time an upload waits for more to be synced with it.
+	 *
+	 * @param commitMaxDelayMicros
+	 */
+	public void setCommitMaxDelayMicros(long commitMaxDelayMicros) {
+		this.commitMaxDelayMicros = commitMaxDelayMicros;
+	}
+
+	public boolean isPreallocate() {
+		return preallocate;
+	}
+
+	/**
+	 * Preallocate each upload to its declared length before receiving it.
+	 *
+	 * @param preallocate
+	 */
+	public void setPreallocate(boolean preallocate) {
+		this.preallocate = preallocate;
+	}
+
+	/**
+	 * Transfer the files of at least the given size with direct I/O,
+	 * bypassing the page cache. 0 (the default) disables direct I/O.
+	 *
+	 * @param directThreshold
+	 */
+	public void setDirectThreshold(long directThreshold) {
+		this.directThreshold = directThreshold;
+	}
+
+	/**
+	 * Set the size of the buffers of the direct transfers.
+	 *
+	 * @param directBufferSize
+	 */
+	public void setDirectBufferSize(int directBufferSize) {
+		this.directBufferSize = directBufferSize;
+	}
+
+	/**
+	 * Spread the files of each directory over the given number of hashed
+	 * subdirectories, see ShardedStorage. 0 (the default) keeps one file per
+	 * path, unless the root has been sharded already.
+	 *
+	 * @param shardFanout
+	 */
+	public void setShardFanout(int shardFanout) {
+		this.shardFanout = shardFanout;
+	}
+
+	/**
+	 * Compress the transfers the clients ask to, off by default.
+	 *
+	 * @param compression
+	 */
+	public void setCompression(boolean compression) {
+		this.compression = compression;
+	}
+
+	/**
+	 * Set the level of the compression, 1 (the default) to 9.
+	 *
+	 * @param compressionLevel
+	 */
+	public void setCompressionLevel(int compressionLevel) {
+		this.compressionLevel = compressionLevel;
+	}
+
+	/**
+	 * Store the files compressed, those which compress, at the level of
+	 * the compression, see LocalStorage.setCompression(int). They are sent
+	 * as stored to the clients accepting compressed downloads, whether the
+	 * transfers are compressed or not. Off by default.
+	 *
+	 * @param compressAtRest
+	 */
+	public void setCompressAtRest(boolean compressAtRest) {
+		this.compressAtRest = compressAtRest;
+	}
+
+	/**
+	 * Read the files of a root stored compressed once the compression at
+	 * rest is turned off, see LocalStorage.setCompressedRoot(boolean).
+	 * Off by default.
+	 *
+	 * @param compressedRoot
+	 */
+	public void setCompressedRoot(boolean compressedRoot) {
+		this.compressedRoot = compressedRoot;
+	}
+
+	/**
+	 * Set the number of changes kept for the clients to ask what changed
+	 * since they last looked, see ChangeJournal, 0 for none.
+	 *
+	 * @param journalSize
+	 */
+	public void setJournalSize(int journalSize) {
+		this.journalSize = journalSize;
+	}
+
+	public ServerStats getStats() {
+		return stats;
+	}
+
 	public static void main(String[] args) {
 		String userhome = System.getProperty("user.home");
 		String rootdir = userhome + File.separator + 
@@ -70,6 +405,59 @@ public class FileServer extends NIOServer {
 		FileServer filesrv = new FileServer();
 		filesrv.setPort(12345);
 		filesrv.setRoot(new File(rootdir));
+		filesrv.setStatsPort(Integer.getInteger("fileserver.stats.port", 0));
+		String storage = System.getProperty("fileserver.storage", "local");
+		if (storage.equals("memory")) {
+			filesrv.setStorage(new MemoryStorage());
+		}
+		else if (storage.equals("segment")) {
+			try {
+				SegmentStorage segments = new SegmentStorage(new File(rootdir));
+				segments.startCompactor();
+				filesrv.setStorage(segments);
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.exit(-1);
+			}
+		}
+		else if (storage.equals("chunk")) {
+			try {
+				filesrv.setStorage(new ChunkStorage(new File(rootdir)));
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.exit(-1);
+			}
+		}
+		filesrv.setCompression(Boolean.getBoolean("fileserver.compression"));
+		filesrv.setCompressionLevel(Integer.getInteger("fileserver.compression.level", 1));
+		filesrv.setCompressAtRest(Boolean.getBoolean("fileserver.compression.at.rest"));
+		filesrv.setCompressedRoot(Boolean.getBoolean("fileserver.compressed.root"));
+		filesrv.setShardFanout(Integer.getInteger("fileserver.shard.fanout", 0));
+		filesrv.setPreallocate(Boolean.getBoolean("fileserver.preallocate"));
+		filesrv.setDirectThreshold(Long.getLong("fileserver.direct.threshold", 0));
+		filesrv.setDirectBufferSize(Integer.getInteger("fileserver.direct.buffer", 1024*1024));
+		filesrv.setJournalSize(Integer.getInteger("fileserver.journal.size", 65536));
+		filesrv.setDurable(Boolean.getBoolean("fileserver.durable"));
+		filesrv.setCommitMaxBatchSize(Integer.getInteger("fileserver.commit.batch", 64));
+		filesrv.setCommitMaxDelayMicros(Long.getLong("fileserver.commit.delay.micros", 2000));
+		String trace = System.getProperty("fileserver.trace");
+		if (trace != null) {
+			filesrv.setTraceFile(new File(trace));
+		}
+		final FileServer server = filesrv;
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				try {
+					server.stopServer();
+					if (server.getStorage() instanceof Closeable) {
+						((Closeable) server.getStorage()).close();
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
 		System.out.println(String.format("File server started on port %d...", filesrv.getPort()));
 		filesrv.run();
 	}
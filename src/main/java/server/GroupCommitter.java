@@ -0,0 +1,282 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.Selector;
+import java.nio.file.FileAlreadyExistsException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import common.AppConstant.Message;
+import common.AppUtil;
+
+/**
+ * Makes finished uploads durable in batches. The selector thread submits an
+ * upload once its temporary file is completely written; this thread waits
+ * until the batch is full or its oldest upload has waited long enough, then
+ * fsyncs the files of the whole batch back to back, renames them into place
+ * and fsyncs each of their directories once. Batching lets the file system
+ * fold the journal commits of many small files together and shares the
+ * directory syncs, so the cost per upload goes down as the load goes up.
+ *
+ * Completed commits are queued back and the selector is woken up to send
+ * the PUT_FIN of each of them, see drainCompleted().
+ */
+public class GroupCommitter implements Runnable {
+
+	/**
+	 * An upload waiting to be committed.
+	 */
+	public static class Commit {
+		final ChannelHandler handler;
+		final Storage storage;
+		final String[] temp;
+		final String[] target;
+		final boolean overwrite;
+		final List<String[]> dirs;
+		long submitted;
+		Message message;
+
+		/**
+		 * @param handler the handler to notify once committed
+		 * @param storage where the file is stored
+		 * @param temp the completely written temporary file, null if the file
+		 * is already in place, e.g. moved, only its directories to sync
+		 * @param target where the file is to be renamed to
+		 * @param overwrite whether an existing target may be replaced
+		 * @param dirs the directories whose entries have changed
+		 */
+		public Commit(ChannelHandler handler, Storage storage, String[] temp,
+				String[] target, boolean overwrite, List<String[]> dirs) {
+			this.handler = handler;
+			this.storage = storage;
+			this.temp = temp;
+			this.target = target;
+			this.overwrite = overwrite;
+			this.dirs = dirs;
+		}
+
+		public ChannelHandler getHandler() {
+			return handler;
+		}
+
+		public Message getMessage() {
+			return message;
+		}
+	}
+
+	private int maxBatchSize = 64;
+	private long maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(2);
+	private Selector selector;
+	private ServerStats stats = new ServerStats();
+
+	private final List<Commit> pending = new ArrayList<Commit>();
+	private final Queue<Commit> completed = new ConcurrentLinkedQueue<Commit>();
+	private boolean stop;
+
+	/**
+	 * Submit an upload to be committed.
+	 *
+	 * @param commit
+	 */
+	public synchronized void submit(Commit commit) {
+		commit.submitted = System.nanoTime();
+		pending.add(commit);
+		if (pending.size() == 1 || pending.size() >= maxBatchSize) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Submit uploads to be committed together, e.g. the PUTs of a batch, in
+	 * the same group as far as it holds them.
+	 *
+	 * @param commits
+	 */
+	public synchronized void submit(List<Commit> commits) {
+		long now = System.nanoTime();
+		for (Commit commit : commits) {
+			commit.submitted = now;
+			pending.add(commit);
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Take the commits completed since the last call. To be called by the
+	 * selector thread.
+	 *
+	 * @return
+	 */
+	public List<Commit> drainCompleted() {
+		List<Commit> commits = new ArrayList<Commit>();
+		Commit commit;
+		while ((commit = completed.poll()) != null) {
+			commits.add(commit);
+		}
+		return commits;
+	}
+
+	/**
+	 * Stop once the pending uploads have been committed.
+	 */
+	public synchronized void stop() {
+		stop = true;
+		notifyAll();
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			List<Commit> batch;
+			try {
+				batch = nextBatch();
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (batch == null) {
+				return;
+			}
+			commit(batch);
+			completed.addAll(batch);
+			if (selector != null) {
+				selector.wakeup();
+			}
+		}
+	}
+
+	private synchronized List<Commit> nextBatch() throws InterruptedException {
+		while (true) {
+			if (pending.isEmpty()) {
+				if (stop) {
+					return null;
+				}
+				wait();
+				continue;
+			}
+			long wait = pending.get(0).submitted + maxDelayNanos - System.nanoTime();
+			if (pending.size() >= maxBatchSize || wait <= 0 || stop) {
+				break;
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, wait);
+		}
+		int size = Math.min(pending.size(), maxBatchSize);
+		List<Commit> batch = new ArrayList<Commit>(pending.subList(0, size));
+		pending.subList(0, size).clear();
+		return batch;
+	}
+
+	private void commit(List<Commit> batch) {
+		long start = System.nanoTime();
+		int failures = 0;
+		// the file contents first, so nothing is renamed into place
+		// before its data is on the disk.
+		for (Commit commit : batch) {
+			if (commit.temp == null) {
+				continue;
+			}
+			try {
+				commit.storage.sync(commit.temp);
+			} catch (IOException e) {
+				commit.message = Message.FILE_NOT_CREATED;
+			}
+		}
+		// each changed directory once, whatever the number of files in it
+		Set<String> seen = new HashSet<String>();
+		List<Commit> dirs = new ArrayList<Commit>();
+		List<String[]> dirPaths = new ArrayList<String[]>();
+		for (Commit commit : batch) {
+			if (commit.message == null) {
+				commit.message = commit.temp == null ? Message.FILE_CREATED
+						: rename(commit.storage, commit.temp, commit.target, commit.overwrite);
+				for (String[] dir : commit.dirs) {
+					if (seen.add(AppUtil.toString(dir, '/'))) {
+						dirs.add(commit);
+						dirPaths.add(dir);
+					}
+				}
+			}
+			else {
+				delete(commit.storage, commit.temp);
+			}
+			if (commit.message != Message.FILE_CREATED) {
+				failures++;
+			}
+		}
+		for (int i = 0; i < dirs.size(); i++) {
+			try {
+				dirs.get(i).storage.sync(dirPaths.get(i));
+			} catch (IOException e) {
+				// the rename is done, it is just not known to be durable.
+			}
+		}
+		stats.batchCommitted(batch.size(), failures, System.nanoTime() - start);
+	}
+
+	/**
+	 * Rename an uploaded file into place. The uploads are renamed by one
+	 * thread only, either this one or the selector thread, so the existence
+	 * check of a rename without replace is enough to keep a file that is not
+	 * to be overwritten.
+	 *
+	 * @param storage
+	 * @param temp
+	 * @param target
+	 * @param overwrite
+	 * @return FILE_CREATED on success, FILE_EXIST if the target has been
+	 * created meanwhile and is not to be overwritten, or FILE_NOT_CREATED.
+	 */
+	static Message rename(Storage storage, String[] temp, String[] target, boolean overwrite) {
+		try {
+			storage.rename(temp, target, overwrite);
+			return Message.FILE_CREATED;
+		} catch (FileAlreadyExistsException e) {
+			delete(storage, temp);
+			return Message.FILE_EXIST;
+		} catch (IOException e) {
+			delete(storage, temp);
+			return Message.FILE_NOT_CREATED;
+		}
+	}
+
+	private static void delete(Storage storage, String[] path) {
+		try {
+			storage.delete(path);
+		} catch (IOException e) {
+			// nothing we can do about
+		}
+	}
+
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	public void setMaxBatchSize(int maxBatchSize) {
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	public long getMaxDelayNanos() {
+		return maxDelayNanos;
+	}
+
+	/**
+	 * Set how long an upload may wait for its batch to fill up.
+	 *
+	 * @param maxDelayNanos
+	 */
+	public void setMaxDelayNanos(long maxDelayNanos) {
+		this.maxDelayNanos = maxDelayNanos;
+	}
+
+	public void setSelector(Selector selector) {
+		this.selector = selector;
+	}
+
+	public void setStats(ServerStats stats) {
+		this.stats = stats;
+	}
+}
@@ -0,0 +1,99 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-bucket latency histogram. It is updated by the selector thread and
+ * read by the stats thread, so all the counts are kept in atomics, no lock
+ * is taken on either side. Values are recorded in nanoseconds and reported
+ * in seconds, unless another unit is given, e.g. 1 for plain counts.
+ */
+public class LatencyHistogram {
+
+	// upper bounds of the buckets, in seconds
+	public final static double[] DEFAULT_BOUNDS = {
+		0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05,
+		0.1, 0.25, 0.5, 1, 2.5, 5, 10
+	};
+
+	private final double[] bounds;
+	private final double unit;
+	private final long[] boundNanos;
+	// one extra slot for the values above the last bound (+Inf)
+	private final AtomicLongArray buckets;
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sumNanos = new AtomicLong();
+
+	public LatencyHistogram() {
+		this(DEFAULT_BOUNDS);
+	}
+
+	public LatencyHistogram(double[] bounds) {
+		this(bounds, 1e9);
+	}
+
+	/**
+	 * @param bounds upper bounds of the buckets, in the reported unit
+	 * @param unit number of recorded values per reported unit
+	 */
+	public LatencyHistogram(double[] bounds, double unit) {
+		this.bounds = bounds.clone();
+		this.unit = unit;
+		this.boundNanos = new long[bounds.length];
+		for (int i = 0; i < bounds.length; i++) {
+			boundNanos[i] = (long) (bounds[i] * unit);
+		}
+		this.buckets = new AtomicLongArray(bounds.length + 1);
+	}
+
+	/**
+	 * Record one observation.
+	 *
+	 * @param nanos
+	 */
+	public void record(long nanos) {
+		int i = 0;
+		while (i < boundNanos.length && nanos > boundNanos[i]) {
+			i++;
+		}
+		buckets.incrementAndGet(i);
+		count.incrementAndGet();
+		sumNanos.addAndGet(nanos);
+	}
+
+	public double[] getBounds() {
+		return bounds.clone();
+	}
+
+	/**
+	 * Get the cumulative counts, i.e. the number of observations less than
+	 * or equal to each bound, the last element being the total count.
+	 *
+	 * @return
+	 */
+	public long[] getCumulativeCounts() {
+		long[] counts = new long[buckets.length()];
+		long total = 0;
+		for (int i = 0; i < counts.length; i++) {
+			total += buckets.get(i);
+			counts[i] = total;
+		}
+		return counts;
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getSumNanos() {
+		return sumNanos.get();
+	}
+
+	/**
+	 * @return the sum of all the values, in the reported unit
+	 */
+	public double getSum() {
+		return sumNanos.get() / unit;
+	}
+}
@@ -0,0 +1,347 @@
+package server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import common.AppUtil;
+
+/**
+ * Stores the files in a directory of the local file system, one file per
+ * path. Uploads may be preallocated to their declared length, and the large
+ * ones transferred with direct I/O, see DirectIO, or else stored compressed,
+ * see CompressedFile.
+ */
+public class LocalStorage implements Storage {
+
+	private final File root;
+	private boolean preallocate;
+	private DirectIO directIO;
+	private int compressionLevel;
+	private boolean compressedRoot;
+
+	public LocalStorage(File root) {
+		this.root = root;
+	}
+
+	/**
+	 * Get the file of a path.
+	 *
+	 * @param path
+	 * @return
+	 * @throws IOException
+	 */
+	public File toFile(String[] path) throws IOException {
+		return AppUtil.toFile(root, path);
+	}
+
+	@Override
+	public boolean permits(String[] path) throws IOException {
+		return AppUtil.isLocatedInside(toFile(path), root);
+	}
+
+	@Override
+	public Stat stat(String[] path) throws IOException {
+		File file = toFile(path);
+		if (!file.exists()) {
+			return null;
+		}
+		long length = 0;
+		if (file.isFile()) {
+			length = isCompressedRoot() ? CompressedFile.length(file) : -1;
+			if (length == -1) {
+				length = file.length();
+			}
+		}
+		return new Stat(length, file.lastModified(), file.isDirectory());
+	}
+
+	@Override
+	public long getUsableSpace(String[] path) throws IOException {
+		// the deepest existing directory is on the volume the file goes to.
+		File dir = toFile(path).getParentFile();
+		while (dir != null && !dir.exists()) {
+			dir = dir.getParentFile();
+		}
+		return dir == null ? 0 : dir.getUsableSpace();
+	}
+
+	@Override
+	public ReadableByteChannel openRead(String[] path) throws IOException {
+		File file = toFile(path);
+		if (isCompressedRoot() && CompressedFile.length(file) != -1) {
+			FileChannel fc = new FileInputStream(file).getChannel();
+			fc.position(CompressedFile.HEADER_LENGTH);
+			return new CompressedFile.Reader(fc);
+		}
+		if (directIO != null && directIO.isDirect(file.length())) {
+			ReadableByteChannel channel = directIO.openRead(file);
+			if (channel != null) {
+				return channel;
+			}
+		}
+		FileChannel fc = new FileInputStream(file).getChannel();
+		return new FileRange(fc, 0, fc.size(), fc);
+	}
+
+	/**
+	 * Open the compressed frames of a file stored compressed, to be sent as
+	 * they are to a client accepting compressed downloads.
+	 *
+	 * @param path
+	 * @return the frames, null if the file is not stored compressed
+	 * @throws IOException
+	 */
+	public FileRange openCompressed(String[] path) throws IOException {
+		File file = toFile(path);
+		if (!isCompressedRoot() || CompressedFile.length(file) == -1) {
+			return null;
+		}
+		FileChannel fc = new FileInputStream(file).getChannel();
+		return new FileRange(fc, CompressedFile.HEADER_LENGTH, fc.size() - CompressedFile.HEADER_LENGTH, fc);
+	}
+
+	/**
+	 * Create the file, preallocated to the given length if enabled, so the
+	 * file system can lay it out in one go rather than growing it a buffer
+	 * at a time. A file stored compressed is neither preallocated, its
+	 * length not being known, nor written with direct I/O.
+	 */
+	@Override
+	public WritableByteChannel create(String[] path, long length) throws IOException {
+		File file = toFile(path);
+		File parent = file.getParentFile();
+		if (!parent.exists()) {
+			parent.mkdirs();
+		}
+		if (!file.createNewFile()) {
+			throw new FileAlreadyExistsException(file.getPath());
+		}
+		try {
+			if (isCompressedRoot()) {
+				return new CompressedFile.Writer(FileChannel.open(file.toPath(), StandardOpenOption.WRITE), compressionLevel);
+			}
+			if (preallocate && length > 0) {
+				RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				try {
+					raf.setLength(length);
+				} finally {
+					raf.close();
+				}
+			}
+			if (directIO != null && directIO.isDirect(length)) {
+				WritableByteChannel channel = directIO.openWrite(file);
+				if (channel != null) {
+					return channel;
+				}
+			}
+			// not truncated, unlike a FileOutputStream
+			return FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+		} catch (IOException e) {
+			// e.g. the file system refuses a file that large
+			file.delete();
+			throw e;
+		}
+	}
+
+	@Override
+	public boolean delete(String[] path) throws IOException {
+		return toFile(path).delete();
+	}
+
+	/**
+	 * Walk the directories in sorted order, skipping the subtrees that come
+	 * before the cursor, so a page costs the directories on the way to it
+	 * rather than the whole tree.
+	 */
+	@Override
+	public Page list(String[] path, String cursor, int limit, int depth) throws IOException {
+		List<String[]> paths = new ArrayList<String[]>();
+		String[] after = cursor == null ? null : cursor.split("/", -1);
+		boolean more = walk(toFile(path), path, after, paths, limit, depth > 0 ? depth : Integer.MAX_VALUE);
+		String next = null;
+		if (more) {
+			next = AppUtil.toString(paths.get(paths.size() - 1), '/');
+		}
+		return new Page(paths, next);
+	}
+
+	/**
+	 * @param levels the most levels to go down from the file
+	 * @return true if the limit has been reached, there may be more files
+	 */
+	private boolean walk(File file, String[] path, String[] after,
+			List<String[]> paths, int limit, int levels) {
+		if (file.isFile()) {
+			if (after == null || compare(path, after) > 0) {
+				if (paths.size() == limit) {
+					return true;
+				}
+				paths.add(path);
+			}
+			return false;
+		}
+		if (levels == 0) {
+			return false;
+		}
+		for (Map.Entry<String, File> entry : entries(file).entrySet()) {
+			String[] child = Arrays.copyOf(path, path.length + 1);
+			child[path.length] = entry.getKey();
+			// the whole subtree is before the cursor
+			if (after != null && compare(child, after) < 0 && !isPrefix(child, after)) {
+				continue;
+			}
+			if (walk(entry.getValue(), child, after, paths, limit, levels - 1)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Get the entries of a directory.
+	 *
+	 * @param dir
+	 * @return the files and directories by their name, sorted
+	 */
+	protected SortedMap<String, File> entries(File dir) {
+		SortedMap<String, File> entries = new TreeMap<String, File>();
+		String[] names = dir.list();
+		if (names != null) {
+			for (String name : names) {
+				entries.put(name, new File(dir, name));
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * Compare two paths level by level.
+	 */
+	static int compare(String[] a, String[] b) {
+		int n = Math.min(a.length, b.length);
+		for (int i = 0; i < n; i++) {
+			int c = a[i].compareTo(b[i]);
+			if (c != 0) {
+				return c;
+			}
+		}
+		return a.length - b.length;
+	}
+
+	private static boolean isPrefix(String[] prefix, String[] path) {
+		if (prefix.length > path.length) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length; i++) {
+			if (!prefix[i].equals(path[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public void rename(String[] source, String[] target, boolean replace) throws IOException {
+		File parent = toFile(target).getParentFile();
+		if (!parent.exists()) {
+			parent.mkdirs();
+		}
+		if (replace) {
+			Files.move(toFile(source).toPath(), toFile(target).toPath(),
+					StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}
+		else {
+			Files.move(toFile(source).toPath(), toFile(target).toPath());
+		}
+	}
+
+	@Override
+	public void sync(String[] path) throws IOException {
+		File file = toFile(path);
+		FileChannel fc;
+		if (file.isDirectory()) {
+			try {
+				fc = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			} catch (IOException e) {
+				// directories cannot be opened on some platforms, e.g.
+				// Windows, where the rename is durable on its own.
+				return;
+			}
+		}
+		else {
+			fc = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+		}
+		try {
+			fc.force(true);
+		} finally {
+			fc.close();
+		}
+	}
+
+	public File getRoot() {
+		return root;
+	}
+
+	/**
+	 * Set whether the new files are preallocated to their declared length.
+	 *
+	 * @param preallocate
+	 */
+	public void setPreallocate(boolean preallocate) {
+		this.preallocate = preallocate;
+	}
+
+	/**
+	 * Set the direct I/O of the large files, null (the default) to transfer
+	 * all the files through the page cache.
+	 *
+	 * @param directIO
+	 */
+	public void setDirectIO(DirectIO directIO) {
+		this.directIO = directIO;
+	}
+
+	/**
+	 * Store the new files compressed, those which compress, at the given
+	 * level, 1 to 9, or 0 (the default) to store them as they are. The
+	 * root then holds files stored compressed, see setCompressedRoot().
+	 *
+	 * @param compressionLevel
+	 */
+	public void setCompression(int compressionLevel) {
+		this.compressionLevel = compressionLevel;
+	}
+
+	/**
+	 * Set whether the root holds files stored compressed, which are then
+	 * known by their header, so they are still read once the compression
+	 * is turned off. The new files are written so that none is taken for
+	 * one, see CompressedFile.Writer. Off by default, the files being read
+	 * as they are without looking at their header; always on while the
+	 * files are stored compressed.
+	 *
+	 * @param compressedRoot
+	 */
+	public void setCompressedRoot(boolean compressedRoot) {
+		this.compressedRoot = compressedRoot;
+	}
+
+	private boolean isCompressedRoot() {
+		return compressedRoot || compressionLevel > 0;
+	}
+}
@@ -0,0 +1,214 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the files in memory, for measuring the network and the protocol
+ * without the disk. The files are kept in a sorted map by their path, see
+ * PathKeys.
+ *
+ * The content written to a new file is only published when its channel is
+ * closed; until then the file reads as empty.
+ */
+public class MemoryStorage implements Storage {
+
+	private static class Entry {
+		final byte[] data;
+		final long lastModified;
+
+		Entry(byte[] data) {
+			this.data = data;
+			this.lastModified = System.currentTimeMillis();
+		}
+	}
+
+	private final ConcurrentSkipListMap<String, Entry> files = new ConcurrentSkipListMap<String, Entry>();
+	private final AtomicLong used = new AtomicLong();
+	private long capacity = Runtime.getRuntime().maxMemory() / 2;
+
+	private static String key(String[] path) {
+		return PathKeys.key(path);
+	}
+
+	@Override
+	public boolean permits(String[] path) {
+		return PathKeys.permits(path);
+	}
+
+	@Override
+	public Stat stat(String[] path) {
+		Entry entry = path.length == 0 ? null : files.get(key(path));
+		if (entry != null) {
+			return new Stat(entry.data.length, entry.lastModified, false);
+		}
+		if (PathKeys.isDirectory(files, path)) {
+			return new Stat(0, 0, true);
+		}
+		return null;
+	}
+
+	@Override
+	public long getUsableSpace(String[] path) {
+		return Math.max(0, capacity - used.get());
+	}
+
+	@Override
+	public ReadableByteChannel openRead(String[] path) throws IOException {
+		Entry entry = path.length == 0 ? null : files.get(key(path));
+		if (entry == null) {
+			throw new NoSuchFileException(PathKeys.toString(key(path)));
+		}
+		return new Reader(entry.data);
+	}
+
+	@Override
+	public WritableByteChannel create(String[] path, long length) throws IOException {
+		String key = key(path);
+		if (files.putIfAbsent(key, new Entry(new byte[0])) != null) {
+			throw new FileAlreadyExistsException(PathKeys.toString(key));
+		}
+		return new Writer(key, (int) Math.min(Math.max(length, 16), Integer.MAX_VALUE - 8));
+	}
+
+	@Override
+	public boolean delete(String[] path) {
+		if (path.length == 0) {
+			return false;
+		}
+		Entry entry = files.remove(key(path));
+		if (entry == null) {
+			return false;
+		}
+		used.addAndGet(-entry.data.length);
+		return true;
+	}
+
+	@Override
+	public Page list(String[] path, String cursor, int limit, int depth) {
+		return PathKeys.list(files, path, cursor, limit, depth);
+	}
+
+	@Override
+	public void rename(String[] source, String[] target, boolean replace) throws IOException {
+		String sourceKey = key(source);
+		String targetKey = key(target);
+		Entry entry = files.get(sourceKey);
+		if (entry == null) {
+			throw new NoSuchFileException(PathKeys.toString(sourceKey));
+		}
+		if (replace) {
+			Entry old = files.put(targetKey, entry);
+			if (old != null) {
+				used.addAndGet(-old.data.length);
+			}
+		}
+		else if (files.putIfAbsent(targetKey, entry) != null) {
+			throw new FileAlreadyExistsException(PathKeys.toString(targetKey));
+		}
+		files.remove(sourceKey, entry);
+	}
+
+	@Override
+	public void sync(String[] path) {
+		// nothing to make durable
+	}
+
+	/**
+	 * Set the number of bytes that may be stored, half the maximum heap by
+	 * default.
+	 *
+	 * @param capacity
+	 */
+	public void setCapacity(long capacity) {
+		this.capacity = capacity;
+	}
+
+	private static class Reader implements ReadableByteChannel {
+		private final byte[] data;
+		private int position;
+		private boolean open = true;
+
+		Reader(byte[] data) {
+			this.data = data;
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			if (!open) {
+				throw new ClosedChannelException();
+			}
+			if (position == data.length) {
+				return -1;
+			}
+			int n = Math.min(dst.remaining(), data.length - position);
+			dst.put(data, position, n);
+			position += n;
+			return n;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return open;
+		}
+
+		@Override
+		public void close() {
+			open = false;
+		}
+	}
+
+	private class Writer implements WritableByteChannel {
+		private final String key;
+		private byte[] data;
+		private int length;
+		private boolean open = true;
+
+		Writer(String key, int capacity) {
+			this.key = key;
+			this.data = new byte[capacity];
+		}
+
+		@Override
+		public int write(ByteBuffer src) throws IOException {
+			if (!open) {
+				throw new ClosedChannelException();
+			}
+			int n = src.remaining();
+			if (length + n > data.length) {
+				data = Arrays.copyOf(data, Math.max(length + n, data.length * 2));
+			}
+			src.get(data, length, n);
+			length += n;
+			return n;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return open;
+		}
+
+		/**
+		 * Publish the content, unless the file has been deleted meanwhile.
+		 */
+		@Override
+		public void close() {
+			if (!open) {
+				return;
+			}
+			open = false;
+			Entry entry = new Entry(length == data.length ? data : Arrays.copyOf(data, length));
+			if (files.replace(key, entry) != null) {
+				used.addAndGet(length);
+			}
+		}
+	}
+}
@@ -36,6 +36,9 @@ public abstract class NIOServer implements Runnable {
 		if (channel != null) {
 			channel.close();
 		}
+		if (selector != null) {
+			selector.wakeup();
+		}
 	}
 
 	public void run() {
@@ -53,7 +56,11 @@ public abstract class NIOServer implements Runnable {
 				System.err.println("Server error: " + ioe);
 				return;
 			}
+			afterSelect();
 
+			ServerEvents.SelectorStall stall = new ServerEvents.SelectorStall();
+			stall.begin();
+			int selectedKeys = selector.selectedKeys().size();
 			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
 			while (it.hasNext()) {
 				SelectionKey key = (SelectionKey) it.next();
@@ -77,9 +84,23 @@ public abstract class NIOServer implements Runnable {
 				}
 				it.remove();
 			}
+			stall.end();
+			if (stall.shouldCommit()) {
+				stall.port = port;
+				stall.selectedKeys = selectedKeys;
+				stall.commit();
+			}
 		}
 	}
 
+	/**
+	 * Called by the selector thread each time the selector returns, before
+	 * the selected keys are handled, e.g. to pick up work completed by other
+	 * threads, which wake the selector up.
+	 */
+	protected void afterSelect() {
+	}
+
 	protected void handleServer(SelectionKey key) throws IOException {
 		SocketChannel sc = channel.accept();
 		sc.configureBlocking(false);
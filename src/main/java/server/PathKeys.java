@@ -0,0 +1,111 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+
+import common.AppUtil;
+
+/**
+ * The keys of the storages that keep their files in a sorted map rather than
+ * in directories. A key is the path with its levels joined with '\0', which
+ * sorts before any other char, so the map order is the level by level order
+ * of the listings, and the files under a directory are the keys from the
+ * directory + '\0' up to the directory + '\1'. Directories are not stored,
+ * they exist as long as there are files under them.
+ */
+class PathKeys {
+
+	final static char SEPARATOR = '\0';
+
+	private PathKeys() {}
+
+	static String key(String[] path) {
+		return AppUtil.toString(path, SEPARATOR);
+	}
+
+	static String[] path(String key) {
+		return key.split(String.valueOf(SEPARATOR), -1);
+	}
+
+	/**
+	 * @param key
+	 * @return the key as a path with '/' separators, for the messages
+	 */
+	static String toString(String key) {
+		return key.replace(SEPARATOR, '/');
+	}
+
+	/**
+	 * Only plain names are allowed at each level, so nothing leads out of
+	 * the storage and '/' is free to separate the levels of the cursors.
+	 */
+	static boolean permits(String[] path) {
+		for (String level : path) {
+			if (level.isEmpty() || level.equals(".") || level.equals("..")
+					|| level.indexOf('/') >= 0 || level.indexOf(SEPARATOR) >= 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the entries of the files under a directory
+	 */
+	static <V> ConcurrentNavigableMap<String, V> under(ConcurrentNavigableMap<String, V> map, String[] path) {
+		if (path.length == 0) {
+			return map;
+		}
+		String key = key(path);
+		return map.subMap(key + SEPARATOR, key + (char) (SEPARATOR + 1));
+	}
+
+	/**
+	 * @return whether there are files under the directory
+	 */
+	static boolean isDirectory(ConcurrentNavigableMap<String, ?> map, String[] path) {
+		return path.length == 0 || !under(map, path).isEmpty();
+	}
+
+	/**
+	 * List the file of the path, or the files under it, see Storage.list().
+	 * The keys under a directory too deep are skipped in one step, from the
+	 * directory + '\0' to the directory + '\1'.
+	 */
+	static <V> Storage.Page list(ConcurrentNavigableMap<String, V> map, String[] path,
+			String cursor, int limit, int depth) {
+		ConcurrentNavigableMap<String, V> files;
+		String key = key(path);
+		if (path.length > 0 && map.containsKey(key)) {
+			files = map.subMap(key, true, key, true);
+		}
+		else {
+			files = under(map, path);
+		}
+		if (cursor != null) {
+			files = files.tailMap(cursor.replace('/', SEPARATOR), false);
+		}
+		List<String[]> paths = new ArrayList<String[]>();
+		String next = null;
+		Map.Entry<String, V> first = files.firstEntry();
+		String k = first == null ? null : first.getKey();
+		while (k != null) {
+			String[] file = path(k);
+			if (depth > 0 && file.length - path.length > depth) {
+				String dir = key(Arrays.copyOf(file, path.length + depth));
+				k = files.ceilingKey(dir + (char) (SEPARATOR + 1));
+				continue;
+			}
+			if (paths.size() == limit) {
+				next = AppUtil.toString(paths.get(paths.size() - 1), '/');
+				break;
+			}
+			paths.add(file);
+			k = files.higherKey(k);
+		}
+		return new Storage.Page(paths, next);
+	}
+}
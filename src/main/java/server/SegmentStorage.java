@@ -0,0 +1,807 @@
+package server;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Stores the files appended one after another into large segment files,
+ * which saves the inode, the directory entry and the syscalls of each small
+ * file. An in-memory index maps each path to the location of its data, see
+ * PathKeys for the keys; a GET is sent as a range of the segment file with
+ * transferTo(). Segment records, big endian:
+ *
+ *   magic          4  "NFSL"
+ *   type           1  PUT or DEL (tombstone)
+ *   key length     4  bytes of the UTF-8 key
+ *   data length    8
+ *   last modified  8
+ *   data crc       4  CRC32 of the data
+ *   header crc     4  CRC32 from the type to the data crc, and the key
+ *   key, data
+ *
+ * New files are staged, in memory or spilled to a file when large, until
+ * they are renamed into place, i.e. only complete uploads reach the log.
+ * When the active segment is full a new one is started; a background
+ * compactor copies the live files of the segments that are mostly garbage
+ * to the active one and deletes them. On start the segments are scanned to
+ * rebuild the index, a torn record at the end of a segment is cut off. The
+ * data checksums are only verified in the last segment, the others have
+ * been synced before the next one was started.
+ */
+public class SegmentStorage implements Storage, Closeable {
+
+	final static int MAGIC = 0x4e46534c; // "NFSL"
+	final static byte PUT = 1;
+	final static byte DEL = 2;
+	final static int HEADER_LENGTH = 4 + 1 + 4 + 8 + 8 + 4 + 4;
+
+	private final static String SEGMENT_SUFFIX = ".seg";
+	private final static String SPILL_SUFFIX = ".spill";
+	private final static int MAX_KEY_LENGTH = 64*1024;
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * A segment file. It is referenced by the storage while in use, and by
+	 * each range being read from it, so a compacted segment is only closed
+	 * once the last GET out of it is done.
+	 */
+	static class Segment implements Closeable {
+		final long id;
+		final File file;
+		final FileChannel channel;
+		long size;
+		long synced;
+		final AtomicLong live = new AtomicLong();
+		private int refs = 1;
+
+		Segment(long id, File file) throws IOException {
+			this.id = id;
+			this.file = file;
+			this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+			this.size = channel.size();
+			this.synced = size;
+		}
+
+		synchronized boolean acquire() {
+			if (refs == 0) {
+				return false;
+			}
+			refs++;
+			return true;
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			if (refs > 0 && --refs == 0) {
+				channel.close();
+			}
+		}
+	}
+
+	/**
+	 * Where the data of a file is.
+	 */
+	static class Location {
+		final Segment segment;
+		final long offset;
+		final long recordLength;
+		final long dataOffset;
+		final long length;
+		final long lastModified;
+
+		Location(Segment segment, long offset, int keyLength, long length, long lastModified) {
+			this.segment = segment;
+			this.offset = offset;
+			this.recordLength = HEADER_LENGTH + keyLength + length;
+			this.dataOffset = offset + HEADER_LENGTH + keyLength;
+			this.length = length;
+			this.lastModified = lastModified;
+		}
+	}
+
+	/**
+	 * A record read back from a segment.
+	 */
+	static class Record {
+		byte type;
+		String key;
+		int keyLength;
+		long dataLength;
+		long lastModified;
+		int dataCrc;
+
+		long length() {
+			return HEADER_LENGTH + keyLength + dataLength;
+		}
+	}
+
+	/**
+	 * A new file, until it is renamed into place.
+	 */
+	private static class Staged {
+		byte[] data = new byte[0];
+		int dataLength;
+		File spillFile;
+		FileChannel spill;
+		long length;
+		int crc;
+
+		void discard() {
+			if (spill != null) {
+				try {
+					spill.close();
+				} catch (IOException e) {
+					// nothing we can do about
+				}
+				spillFile.delete();
+			}
+		}
+	}
+
+	private final File dir;
+	private long maxSegmentSize = 64L*1024*1024;
+	private int spillThreshold = 1024*1024;
+	private double compactRatio = 0.5;
+	private long compactIntervalMillis = 10000;
+
+	private final ConcurrentSkipListMap<String, Location> index = new ConcurrentSkipListMap<String, Location>();
+	private final Map<String, Staged> staged = new ConcurrentHashMap<String, Staged>();
+	private final AtomicLong spills = new AtomicLong();
+	// guarded by this
+	private final List<Segment> segments = new ArrayList<Segment>();
+	private Segment active;
+	private Thread compactor;
+	private volatile boolean closed;
+
+	/**
+	 * Open the storage in the given directory, recovering the index from the
+	 * segments found there.
+	 *
+	 * @param dir
+	 * @throws IOException
+	 */
+	public SegmentStorage(File dir) throws IOException {
+		this.dir = dir;
+		if (!dir.exists() && !dir.mkdirs()) {
+			throw new IOException("could not create segment folder");
+		}
+		recover();
+	}
+
+	private synchronized void recover() throws IOException {
+		File[] spilled = dir.listFiles(suffix(SPILL_SUFFIX));
+		if (spilled != null) {
+			for (File file : spilled) {
+				file.delete();
+			}
+		}
+		File[] files = dir.listFiles(suffix(SEGMENT_SUFFIX));
+		if (files == null) {
+			files = new File[0];
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				return Long.compare(segmentId(a), segmentId(b));
+			}
+		});
+		for (int i = 0; i < files.length; i++) {
+			Segment segment = new Segment(segmentId(files[i]), files[i]);
+			segments.add(segment);
+			scan(segment, i == files.length - 1);
+		}
+		if (segments.isEmpty()) {
+			active = newSegment(1);
+		}
+		else {
+			active = segments.get(segments.size() - 1);
+		}
+		active.channel.position(active.size);
+	}
+
+	private static FilenameFilter suffix(final String suffix) {
+		return new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(suffix);
+			}
+		};
+	}
+
+	private static long segmentId(File file) {
+		String name = file.getName();
+		return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+	}
+
+	private Segment newSegment(long id) throws IOException {
+		Segment segment = new Segment(id, new File(dir, String.format("%012d%s", id, SEGMENT_SUFFIX)));
+		segments.add(segment);
+		return segment;
+	}
+
+	/**
+	 * Replay the records of a segment into the index.
+	 */
+	private void scan(Segment segment, boolean verifyData) throws IOException {
+		long pos = 0;
+		while (pos < segment.size) {
+			Record record = readRecord(segment.channel, pos, segment.size, verifyData);
+			if (record == null) {
+				System.out.println(String.format("segment %s: torn record at %d, %d bytes cut off",
+						segment.file.getName(), pos, segment.size - pos));
+				segment.channel.truncate(pos);
+				segment.size = pos;
+				segment.synced = pos;
+				break;
+			}
+			if (record.type == PUT) {
+				Location location = new Location(segment, pos, record.keyLength,
+						record.dataLength, record.lastModified);
+				replaced(index.put(record.key, location));
+				segment.live.addAndGet(location.recordLength);
+			}
+			else {
+				replaced(index.remove(record.key));
+			}
+			pos += record.length();
+		}
+	}
+
+	private static void replaced(Location old) {
+		if (old != null) {
+			old.segment.live.addAndGet(-old.recordLength);
+		}
+	}
+
+	/**
+	 * Read the record at the given position.
+	 *
+	 * @return the record, or null if there is no valid one
+	 */
+	static Record readRecord(FileChannel channel, long pos, long size, boolean verifyData) throws IOException {
+		if (size - pos < HEADER_LENGTH) {
+			return null;
+		}
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		readFully(channel, header, pos);
+		header.flip();
+		if (header.getInt() != MAGIC) {
+			return null;
+		}
+		Record record = new Record();
+		record.type = header.get();
+		record.keyLength = header.getInt();
+		record.dataLength = header.getLong();
+		record.lastModified = header.getLong();
+		record.dataCrc = header.getInt();
+		int headerCrc = header.getInt();
+		if ((record.type != PUT && record.type != DEL)
+				|| record.keyLength < 0 || record.keyLength > MAX_KEY_LENGTH
+				|| record.dataLength < 0 || record.length() > size - pos) {
+			return null;
+		}
+		byte[] key = new byte[record.keyLength];
+		readFully(channel, ByteBuffer.wrap(key), pos + HEADER_LENGTH);
+		CRC32 crc = new CRC32();
+		crc.update(header.array(), 4, HEADER_LENGTH - 8);
+		crc.update(key, 0, key.length);
+		if ((int) crc.getValue() != headerCrc) {
+			return null;
+		}
+		record.key = new String(key, UTF8);
+		if (verifyData && record.dataLength > 0) {
+			crc.reset();
+			byte[] bytes = new byte[(int) Math.min(record.dataLength, 64*1024)];
+			long dataPos = pos + HEADER_LENGTH + record.keyLength;
+			long left = record.dataLength;
+			while (left > 0) {
+				ByteBuffer buf = ByteBuffer.wrap(bytes, 0, (int) Math.min(left, bytes.length));
+				readFully(channel, buf, dataPos);
+				crc.update(bytes, 0, buf.position());
+				dataPos += buf.position();
+				left -= buf.position();
+			}
+			if ((int) crc.getValue() != record.dataCrc) {
+				return null;
+			}
+		}
+		return record;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+		while (buf.hasRemaining()) {
+			int read = channel.read(buf, pos);
+			if (read == -1) {
+				throw new EOFException();
+			}
+			pos += read;
+		}
+	}
+
+	/**
+	 * Append a record to the active segment. To be called with the lock held.
+	 *
+	 * @param type
+	 * @param key
+	 * @param lastModified
+	 * @param dataCrc
+	 * @param data the data in memory, or null
+	 * @param from the channel to transfer the data from if not in memory
+	 * @param fromPosition
+	 * @param length
+	 * @return the location of the record
+	 */
+	private Location append(byte type, String key, long lastModified, int dataCrc,
+			ByteBuffer data, FileChannel from, long fromPosition, long length) throws IOException {
+		byte[] keyBytes = key.getBytes(UTF8);
+		long recordLength = HEADER_LENGTH + keyBytes.length + length;
+		if (active.size > 0 && active.size + recordLength > maxSegmentSize) {
+			// everything before the active segment is durable
+			active.channel.force(true);
+			active.synced = active.size;
+			active = newSegment(active.id + 1);
+		}
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH + keyBytes.length);
+		header.putInt(MAGIC);
+		header.put(type);
+		header.putInt(keyBytes.length);
+		header.putLong(length);
+		header.putLong(lastModified);
+		header.putInt(dataCrc);
+		CRC32 crc = new CRC32();
+		crc.update(header.array(), 4, HEADER_LENGTH - 8);
+		crc.update(keyBytes, 0, keyBytes.length);
+		header.putInt((int) crc.getValue());
+		header.put(keyBytes);
+		header.flip();
+
+		long offset = active.size;
+		FileChannel channel = active.channel;
+		try {
+			channel.position(offset);
+			while (header.hasRemaining()) {
+				channel.write(header);
+			}
+			if (data != null) {
+				while (data.hasRemaining()) {
+					channel.write(data);
+				}
+			}
+			else {
+				long done = 0;
+				while (done < length) {
+					long n = from.transferTo(fromPosition + done, length - done, channel);
+					if (n <= 0) {
+						throw new EOFException("data source ended early");
+					}
+					done += n;
+				}
+			}
+		} catch (IOException e) {
+			// leave no partial record behind the last complete one
+			channel.truncate(offset);
+			channel.position(offset);
+			throw e;
+		}
+		active.size = offset + recordLength;
+		return new Location(active, offset, keyBytes.length, length, lastModified);
+	}
+
+	private Location appendStaged(String key, Staged file) throws IOException {
+		long now = System.currentTimeMillis();
+		if (file.spill != null) {
+			return append(PUT, key, now, file.crc, null, file.spill, 0, file.length);
+		}
+		return append(PUT, key, now, file.crc, ByteBuffer.wrap(file.data, 0, file.dataLength), null, 0, file.length);
+	}
+
+	private Location appendCopy(String key, Location location, int dataCrc) throws IOException {
+		return append(PUT, key, location.lastModified, dataCrc, null,
+				location.segment.channel, location.dataOffset, location.length);
+	}
+
+	@Override
+	public boolean permits(String[] path) {
+		return PathKeys.permits(path);
+	}
+
+	@Override
+	public Stat stat(String[] path) {
+		String key = PathKeys.key(path);
+		Location location = path.length == 0 ? null : index.get(key);
+		if (location != null) {
+			return new Stat(location.length, location.lastModified, false);
+		}
+		Staged file = staged.get(key);
+		if (file != null) {
+			return new Stat(file.length, System.currentTimeMillis(), false);
+		}
+		if (PathKeys.isDirectory(index, path)) {
+			return new Stat(0, 0, true);
+		}
+		return null;
+	}
+
+	@Override
+	public long getUsableSpace(String[] path) {
+		return dir.getUsableSpace();
+	}
+
+	@Override
+	public ReadableByteChannel openRead(String[] path) throws IOException {
+		String key = PathKeys.key(path);
+		while (true) {
+			Location location = path.length == 0 ? null : index.get(key);
+			if (location == null) {
+				throw new NoSuchFileException(PathKeys.toString(key));
+			}
+			// a segment being compacted is closed once released by all,
+			// the file has then moved to another one.
+			if (location.segment.acquire()) {
+				return new FileRange(location.segment.channel, location.dataOffset,
+						location.length, location.segment);
+			}
+		}
+	}
+
+	@Override
+	public WritableByteChannel create(String[] path, long length) throws IOException {
+		String key = PathKeys.key(path);
+		Staged file = new Staged();
+		if (index.containsKey(key) || staged.putIfAbsent(key, file) != null) {
+			throw new FileAlreadyExistsException(PathKeys.toString(key));
+		}
+		return new Writer(file, (int) Math.min(Math.max(length, 16), spillThreshold));
+	}
+
+	@Override
+	public boolean delete(String[] path) throws IOException {
+		String key = PathKeys.key(path);
+		Staged file = staged.remove(key);
+		if (file != null) {
+			file.discard();
+			return true;
+		}
+		synchronized (this) {
+			if (path.length == 0 || !index.containsKey(key)) {
+				return false;
+			}
+			append(DEL, key, System.currentTimeMillis(), 0, ByteBuffer.allocate(0), null, 0, 0);
+			replaced(index.remove(key));
+			return true;
+		}
+	}
+
+	@Override
+	public Page list(String[] path, String cursor, int limit, int depth) {
+		return PathKeys.list(index, path, cursor, limit, depth);
+	}
+
+	/**
+	 * Renaming a staged file appends it to the log; renaming a stored one
+	 * copies its data under the new key and leaves a tombstone for the old.
+	 */
+	@Override
+	public void rename(String[] source, String[] target, boolean replace) throws IOException {
+		String sourceKey = PathKeys.key(source);
+		String targetKey = PathKeys.key(target);
+		synchronized (this) {
+			if (!replace && (index.containsKey(targetKey) || staged.containsKey(targetKey))) {
+				throw new FileAlreadyExistsException(PathKeys.toString(targetKey));
+			}
+			Staged file = staged.get(sourceKey);
+			Location location;
+			if (file != null) {
+				location = appendStaged(targetKey, file);
+				staged.remove(sourceKey);
+				file.discard();
+			}
+			else {
+				Location old = index.get(sourceKey);
+				if (old == null) {
+					throw new NoSuchFileException(PathKeys.toString(sourceKey));
+				}
+				Record record = readRecord(old.segment.channel, old.offset, old.segment.size, false);
+				location = appendCopy(targetKey, old, record.dataCrc);
+				append(DEL, sourceKey, System.currentTimeMillis(), 0, ByteBuffer.allocate(0), null, 0, 0);
+				replaced(index.remove(sourceKey));
+			}
+			replaced(index.put(targetKey, location));
+			location.segment.live.addAndGet(location.recordLength);
+		}
+	}
+
+	/**
+	 * All the appends go to the active segment, so syncing it makes any
+	 * file, or rename, durable. A group of files synced one after another
+	 * costs one sync only, the others find nothing left to sync.
+	 */
+	@Override
+	public void sync(String[] path) throws IOException {
+		syncActive();
+	}
+
+	private void syncActive() throws IOException {
+		Segment segment;
+		long size;
+		synchronized (this) {
+			segment = active;
+			size = segment.size;
+			if (size <= segment.synced) {
+				return;
+			}
+		}
+		segment.channel.force(true);
+		synchronized (this) {
+			segment.synced = Math.max(segment.synced, size);
+		}
+	}
+
+	/**
+	 * Start the background compactor.
+	 */
+	public void startCompactor() {
+		compactor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (!closed) {
+					try {
+						Thread.sleep(compactIntervalMillis);
+						compact();
+					} catch (InterruptedException e) {
+						return;
+					} catch (IOException e) {
+						System.out.println("segment compaction failed: " + e.getMessage());
+					}
+				}
+			}
+		}, "segment-compactor");
+		compactor.setDaemon(true);
+		compactor.start();
+	}
+
+	/**
+	 * Compact the segments, other than the active one, whose live data is
+	 * less than the compact ratio of their size.
+	 *
+	 * @return the number of segments compacted
+	 * @throws IOException
+	 */
+	public int compact() throws IOException {
+		List<Segment> candidates = new ArrayList<Segment>();
+		synchronized (this) {
+			for (Segment segment : segments) {
+				if (segment != active && segment.live.get() < compactRatio * segment.size) {
+					candidates.add(segment);
+				}
+			}
+		}
+		for (Segment segment : candidates) {
+			compact(segment);
+		}
+		return candidates.size();
+	}
+
+	private void compact(Segment segment) throws IOException {
+		long pos = 0;
+		while (pos < segment.size && !closed) {
+			Record record = readRecord(segment.channel, pos, segment.size, false);
+			if (record == null) {
+				break;
+			}
+			synchronized (this) {
+				Location location = index.get(record.key);
+				if (record.type == PUT) {
+					// still the current version of the file
+					if (location != null && location.segment == segment && location.offset == pos) {
+						Location moved = appendCopy(record.key, location, record.dataCrc);
+						replaced(index.put(record.key, moved));
+						moved.segment.live.addAndGet(moved.recordLength);
+					}
+				}
+				// the tombstone still hides an older version, unless there is
+				// no older segment.
+				else if (location == null && segments.get(0) != segment) {
+					append(DEL, record.key, record.lastModified, 0, ByteBuffer.allocate(0), null, 0, 0);
+				}
+			}
+			pos += record.length();
+		}
+		if (closed) {
+			return;
+		}
+		// the copies are durable before the originals are gone
+		syncActive();
+		synchronized (this) {
+			segments.remove(segment);
+		}
+		segment.file.delete();
+		segment.close();
+	}
+
+	/**
+	 * Stop the compactor, sync and close the segments.
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		if (compactor != null) {
+			compactor.interrupt();
+			try {
+				compactor.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (this) {
+			active.channel.force(true);
+			for (Segment segment : segments) {
+				segment.close();
+			}
+			segments.clear();
+		}
+		for (Staged file : staged.values()) {
+			file.discard();
+		}
+		staged.clear();
+	}
+
+	/**
+	 * @return the number of segment files
+	 */
+	public synchronized int getSegmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * @return the bytes of all the segments
+	 */
+	public synchronized long getTotalBytes() {
+		long total = 0;
+		for (Segment segment : segments) {
+			total += segment.size;
+		}
+		return total;
+	}
+
+	/**
+	 * @return the bytes of the records of the current files
+	 */
+	public synchronized long getLiveBytes() {
+		long live = 0;
+		for (Segment segment : segments) {
+			live += segment.live.get();
+		}
+		return live;
+	}
+
+	/**
+	 * Set the size from which a new segment is started.
+	 *
+	 * @param maxSegmentSize
+	 */
+	public void setMaxSegmentSize(long maxSegmentSize) {
+		this.maxSegmentSize = maxSegmentSize;
+	}
+
+	/**
+	 * Set the size from which a new file is staged in a file rather than
+	 * in memory.
+	 *
+	 * @param spillThreshold
+	 */
+	public void setSpillThreshold(int spillThreshold) {
+		this.spillThreshold = spillThreshold;
+	}
+
+	/**
+	 * Set the ratio of live data under which a segment is compacted.
+	 *
+	 * @param compactRatio
+	 */
+	public void setCompactRatio(double compactRatio) {
+		this.compactRatio = compactRatio;
+	}
+
+	public void setCompactInterval(long interval, TimeUnit unit) {
+		this.compactIntervalMillis = unit.toMillis(interval);
+	}
+
+	/**
+	 * Writes a new file into its staging, in memory up to the spill
+	 * threshold, then to a spill file.
+	 */
+	private class Writer implements WritableByteChannel {
+		private final Staged file;
+		private final CRC32 crc = new CRC32();
+		private byte[] scratch;
+		private boolean open = true;
+
+		Writer(Staged file, int capacity) {
+			this.file = file;
+			file.data = new byte[capacity];
+		}
+
+		@Override
+		public int write(ByteBuffer src) throws IOException {
+			if (!open) {
+				throw new ClosedChannelException();
+			}
+			int n = src.remaining();
+			if (file.spill == null && file.dataLength + n <= spillThreshold) {
+				if (file.dataLength + n > file.data.length) {
+					file.data = Arrays.copyOf(file.data,
+							Math.min(spillThreshold, Math.max(file.dataLength + n, file.data.length * 2)));
+				}
+				src.get(file.data, file.dataLength, n);
+				crc.update(file.data, file.dataLength, n);
+				file.dataLength += n;
+			}
+			else {
+				if (file.spill == null) {
+					spill();
+				}
+				if (scratch == null) {
+					scratch = new byte[64*1024];
+				}
+				while (src.hasRemaining()) {
+					int chunk = Math.min(src.remaining(), scratch.length);
+					src.get(scratch, 0, chunk);
+					crc.update(scratch, 0, chunk);
+					ByteBuffer buf = ByteBuffer.wrap(scratch, 0, chunk);
+					while (buf.hasRemaining()) {
+						file.spill.write(buf);
+					}
+				}
+			}
+			file.length += n;
+			return n;
+		}
+
+		private void spill() throws IOException {
+			file.spillFile = new File(dir, spills.incrementAndGet() + "-" + System.nanoTime() + SPILL_SUFFIX);
+			file.spill = FileChannel.open(file.spillFile.toPath(), StandardOpenOption.CREATE_NEW,
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+			ByteBuffer buf = ByteBuffer.wrap(file.data, 0, file.dataLength);
+			while (buf.hasRemaining()) {
+				file.spill.write(buf);
+			}
+			file.data = new byte[0];
+			file.dataLength = 0;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return open;
+		}
+
+		@Override
+		public void close() {
+			open = false;
+			file.crc = (int) crc.getValue();
+		}
+	}
+}
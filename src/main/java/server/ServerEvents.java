@@ -0,0 +1,100 @@
+package server;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * JDK Flight Recorder events of the file server. The events of one request
+ * share its request id, so a recording shows where a slow request spent its
+ * time. When no recording is running the events are never committed, and the
+ * short-lived ones are allocated on the stack by the JIT.
+ */
+public final class ServerEvents {
+
+	private ServerEvents(){}
+
+	@Name("niofileserver.HeaderDecode")
+	@Label("Header Decode")
+	@Category({"NIO File Server", "Request"})
+	@StackTrace(false)
+	public static class HeaderDecode extends Event {
+		@Label("Request Id")
+		public long requestId;
+
+		@Label("Header Length")
+		@DataAmount
+		public int headerLength;
+	}
+
+	@Name("niofileserver.AckPrepare")
+	@Label("Acknowledgment Prepare")
+	@Description("Path resolution, file lookup and opening of a request")
+	@Category({"NIO File Server", "Request"})
+	@StackTrace(false)
+	public static class AckPrepare extends Event {
+		@Label("Request Id")
+		public long requestId;
+
+		@Label("Action")
+		public String action;
+
+		@Label("Path")
+		public String path;
+
+		@Label("Message")
+		public String message;
+	}
+
+	@Name("niofileserver.FirstByte")
+	@Label("First Byte")
+	@Description("From the header being decoded to the first byte of file content being transferred")
+	@Category({"NIO File Server", "Request"})
+	@StackTrace(false)
+	public static class FirstByte extends Event {
+		@Label("Request Id")
+		public long requestId;
+
+		@Label("Action")
+		public String action;
+	}
+
+	@Name("niofileserver.RequestComplete")
+	@Label("Request Complete")
+	@Description("From the header being decoded to the last byte of the response being written")
+	@Category({"NIO File Server", "Request"})
+	@StackTrace(false)
+	public static class RequestComplete extends Event {
+		@Label("Request Id")
+		public long requestId;
+
+		@Label("Action")
+		public String action;
+
+		@Label("Message")
+		public String message;
+
+		@Label("Data Length")
+		@DataAmount
+		public long dataLength;
+	}
+
+	@Name("niofileserver.SelectorStall")
+	@Label("Selector Stall")
+	@Description("Handling of the selected keys of one select() that took longer than the threshold")
+	@Category({"NIO File Server", "Selector"})
+	@Threshold("20 ms")
+	@StackTrace(false)
+	public static class SelectorStall extends Event {
+		@Label("Port")
+		public int port;
+
+		@Label("Selected Keys")
+		public int selectedKeys;
+	}
+}
@@ -0,0 +1,223 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import common.AppConstant.Action;
+import common.AppConstant.Message;
+
+/**
+ * Counters and histograms of a file server. All the fields are updated by
+ * the selector thread, and may be read by any other thread at any time.
+ */
+public class ServerStats {
+
+	private final AtomicLong connectionsAccepted = new AtomicLong();
+	private final AtomicLong connectionsClosed = new AtomicLong();
+	private final AtomicLong bytesReceived = new AtomicLong();
+	private final AtomicLong bytesSent = new AtomicLong();
+	private final AtomicLongArray requests = new AtomicLongArray(Action.values().length);
+	private final AtomicLongArray responses = new AtomicLongArray(Message.values().length);
+	private final LatencyHistogram[] latencies = new LatencyHistogram[Action.values().length];
+
+	// group commit of durable uploads
+	private final static double[] BATCH_BOUNDS = { 1, 2, 4, 8, 16, 32, 64, 128, 256, 512, 1024 };
+	private final AtomicLong commits = new AtomicLong();
+	private final AtomicLong commitFailures = new AtomicLong();
+	private final LatencyHistogram commitBatchSizes = new LatencyHistogram(BATCH_BOUNDS, 1);
+	private final LatencyHistogram commitDurations = new LatencyHistogram();
+
+	public ServerStats() {
+		for (int i = 0; i < latencies.length; i++) {
+			latencies[i] = new LatencyHistogram();
+		}
+	}
+
+	public void connectionAccepted() {
+		connectionsAccepted.incrementAndGet();
+	}
+
+	public void connectionClosed() {
+		connectionsClosed.incrementAndGet();
+	}
+
+	public void bytesReceived(long bytes) {
+		bytesReceived.addAndGet(bytes);
+	}
+
+	public void bytesSent(long bytes) {
+		bytesSent.addAndGet(bytes);
+	}
+
+	public void requestReceived(Action action) {
+		requests.incrementAndGet(action.ordinal());
+	}
+
+	public void responseSent(Message message) {
+		responses.incrementAndGet(message.ordinal());
+	}
+
+	/**
+	 * Record the time a request took, from the header being decoded to
+	 * the last byte of the response being handed to the socket.
+	 *
+	 * @param action the request action
+	 * @param nanos
+	 */
+	public void requestCompleted(Action action, long nanos) {
+		latencies[action.ordinal()].record(nanos);
+	}
+
+	/**
+	 * Record a batch of uploads made durable together.
+	 *
+	 * @param size number of uploads in the batch
+	 * @param failures number of them that could not be committed
+	 * @param nanos time taken by the fsyncs and renames of the batch
+	 */
+	public void batchCommitted(int size, int failures, long nanos) {
+		commits.addAndGet(size - failures);
+		commitFailures.addAndGet(failures);
+		commitBatchSizes.record(size);
+		commitDurations.record(nanos);
+	}
+
+	public long getCommits() {
+		return commits.get();
+	}
+
+	public LatencyHistogram getCommitBatchSizes() {
+		return commitBatchSizes;
+	}
+
+	public long getConnectionsAccepted() {
+		return connectionsAccepted.get();
+	}
+
+	public long getConnectionsActive() {
+		return connectionsAccepted.get() - connectionsClosed.get();
+	}
+
+	public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	public long getRequests(Action action) {
+		return requests.get(action.ordinal());
+	}
+
+	public long getResponses(Message message) {
+		return responses.get(message.ordinal());
+	}
+
+	public LatencyHistogram getLatency(Action action) {
+		return latencies[action.ordinal()];
+	}
+
+	/**
+	 * Render all the counters and histograms in the Prometheus text
+	 * exposition format (version 0.0.4).
+	 *
+	 * @return
+	 */
+	public String toPrometheus() {
+		StringBuilder sb = new StringBuilder(4096);
+		counter(sb, "fileserver_connections_accepted_total",
+				"Client connections accepted.", connectionsAccepted.get());
+		gauge(sb, "fileserver_connections_active",
+				"Client connections currently open.", getConnectionsActive());
+		counter(sb, "fileserver_received_bytes_total",
+				"Bytes read from client sockets.", bytesReceived.get());
+		counter(sb, "fileserver_sent_bytes_total",
+				"Bytes written to client sockets.", bytesSent.get());
+
+		sb.append("# HELP fileserver_requests_total Requests received, by action.\n");
+		sb.append("# TYPE fileserver_requests_total counter\n");
+		for (Action action : Action.values()) {
+			long n = requests.get(action.ordinal());
+			if (n > 0) {
+				sb.append("fileserver_requests_total{action=\"").append(action.name())
+					.append("\"} ").append(n).append('\n');
+			}
+		}
+
+		sb.append("# HELP fileserver_responses_total Responses sent, by message.\n");
+		sb.append("# TYPE fileserver_responses_total counter\n");
+		for (Message message : Message.values()) {
+			long n = responses.get(message.ordinal());
+			if (n > 0) {
+				sb.append("fileserver_responses_total{message=\"").append(message.name())
+					.append("\"} ").append(n).append('\n');
+			}
+		}
+
+		sb.append("# HELP fileserver_request_duration_seconds Request latency, by action.\n");
+		sb.append("# TYPE fileserver_request_duration_seconds histogram\n");
+		for (Action action : Action.values()) {
+			LatencyHistogram h = latencies[action.ordinal()];
+			if (h.getCount() > 0) {
+				histogram(sb, "fileserver_request_duration_seconds",
+						"action=\"" + action.name() + "\"", h);
+			}
+		}
+
+		if (commitBatchSizes.getCount() > 0) {
+			counter(sb, "fileserver_commits_total",
+					"Uploads made durable by the group committer.", commits.get());
+			counter(sb, "fileserver_commit_failures_total",
+					"Uploads the group committer failed to make durable.", commitFailures.get());
+			sb.append("# HELP fileserver_commit_batch_size Uploads per group commit.\n");
+			sb.append("# TYPE fileserver_commit_batch_size histogram\n");
+			histogram(sb, "fileserver_commit_batch_size", "", commitBatchSizes);
+			sb.append("# HELP fileserver_commit_duration_seconds Time to fsync and rename one batch.\n");
+			sb.append("# TYPE fileserver_commit_duration_seconds histogram\n");
+			histogram(sb, "fileserver_commit_duration_seconds", "", commitDurations);
+		}
+		return sb.toString();
+	}
+
+	static void counter(StringBuilder sb, String name, String help, long value) {
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(" counter\n");
+		sb.append(name).append(' ').append(value).append('\n');
+	}
+
+	static void gauge(StringBuilder sb, String name, String help, long value) {
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(" gauge\n");
+		sb.append(name).append(' ').append(value).append('\n');
+	}
+
+	/**
+	 * Append the samples of a histogram, without the HELP and TYPE lines.
+	 *
+	 * @param sb
+	 * @param name
+	 * @param labels labels of the series, without braces, may be empty
+	 * @param h
+	 */
+	static void histogram(StringBuilder sb, String name, String labels, LatencyHistogram h) {
+		String prefix = labels.isEmpty() ? "" : labels + ",";
+		double[] bounds = h.getBounds();
+		long[] counts = h.getCumulativeCounts();
+		for (int i = 0; i < bounds.length; i++) {
+			sb.append(name).append("_bucket{").append(prefix).append("le=\"")
+				.append(format(bounds[i])).append("\"} ").append(counts[i]).append('\n');
+		}
+		sb.append(name).append("_bucket{").append(prefix).append("le=\"+Inf\"} ")
+			.append(counts[bounds.length]).append('\n');
+		String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+		sb.append(name).append("_sum").append(braces).append(' ')
+			.append(format(h.getSum())).append('\n');
+		sb.append(name).append("_count").append(braces).append(' ')
+			.append(h.getCount()).append('\n');
+	}
+
+	private static String format(double d) {
+		return Double.toString(d);
+	}
+}
@@ -0,0 +1,85 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Moves the files of an existing root into the shards of a ShardedStorage.
+ * The files are moved one at a time within their directory, and the storage
+ * finds a file whether it has been moved yet or not, so the server may keep
+ * running meanwhile, and an interrupted migration can simply be run again.
+ */
+public class ShardMigrator {
+
+	private final ShardedStorage storage;
+	private long moved;
+
+	public ShardMigrator(ShardedStorage storage) {
+		this.storage = storage;
+	}
+
+	/**
+	 * Move all the files under the root of the storage into their shard.
+	 *
+	 * @return the number of files moved
+	 * @throws IOException
+	 */
+	public long migrate() throws IOException {
+		moved = 0;
+		migrate(storage.getRoot());
+		return moved;
+	}
+
+	private void migrate(File dir) throws IOException {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			throw new IOException("could not list " + dir);
+		}
+		for (File file : files) {
+			String name = file.getName();
+			if (name.startsWith(ShardedStorage.SHARD_PREFIX)) {
+				continue;
+			}
+			if (file.isDirectory()) {
+				migrate(file);
+				continue;
+			}
+			File shard = new File(dir, storage.shardOf(name));
+			if (!shard.exists()) {
+				shard.mkdir();
+			}
+			// a file uploaded into the shard meanwhile is the newer one
+			File target = new File(shard, name);
+			if (target.exists()) {
+				file.delete();
+			}
+			else {
+				Files.move(file.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+				moved++;
+			}
+		}
+	}
+
+	public static void main(String[] args) {
+		if (args.length < 1 || args.length > 2) {
+			System.err.println("usage: ShardMigrator root [fanout]");
+			System.exit(-1);
+		}
+		File root = new File(args[0]);
+		try {
+			int fanout = args.length > 1 ? Integer.parseInt(args[1]) : ShardedStorage.readFanout(root);
+			if (fanout == 0) {
+				fanout = 256;
+			}
+			long start = System.nanoTime();
+			long moved = new ShardMigrator(new ShardedStorage(root, fanout)).migrate();
+			System.out.println(String.format("moved %d files into %d shards per directory in %d ms",
+					moved, fanout, (System.nanoTime() - start) / 1000000));
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+}
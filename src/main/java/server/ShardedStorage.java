@@ -0,0 +1,270 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A LocalStorage which spreads the files of a directory over a fixed number
+ * of shard subdirectories, chosen by the hash of the file name, so a
+ * directory of a million files does not make one physical directory of a
+ * million entries. The directories themselves are not sharded, and the shards
+ * are merged back when listing, so the logical paths are unchanged.
+ *
+ * A file which is not in its shard is looked for directly in its directory,
+ * so a root can be migrated while in use, see ShardMigrator. The fan-out is
+ * written to the root, and cannot be changed afterwards.
+ */
+public class ShardedStorage extends LocalStorage {
+
+	/**
+	 * The prefix of the shard directories, not allowed in the paths.
+	 */
+	public static final String SHARD_PREFIX = ".shard-";
+	static final String LAYOUT_FILE = SHARD_PREFIX + "layout";
+
+	private final int fanout;
+	private final String format;
+	// the shard directories with entries changed since their last sync
+	private final Set<File> dirty = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * @param root
+	 * @param fanout the number of shards of a directory
+	 * @throws IOException if the root is laid out with another fan-out
+	 */
+	public ShardedStorage(File root, int fanout) throws IOException {
+		super(root);
+		if (fanout < 2) {
+			throw new IllegalArgumentException("fan-out must be at least 2");
+		}
+		int stored = readFanout(root);
+		if (stored == 0) {
+			writeFanout(root, fanout);
+		}
+		else if (stored != fanout) {
+			throw new IOException(String.format("%s is sharded %d ways, not %d", root, stored, fanout));
+		}
+		this.fanout = fanout;
+		this.format = SHARD_PREFIX + "%0" + Integer.toHexString(fanout - 1).length() + "x";
+	}
+
+	/**
+	 * @param root
+	 * @return the fan-out the root is laid out with, 0 if it is not sharded
+	 * @throws IOException
+	 */
+	public static int readFanout(File root) throws IOException {
+		File file = new File(root, LAYOUT_FILE);
+		if (!file.exists()) {
+			return 0;
+		}
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			return Integer.parseInt(reader.readLine().trim());
+		} catch (RuntimeException e) {
+			throw new IOException("invalid layout file: " + file);
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static void writeFanout(File root, int fanout) throws IOException {
+		if (!root.exists()) {
+			root.mkdirs();
+		}
+		OutputStream out = new FileOutputStream(new File(root, LAYOUT_FILE));
+		try {
+			out.write((fanout + "\n").getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Get the shard directory of a file name.
+	 *
+	 * @param name
+	 * @return
+	 */
+	public String shardOf(String name) {
+		int h = name.hashCode();
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		return String.format(format, (h & 0x7fffffff) % fanout);
+	}
+
+	/**
+	 * Get the file of a path: the file in its shard if there is one, or else
+	 * the directory, or the file not migrated yet, of that name; the file in
+	 * its shard if there is nothing at all.
+	 */
+	@Override
+	public File toFile(String[] path) throws IOException {
+		File plain = super.toFile(path);
+		if (path.length == 0) {
+			return plain;
+		}
+		String name = path[path.length - 1];
+		File sharded = new File(new File(plain.getParentFile(), shardOf(name)), name);
+		if (sharded.exists() || !plain.exists()) {
+			return sharded;
+		}
+		return plain;
+	}
+
+	@Override
+	public boolean permits(String[] path) throws IOException {
+		for (String level : path) {
+			if (level.startsWith(SHARD_PREFIX)) {
+				return false;
+			}
+		}
+		return super.permits(path);
+	}
+
+	@Override
+	public WritableByteChannel create(String[] path, long length) throws IOException {
+		WritableByteChannel channel = super.create(path, length);
+		changed(toFile(path));
+		return channel;
+	}
+
+	/**
+	 * Delete a file, or a directory with nothing but empty shards.
+	 */
+	@Override
+	public boolean delete(String[] path) throws IOException {
+		File file = toFile(path);
+		if (file.isDirectory()) {
+			File[] children = file.listFiles();
+			if (children == null) {
+				return false;
+			}
+			for (File child : children) {
+				if (!isShard(child)) {
+					return false;
+				}
+				String[] names = child.list();
+				if (names == null || names.length > 0) {
+					return false;
+				}
+			}
+			for (File child : children) {
+				child.delete();
+				dirty.remove(child);
+			}
+			return file.delete();
+		}
+		if (!file.delete()) {
+			return false;
+		}
+		changed(file);
+		return true;
+	}
+
+	@Override
+	public void rename(String[] source, String[] target, boolean replace) throws IOException {
+		File from = toFile(source);
+		File to = toFile(target);
+		File parent = to.getParentFile();
+		if (!parent.exists()) {
+			parent.mkdirs();
+		}
+		super.rename(source, target, replace);
+		changed(from);
+		changed(to);
+	}
+
+	/**
+	 * Sync the shards of a directory changed since their last sync with the
+	 * directory itself.
+	 */
+	@Override
+	public void sync(String[] path) throws IOException {
+		File file = toFile(path);
+		if (file.isDirectory()) {
+			Iterator<File> it = dirty.iterator();
+			while (it.hasNext()) {
+				File shard = it.next();
+				if (shard.getParentFile().equals(file)) {
+					it.remove();
+					force(shard);
+				}
+			}
+		}
+		super.sync(path);
+	}
+
+	private static void force(File dir) {
+		try {
+			FileChannel fc = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+			try {
+				fc.force(true);
+			} finally {
+				fc.close();
+			}
+		} catch (IOException e) {
+			// directories cannot be opened on some platforms, or the shard
+			// has been removed meanwhile.
+		}
+	}
+
+	private void changed(File file) {
+		File parent = file.getParentFile();
+		if (isShard(parent)) {
+			dirty.add(parent);
+		}
+	}
+
+	private static boolean isShard(File file) {
+		return file.getName().startsWith(SHARD_PREFIX) && file.isDirectory();
+	}
+
+	/**
+	 * Merge the files of the shards with the subdirectories, and the files
+	 * not migrated yet.
+	 */
+	@Override
+	protected SortedMap<String, File> entries(File dir) {
+		SortedMap<String, File> entries = new TreeMap<String, File>();
+		String[] names = dir.list();
+		if (names == null) {
+			return entries;
+		}
+		for (String name : names) {
+			File file = new File(dir, name);
+			if (!name.startsWith(SHARD_PREFIX)) {
+				if (!entries.containsKey(name)) {
+					entries.put(name, file);
+				}
+			}
+			else if (file.isDirectory()) {
+				String[] children = file.list();
+				if (children != null) {
+					for (String child : children) {
+						entries.put(child, new File(file, child));
+					}
+				}
+			}
+		}
+		return entries;
+	}
+
+	public int getFanout() {
+		return fanout;
+	}
+}
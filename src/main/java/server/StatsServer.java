@@ -0,0 +1,120 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A minimal HTTP/1.0 listener serving the server stats in the Prometheus
+ * text format on "GET /metrics". It runs its own selector in its own thread,
+ * so a scrape never holds up the file-serving event loop.
+ */
+public class StatsServer extends NIOServer {
+
+	private final static int MAX_REQUEST_LENGTH = 8192;
+
+	private ServerStats stats;
+
+	private Map<SocketChannel, Exchange> clients = new HashMap<SocketChannel, Exchange>();
+
+	/**
+	 * State of one HTTP exchange: the request bytes read so far, then
+	 * the response to be written.
+	 */
+	private static class Exchange {
+		ByteBuffer in = ByteBuffer.allocate(1024);
+		ByteBuffer out;
+	}
+
+	@Override
+	protected void handleClient(SelectionKey key) throws IOException {
+		SocketChannel sc = (SocketChannel) key.channel();
+		Exchange exchange = clients.get(sc);
+		if (exchange == null) {
+			throw new IllegalStateException("unknown client");
+		}
+		try {
+			if (exchange.out == null && key.isReadable()) {
+				read(sc, exchange);
+			}
+			if (exchange.out != null) {
+				sc.write(exchange.out);
+				if (exchange.out.hasRemaining()) {
+					sc.register(getSelector(), SelectionKey.OP_WRITE);
+				}
+				else {
+					close(sc);
+				}
+			}
+		} catch (IOException e) {
+			close(sc);
+			throw e;
+		}
+	}
+
+	private void read(SocketChannel sc, Exchange exchange) throws IOException {
+		if (!exchange.in.hasRemaining()) {
+			if (exchange.in.capacity() >= MAX_REQUEST_LENGTH) {
+				exchange.out = response(431, "Request Header Fields Too Large", "");
+				return;
+			}
+			ByteBuffer in = ByteBuffer.allocate(exchange.in.capacity() << 1);
+			exchange.in.flip();
+			in.put(exchange.in);
+			exchange.in = in;
+		}
+		int read = sc.read(exchange.in);
+		if (read == -1) {
+			throw new IOException("socket closed");
+		}
+		String request = new String(exchange.in.array(), 0, exchange.in.position(),
+				StandardCharsets.ISO_8859_1);
+		if (!request.contains("\r\n\r\n") && !request.contains("\n\n")) {
+			return;
+		}
+		String[] requestLine = request.substring(0, request.indexOf('\n')).trim().split(" ");
+		if (requestLine.length < 2 || !requestLine[0].equals("GET")) {
+			exchange.out = response(405, "Method Not Allowed", "");
+		}
+		else if (!requestLine[1].equals("/metrics") && !requestLine[1].startsWith("/metrics?")) {
+			exchange.out = response(404, "Not Found", "");
+		}
+		else {
+			exchange.out = response(200, "OK", stats.toPrometheus());
+		}
+	}
+
+	private ByteBuffer response(int status, String reason, String body) {
+		byte[] content = body.getBytes(StandardCharsets.UTF_8);
+		String head = "HTTP/1.0 " + status + " " + reason + "\r\n"
+				+ "Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n"
+				+ "Content-Length: " + content.length + "\r\n"
+				+ "Connection: close\r\n\r\n";
+		byte[] headBytes = head.getBytes(StandardCharsets.ISO_8859_1);
+		ByteBuffer buf = ByteBuffer.allocate(headBytes.length + content.length);
+		buf.put(headBytes).put(content).flip();
+		return buf;
+	}
+
+	private void close(SocketChannel sc) throws IOException {
+		clients.remove(sc);
+		sc.close();
+	}
+
+	@Override
+	protected void registeredClient(SocketChannel sc) throws IOException {
+		clients.put(sc, new Exchange());
+	}
+
+	public ServerStats getStats() {
+		return stats;
+	}
+
+	public void setStats(ServerStats stats) {
+		this.stats = stats;
+	}
+}
@@ -0,0 +1,142 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+/**
+ * Where the files of the server are stored. A file is addressed by its path
+ * relative to the root of the storage, one element per level, the way it
+ * comes in the request header. The ChannelHandler only goes through this
+ * interface, so a storage engine can be plugged in, or benchmarked against
+ * another one, without touching the protocol.
+ *
+ * The methods are called by the selector thread, except rename() and sync()
+ * which the group committer calls from its own thread, and the ones the
+ * TreeDeleter calls from its own, so implementations have to be thread
+ * safe.
+ */
+public interface Storage {
+
+	/**
+	 * What is known about a stored file.
+	 */
+	public static class Stat {
+		public final long length;
+		public final long lastModified;
+		public final boolean directory;
+
+		public Stat(long length, long lastModified, boolean directory) {
+			this.length = length;
+			this.lastModified = lastModified;
+			this.directory = directory;
+		}
+	}
+
+	/**
+	 * One page of a listing.
+	 */
+	public static class Page {
+		public final List<String[]> paths;
+		public final String next;
+
+		/**
+		 * @param paths the files, relative to the root of the storage
+		 * @param next the cursor of the next page, null if this is the last one
+		 */
+		public Page(List<String[]> paths, String next) {
+			this.paths = paths;
+			this.next = next;
+		}
+	}
+
+	/**
+	 * Test if a path is allowed, i.e. does not lead out of the storage.
+	 *
+	 * @param path
+	 * @return
+	 * @throws IOException
+	 */
+	public boolean permits(String[] path) throws IOException;
+
+	/**
+	 * @param path
+	 * @return the file or directory, null if there is none
+	 * @throws IOException
+	 */
+	public Stat stat(String[] path) throws IOException;
+
+	/**
+	 * @param path
+	 * @return the number of bytes that can still be stored at the path
+	 * @throws IOException
+	 */
+	public long getUsableSpace(String[] path) throws IOException;
+
+	/**
+	 * Open a file for reading.
+	 *
+	 * @param path
+	 * @return
+	 * @throws IOException if there is no such file
+	 */
+	public ReadableByteChannel openRead(String[] path) throws IOException;
+
+	/**
+	 * Create a new file, and its missing parent directories, for writing.
+	 * Some storages only make the content readable once the file has been
+	 * renamed into place, which is how the uploads are stored.
+	 *
+	 * @param path
+	 * @param length the number of bytes to be written, a hint only
+	 * @return
+	 * @throws java.nio.file.FileAlreadyExistsException if the file exists
+	 * @throws IOException
+	 */
+	public WritableByteChannel create(String[] path, long length) throws IOException;
+
+	/**
+	 * Delete a file, or an empty directory.
+	 *
+	 * @param path
+	 * @return false if there is nothing deleted
+	 * @throws IOException
+	 */
+	public boolean delete(String[] path) throws IOException;
+
+	/**
+	 * List the files under a directory, recursively, or the file itself if
+	 * it is not a directory, in the order of their paths compared level by
+	 * level. The subtrees deeper than the depth are not walked at all.
+	 *
+	 * @param path
+	 * @param cursor where the previous page ended, null for the first page
+	 * @param limit maximum number of files in the page
+	 * @param depth the most levels of the files under the path, 0 for any
+	 * @return
+	 * @throws IOException
+	 */
+	public Page list(String[] path, String cursor, int limit, int depth) throws IOException;
+
+	/**
+	 * Rename a file, atomically when it replaces an existing one, creating
+	 * the missing parent directories of the target.
+	 *
+	 * @param source
+	 * @param target
+	 * @param replace whether an existing target may be replaced
+	 * @throws java.nio.file.FileAlreadyExistsException if the target exists
+	 * and is not to be replaced
+	 * @throws IOException
+	 */
+	public void rename(String[] source, String[] target, boolean replace) throws IOException;
+
+	/**
+	 * Make a file, or the entries of a directory, durable.
+	 *
+	 * @param path
+	 * @throws IOException
+	 */
+	public void sync(String[] path) throws IOException;
+}
@@ -0,0 +1,197 @@
+package server;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import common.AppConstant.Action;
+import common.AppConstant.Message;
+import common.TraceRecord;
+
+/**
+ * Records every request into a binary trace file, see TraceRecord for the
+ * format. Records are appended to an in-memory buffer by the selector
+ * thread; full buffers are handed to a writer thread, so the selector never
+ * waits on the disk. When the writer falls behind and no buffer is free,
+ * records are dropped and counted rather than holding up the requests.
+ * The records are handed over at least every second, even when no request
+ * comes, so at most the last seconds of a trace are lost in a crash.
+ */
+public class TraceRecorder implements Closeable {
+
+	private final static int BUFFER_SIZE = 64*1024;
+	private final static int BUFFER_COUNT = 8;
+	private final static long FLUSH_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<ByteBuffer>(BUFFER_COUNT);
+	private final BlockingQueue<ByteBuffer> full = new ArrayBlockingQueue<ByteBuffer>(BUFFER_COUNT + 1);
+	// handed to the writer thread to make it stop
+	private final ByteBuffer endOfTrace = ByteBuffer.allocate(0);
+	private final FileChannel out;
+	private final Thread writer;
+	private final long startNanos;
+	private final long flushIntervalNanos;
+	private final AtomicLong recorded = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final TraceRecord record = new TraceRecord();
+	private ByteBuffer current;
+	private long lastHandoff;
+	private boolean closed;
+	private volatile IOException failure;
+
+	public TraceRecorder(File file) throws IOException {
+		this(file, FLUSH_INTERVAL_NANOS);
+	}
+
+	/**
+	 * @param file
+	 * @param flushIntervalNanos the longest the records stay buffered
+	 * @throws IOException
+	 */
+	TraceRecorder(File file, long flushIntervalNanos) throws IOException {
+		this.flushIntervalNanos = flushIntervalNanos;
+		out = new FileOutputStream(file).getChannel();
+		startNanos = System.nanoTime();
+		lastHandoff = startNanos;
+		ByteBuffer header = ByteBuffer.allocate(TraceRecord.HEADER_LENGTH);
+		TraceRecord.writeHeader(header, System.currentTimeMillis());
+		header.flip();
+		while (header.hasRemaining()) {
+			out.write(header);
+		}
+		for (int i = 0; i < BUFFER_COUNT; i++) {
+			free.add(ByteBuffer.allocateDirect(BUFFER_SIZE));
+		}
+		current = free.poll();
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				write();
+			}
+		}, "trace-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	private void write() {
+		while (true) {
+			ByteBuffer buf;
+			try {
+				buf = full.poll(flushIntervalNanos, TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (buf == null) {
+				// nothing recorded for a while, write out what there is
+				flushIdle();
+				continue;
+			}
+			if (buf == endOfTrace) {
+				return;
+			}
+			try {
+				while (buf.hasRemaining()) {
+					out.write(buf);
+				}
+			} catch (IOException e) {
+				failure = e;
+			}
+			buf.clear();
+			free.add(buf);
+		}
+	}
+
+	/**
+	 * Record a completed request.
+	 *
+	 * @param action the request action
+	 * @param message the response message
+	 * @param path
+	 * @param dataLength
+	 * @param requestStart System.nanoTime() when the request was decoded
+	 * @param requestEnd System.nanoTime() when the response was completed
+	 */
+	public synchronized void record(Action action, Message message, String[] path,
+			long dataLength, long requestStart, long requestEnd) {
+		if (closed) {
+			return;
+		}
+		if (current == null) {
+			current = free.poll();
+			if (current == null) {
+				dropped.incrementAndGet();
+				return;
+			}
+		}
+		record.offsetNanos = requestStart - startNanos;
+		record.action = action;
+		record.message = message;
+		record.pathHash = TraceRecord.hash(path);
+		record.dataLength = dataLength;
+		record.latencyNanos = requestEnd - requestStart;
+		record.write(current);
+		recorded.incrementAndGet();
+		if (current.remaining() < TraceRecord.RECORD_LENGTH
+				|| requestEnd - lastHandoff > flushIntervalNanos) {
+			handoff();
+			lastHandoff = requestEnd;
+		}
+	}
+
+	/**
+	 * hand the buffered records to the writer if they have not been for a
+	 * flush interval.
+	 */
+	private synchronized void flushIdle() {
+		long now = System.nanoTime();
+		if (!closed && now - lastHandoff >= flushIntervalNanos) {
+			handoff();
+			lastHandoff = now;
+		}
+	}
+
+	private void handoff() {
+		if (current != null && current.position() > 0) {
+			current.flip();
+			full.add(current);
+			current = free.poll();
+		}
+	}
+
+	/**
+	 * Write out the buffered records and close the trace file.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		handoff();
+		full.add(endOfTrace);
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		out.close();
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	public long getRecorded() {
+		return recorded.get();
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+}
@@ -0,0 +1,378 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import common.AppConstant.Message;
+import common.AppUtil;
+import common.DeleteProgress;
+import common.ListOptions;
+
+/**
+ * Deletes whole trees, or the files of a tree matching some ListOptions, in
+ * a thread of its own, so a recursive DEL of many files does not hold up the
+ * selector. The files are deleted a page of the listing at a time, then the
+ * directories they were in, deepest first, if that left them empty.
+ *
+ * The progress of a deletion is queued back now and then, and the selector
+ * is woken up to send it to the client, see drainReported(). The deleted
+ * files come with it, to be recorded in the change journal by the selector
+ * thread, the only one using it.
+ */
+public class TreeDeleter implements Runnable {
+
+	private final static int PAGE_SIZE = 1024;
+
+	// the most deleted files reported at once
+	private final static int MAX_REPORTED = 4096;
+
+	/**
+	 * The deletion of a tree, of the files matching the options, if any,
+	 * otherwise of the whole tree, its directory too.
+	 */
+	public static class Deletion {
+		final ChannelHandler handler;
+		final Storage storage;
+		final String[] path;
+		final ListOptions options;
+		private volatile boolean cancelled;
+
+		// guarded by the deletion
+		private long files;
+		private long directories;
+		private long failed;
+		private List<String[]> deleted = new ArrayList<String[]>();
+		private Message message;
+		private boolean queued;
+
+		/**
+		 * @param handler the handler to report to
+		 * @param storage where the tree is stored
+		 * @param path the directory, or a file
+		 * @param options the files to delete, null for all of them
+		 */
+		public Deletion(ChannelHandler handler, Storage storage, String[] path, ListOptions options) {
+			this.handler = handler;
+			this.storage = storage;
+			this.path = path;
+			this.options = options;
+		}
+
+		public ChannelHandler getHandler() {
+			return handler;
+		}
+
+		/**
+		 * Stop deleting, the client having gone.
+		 */
+		public void cancel() {
+			cancelled = true;
+		}
+
+		/**
+		 * Take what has been done since the last time.
+		 *
+		 * @return
+		 */
+		public synchronized Report take() {
+			Report report = new Report(new DeleteProgress(files, directories, failed), deleted, message);
+			deleted = new ArrayList<String[]>();
+			queued = false;
+			return report;
+		}
+
+		private synchronized void deleted(String[] path) {
+			files++;
+			deleted.add(path);
+		}
+
+		private synchronized void deletedDirectory() {
+			directories++;
+		}
+
+		private synchronized void failed() {
+			failed++;
+		}
+
+		private synchronized boolean isFailed() {
+			return failed > 0;
+		}
+
+		private synchronized int countDeleted() {
+			return deleted.size();
+		}
+
+		private synchronized void done(Message message) {
+			this.message = message;
+		}
+
+		/**
+		 * @return whether to queue the deletion, if it is not already
+		 */
+		private synchronized boolean queue() {
+			if (queued) {
+				return false;
+			}
+			queued = true;
+			return true;
+		}
+	}
+
+	/**
+	 * The progress of a deletion.
+	 */
+	public static class Report {
+		public final DeleteProgress progress;
+		public final List<String[]> deleted;
+		public final Message message;
+
+		/**
+		 * @param progress the counts so far
+		 * @param deleted the files deleted since the last report
+		 * @param message the message of the DEL once done, null until then
+		 */
+		Report(DeleteProgress progress, List<String[]> deleted, Message message) {
+			this.progress = progress;
+			this.deleted = deleted;
+			this.message = message;
+		}
+	}
+
+	private long reportIntervalNanos = TimeUnit.MILLISECONDS.toNanos(200);
+	private Selector selector;
+
+	private final List<Deletion> pending = new ArrayList<Deletion>();
+	private final Queue<Deletion> reported = new ConcurrentLinkedQueue<Deletion>();
+	private boolean stop;
+
+	/**
+	 * Submit a deletion.
+	 *
+	 * @param deletion
+	 */
+	public synchronized void submit(Deletion deletion) {
+		pending.add(deletion);
+		notifyAll();
+	}
+
+	/**
+	 * Take the deletions reported since the last call. To be called by the
+	 * selector thread.
+	 *
+	 * @return
+	 */
+	public List<Deletion> drainReported() {
+		List<Deletion> deletions = new ArrayList<Deletion>();
+		Deletion deletion;
+		while ((deletion = reported.poll()) != null) {
+			deletions.add(deletion);
+		}
+		return deletions;
+	}
+
+	/**
+	 * Stop once the pending deletions are done.
+	 */
+	public synchronized void stop() {
+		stop = true;
+		notifyAll();
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			Deletion deletion;
+			try {
+				deletion = next();
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (deletion == null) {
+				return;
+			}
+			Message message;
+			try {
+				message = delete(deletion);
+			} catch (IOException e) {
+				message = Message.FILE_NOT_DELETED;
+			}
+			deletion.done(message);
+			report(deletion);
+		}
+	}
+
+	private synchronized Deletion next() throws InterruptedException {
+		while (pending.isEmpty()) {
+			if (stop) {
+				return null;
+			}
+			wait();
+		}
+		return pending.remove(0);
+	}
+
+	private void report(Deletion deletion) {
+		if (deletion.queue()) {
+			reported.add(deletion);
+			if (selector != null) {
+				selector.wakeup();
+			}
+		}
+	}
+
+	/**
+	 * Delete the files of a deletion, then the directories left empty.
+	 *
+	 * @param deletion
+	 * @return the message of the DEL
+	 * @throws IOException
+	 */
+	private Message delete(Deletion deletion) throws IOException {
+		Storage storage = deletion.storage;
+		ListOptions options = deletion.options;
+		Storage.Stat stat = storage.stat(deletion.path);
+		if (stat == null) {
+			return Message.FILE_NOT_EXIST;
+		}
+		// the paths matched are relative to the directory deleted from
+		String[] base = stat.directory ? deletion.path : Arrays.copyOf(deletion.path, deletion.path.length - 1);
+		String[] from = deletion.path;
+		if (options != null && stat.directory && options.getPrefixDirectories().length > 0) {
+			String[] directories = options.getPrefixDirectories();
+			from = Arrays.copyOf(base, base.length + directories.length);
+			System.arraycopy(directories, 0, from, base.length, directories.length);
+			if (!storage.permits(from) || storage.stat(from) == null) {
+				return Message.FILE_NOT_EXIST;
+			}
+		}
+		int depth = options == null ? 0 : ChannelHandler.depth(options, stat, from.length - base.length);
+		if (depth < 0) {
+			return Message.FILE_DELETED;
+		}
+		boolean needStat = options != null && options.getModifiedSince() > 0;
+		// the directories the files were in, the whole tree keeping its own
+		int kept = options == null ? Math.max(deletion.path.length - 1, 0) : base.length;
+		List<String[]> dirs = new ArrayList<String[]>();
+		Set<String> dirKeys = new HashSet<String>();
+		long lastReport = System.nanoTime();
+		String cursor = null;
+		do {
+			Storage.Page page = storage.list(from, cursor, PAGE_SIZE, depth);
+			String next = page.next;
+			for (String[] path : page.paths) {
+				if (deletion.cancelled) {
+					return Message.FILE_NOT_DELETED;
+				}
+				String name = path[path.length - 1];
+				if (name.startsWith(ChannelHandler.TEMP_PREFIX)) {
+					// an upload in progress, its directory is kept
+					continue;
+				}
+				if (Checksums.isSidecar(name)) {
+					// the ones of the files deleted go with them
+					if (options == null) {
+						storage.delete(path);
+					}
+					continue;
+				}
+				if (options != null) {
+					String[] relative = Arrays.copyOfRange(path, base.length, path.length);
+					if (options.isPastPrefix(relative)) {
+						next = null;
+						break;
+					}
+					if (!options.matches(relative)) {
+						continue;
+					}
+					if (needStat) {
+						Storage.Stat fileStat = storage.stat(path);
+						if (fileStat == null || fileStat.lastModified <= options.getModifiedSince()) {
+							continue;
+						}
+					}
+				}
+				if (deleteFile(storage, path)) {
+					deletion.deleted(path);
+					for (int level = path.length - 1; level > kept; level--) {
+						String[] dir = Arrays.copyOf(path, level);
+						if (!dirKeys.add(AppUtil.toString(dir, '/'))) {
+							break;
+						}
+						dirs.add(dir);
+					}
+				}
+				else {
+					deletion.failed();
+				}
+				if (System.nanoTime() - lastReport >= reportIntervalNanos
+						|| deletion.countDeleted() >= MAX_REPORTED) {
+					report(deletion);
+					lastReport = System.nanoTime();
+				}
+			}
+			cursor = next;
+		} while (cursor != null);
+
+		// the deepest first, a directory is only empty once its own are gone
+		Collections.sort(dirs, new Comparator<String[]>() {
+			@Override
+			public int compare(String[] a, String[] b) {
+				return b.length - a.length;
+			}
+		});
+		for (String[] dir : dirs) {
+			Storage.Stat dirStat = storage.stat(dir);
+			if (dirStat != null && dirStat.directory && storage.delete(dir)) {
+				deletion.deletedDirectory();
+			}
+		}
+		if (deletion.isFailed()) {
+			return Message.FILE_NOT_DELETED;
+		}
+		if (options == null && deletion.path.length > 0 && storage.stat(deletion.path) != null) {
+			// holding uploads in progress, or directories never holding files
+			return Message.FILE_NOT_DELETED;
+		}
+		return Message.FILE_DELETED;
+	}
+
+	private static boolean deleteFile(Storage storage, String[] path) {
+		try {
+			if (!storage.delete(path)) {
+				return false;
+			}
+			Checksums.delete(storage, path);
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Set how often the progress of a deletion is reported.
+	 *
+	 * @param reportIntervalNanos
+	 */
+	public void setReportIntervalNanos(long reportIntervalNanos) {
+		this.reportIntervalNanos = reportIntervalNanos;
+	}
+
+	/**
+	 * Set the selector to wake up when a deletion is reported.
+	 *
+	 * @param selector
+	 */
+	public void setSelector(Selector selector) {
+		this.selector = selector;
+	}
+}
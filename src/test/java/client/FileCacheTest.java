@@ -0,0 +1,115 @@
+package client;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FileCacheTest {
+
+    @TempDir
+    File dir;
+
+    private static void store(FileCache cache, String key, int length) throws IOException {
+        File temp = cache.createTempFile();
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(new byte[length]);
+        }
+        cache.store(key, temp, 1000 + length);
+    }
+
+    private static byte[] read(FileCache cache, FileCache.Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (InputStream in = cache.open(entry)) {
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                bytes.write(buf, 0, n);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    @Test
+    void leastRecentlyUsedFilesAreEvicted() throws IOException {
+        FileCache cache = new FileCache(dir, 3000);
+        try {
+            store(cache, "a", 1000);
+            store(cache, "b", 1000);
+            store(cache, "c", 1000);
+            assertNotNull(cache.lookup("a"));
+            store(cache, "d", 1000);
+
+            assertNull(cache.lookup("b"));
+            assertNotNull(cache.lookup("a"));
+            assertNotNull(cache.lookup("c"));
+            FileCache.Entry d = cache.lookup("d");
+            assertEquals(1000, d.length);
+            assertEquals(2000, d.lastModified);
+            assertEquals(1000, read(cache, d).length);
+            assertEquals(3000, cache.size());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    void cachesOnTheSameDirectoryShareTheirFiles() throws IOException {
+        FileCache first = new FileCache(dir, 1 << 20);
+        FileCache second = new FileCache(dir, 1 << 20);
+        try {
+            store(first, "shared", 100);
+            FileCache.Entry entry = second.lookup("shared");
+            assertNotNull(entry);
+            assertEquals(100, read(second, entry).length);
+
+            second.remove("shared");
+            assertNull(first.lookup("shared"));
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+
+    @Test
+    void journalSurvivesATornRecordAndCompaction() throws IOException {
+        FileCache cache = new FileCache(dir, 1 << 20);
+        for (int i = 0; i < 2000; i++) {
+            store(cache, "key", 10 + i % 5);
+        }
+        store(cache, "other", 7);
+        cache.close();
+        File journal = new File(dir, "journal");
+        assertTrue(journal.length() < 64 * 1024, "journal should have been compacted");
+        // a process killed while appending
+        try (RandomAccessFile raf = new RandomAccessFile(journal, "rw")) {
+            raf.seek(raf.length());
+            raf.write(new byte[]{0, 0, 0, 40, 1, 0});
+        }
+        Files.write(new File(dir, "0123abcd").toPath(), new byte[10]);
+
+        FileCache reopened = new FileCache(dir, 1 << 20);
+        try {
+            assertEquals(7, reopened.lookup("other").length);
+            assertNotNull(reopened.lookup("key"));
+            assertFalse(new File(dir, "0123abcd").exists(), "files out of the index should be deleted");
+            store(reopened, "after", 5);
+        } finally {
+            reopened.close();
+        }
+        FileCache again = new FileCache(dir, 1 << 20);
+        try {
+            assertEquals(5, again.lookup("after").length);
+        } finally {
+            again.close();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package client;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+class HistogramTest {
+
+    @Test
+    void smallValuesAreExact() {
+        Histogram h = new Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            h.record(i);
+        }
+        assertEquals(500, h.getValueAtPercentile(50));
+        assertEquals(990, h.getValueAtPercentile(99));
+        assertEquals(1000, h.getValueAtPercentile(100));
+        assertEquals(500.5, h.getMean(), 1e-9);
+    }
+
+    @Test
+    void largeValuesWithinPrecision() {
+        Histogram h = new Histogram();
+        long[] values = {5_000L, 123_456L, 98_765_432L, 3_000_000_000L};
+        for (long v : values) {
+            h.record(v);
+        }
+        for (int i = 0; i < values.length; i++) {
+            long p = h.getValueAtPercentile(100.0 * (i + 1) / values.length);
+            assertTrue(Math.abs(p - values[i]) <= values[i] / 1000, values[i] + " ~ " + p);
+        }
+        assertEquals(3_000_000_000L, h.getMax());
+    }
+
+    @Test
+    void bucketIndexRoundTrip() {
+        long[] values = {0, 1, 2047, 2048, 4095, 4096, 1L << 40, Long.MAX_VALUE};
+        for (long v : values) {
+            long high = Histogram.highestValueAt(Histogram.indexOf(v));
+            assertTrue(high >= v);
+            assertEquals(Histogram.indexOf(v), Histogram.indexOf(high));
+        }
+    }
+
+    @Test
+    void addMergesCounts() {
+        Histogram a = new Histogram();
+        Histogram b = new Histogram();
+        a.record(10);
+        b.record(20);
+        b.record(30);
+        a.add(b);
+        assertEquals(3, a.getCount());
+        assertEquals(30, a.getMax());
+        assertEquals(20, a.getValueAtPercentile(50));
+    }
+
+    @Test
+    void sizesAndMixParse() {
+        assertEquals(4096, LoadGenerator.parseSize("4k"));
+        assertEquals(1L << 20, LoadGenerator.parseSize("1M"));
+        LoadGenerator.SizeDistribution sizes = LoadGenerator.SizeDistribution.parse("1k-2k:1,8k:0");
+        java.util.Random random = new java.util.Random(1);
+        for (int i = 0; i < 100; i++) {
+            long size = sizes.next(random);
+            assertTrue(size >= 1024 && size <= 2048);
+        }
+    }
+}
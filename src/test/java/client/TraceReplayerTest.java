@@ -0,0 +1,48 @@
+package client;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import common.AppConstant.Action;
+import common.AppConstant.Message;
+import common.TraceRecord;
+import server.TraceRecorder;
+
+class TraceReplayerTest {
+
+    @Test
+    void recordsAreReadInTheOrderTheRequestsStarted(@TempDir File dir) throws IOException {
+        File file = new File(dir, "trace.bin");
+        TraceRecorder recorder = new TraceRecorder(file);
+        long t0 = System.nanoTime();
+        long second = TimeUnit.SECONDS.toNanos(1);
+        // a slow PUT completing after the GETs started since
+        recorder.record(Action.GET, Message.FILE_EXIST, new String[]{"a"}, 1, t0 + 2 * second, t0 + 3 * second);
+        recorder.record(Action.GET, Message.FILE_EXIST, new String[]{"b"}, 1, t0 + 3 * second, t0 + 4 * second);
+        recorder.record(Action.PUT, Message.FILE_CREATED, new String[]{"a"}, 1, t0 + second, t0 + 5 * second);
+        // long after
+        recorder.record(Action.DEL, Message.FILE_DELETED, new String[]{"a"}, 0, t0 + 60 * second, t0 + 61 * second);
+        recorder.close();
+
+        TraceReplayer.OrderedReader reader = new TraceReplayer.OrderedReader(file);
+        try {
+            TraceRecord record = reader.next();
+            assertEquals(Action.PUT, record.action);
+            assertEquals(TraceRecord.hash(new String[]{"a"}), record.pathHash);
+            assertEquals(Action.GET, reader.next().action);
+            record = reader.next();
+            assertEquals(Action.GET, record.action);
+            assertEquals(TraceRecord.hash(new String[]{"b"}), record.pathHash);
+            assertEquals(Action.DEL, reader.next().action);
+            assertNull(reader.next());
+        } finally {
+            reader.close();
+        }
+    }
+}
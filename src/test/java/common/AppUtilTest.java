@@ -226,6 +226,25 @@ class AppUtilTest {
         assertTrue(foundFile, "unpacked filenames should contain at least one file");
     }
 
+    @Test
+    void packAndUnpackPathsRoundTrip() {
+        List<String[]> paths = Arrays.asList(new String[0], new String[]{"a"}, new String[]{"dir", "héllo.txt"});
+        List<String[]> unpacked = AppUtil.unpackPaths(AppUtil.packPaths(paths));
+        assertEquals(paths.size(), unpacked.size());
+        for (int i = 0; i < paths.size(); i++) {
+            assertArrayEquals(paths.get(i), unpacked.get(i));
+        }
+    }
+
+    @Test
+    void unpackPathsRejectsTruncatedBytes() {
+        byte[] packed = AppUtil.packPaths(Arrays.asList(new String[]{"dir", "file.txt"}, new String[]{"other"}));
+        for (int length = 0; length < packed.length; length++) {
+            byte[] truncated = Arrays.copyOf(packed, length);
+            assertThrows(IndexOutOfBoundsException.class, () -> AppUtil.unpackPaths(truncated));
+        }
+    }
+
     @Test
     void closeNullDoesNothing() {
         assertDoesNotThrow(() -> AppUtil.close(null));
@@ -0,0 +1,61 @@
+package common;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+class ChunkerTest {
+
+    private static List<String> chunks(byte[] data) {
+        List<String> hashes = new ArrayList<String>();
+        Chunker chunker = new Chunker();
+        int start = 0;
+        int end;
+        while ((end = chunker.next(data, start, data.length - start)) != -1) {
+            int length = end - start;
+            assertTrue(length >= Chunker.MIN_SIZE && length <= Chunker.MAX_SIZE);
+            hashes.add(Chunker.toHex(Chunker.hash(data, start, length)));
+            start = end;
+        }
+        if (start < data.length) {
+            hashes.add(Chunker.toHex(Chunker.hash(data, start, data.length - start)));
+        }
+        return hashes;
+    }
+
+    @Test
+    void insertionOnlyChangesTheChunksAroundIt() {
+        byte[] data = new byte[1024 * 1024];
+        new Random(1).nextBytes(data);
+        byte[] edited = new byte[data.length + 100];
+        System.arraycopy(data, 0, edited, 0, 500000);
+        System.arraycopy(data, 500000, edited, 500100, data.length - 500000);
+
+        List<String> before = chunks(data);
+        List<String> after = chunks(edited);
+        assertTrue(before.size() > 50);
+        Set<String> shared = new HashSet<String>(before);
+        shared.retainAll(after);
+        assertTrue(shared.size() >= before.size() - 3, shared.size() + " of " + before.size());
+    }
+
+    @Test
+    void uniformDataIsCutAtTheMaximumSize() {
+        List<String> hashes = chunks(new byte[3 * Chunker.MAX_SIZE]);
+        assertEquals(3, hashes.size());
+        assertEquals(1, new HashSet<String>(hashes).size());
+    }
+
+    @Test
+    void hexRoundTrip() {
+        byte[] hash = Chunker.hash(new byte[]{1, 2, 3}, 0, 3);
+        assertEquals(Chunker.HASH_LENGTH, hash.length);
+        assertArrayEquals(hash, Chunker.fromHex(Chunker.toHex(hash)));
+    }
+}
@@ -0,0 +1,62 @@
+package common;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class CompressionTest {
+
+    private static byte[] encode(byte[] data, Compression.Encoder encoder) {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        byte[] frame = new byte[Compression.FRAME_HEADER_LENGTH + Compression.FRAME_SIZE];
+        for (int i = 0; i < data.length; i += Compression.FRAME_SIZE) {
+            int length = Math.min(Compression.FRAME_SIZE, data.length - i);
+            wire.write(frame, 0, encoder.encode(data, i, length, frame));
+        }
+        wire.write(frame, 0, encoder.end(frame));
+        return wire.toByteArray();
+    }
+
+    private static byte[] decode(byte[] wire, int piece) throws IOException {
+        Compression.Decoder decoder = new Compression.Decoder();
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for (int i = 0; i < wire.length; i += piece) {
+            decoder.decode(wire, i, Math.min(piece, wire.length - i), data);
+        }
+        assertTrue(decoder.isFinished());
+        return data.toByteArray();
+    }
+
+    @Test
+    void textIsDeflated() throws IOException {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 200000) {
+            text.append("timestamp,level,message\n2026-10-19,INFO,ok\n");
+        }
+        byte[] data = text.toString().getBytes("UTF-8");
+        byte[] wire = encode(data, new Compression.Encoder(1));
+        assertTrue(wire.length < data.length / 10);
+        assertArrayEquals(data, decode(wire, 7));
+    }
+
+    @Test
+    void incompressibleDataIsStored() throws IOException {
+        byte[] data = new byte[10 * Compression.FRAME_SIZE + 5];
+        new Random(3).nextBytes(data);
+        Compression.Encoder encoder = new Compression.Encoder(1);
+        byte[] wire = encode(data, encoder);
+        assertEquals(data.length + 12 * Compression.FRAME_HEADER_LENGTH, wire.length);
+        assertArrayEquals(data, decode(wire, 100000));
+    }
+
+    @Test
+    void compressedFormatsAreNotCompressedAgain() {
+        assertTrue(Compression.isCompressible("app.log", 100000));
+        assertFalse(Compression.isCompressible("archive.TAR.GZ", 100000));
+        assertFalse(Compression.isCompressible("small.log", 10));
+    }
+}
@@ -0,0 +1,42 @@
+package common;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Random;
+import java.util.zip.Checksum;
+
+import org.junit.jupiter.api.Test;
+
+class Crc32cTest {
+
+    @Test
+    void matchesTheCheckValue() throws Exception {
+        byte[] bytes = "123456789".getBytes("US-ASCII");
+        Crc32c crc = new Crc32c();
+        crc.update(bytes, 0, bytes.length);
+        assertEquals(0xe3069283L, crc.getValue());
+
+        crc.reset();
+        for (byte b : bytes) {
+            crc.update(b);
+        }
+        assertEquals(0xe3069283L, crc.getValue());
+    }
+
+    @Test
+    void piecesGiveTheChecksumOfTheWhole() {
+        byte[] data = new byte[100000];
+        new Random(3).nextBytes(data);
+        Checksum platform = Crc32c.create();
+        platform.update(data, 0, data.length);
+
+        Crc32c crc = new Crc32c();
+        int offset = 0;
+        for (int length = 1; offset < data.length; length = length * 3 + 1) {
+            int n = Math.min(length, data.length - offset);
+            crc.update(data, offset, n);
+            offset += n;
+        }
+        assertEquals(platform.getValue(), crc.getValue());
+    }
+}
@@ -0,0 +1,30 @@
+package common;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class DeltaTest {
+
+    @Test
+    void rolledChecksumEqualsComputedOne() {
+        byte[] data = new byte[10000];
+        new Random(5).nextBytes(data);
+        int length = 1024;
+        int weak = Delta.weak(data, 0, length);
+        for (int p = 0; p + length < data.length; p++) {
+            weak = Delta.roll(weak, length, data[p], data[p + length]);
+            assertEquals(Delta.weak(data, p + 1, length), weak);
+        }
+    }
+
+    @Test
+    void blockSizeGrowsWithTheSquareRoot() {
+        assertEquals(Delta.MIN_BLOCK_SIZE, Delta.blockSize(0));
+        assertEquals(32 * 1024, Delta.blockSize(1L << 30));
+        assertEquals(Delta.MAX_BLOCK_SIZE, Delta.blockSize(1L << 40));
+        assertEquals(0, Delta.blockSize(5000000) % 1024);
+    }
+}
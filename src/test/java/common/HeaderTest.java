@@ -161,6 +161,35 @@ class HeaderTest {
         });
     }
 
+    @Test
+    void roundTripGetAckWithChecksum() throws HeaderException {
+        Header h = new Header();
+        h.setAction(Action.GET_ACK);
+        h.setPath(new String[]{"file.txt"});
+        h.setDataLength(5);
+        h.setChecksum(0xe3069283);
+        Header result = roundTrip(h);
+        assertTrue(result.isChecksummed());
+        assertEquals(0xe3069283, result.getChecksum());
+        assertEquals(5, result.getDataLength());
+        assertArrayEquals(new String[]{"file.txt"}, result.getPath());
+    }
+
+    @Test
+    void roundTripConditionalGet() throws HeaderException {
+        Header h = new Header();
+        h.setAction(Action.GET);
+        h.setPath(new String[]{"file.txt"});
+        h.setDataLength(5);
+        h.setChecksummed(true);
+        h.setLastModified(1760875200123L);
+        Header result = roundTrip(h);
+        assertTrue(result.isConditional());
+        assertTrue(result.isChecksummed());
+        assertEquals(1760875200123L, result.getLastModified());
+        assertEquals(5, result.getDataLength());
+    }
+
     @Test
     void toHeaderRejectsInvalidActionOrdinal() {
         byte[] bytes = new byte[20];
@@ -0,0 +1,92 @@
+package common;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+class ListOptionsTest {
+
+    @Test
+    void globMatchesWithinAndAcrossLevels() {
+        ListOptions options = new ListOptions();
+        options.setGlob("*.txt");
+        assertTrue(options.matches(new String[]{"a.txt"}));
+        assertFalse(options.matches(new String[]{"dir", "a.txt"}));
+        options.setGlob("**/?.txt");
+        assertTrue(options.matches(new String[]{"dir", "sub", "a.txt"}));
+        assertFalse(options.matches(new String[]{"dir", "ab.txt"}));
+        options.setGlob("a+b(c).txt");
+        assertTrue(options.matches(new String[]{"a+b(c).txt"}));
+    }
+
+    @Test
+    void doubleStarSlashMatchesNoLevelsToo() {
+        ListOptions options = new ListOptions();
+        options.setGlob("**/*.txt");
+        assertTrue(options.matches(new String[]{"a.txt"}));
+        assertTrue(options.matches(new String[]{"dir", "sub", "a.txt"}));
+        assertFalse(options.matches(new String[]{"dir", "a.bin"}));
+        options.setGlob("logs/**/*.log");
+        assertTrue(options.matches(new String[]{"logs", "a.log"}));
+        assertTrue(options.matches(new String[]{"logs", "2024", "01", "a.log"}));
+        assertFalse(options.matches(new String[]{"logsa.log"}));
+        options.setGlob("**.log");
+        assertTrue(options.matches(new String[]{"a", "1.log"}));
+    }
+
+    @Test
+    void pathologicalGlobsMatchQuickly() {
+        StringBuilder glob = new StringBuilder();
+        for (int i = 0; i < 12; i++) {
+            glob.append("**a");
+        }
+        glob.append('b');
+        char[] name = new char[60];
+        Arrays.fill(name, 'a');
+        ListOptions options = new ListOptions();
+        options.setGlob(glob.toString());
+        assertTimeoutPreemptively(Duration.ofSeconds(1),
+                () -> assertFalse(options.matches(new String[]{new String(name)})));
+        options.setGlob("*a*a*a*a*a*a*a*a*a*a*a*a*b");
+        assertTimeoutPreemptively(Duration.ofSeconds(1),
+                () -> assertFalse(options.matches(new String[]{new String(name)})));
+        char[] tooLong = new char[ListOptions.MAX_GLOB_LENGTH + 1];
+        Arrays.fill(tooLong, '*');
+        assertThrows(IllegalArgumentException.class, () -> options.setGlob(new String(tooLong)));
+    }
+
+    @Test
+    void depthAndPrefixLimitTheFiles() {
+        ListOptions options = new ListOptions();
+        options.setMaxDepth(2);
+        options.setPrefix("logs/2024-");
+        assertArrayEquals(new String[]{"logs"}, options.getPrefixDirectories());
+        assertTrue(options.matches(new String[]{"logs", "2024-01.log"}));
+        assertFalse(options.matches(new String[]{"logs", "2023-12.log"}));
+        assertFalse(options.matches(new String[]{"logs", "2024-01", "a.log"}));
+        assertFalse(options.isPastPrefix(new String[]{"logs", "2023-12.log"}));
+        assertFalse(options.isPastPrefix(new String[]{"logs", "2024-12.log"}));
+        assertTrue(options.isPastPrefix(new String[]{"logs", "2025-01.log"}));
+        assertThrows(IllegalArgumentException.class, () -> options.setPrefix("../etc/"));
+    }
+
+    @Test
+    void toBytesAndFromBytesRoundTrip() throws IOException {
+        ListOptions options = new ListOptions();
+        options.setMaxDepth(3);
+        options.setGlob("**.bin");
+        options.setModifiedSince(123456789L);
+        options.setMetadata(true);
+        ListOptions copy = ListOptions.fromBytes(options.toBytes());
+        assertEquals(3, copy.getMaxDepth());
+        assertEquals("**.bin", copy.getGlob());
+        assertNull(copy.getPrefix());
+        assertEquals(123456789L, copy.getModifiedSince());
+        assertTrue(copy.isMetadata());
+        assertThrows(IOException.class, () -> ListOptions.fromBytes(new byte[3]));
+    }
+}
@@ -0,0 +1,45 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+import common.Changes;
+
+class ChangeJournalTest {
+
+    @Test
+    void changesAfterTheCursorInPages() {
+        ChangeJournal journal = new ChangeJournal(100);
+        for (int i = 0; i < 10; i++) {
+            journal.record(i % 2 == 0 ? Changes.PUT : Changes.DEL, new String[]{"f" + i});
+        }
+        Changes first = journal.since(journal.getEpoch(), 3, 4);
+        assertFalse(first.expired);
+        assertEquals(7, first.cursor);
+        assertEquals(4, first.changes.size());
+        assertEquals(4, first.changes.get(0).sequence);
+        assertArrayEquals(new String[]{"f3"}, first.changes.get(0).path);
+        assertEquals(Changes.DEL, first.changes.get(0).type);
+
+        Changes rest = journal.since(first.epoch, first.cursor, 100);
+        assertEquals(10, rest.cursor);
+        assertEquals(3, rest.changes.size());
+        assertTrue(journal.since(rest.epoch, rest.cursor, 100).changes.isEmpty());
+    }
+
+    @Test
+    void cursorsOfAnotherEpochOrTooOldExpire() {
+        ChangeJournal journal = new ChangeJournal(4);
+        for (int i = 0; i < 10; i++) {
+            journal.record(Changes.PUT, new String[]{"f" + i});
+        }
+        Changes old = journal.since(journal.getEpoch(), 5, 100);
+        assertTrue(old.expired);
+        assertEquals(10, old.cursor);
+        assertTrue(old.changes.isEmpty());
+        assertEquals(4, journal.since(journal.getEpoch(), 6, 100).changes.size());
+        assertTrue(journal.since(journal.getEpoch() + 1, 6, 100).expired);
+        assertTrue(new ChangeJournal(4).since(0, 0, 100).expired);
+    }
+}
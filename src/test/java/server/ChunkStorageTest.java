@@ -0,0 +1,127 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import common.AppUtil;
+import common.Chunker;
+
+class ChunkStorageTest {
+
+    @TempDir
+    File root;
+
+    private static void write(Storage storage, String[] path, byte[] content) throws IOException {
+        WritableByteChannel out = storage.create(path, content.length);
+        try {
+            // in pieces, the way the handler writes
+            for (int i = 0; i < content.length; i += 4096) {
+                out.write(ByteBuffer.wrap(content, i, Math.min(4096, content.length - i)));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] read(Storage storage, String[] path) throws IOException {
+        ReadableByteChannel in = storage.openRead(path);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ByteBuffer buf = ByteBuffer.allocate(8192);
+        try {
+            while (in.read(buf) != -1) {
+                bytes.write(buf.array(), 0, buf.position());
+                buf.clear();
+            }
+        } finally {
+            in.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    void nearIdenticalFilesShareTheirChunks() throws IOException {
+        ChunkStorage storage = new ChunkStorage(root);
+        byte[] v1 = random(512 * 1024, 1);
+        byte[] v2 = v1.clone();
+        v2[300000] ^= 1;
+        write(storage, new String[]{"v1"}, v1);
+        long stored = storage.getStoredBytes();
+        write(storage, new String[]{"v2"}, v2);
+        assertTrue(storage.getStoredBytes() - stored <= 2 * Chunker.MAX_SIZE);
+        assertArrayEquals(v2, read(storage, new String[]{"v2"}));
+        assertEquals(v1.length, storage.stat(new String[]{"v1"}).length);
+
+        assertTrue(storage.delete(new String[]{"v1"}));
+        assertArrayEquals(v2, read(storage, new String[]{"v2"}));
+        assertTrue(storage.delete(new String[]{"v2"}));
+        assertEquals(0, storage.getChunkCount());
+        assertEquals(0, storage.getStoredBytes());
+    }
+
+    @Test
+    void referencesAreCountedAgainOnRestart() throws IOException {
+        ChunkStorage storage = new ChunkStorage(root);
+        byte[] data = random(100 * 1024, 2);
+        write(storage, new String[]{"a", "f1"}, data);
+        write(storage, new String[]{"a", "f2"}, data);
+        int chunks = storage.getChunkCount();
+        // an upload cut short before its manifest
+        storage.create(new String[]{"a", "partial"}, 10);
+
+        ChunkStorage reopened = new ChunkStorage(root);
+        assertEquals(chunks, reopened.getChunkCount());
+        reopened.delete(new String[]{"a", "f1"});
+        assertArrayEquals(data, read(reopened, new String[]{"a", "f2"}));
+        reopened.delete(new String[]{"a", "f2"});
+        assertEquals(0, reopened.getChunkCount());
+    }
+
+    @Test
+    void chunkedUploadRefersToStoredChunks() throws IOException {
+        ChunkStorage storage = new ChunkStorage(root);
+        byte[] data = random(10 * 1024, 3);
+        write(storage, new String[]{"original"}, data);
+        byte[] hash = Chunker.hash(data, 0, data.length);
+        assertTrue(storage.contains(Chunker.toHex(hash)));
+
+        // the stored chunk, then a literal one
+        byte[] recipe = new byte[1 + Chunker.HASH_LENGTH + 5 + 3];
+        recipe[0] = Chunker.REFERENCE;
+        System.arraycopy(hash, 0, recipe, 1, Chunker.HASH_LENGTH);
+        recipe[1 + Chunker.HASH_LENGTH] = Chunker.LITERAL;
+        AppUtil.toBytes(3, recipe, 2 + Chunker.HASH_LENGTH);
+        recipe[recipe.length - 3] = 'x';
+        recipe[recipe.length - 2] = 'y';
+        recipe[recipe.length - 1] = 'z';
+        ChunkedUpload upload = new ChunkedUpload(storage.create(new String[]{"copy"}, 0));
+        for (byte b : recipe) {
+            upload.write(ByteBuffer.wrap(new byte[]{b}));
+        }
+        upload.close();
+        byte[] copy = read(storage, new String[]{"copy"});
+        assertEquals(data.length + 3, copy.length);
+        assertEquals('z', copy[copy.length - 1]);
+
+        byte[] unknown = new byte[1 + Chunker.HASH_LENGTH];
+        unknown[0] = Chunker.REFERENCE;
+        ChunkedUpload bad = new ChunkedUpload(storage.create(new String[]{"bad"}, 0));
+        bad.write(ByteBuffer.wrap(unknown));
+        assertThrows(IOException.class, bad::close);
+    }
+}
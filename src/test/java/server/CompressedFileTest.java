@@ -0,0 +1,147 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import common.Compression;
+
+class CompressedFileTest {
+
+    @TempDir
+    File root;
+
+    private LocalStorage storage;
+
+    @BeforeEach
+    void setUp() {
+        storage = new LocalStorage(root);
+        storage.setCompression(1);
+    }
+
+    private void write(String[] path, byte[] content) throws IOException {
+        WritableByteChannel out = storage.create(path, content.length);
+        try {
+            // in pieces not aligned on the frames
+            for (int i = 0; i < content.length; i += 10000) {
+                out.write(ByteBuffer.wrap(content, i, Math.min(10000, content.length - i)));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] readAll(ReadableByteChannel in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ByteBuffer buf = ByteBuffer.allocate(4096);
+        try {
+            while (in.read(buf) != -1) {
+                bytes.write(buf.array(), 0, buf.position());
+                buf.clear();
+            }
+        } finally {
+            in.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    @Test
+    void compressibleFilesAreStoredCompressed() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < 300 * 1024; i++) {
+            text.append("line ").append(i).append(" of a compressible file\n");
+        }
+        byte[] content = text.toString().getBytes("UTF-8");
+        String[] path = {"logs", "app.log"};
+        write(path, content);
+
+        assertTrue(storage.toFile(path).length() < content.length / 3);
+        assertEquals(content.length, storage.stat(path).length);
+        assertArrayEquals(content, readAll(storage.openRead(path)));
+
+        // the frames stored are those of a compressed download
+        FileRange frames = storage.openCompressed(path);
+        byte[] wire = readAll(frames);
+        Compression.Decoder decoder = new Compression.Decoder();
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        assertEquals(wire.length, decoder.decode(wire, 0, wire.length, decoded));
+        assertTrue(decoder.isFinished());
+        assertArrayEquals(content, decoded.toByteArray());
+    }
+
+    @Test
+    void incompressibleFilesAreStoredAsTheyAre() throws IOException {
+        byte[] content = new byte[200 * 1024];
+        new Random(7).nextBytes(content);
+        String[] path = {"random.bin"};
+        write(path, content);
+
+        assertArrayEquals(content, Files.readAllBytes(storage.toFile(path).toPath()));
+        assertNull(storage.openCompressed(path));
+        assertEquals(content.length, storage.stat(path).length);
+        assertArrayEquals(content, readAll(storage.openRead(path)));
+    }
+
+    @Test
+    void contentLookingCompressedIsNotTakenForIt() throws IOException {
+        String[] stored = {"stored.log"};
+        write(stored, new byte[4096]);
+        byte[] header = Arrays.copyOf(Files.readAllBytes(storage.toFile(stored).toPath()), CompressedFile.HEADER_LENGTH);
+
+        // a small file starting like a compressed one
+        byte[] content = Arrays.copyOf(header, 100);
+        String[] path = {"tricky.bin"};
+        write(path, content);
+        assertEquals(content.length, storage.stat(path).length);
+        assertArrayEquals(content, readAll(storage.openRead(path)));
+    }
+
+    @Test
+    void filesStoredCompressedAreReadOnceCompressionIsOff() throws IOException {
+        byte[] content = new byte[100 * 1024];
+        String[] path = {"zeros.bin"};
+        write(path, content);
+        assertTrue(storage.toFile(path).length() < content.length / 10);
+        byte[] header = Arrays.copyOf(Files.readAllBytes(storage.toFile(path).toPath()), CompressedFile.HEADER_LENGTH);
+
+        storage.setCompression(0);
+        storage.setCompressedRoot(true);
+        assertEquals(content.length, storage.stat(path).length);
+        assertArrayEquals(content, readAll(storage.openRead(path)));
+        FileRange frames = storage.openCompressed(path);
+        assertNotNull(frames);
+        frames.close();
+
+        // new files are stored as they are, unless taken for compressed
+        byte[] plain = new byte[100 * 1024];
+        write(new String[]{"plain.bin"}, plain);
+        assertArrayEquals(plain, Files.readAllBytes(storage.toFile(new String[]{"plain.bin"}).toPath()));
+        byte[] tricky = Arrays.copyOf(header, 100);
+        write(new String[]{"tricky.bin"}, tricky);
+        assertEquals(tricky.length, storage.stat(new String[]{"tricky.bin"}).length);
+        assertArrayEquals(tricky, readAll(storage.openRead(new String[]{"tricky.bin"})));
+    }
+
+    @Test
+    void headersAreNotLookedAtWithoutCompression() throws IOException {
+        write(new String[]{"stored.log"}, new byte[4096]);
+        byte[] stored = Files.readAllBytes(storage.toFile(new String[]{"stored.log"}).toPath());
+
+        LocalStorage plain = new LocalStorage(root);
+        assertEquals(stored.length, plain.stat(new String[]{"stored.log"}).length);
+        assertArrayEquals(stored, readAll(plain.openRead(new String[]{"stored.log"})));
+        assertNull(plain.openCompressed(new String[]{"stored.log"}));
+    }
+}
@@ -0,0 +1,126 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import client.FileClient;
+import common.AppConstant.Message;
+import common.AppUtil;
+import common.Batch;
+
+class DurableServerTest {
+
+    private FileServer server;
+    private Thread thread;
+    private FileClient client;
+    private File root;
+
+    private static int findFreePort() throws IOException {
+        try (ServerSocket ss = new ServerSocket(0)) {
+            return ss.getLocalPort();
+        }
+    }
+
+    @BeforeEach
+    void startServer(@TempDir File dir) throws Exception {
+        root = new File(dir, "root");
+        server = new FileServer();
+        server.setRoot(root);
+        server.setPort(findFreePort());
+        server.setDurable(true);
+        thread = new Thread(server, "file-server");
+        thread.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (client == null) {
+            try {
+                client = new FileClient();
+                client.connects("localhost", server.getPort());
+            } catch (IOException e) {
+                client = null;
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    @AfterEach
+    void stopServer() throws Exception {
+        client.close();
+        server.stopServer();
+        thread.join(2000);
+    }
+
+    @Test
+    void batchPutsAreCommittedBeforeTheItemsAfterThem() throws IOException {
+        List<Batch.Item> items = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            items.add(Batch.Item.put(new String[]{"d" + (i % 2), "f" + i}, ("file " + i).getBytes("UTF-8"), false));
+        }
+        items.add(Batch.Item.put(new String[]{"d0", "f0"}, new byte[1], false));
+        items.add(Batch.Item.get(new String[]{"d1", "f3"}));
+        items.add(Batch.Item.delete(new String[]{"d1", "f3"}));
+        items.add(Batch.Item.put(new String[]{"d1", "f3"}, "again".getBytes("UTF-8"), false));
+        items.add(Batch.Item.put(new String[]{"d1", "f3"}, "twice".getBytes("UTF-8"), true));
+
+        client.batch(items);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(Message.FILE_CREATED, items.get(i).getMessage());
+        }
+        assertEquals(Message.FILE_EXIST, items.get(10).getMessage());
+        assertEquals(Message.FILE_EXIST, items.get(11).getMessage());
+        assertArrayEquals("file 3".getBytes("UTF-8"), items.get(11).getData());
+        assertEquals(Message.FILE_DELETED, items.get(12).getMessage());
+        assertEquals(Message.FILE_CREATED, items.get(13).getMessage());
+        assertEquals(Message.FILE_CREATED, items.get(14).getMessage());
+        assertArrayEquals("twice".getBytes("UTF-8"),
+                Files.readAllBytes(AppUtil.toFile(root, new String[]{"d1", "f3"}).toPath()));
+        assertArrayEquals("file 0".getBytes("UTF-8"),
+                Files.readAllBytes(AppUtil.toFile(root, new String[]{"d0", "f0"}).toPath()));
+
+        // the connection goes on with the next request
+        assertEquals(5, client.list(new String[]{"d1"}).length);
+    }
+
+    @Test
+    void filesAreMovedAndCopiedDurably(@TempDir File dir) throws IOException {
+        File src = new File(dir, "src.txt");
+        Files.write(src.toPath(), "moved".getBytes("UTF-8"));
+        assertEquals(Message.FILE_CREATED, client.send(src, new String[]{"a", "src.txt"}));
+
+        assertEquals(Message.FILE_CREATED, client.move(new String[]{"a", "src.txt"}, new String[]{"b", "c", "dst.txt"}));
+        assertFalse(AppUtil.toFile(root, new String[]{"a", "src.txt"}).exists());
+        assertEquals(Message.FILE_CREATED, client.copy(new String[]{"b", "c", "dst.txt"}, new String[]{"a", "copy.txt"}));
+        assertEquals(Message.FILE_EXIST, client.move(new String[]{"a", "copy.txt"}, new String[]{"b", "c", "dst.txt"}));
+        assertArrayEquals("moved".getBytes("UTF-8"),
+                Files.readAllBytes(AppUtil.toFile(root, new String[]{"b", "c", "dst.txt"}).toPath()));
+        assertArrayEquals("moved".getBytes("UTF-8"),
+                Files.readAllBytes(AppUtil.toFile(root, new String[]{"a", "copy.txt"}).toPath()));
+    }
+
+    @Test
+    void emptyFilesAreCommittedBeforeTheirAck() throws IOException {
+        long commits = server.getStats().getCommits();
+        String[] path = {"e", "empty.txt"};
+        assertEquals(Message.FILE_CREATED, client.send(new ByteArrayInputStream(new byte[0]), 0, path));
+        // the ack came once the committer had synced and renamed the file
+        assertEquals(commits + 1, server.getStats().getCommits());
+        File file = AppUtil.toFile(root, path);
+        assertTrue(file.isFile());
+        assertEquals(0, file.length());
+        assertEquals(Message.FILE_EXIST, client.send(new ByteArrayInputStream(new byte[0]), 0, path));
+    }
+}
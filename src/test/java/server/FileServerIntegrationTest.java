@@ -2,19 +2,40 @@ package server;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.ServerSocket;
+import java.net.Socket;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.LongSupplier;
+import java.util.zip.Checksum;
 
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 
+import client.FileCache;
 import client.FileClient;
+import common.AppConstant.Action;
+import common.AppConstant.Message;
 import common.AppUtil;
+import common.Batch;
+import common.Changes;
+import common.Chunker;
+import common.Crc32c;
+import common.DeleteProgress;
+import common.FileStatus;
+import common.Header;
+import common.ListOptions;
 
 class FileServerIntegrationTest {
 
@@ -44,6 +65,10 @@ class FileServerIntegrationTest {
         };
         server.setRoot(tempRoot);
         server.setPort(port);
+        server.setPreallocate(true);
+        server.setDirectThreshold(64 * 1024);
+        server.setDirectBufferSize(64 * 1024);
+        server.setCompression(true);
         ready = false;
         serverThread = new Thread(server, "file-server");
         serverThread.start();
@@ -64,6 +89,39 @@ class FileServerIntegrationTest {
         AppUtil.delete(tempRoot);
     }
 
+    /**
+     * The bytes sent by the server, once it has counted those of the last
+     * response: they are counted after the socket write returns, which may
+     * be after the client has read them.
+     */
+    private static long settledBytesSent() {
+        return settled(() -> server.getStats().getBytesSent());
+    }
+
+    private static long settled(LongSupplier counter) {
+        long value = counter.getAsLong();
+        while (true) {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            long now = counter.getAsLong();
+            if (now == value) {
+                return value;
+            }
+            value = now;
+        }
+    }
+
+    private static long responses() {
+        long responses = 0;
+        for (Message message : Message.values()) {
+            responses += server.getStats().getResponses(message);
+        }
+        return responses;
+    }
+
     private FileClient createClient() throws IOException {
         FileClient client = new FileClient();
         client.connects("localhost", port);
@@ -222,4 +280,539 @@ class FileServerIntegrationTest {
             cleanup.close();
         }
     }
+
+    @Test
+    void putRejectedWhenNotEnoughSpace() throws IOException {
+        FileClient client = createClient();
+        try {
+            long length = tempRoot.getUsableSpace() + (1L << 40);
+            Message message = client.send(new ByteArrayInputStream(new byte[0]), length,
+                    new String[]{"huge.bin"});
+            assertEquals(Message.NO_SPACE, message);
+            assertFalse(AppUtil.toFile(tempRoot, new String[]{"huge.bin"}).exists());
+            // the connection is still usable
+            assertEquals(Message.FILE_NOT_EXIST, client.delete(new String[]{"huge.bin"}));
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    void putGetLargeUnalignedFile(@TempDir File clientDir) throws IOException {
+        // several direct buffers plus an unaligned tail
+        byte[] content = new byte[5 * 64 * 1024 + 1234];
+        new Random(42).nextBytes(content);
+        File src = new File(clientDir, "large.bin");
+        Files.write(src.toPath(), content);
+        FileClient client = createClient();
+        try {
+            assertEquals(Message.FILE_CREATED, client.send(src, new String[]{"large.bin"}));
+            assertEquals(content.length, AppUtil.toFile(tempRoot, new String[]{"large.bin"}).length());
+            File dir = new File(clientDir, "out");
+            assertEquals(Message.FILE_EXIST, client.receive(dir, new String[]{"large.bin"}));
+            assertArrayEquals(content, Files.readAllBytes(new File(dir, "large.bin").toPath()));
+            client.delete(new String[]{"large.bin"});
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    void putChunkedFile(@TempDir File clientDir) throws IOException {
+        byte[] content = new byte[200 * 1024 + 17];
+        new Random(7).nextBytes(content);
+        File src = new File(clientDir, "chunked.bin");
+        Files.write(src.toPath(), content);
+        FileClient client = createClient();
+        try {
+            // a local storage has no chunks, all of them are sent
+            assertFalse(client.missingChunks(Arrays.asList(
+                    Chunker.toHex(Chunker.hash(content, 0, 10)))).isEmpty());
+            assertEquals(Message.FILE_CREATED, client.sendChunked(src, new String[]{"chunked.bin"}));
+            assertArrayEquals(content, Files.readAllBytes(
+                    AppUtil.toFile(tempRoot, new String[]{"chunked.bin"}).toPath()));
+            client.delete(new String[]{"chunked.bin"});
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    void putDeltaSendsOnlyTheChanges(@TempDir File clientDir) throws IOException {
+        byte[] content = new byte[1024 * 1024 + 123];
+        new Random(11).nextBytes(content);
+        File src = new File(clientDir, "delta.bin");
+        Files.write(src.toPath(), content);
+        FileClient client = createClient();
+        try {
+            // not on the server yet, sent whole
+            assertEquals(Message.FILE_CREATED, client.sendDelta(src, new String[]{"delta.bin"}));
+
+            byte[] changed = new byte[content.length + 10];
+            System.arraycopy(content, 0, changed, 0, 400000);
+            System.arraycopy(content, 400000, changed, 400010, content.length - 400000);
+            changed[900000] ^= 1;
+            Files.write(src.toPath(), changed);
+            long received = server.getStats().getBytesReceived();
+            assertEquals(Message.FILE_CREATED, client.sendDelta(src, new String[]{"delta.bin"}));
+            assertTrue(server.getStats().getBytesReceived() - received < 64 * 1024);
+            assertArrayEquals(changed, Files.readAllBytes(
+                    AppUtil.toFile(tempRoot, new String[]{"delta.bin"}).toPath()));
+            client.delete(new String[]{"delta.bin"});
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    void compressedPutAndGet(@TempDir File clientDir) throws IOException {
+        StringBuilder csv = new StringBuilder();
+        for (int i = 0; csv.length() < 1024 * 1024; i++) {
+            csv.append(i).append(",2026-10-19T12:00:00,INFO,request served in ").append(i % 97).append(" ms\n");
+        }
+        byte[] content = csv.toString().getBytes("UTF-8");
+        File src = new File(clientDir, "log.csv");
+        Files.write(src.toPath(), content);
+        FileClient client = createClient();
+        client.setCompression(true);
+        try {
+            long received = server.getStats().getBytesReceived();
+            assertEquals(Message.FILE_CREATED, client.send(src, new String[]{"log.csv"}));
+            assertTrue(server.getStats().getBytesReceived() - received < content.length / 4);
+            assertArrayEquals(content, Files.readAllBytes(
+                    AppUtil.toFile(tempRoot, new String[]{"log.csv"}).toPath()));
+
+            long sent = settledBytesSent();
+            File dir = new File(clientDir, "out");
+            assertEquals(Message.FILE_EXIST, client.receive(dir, new String[]{"log.csv"}));
+            assertTrue(server.getStats().getBytesSent() - sent < content.length / 4);
+            assertArrayEquals(content, Files.readAllBytes(new File(dir, "log.csv").toPath()));
+            client.delete(new String[]{"log.csv"});
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    void uploadsInProgressCannotBeReached(@TempDir File clientDir) throws IOException {
+        String[] path = {"inprogress", ChannelHandler.TEMP_PREFIX + "data.bin.1"};
+        File temp = AppUtil.toFile(tempRoot, path);
+        temp.getParentFile().mkdirs();
+        Files.write(temp.toPath(), "partial".getBytes("UTF-8"));
+        FileClient client = createClient();
+        try {
+            assertEquals(Message.PERMISSION_DENIED, client.receive(new File(clientDir, "temp"), path));
+            byte[] data = "replaced".getBytes("UTF-8");
+            assertEquals(Message.PERMISSION_DENIED, client.send(new ByteArrayInputStream(data), data.length, path));
+            assertEquals(Message.PERMISSION_DENIED, client.delete(path));
+        } finally {
+            client.close();
+        }
+        assertArrayEquals("partial".getBytes("UTF-8"), Files.readAllBytes(temp.toPath()));
+    }
+
+    @Test
+    void getVerifiesTheChecksumOfTheUpload(@TempDir File clientDir) throws IOException {
+        byte[] content = new byte[200 * 1024];
+        new Random(11).nextBytes(content);
+        FileClient client = createClient();
+        try {
+            String[] path = {"crc", "data.bin"};
+            assertEquals(Message.FILE_CREATED, client.send(new ByteArrayInputStream(content), content.length, path));
+            for (String listed : client.list(new String[]{"crc"})) {
+                assertFalse(listed.contains(Checksums.SIDECAR_PREFIX), "checksums should not be listed");
+            }
+            assertEquals(Message.PERMISSION_DENIED, client.receive(new File(clientDir, "sidecar"),
+                    new String[]{"crc", Checksums.SIDECAR_PREFIX + "data.bin"}));
+            File out = new File(clientDir, "first");
+            assertEquals(Message.FILE_EXIST, client.receive(out, path));
+            assertArrayEquals(content, Files.readAllBytes(AppUtil.toFile(out, path).toPath()));
+
+            // corrupt the stored file behind the server's back
+            File stored = AppUtil.toFile(tempRoot, path);
+            long modified = stored.lastModified();
+            try (RandomAccessFile raf = new RandomAccessFile(stored, "rw")) {
+                raf.seek(12345);
+                raf.write(content[12345] ^ 0x01);
+            }
+            assertTrue(stored.setLastModified(modified));
+            File corrupted = new File(clientDir, "second");
+            assertThrows(IOException.class, () -> client.receive(corrupted, path));
+            assertFalse(AppUtil.toFile(corrupted, path).exists());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    void unchangedFileIsNotSentAgain(@TempDir File clientDir) throws IOException {
+        FileClient client = createClient();
+        client.setOverwrite(true);
+        try {
+            String[] path = {"poll", "status.txt"};
+            byte[] first = "first version".getBytes("UTF-8");
+            assertEquals(Message.FILE_CREATED, client.send(new ByteArrayInputStream(first), first.length, path));
+            assertEquals(Message.FILE_EXIST, client.receive(clientDir, path));
+            File copy = AppUtil.toFile(clientDir, path);
+            assertEquals(AppUtil.toFile(tempRoot, path).lastModified(), copy.lastModified());
+
+            long sent = settledBytesSent();
+            assertEquals(Message.NOT_MODIFIED, client.receive(clientDir, path));
+            assertTrue(server.getStats().getBytesSent() - sent < 200);
+            assertArrayEquals(first, Files.readAllBytes(copy.toPath()));
+
+            byte[] second = "the second version".getBytes("UTF-8");
+            assertEquals(Message.FILE_CREATED, client.send(new ByteArrayInputStream(second), second.length, path));
+            assertEquals(Message.FILE_EXIST, client.receive(clientDir, path));
+            assertArrayEquals(second, Files.readAllBytes(copy.toPath()));
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    void cachedFilesAreRevalidatedOrServedFresh(@TempDir File clientDir) throws IOException {
+        byte[] content = new byte[100 * 1024];
+        new Random(5).nextBytes(content);
+        FileClient client = createClient();
+        FileCache cache = new FileCache(new File(clientDir, "cache"), 1 << 20);
+        client.setCache(cache);
+        try {
+            String[] path = {"cached", "blob.bin"};
+            assertEquals(Message.FILE_CREATED, client.send(new ByteArrayInputStream(content), content.length, path));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertEquals(Message.FILE_EXIST, client.receive(path, out));
+            assertArrayEquals(content, out.toByteArray());
+
+            long sent = settledBytesSent();
+            out.reset();
+            assertEquals(Message.FILE_EXIST, client.receive(path, out));
+            assertArrayEquals(content, out.toByteArray());
+            assertTrue(server.getStats().getBytesSent() - sent < 200, "revalidation only");
+
+            cache.setFreshness(60000);
+            long requests = server.getStats().getBytesReceived();
+            out.reset();
+            assertEquals(Message.FILE_EXIST, client.receive(path, out));
+            assertArrayEquals(content, out.toByteArray());
+            assertEquals(requests, server.getStats().getBytesReceived(), "no request while fresh");
+        } finally {
+            client.close();
+            cache.close();
+        }
+    }
+
+    @Test
+    void statAnswersForEachPath() throws IOException {
+        byte[] content = "some status".getBytes("UTF-8");
+        FileClient client = createClient();
+        try {
+            String[] path = {"stat", "file.txt"};
+            assertEquals(Message.FILE_CREATED, client.send(new ByteArrayInputStream(content), content.length, path));
+            File stored = AppUtil.toFile(tempRoot, path);
+
+            FileStatus status = client.stat(path);
+            assertEquals(FileStatus.FILE, status.type);
+            assertEquals(content.length, status.length);
+            assertEquals(stored.lastModified(), status.lastModified);
+            assertTrue(status.checksummed);
+            Checksum crc = Crc32c.create();
+            crc.update(content, 0, content.length);
+            assertEquals((int) crc.getValue(), status.checksum);
+
+            List<String[]> paths = new ArrayList<>();
+            paths.add(path);
+            paths.add(new String[]{"stat"});
+            paths.add(new String[]{"stat", "missing.txt"});
+            paths.add(new String[]{"..", "outside"});
+            paths.add(new String[]{"stat", Checksums.SIDECAR_PREFIX + "file.txt"});
+            List<FileStatus> statuses = client.stat(paths);
+            assertEquals(paths.size(), statuses.size());
+            assertEquals(FileStatus.FILE, statuses.get(0).type);
+            assertEquals(FileStatus.DIRECTORY, statuses.get(1).type);
+            assertEquals(FileStatus.NOT_EXIST, statuses.get(2).type);
+            assertFalse(statuses.get(2).exists());
+            assertEquals(FileStatus.PERMISSION_DENIED, statuses.get(3).type);
+            assertEquals(FileStatus.PERMISSION_DENIED, statuses.get(4).type);
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    void listFiltersOnTheServer() throws IOException {
+        byte[] content = "listed".getBytes("UTF-8");
+        FileClient client = createClient();
+        try {
+            String[][] paths = {
+                {"filtered", "a.txt"}, {"filtered", "b.log"},
+                {"filtered", "logs", "2024-01.log"}, {"filtered", "logs", "2024-02.log"},
+                {"filtered", "logs", "2025-01.log"}, {"filtered", "logs", "old", "2024-03.log"},
+            };
+            for (String[] path : paths) {
+                assertEquals(Message.FILE_CREATED, client.send(new ByteArrayInputStream(content), content.length, path));
+            }
+            File old = AppUtil.toFile(tempRoot, paths[1]);
+            assertTrue(old.setLastModified(old.lastModified() - 3600 * 1000));
+
+            ListOptions options = new ListOptions();
+            options.setMaxDepth(1);
+            assertEquals(2, client.list(new String[]{"filtered"}, options).size());
+
+            options = new ListOptions();
+            options.setPrefix("logs/2024-");
+            options.setMetadata(true);
+            List<ListOptions.Entry> entries = client.list(new String[]{"filtered"}, options);
+            assertEquals(2, entries.size());
+            assertArrayEquals(paths[2], entries.get(0).path);
+            assertArrayEquals(paths[3], entries.get(1).path);
+            assertEquals(content.length, entries.get(0).length);
+            assertEquals(AppUtil.toFile(tempRoot, paths[2]).lastModified(), entries.get(0).lastModified);
+
+            options = new ListOptions();
+            options.setGlob("**.log");
+            options.setModifiedSince(old.lastModified());
+            entries = client.list(new String[]{"filtered"}, options);
+            assertEquals(4, entries.size());
+            assertEquals(-1, entries.get(0).length);
+
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    void changesAreListedAndPushedAfterTheCursor() throws IOException {
+        byte[] content = "changed".getBytes("UTF-8");
+        FileClient client = createClient();
+        FileClient subscriber = createClient();
+        try {
+            Changes start = client.changes(0, 0);
+            assertTrue(start.expired, "a new client lists the files first");
+            Changes pushed = subscriber.subscribe(start.epoch, start.cursor);
+            assertFalse(pushed.expired);
+
+            String[] path = {"journal", "a.txt"};
+            assertEquals(Message.FILE_CREATED, client.send(new ByteArrayInputStream(content), content.length, path));
+            assertEquals(Message.FILE_DELETED, client.delete(path));
+
+            Changes changes = client.changes(start.epoch, start.cursor);
+            assertFalse(changes.expired);
+            List<Changes.Change> mine = new ArrayList<>();
+            for (Changes.Change change : changes.changes) {
+                if (Arrays.equals(path, change.path)) {
+                    mine.add(change);
+                }
+            }
+            assertEquals(2, mine.size());
+            assertEquals(Changes.PUT, mine.get(0).type);
+            assertEquals(Changes.DEL, mine.get(1).type);
+
+            // the other tests may be changing files too
+            mine.clear();
+            long cursor = pushed.cursor;
+            while (mine.size() < 2) {
+                pushed = subscriber.awaitChanges();
+                assertEquals(cursor + pushed.changes.size(), pushed.cursor);
+                cursor = pushed.cursor;
+                for (Changes.Change change : pushed.changes) {
+                    if (Arrays.equals(path, change.path)) {
+                        mine.add(change);
+                    }
+                }
+            }
+            assertEquals(Changes.DEL, mine.get(1).type);
+        } finally {
+            client.close();
+            subscriber.close();
+        }
+    }
+
+    @Test
+    void batchDoesItsItemsInOrder() throws IOException {
+        FileClient client = createClient();
+        try {
+            List<Batch.Item> items = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                items.add(Batch.Item.put(new String[]{"batch", "f" + i + ".txt"}, ("file " + i).getBytes("UTF-8"), false));
+            }
+            items.add(Batch.Item.get(new String[]{"batch", "f7.txt"}));
+            items.add(Batch.Item.delete(new String[]{"batch", "f7.txt"}));
+            items.add(Batch.Item.get(new String[]{"batch", "f7.txt"}));
+            items.add(Batch.Item.put(new String[]{"batch", "f8.txt"}, new byte[0], false));
+            items.add(Batch.Item.put(new String[]{"..", "outside.txt"}, new byte[1], true));
+
+            long received = server.getStats().getRequests(Action.BAT);
+            client.batch(items);
+            assertEquals(received + 1, server.getStats().getRequests(Action.BAT));
+            for (int i = 0; i < 100; i++) {
+                assertEquals(Message.FILE_CREATED, items.get(i).getMessage());
+            }
+            assertEquals(Message.FILE_EXIST, items.get(100).getMessage());
+            assertArrayEquals("file 7".getBytes("UTF-8"), items.get(100).getData());
+            assertEquals(Message.FILE_DELETED, items.get(101).getMessage());
+            assertEquals(Message.FILE_NOT_EXIST, items.get(102).getMessage());
+            assertEquals(Message.FILE_EXIST, items.get(103).getMessage());
+            assertEquals(Message.PERMISSION_DENIED, items.get(104).getMessage());
+            assertArrayEquals("file 9".getBytes("UTF-8"),
+                    Files.readAllBytes(AppUtil.toFile(tempRoot, new String[]{"batch", "f9.txt"}).toPath()));
+
+            File out = Files.createTempDirectory("batch").toFile();
+            try {
+                assertEquals(Message.FILE_EXIST, client.receive(out, new String[]{"batch", "f9.txt"}));
+            } finally {
+                AppUtil.delete(out);
+            }
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    void directoryIsReceivedAsAnArchive(@TempDir File clientDir) throws IOException {
+        FileClient client = createClient();
+        try {
+            client.setArchiveWriters(2);
+            Random random = new Random(48);
+            List<String[]> paths = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                paths.add(new String[]{"archive", "d" + (i % 4), "sub" + (i % 3), "f" + i + ".bin"});
+            }
+            paths.add(new String[]{"archive", "large.bin"});
+            paths.add(new String[]{"archive", "empty.bin"});
+            List<byte[]> contents = new ArrayList<>();
+            for (String[] path : paths) {
+                byte[] content = new byte[path[1].equals("large.bin") ? 3 * 1024 * 1024
+                        : path[1].equals("empty.bin") ? 0 : random.nextInt(100 * 1024)];
+                random.nextBytes(content);
+                contents.add(content);
+                assertEquals(Message.FILE_CREATED, client.send(new ByteArrayInputStream(content), content.length, path));
+            }
+            // an upload in progress is not sent
+            File upload = AppUtil.toFile(tempRoot, new String[]{"archive", ChannelHandler.TEMP_PREFIX + "x"});
+            Files.write(upload.toPath(), new byte[10]);
+
+            assertEquals(Message.FILE_EXIST, client.receiveArchive(clientDir, new String[]{"archive"}));
+            for (int i = 0; i < paths.size(); i++) {
+                File file = AppUtil.toFile(clientDir, paths.get(i));
+                assertArrayEquals(contents.get(i), Files.readAllBytes(file.toPath()));
+                assertEquals(AppUtil.toFile(tempRoot, paths.get(i)).lastModified(), file.lastModified());
+            }
+            List<File> received = new ArrayList<>();
+            AppUtil.collectFiles(new File(clientDir, "archive"), received);
+            assertEquals(paths.size(), received.size());
+
+            // the connection goes on after the archive
+            assertEquals(Message.FILE_EXIST, client.receiveArchive(clientDir, new String[]{"archive", "large.bin"}));
+            assertEquals(Message.FILE_NOT_EXIST, client.receiveArchive(clientDir, new String[]{"archive", "none"}));
+            assertEquals(Message.PERMISSION_DENIED, client.receiveArchive(clientDir, new String[]{"..", "archive"}));
+            // the copies keep the time of the files
+            assertEquals(Message.NOT_MODIFIED, client.receive(clientDir, paths.get(0)));
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    void treeIsDeletedInOneRequest() throws IOException {
+        FileClient client = createClient();
+        try {
+            List<Batch.Item> items = new ArrayList<>();
+            for (int i = 0; i < 300; i++) {
+                String name = "f" + i + (i % 2 == 0 ? ".log" : ".txt");
+                items.add(Batch.Item.put(new String[]{"rmtree", "d" + (i % 5), name}, new byte[]{(byte) i}, true));
+            }
+            client.batch(items);
+
+            ListOptions options = new ListOptions();
+            options.setGlob("**.log");
+            List<DeleteProgress> reported = new ArrayList<>();
+            long received = server.getStats().getRequests(Action.DEL);
+            assertEquals(Message.FILE_DELETED, client.deleteTree(new String[]{"rmtree"}, options, reported::add));
+            assertEquals(150, reported.get(reported.size() - 1).files);
+            assertEquals(150, client.list(new String[]{"rmtree"}).length);
+
+            assertEquals(Message.FILE_DELETED, client.deleteTree(new String[]{"rmtree"}, null, reported::add));
+            assertEquals(150, reported.get(reported.size() - 1).files);
+            assertEquals(6, reported.get(reported.size() - 1).directories);
+            assertEquals(received + 2, server.getStats().getRequests(Action.DEL));
+            assertFalse(new File(tempRoot, "rmtree").exists());
+
+            assertEquals(Message.FILE_NOT_EXIST, client.deleteTree(new String[]{"rmtree"}));
+            assertEquals(Message.PERMISSION_DENIED, client.deleteTree(new String[]{".."}));
+            // the connection goes on as before
+            assertEquals(Message.FILE_NOT_EXIST, client.delete(new String[]{"rmtree"}));
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    void filesAreCopiedAndMovedOnTheServer(@TempDir File clientDir) throws IOException {
+        FileClient client = createClient();
+        try {
+            byte[] content = new byte[10 * 1024 * 1024 + 7];
+            new Random(50).nextBytes(content);
+            String[] source = {"cpmv", "source.bin"};
+            assertEquals(Message.FILE_CREATED, client.send(new ByteArrayInputStream(content), content.length, source));
+
+            long sent = settledBytesSent();
+            assertEquals(Message.FILE_CREATED, client.copy(source, new String[]{"cpmv", "copy", "copy.bin"}));
+            // the content did not go through the connection
+            assertTrue(server.getStats().getBytesSent() - sent < 1024);
+            assertArrayEquals(content, Files.readAllBytes(
+                    AppUtil.toFile(tempRoot, new String[]{"cpmv", "copy", "copy.bin"}).toPath()));
+            assertEquals(Message.FILE_EXIST, client.copy(source, new String[]{"cpmv", "copy", "copy.bin"}));
+            // the copy comes with the checksum of its source
+            assertEquals(Message.FILE_EXIST, client.receive(clientDir, new String[]{"cpmv", "copy", "copy.bin"}));
+
+            assertEquals(Message.FILE_CREATED, client.move(new String[]{"cpmv", "copy", "copy.bin"},
+                    new String[]{"cpmv", "moved", "deep", "moved.bin"}));
+            assertFalse(AppUtil.toFile(tempRoot, new String[]{"cpmv", "copy", "copy.bin"}).exists());
+            assertArrayEquals(content, Files.readAllBytes(
+                    AppUtil.toFile(tempRoot, new String[]{"cpmv", "moved", "deep", "moved.bin"}).toPath()));
+            assertEquals(Message.FILE_EXIST, client.move(source, new String[]{"cpmv", "moved", "deep", "moved.bin"}));
+            client.setOverwrite(true);
+            assertEquals(Message.FILE_CREATED, client.move(source, new String[]{"cpmv", "moved", "deep", "moved.bin"}));
+            client.setOverwrite(false);
+
+            assertEquals(Message.FILE_NOT_EXIST, client.copy(source, new String[]{"cpmv", "again.bin"}));
+            assertEquals(Message.FILE_NOT_EXIST, client.move(new String[]{"cpmv", "moved"}, new String[]{"cpmv", "dir"}));
+            assertEquals(Message.PERMISSION_DENIED, client.copy(new String[]{"cpmv", "moved", "deep", "moved.bin"},
+                    new String[]{"..", "outside.bin"}));
+            assertEquals(Message.PERMISSION_DENIED, client.move(new String[]{"cpmv", "moved", "deep", "moved.bin"},
+                    new String[]{"cpmv", ".crc-moved.bin"}));
+            assertEquals(Message.FILE_EXIST, client.receive(clientDir, new String[]{"cpmv", "moved", "deep", "moved.bin"}));
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    void eachRequestIsCountedWithTheResponseItEndsWith() throws IOException {
+        long before = settled(FileServerIntegrationTest::responses);
+        // a response sent by a client is no request, nothing answers it
+        Header unknown = new Header();
+        unknown.setAction(Action.PUT_ACK);
+        unknown.setPath(new String[]{"unknown"});
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.getOutputStream().write(unknown.toBytes());
+            socket.getOutputStream().flush();
+            assertEquals(before, settled(FileServerIntegrationTest::responses));
+        }
+
+        long created = server.getStats().getResponses(Message.FILE_CREATED);
+        FileClient client = createClient();
+        try {
+            byte[] data = "counted".getBytes("UTF-8");
+            assertEquals(Message.FILE_CREATED, client.send(new ByteArrayInputStream(data), data.length,
+                    new String[]{"counted", "file.txt"}));
+            client.delete(new String[]{"counted", "missing.txt"});
+        } finally {
+            client.close();
+        }
+        // the PUT_ACK and the PUT_FIN of the upload are one response
+        assertEquals(before + 2, settled(FileServerIntegrationTest::responses));
+        assertEquals(created + 1, server.getStats().getResponses(Message.FILE_CREATED));
+    }
 }
@@ -0,0 +1,79 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import common.AppConstant.Message;
+
+class GroupCommitterTest {
+
+    private static File write(File file, String content) throws IOException {
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            fos.write(content.getBytes("UTF-8"));
+        }
+        return file;
+    }
+
+    @Test
+    void renameKeepsExistingFileUnlessOverwrite(@TempDir File dir) throws IOException {
+        File target = write(new File(dir, "a.txt"), "old");
+        File temp = write(new File(dir, ".upload-a.txt.1"), "new");
+        LocalStorage storage = new LocalStorage(dir);
+        assertEquals(Message.FILE_EXIST, GroupCommitter.rename(storage,
+                new String[]{".upload-a.txt.1"}, new String[]{"a.txt"}, false));
+        assertFalse(temp.exists());
+        assertEquals(3, target.length());
+
+        temp = write(new File(dir, ".upload-a.txt.2"), "newer");
+        assertEquals(Message.FILE_CREATED, GroupCommitter.rename(storage,
+                new String[]{".upload-a.txt.2"}, new String[]{"a.txt"}, true));
+        assertFalse(temp.exists());
+        assertEquals(5, target.length());
+    }
+
+    @Test
+    void commitsSubmittedUploadsInBatches(@TempDir File dir) throws Exception {
+        ServerStats stats = new ServerStats();
+        GroupCommitter committer = new GroupCommitter();
+        committer.setStats(stats);
+        committer.setMaxBatchSize(4);
+        Thread thread = new Thread(committer, "committer");
+        thread.start();
+
+        LocalStorage storage = new LocalStorage(dir);
+        List<String[]> dirs = Collections.singletonList(new String[0]);
+        for (int i = 0; i < 10; i++) {
+            write(new File(dir, ".upload-f" + i + ".1"), "data" + i);
+            committer.submit(new GroupCommitter.Commit(null, storage, new String[]{".upload-f" + i + ".1"},
+                    new String[]{"f" + i}, false, dirs));
+        }
+        List<GroupCommitter.Commit> done = new ArrayList<GroupCommitter.Commit>();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (done.size() < 10 && System.currentTimeMillis() < deadline) {
+            done.addAll(committer.drainCompleted());
+            Thread.sleep(10);
+        }
+        committer.stop();
+        thread.join(2000);
+
+        assertEquals(10, done.size());
+        for (GroupCommitter.Commit commit : done) {
+            assertEquals(Message.FILE_CREATED, commit.getMessage());
+        }
+        for (int i = 0; i < 10; i++) {
+            assertTrue(new File(dir, "f" + i).isFile());
+            assertFalse(new File(dir, ".upload-f" + i + ".1").exists());
+        }
+        assertEquals(10, stats.getCommitBatchSizes().getSum(), 0);
+        assertTrue(stats.getCommitBatchSizes().getCount() <= 10);
+    }
+}
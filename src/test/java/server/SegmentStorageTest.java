@@ -0,0 +1,160 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SegmentStorageTest {
+
+    @TempDir
+    File dir;
+
+    private static void put(Storage storage, String name, byte[] content) throws IOException {
+        String[] temp = {".upload-" + name};
+        WritableByteChannel out = storage.create(temp, content.length);
+        try {
+            // in pieces, as they come from the socket
+            for (int i = 0; i < content.length; i += 1000) {
+                out.write(ByteBuffer.wrap(content, i, Math.min(1000, content.length - i)));
+            }
+        } finally {
+            out.close();
+        }
+        storage.rename(temp, new String[]{name}, true);
+    }
+
+    private static byte[] get(Storage storage, String name) throws IOException {
+        ReadableByteChannel in = storage.openRead(new String[]{name});
+        ByteBuffer buf = ByteBuffer.allocate((int) storage.stat(new String[]{name}).length);
+        try {
+            while (buf.hasRemaining() && in.read(buf) != -1) {
+            }
+        } finally {
+            in.close();
+        }
+        return buf.array();
+    }
+
+    private static byte[] content(int seed, int length) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    void filesAreVisibleOnlyOnceRenamed() throws IOException {
+        SegmentStorage storage = new SegmentStorage(dir);
+        try {
+            WritableByteChannel out = storage.create(new String[]{"t"}, 3);
+            out.write(ByteBuffer.wrap(new byte[]{1, 2, 3}));
+            out.close();
+            assertEquals(0, storage.list(new String[0], null, 10, 0).paths.size());
+
+            storage.rename(new String[]{"t"}, new String[]{"d", "f"}, false);
+            assertNull(storage.stat(new String[]{"t"}));
+            assertEquals(3, storage.stat(new String[]{"d", "f"}).length);
+            assertTrue(storage.stat(new String[]{"d"}).directory);
+            assertEquals(1, storage.list(new String[0], null, 10, 0).paths.size());
+        } finally {
+            storage.close();
+        }
+    }
+
+    @Test
+    void recoversIndexAndCutsTornTail() throws IOException {
+        SegmentStorage storage = new SegmentStorage(dir);
+        put(storage, "a", content(1, 5000));
+        put(storage, "b", content(2, 100));
+        put(storage, "a", content(3, 7000));
+        assertTrue(storage.delete(new String[]{"b"}));
+        put(storage, "c", content(4, 0));
+        storage.close();
+
+        // a record half written when the server went down
+        File segment = dir.listFiles((d, name) -> name.endsWith(".seg"))[0];
+        long length = segment.length();
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.seek(length);
+            raf.writeInt(SegmentStorage.MAGIC);
+            raf.write(new byte[10]);
+        }
+
+        storage = new SegmentStorage(dir);
+        try {
+            assertArrayEquals(content(3, 7000), get(storage, "a"));
+            assertNull(storage.stat(new String[]{"b"}));
+            assertEquals(0, storage.stat(new String[]{"c"}).length);
+            assertEquals(length, segment.length());
+            // and appends go on after the cut
+            put(storage, "d", content(5, 10));
+            assertArrayEquals(content(5, 10), get(storage, "d"));
+        } finally {
+            storage.close();
+        }
+    }
+
+    @Test
+    void compactionReclaimsGarbageAndKeepsTombstones() throws IOException {
+        SegmentStorage storage = new SegmentStorage(dir);
+        storage.setMaxSegmentSize(64 * 1024);
+        storage.setSpillThreshold(8 * 1024);
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 10; i++) {
+                put(storage, "f" + i, content(round * 100 + i, 10000 + i));
+            }
+        }
+        put(storage, "gone", content(7, 100));
+        storage.delete(new String[]{"gone"});
+        for (int i = 0; i < 10; i++) {
+            // fill up the active segment, so the others can be compacted
+            put(storage, "filler" + i, content(9, 10000));
+        }
+        long before = storage.getTotalBytes();
+        assertTrue(storage.compact() > 0);
+        assertTrue(storage.getTotalBytes() < before);
+        for (int i = 0; i < 10; i++) {
+            assertArrayEquals(content(400 + i, 10000 + i), get(storage, "f" + i));
+        }
+        storage.close();
+
+        storage = new SegmentStorage(dir);
+        try {
+            for (int i = 0; i < 10; i++) {
+                assertArrayEquals(content(400 + i, 10000 + i), get(storage, "f" + i));
+            }
+            assertNull(storage.stat(new String[]{"gone"}));
+        } finally {
+            storage.close();
+        }
+    }
+
+    @Test
+    void rangeStaysReadableWhileItsSegmentIsCompacted() throws IOException {
+        SegmentStorage storage = new SegmentStorage(dir);
+        storage.setMaxSegmentSize(16 * 1024);
+        try {
+            put(storage, "a", content(1, 10000));
+            put(storage, "a", content(2, 10000));
+            put(storage, "b", content(3, 10000));
+            ReadableByteChannel in = storage.openRead(new String[]{"a"});
+            storage.compact();
+            ByteBuffer buf = ByteBuffer.allocate(10000);
+            while (buf.hasRemaining() && in.read(buf) != -1) {
+            }
+            in.close();
+            assertArrayEquals(content(2, 10000), buf.array());
+            assertArrayEquals(content(2, 10000), get(storage, "a"));
+        } finally {
+            storage.close();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import client.FileClient;
+import common.AppConstant.Action;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+class ServerEventsTest {
+
+    private static int findFreePort() throws IOException {
+        try (ServerSocket ss = new ServerSocket(0)) {
+            return ss.getLocalPort();
+        }
+    }
+
+    @Test
+    void requestPhasesShareRequestId(@TempDir File dir) throws Exception {
+        File root = new File(dir, "root");
+        File src = new File(dir, "src.txt");
+        Files.write(src.toPath(), "flight recorder".getBytes("UTF-8"));
+
+        FileServer server = new FileServer();
+        server.setRoot(root);
+        server.setPort(findFreePort());
+        Thread thread = new Thread(server, "file-server");
+
+        Path jfr = new File(dir, "events.jfr").toPath();
+        try (Recording recording = new Recording()) {
+            recording.enable(ServerEvents.HeaderDecode.class);
+            recording.enable(ServerEvents.AckPrepare.class);
+            recording.enable(ServerEvents.FirstByte.class);
+            recording.enable(ServerEvents.RequestComplete.class);
+            recording.start();
+
+            thread.start();
+            FileClient client = null;
+            long deadline = System.currentTimeMillis() + 5000;
+            while (client == null) {
+                try {
+                    client = new FileClient();
+                    client.connects("localhost", server.getPort());
+                } catch (IOException e) {
+                    client = null;
+                    if (System.currentTimeMillis() > deadline) {
+                        throw e;
+                    }
+                    Thread.sleep(50);
+                }
+            }
+            try {
+                client.send(src, new String[]{"a.txt"});
+                client.receive(new File(dir, "out"), new String[]{"a.txt"});
+            } finally {
+                client.close();
+            }
+            // the GET is complete once the server has read the end of the
+            // file, which may be after the client has received all of it
+            while (server.getStats().getLatency(Action.GET).getCount() == 0) {
+                Thread.sleep(10);
+            }
+            server.stopServer();
+            thread.join(2000);
+            recording.stop();
+            recording.dump(jfr);
+        } finally {
+            server.stopServer();
+            thread.join(2000);
+        }
+
+        List<RecordedEvent> events = RecordingFile.readAllEvents(jfr);
+        Set<Long> completed = new HashSet<>();
+        Set<Long> firstBytes = new HashSet<>();
+        int decoded = 0;
+        for (RecordedEvent event : events) {
+            String name = event.getEventType().getName();
+            if (name.equals("niofileserver.RequestComplete")) {
+                completed.add(event.getLong("requestId"));
+            }
+            else if (name.equals("niofileserver.FirstByte")) {
+                firstBytes.add(event.getLong("requestId"));
+            }
+            else if (name.equals("niofileserver.HeaderDecode")) {
+                decoded++;
+            }
+        }
+        assertEquals(2, completed.size());
+        assertEquals(2, decoded);
+        assertEquals(completed, firstBytes);
+    }
+}
@@ -0,0 +1,86 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import common.AppUtil;
+
+class ShardedStorageTest {
+
+    @TempDir
+    File root;
+
+    private static void touch(File file) throws IOException {
+        file.getParentFile().mkdirs();
+        new FileOutputStream(file).close();
+    }
+
+    private static List<String> listAll(Storage storage) throws IOException {
+        List<String> listed = new ArrayList<String>();
+        String cursor = null;
+        do {
+            Storage.Page page = storage.list(new String[0], cursor, 7, 0);
+            for (String[] path : page.paths) {
+                listed.add(AppUtil.toString(path, '/'));
+            }
+            cursor = page.next;
+        } while (cursor != null);
+        return listed;
+    }
+
+    @Test
+    void filesAreSpreadOverShards() throws IOException {
+        ShardedStorage storage = new ShardedStorage(root, 16);
+        for (int i = 0; i < 100; i++) {
+            storage.create(new String[]{"dir", "file" + i}, 0).close();
+        }
+        File dir = new File(root, "dir");
+        String[] shards = dir.list();
+        assertTrue(shards.length > 8 && shards.length <= 16);
+        for (String shard : shards) {
+            assertTrue(shard.startsWith(ShardedStorage.SHARD_PREFIX));
+        }
+        assertTrue(new File(new File(dir, storage.shardOf("file7")), "file7").isFile());
+        assertEquals(100, listAll(storage).size());
+        assertTrue(storage.stat(new String[]{"dir"}).directory);
+        assertFalse(storage.permits(new String[]{"dir", storage.shardOf("file7"), "file7"}));
+    }
+
+    @Test
+    void migrationKeepsTheLogicalPaths() throws IOException {
+        for (int i = 0; i < 50; i++) {
+            touch(new File(root, "a/f" + i));
+            touch(new File(root, "a/b/g" + i));
+        }
+        List<String> before = listAll(new LocalStorage(root));
+
+        ShardedStorage storage = new ShardedStorage(root, 8);
+        // served before, while and after being migrated
+        assertEquals(before, listAll(storage));
+        assertEquals(100, new ShardMigrator(storage).migrate());
+        assertEquals(0, new ShardMigrator(storage).migrate());
+        assertEquals(before, listAll(storage));
+        for (String name : new File(root, "a").list()) {
+            assertTrue(name.equals("b") || name.startsWith(ShardedStorage.SHARD_PREFIX));
+        }
+        assertNotNull(storage.stat(new String[]{"a", "b", "g3"}));
+
+        assertTrue(storage.delete(new String[]{"a", "f3"}));
+        assertNull(storage.stat(new String[]{"a", "f3"}));
+    }
+
+    @Test
+    void fanoutCannotChange() throws IOException {
+        new ShardedStorage(root, 8);
+        assertEquals(8, ShardedStorage.readFanout(root));
+        assertThrows(IOException.class, () -> new ShardedStorage(root, 16));
+    }
+}
@@ -0,0 +1,95 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+
+import org.junit.jupiter.api.Test;
+
+import common.AppConstant.Action;
+import common.AppConstant.Message;
+
+class StatsServerTest {
+
+    private static int findFreePort() throws IOException {
+        try (ServerSocket ss = new ServerSocket(0)) {
+            return ss.getLocalPort();
+        }
+    }
+
+    @Test
+    void histogramCountsAreCumulative() {
+        LatencyHistogram h = new LatencyHistogram(new double[]{0.001, 0.01});
+        h.record(500_000L);
+        h.record(5_000_000L);
+        h.record(50_000_000L);
+        assertArrayEquals(new long[]{1, 2, 3}, h.getCumulativeCounts());
+        assertEquals(3, h.getCount());
+        assertEquals(55_500_000L, h.getSumNanos());
+    }
+
+    @Test
+    void prometheusFormatContainsSeries() {
+        ServerStats stats = new ServerStats();
+        stats.connectionAccepted();
+        stats.requestReceived(Action.GET);
+        stats.responseSent(Message.FILE_EXIST);
+        stats.requestCompleted(Action.GET, 2_000_000L);
+        String text = stats.toPrometheus();
+        assertTrue(text.contains("# TYPE fileserver_requests_total counter"));
+        assertTrue(text.contains("fileserver_requests_total{action=\"GET\"} 1"));
+        assertTrue(text.contains("fileserver_responses_total{message=\"FILE_EXIST\"} 1"));
+        assertTrue(text.contains("fileserver_request_duration_seconds_bucket{action=\"GET\",le=\"+Inf\"} 1"));
+        assertTrue(text.contains("fileserver_request_duration_seconds_count{action=\"GET\"} 1"));
+        assertFalse(text.contains("action=\"PUT\""));
+    }
+
+    @Test
+    void scrapeOverHttp() throws Exception {
+        ServerStats stats = new ServerStats();
+        stats.connectionAccepted();
+        StatsServer server = new StatsServer();
+        server.setStats(stats);
+        server.setPort(findFreePort());
+        Thread thread = new Thread(server, "stats-server");
+        thread.start();
+        try {
+            HttpURLConnection conn = null;
+            long deadline = System.currentTimeMillis() + 5000;
+            while (true) {
+                try {
+                    conn = (HttpURLConnection) new URL(
+                            "http://localhost:" + server.getPort() + "/metrics").openConnection();
+                    assertEquals(200, conn.getResponseCode());
+                    break;
+                } catch (IOException e) {
+                    if (System.currentTimeMillis() > deadline) {
+                        throw e;
+                    }
+                    Thread.sleep(50);
+                }
+            }
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try (InputStream is = conn.getInputStream()) {
+                byte[] buf = new byte[4096];
+                int read;
+                while ((read = is.read(buf)) != -1) {
+                    baos.write(buf, 0, read);
+                }
+            }
+            assertTrue(baos.toString("UTF-8").contains("fileserver_connections_accepted_total 1"));
+
+            conn = (HttpURLConnection) new URL(
+                    "http://localhost:" + server.getPort() + "/other").openConnection();
+            assertEquals(404, conn.getResponseCode());
+        } finally {
+            server.stopServer();
+            thread.join(2000);
+        }
+    }
+}
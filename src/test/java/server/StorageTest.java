@@ -0,0 +1,167 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import common.AppUtil;
+
+class StorageTest {
+
+    @TempDir
+    File root;
+
+    private Storage storage(String kind) throws IOException {
+        if (kind.equals("sharded")) {
+            return new ShardedStorage(root, 4);
+        }
+        if (kind.equals("chunk")) {
+            return new ChunkStorage(root);
+        }
+        if (kind.equals("compressed")) {
+            LocalStorage local = new LocalStorage(root);
+            local.setCompression(1);
+            return local;
+        }
+        return kind.equals("local") ? new LocalStorage(root) : new MemoryStorage();
+    }
+
+    private static void write(Storage storage, String[] path, String content) throws IOException {
+        byte[] bytes = content.getBytes("UTF-8");
+        WritableByteChannel out = storage.create(path, bytes.length);
+        try {
+            out.write(ByteBuffer.wrap(bytes));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String read(Storage storage, String[] path) throws IOException {
+        ReadableByteChannel in = storage.openRead(path);
+        ByteBuffer buf = ByteBuffer.allocate(1024);
+        try {
+            while (in.read(buf) != -1) {
+            }
+        } finally {
+            in.close();
+        }
+        return new String(buf.array(), 0, buf.position(), "UTF-8");
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"local", "memory", "sharded", "chunk", "compressed"})
+    void createStatReadDelete(String kind) throws IOException {
+        Storage storage = storage(kind);
+        String[] path = {"a", "b", "file.txt"};
+        assertNull(storage.stat(path));
+        write(storage, path, "hello");
+        assertThrows(FileAlreadyExistsException.class, () -> storage.create(path, 0));
+
+        Storage.Stat stat = storage.stat(path);
+        assertEquals(5, stat.length);
+        assertFalse(stat.directory);
+        assertTrue(storage.stat(new String[]{"a", "b"}).directory);
+        assertEquals("hello", read(storage, path));
+
+        assertTrue(storage.delete(path));
+        assertFalse(storage.delete(path));
+        assertNull(storage.stat(path));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"local", "memory", "sharded", "chunk", "compressed"})
+    void renameReplacesOnlyWhenAllowed(String kind) throws IOException {
+        Storage storage = storage(kind);
+        write(storage, new String[]{"target"}, "old");
+        write(storage, new String[]{"temp"}, "new");
+        assertThrows(FileAlreadyExistsException.class,
+                () -> storage.rename(new String[]{"temp"}, new String[]{"target"}, false));
+        storage.rename(new String[]{"temp"}, new String[]{"target"}, true);
+        assertNull(storage.stat(new String[]{"temp"}));
+        assertEquals("new", read(storage, new String[]{"target"}));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"local", "memory", "sharded", "chunk", "compressed"})
+    void renameCreatesTheParentsOfTheTarget(String kind) throws IOException {
+        Storage storage = storage(kind);
+        write(storage, new String[]{"a", "file"}, "moved");
+        storage.rename(new String[]{"a", "file"}, new String[]{"b", "c", "file"}, false);
+        assertNull(storage.stat(new String[]{"a", "file"}));
+        assertEquals("moved", read(storage, new String[]{"b", "c", "file"}));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"local", "memory", "sharded", "chunk", "compressed"})
+    void listPagesInPathOrder(String kind) throws IOException {
+        Storage storage = storage(kind);
+        String[][] paths = {
+            {"d", "a"}, {"d", "b", "x"}, {"d", "b", "y"}, {"d", "c"}, {"d-e"}, {"other"}
+        };
+        for (String[] path : paths) {
+            write(storage, path, "x");
+        }
+        List<String> listed = new ArrayList<String>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            Storage.Page page = storage.list(new String[]{"d"}, cursor, 2, 0);
+            assertTrue(page.paths.size() <= 2);
+            for (String[] path : page.paths) {
+                listed.add(AppUtil.toString(path, '/'));
+            }
+            cursor = page.next;
+            pages++;
+        } while (cursor != null);
+        assertEquals(Arrays.asList("d/a", "d/b/x", "d/b/y", "d/c"), listed);
+        assertTrue(pages >= 2);
+
+        Storage.Page single = storage.list(new String[]{"other"}, null, 10, 0);
+        assertEquals(1, single.paths.size());
+        assertNull(single.next);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"local", "memory", "sharded", "chunk", "compressed"})
+    void listSkipsTheSubtreesDeeperThanTheDepth(String kind) throws IOException {
+        Storage storage = storage(kind);
+        String[][] paths = {
+            {"d", "a"}, {"d", "b", "x"}, {"d", "b", "y", "z"}, {"d", "c"}, {"d", "e", "f", "g"}, {"d", "h"}
+        };
+        for (String[] path : paths) {
+            write(storage, path, "x");
+        }
+        List<String> listed = new ArrayList<String>();
+        String cursor = null;
+        do {
+            Storage.Page page = storage.list(new String[]{"d"}, cursor, 1, 2);
+            for (String[] path : page.paths) {
+                listed.add(AppUtil.toString(path, '/'));
+            }
+            cursor = page.next;
+        } while (cursor != null);
+        assertEquals(Arrays.asList("d/a", "d/b/x", "d/c", "d/h"), listed);
+        assertEquals(6, storage.list(new String[]{"d"}, null, 10, 0).paths.size());
+        assertEquals(1, storage.list(new String[]{"d", "a"}, null, 10, 1).paths.size());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"local", "memory", "sharded", "chunk", "compressed"})
+    void pathsLeavingTheStorageAreNotPermitted(String kind) throws IOException {
+        Storage storage = storage(kind);
+        assertTrue(storage.permits(new String[]{"a", "b"}));
+        assertFalse(storage.permits(new String[]{"..", "outside"}));
+    }
+}
@@ -0,0 +1,79 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import common.AppConstant.Action;
+import common.AppConstant.Message;
+import common.TraceRecord;
+
+class TraceRecorderTest {
+
+    @Test
+    void recordsRoundTrip(@TempDir File dir) throws IOException {
+        File file = new File(dir, "trace.bin");
+        long before = System.currentTimeMillis();
+        TraceRecorder recorder = new TraceRecorder(file);
+        long t0 = System.nanoTime();
+        int count = 5000; // more than one buffer
+        for (int i = 0; i < count; i++) {
+            recorder.record(i % 2 == 0 ? Action.PUT : Action.GET, Message.FILE_EXIST,
+                    new String[]{"dir", "f" + (i % 10)}, i, t0 + i * 1000L, t0 + i * 1000L + 500);
+        }
+        recorder.close();
+        assertEquals(count, recorder.getRecorded());
+        assertEquals(0, recorder.getDropped());
+        assertEquals(TraceRecord.HEADER_LENGTH + count * (long) TraceRecord.RECORD_LENGTH, file.length());
+
+        try (DataInputStream dis = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            long start = TraceRecord.readHeader(dis);
+            assertTrue(start >= before);
+            TraceRecord record = new TraceRecord();
+            for (int i = 0; i < count; i++) {
+                assertTrue(record.read(dis));
+                assertEquals(i % 2 == 0 ? Action.PUT : Action.GET, record.action);
+                assertEquals(Message.FILE_EXIST, record.message);
+                assertEquals(TraceRecord.hash(new String[]{"dir", "f" + (i % 10)}), record.pathHash);
+                assertEquals(i, record.dataLength);
+                assertEquals(500, record.latencyNanos);
+            }
+            assertFalse(record.read(dis));
+        }
+    }
+
+    @Test
+    void recordsAreWrittenWhenNoOtherComes(@TempDir File dir) throws Exception {
+        File file = new File(dir, "trace.bin");
+        TraceRecorder recorder = new TraceRecorder(file, TimeUnit.MILLISECONDS.toNanos(50));
+        try {
+            long t0 = System.nanoTime();
+            recorder.record(Action.GET, Message.FILE_EXIST, new String[]{"quiet"}, 1, t0, t0 + 500);
+            long expected = TraceRecord.HEADER_LENGTH + TraceRecord.RECORD_LENGTH;
+            long deadline = System.currentTimeMillis() + 5000;
+            while (file.length() < expected && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(expected, file.length());
+        } finally {
+            recorder.close();
+        }
+    }
+
+    @Test
+    void hashDependsOnLevels() {
+        assertNotEquals(TraceRecord.hash(new String[]{"ab", "c"}),
+                TraceRecord.hash(new String[]{"a", "bc"}));
+        assertEquals(TraceRecord.hash(new String[]{"a", "b"}),
+                TraceRecord.hash(new String[]{"a", "b"}));
+    }
+}
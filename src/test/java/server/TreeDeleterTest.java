@@ -0,0 +1,115 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import common.AppConstant.Message;
+import common.ListOptions;
+
+class TreeDeleterTest {
+
+    private static void write(File file, String content) throws IOException {
+        file.getParentFile().mkdirs();
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            fos.write(content.getBytes("UTF-8"));
+        }
+    }
+
+    /**
+     * Run a deletion, and take its reports until it is done.
+     */
+    private static List<TreeDeleter.Report> run(TreeDeleter.Deletion deletion) throws InterruptedException {
+        TreeDeleter deleter = new TreeDeleter();
+        deleter.setReportIntervalNanos(0);
+        Thread thread = new Thread(deleter, "deleter");
+        thread.start();
+        deleter.submit(deletion);
+        List<TreeDeleter.Report> reports = new ArrayList<>();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            for (TreeDeleter.Deletion reported : deleter.drainReported()) {
+                assertSame(deletion, reported);
+                TreeDeleter.Report report = reported.take();
+                reports.add(report);
+                if (report.message != null) {
+                    deleter.stop();
+                    thread.join(5000);
+                    return reports;
+                }
+            }
+            Thread.sleep(5);
+        }
+        fail("deletion not done");
+        return null;
+    }
+
+    @Test
+    void deletesTheWholeTreeWithItsDirectories(@TempDir File dir) throws Exception {
+        for (int i = 0; i < 30; i++) {
+            write(new File(dir, "tree/d" + (i % 3) + "/e" + (i % 2) + "/f" + i), "data" + i);
+        }
+        write(new File(dir, "tree.txt"), "kept");
+        LocalStorage storage = new LocalStorage(dir);
+
+        List<TreeDeleter.Report> reports = run(new TreeDeleter.Deletion(null, storage, new String[]{"tree"}, null));
+        TreeDeleter.Report last = reports.get(reports.size() - 1);
+        assertEquals(Message.FILE_DELETED, last.message);
+        assertEquals(30, last.progress.files);
+        // d0..d2, each with e0 and e1, and the tree
+        assertEquals(10, last.progress.directories);
+        assertEquals(0, last.progress.failed);
+        int deleted = 0;
+        for (TreeDeleter.Report report : reports) {
+            deleted += report.deleted.size();
+        }
+        assertEquals(30, deleted);
+        assertFalse(new File(dir, "tree").exists());
+        assertTrue(new File(dir, "tree.txt").exists());
+    }
+
+    @Test
+    void deletesTheMatchingFilesOnly(@TempDir File dir) throws Exception {
+        write(new File(dir, "logs/a/1.log"), "1");
+        write(new File(dir, "logs/a/2.txt"), "2");
+        write(new File(dir, "logs/b/3.log"), "3");
+        write(new File(dir, "logs/c/4.log"), "4");
+        LocalStorage storage = new LocalStorage(dir);
+        ListOptions options = new ListOptions();
+        options.setGlob("**.log");
+        options.setPrefix("a/");
+
+        List<TreeDeleter.Report> reports = run(new TreeDeleter.Deletion(null, storage, new String[]{"logs"}, options));
+        TreeDeleter.Report last = reports.get(reports.size() - 1);
+        assertEquals(Message.FILE_DELETED, last.message);
+        assertEquals(1, last.progress.files);
+        assertEquals(0, last.progress.directories);
+        assertFalse(new File(dir, "logs/a/1.log").exists());
+        assertTrue(new File(dir, "logs/a/2.txt").exists());
+        assertTrue(new File(dir, "logs/b/3.log").exists());
+
+        options = new ListOptions();
+        options.setGlob("**.log");
+        reports = run(new TreeDeleter.Deletion(null, storage, new String[]{"logs"}, options));
+        last = reports.get(reports.size() - 1);
+        assertEquals(2, last.progress.files);
+        // b and c left empty, not the directory deleted from
+        assertEquals(2, last.progress.directories);
+        assertFalse(new File(dir, "logs/b").exists());
+        assertTrue(new File(dir, "logs/a/2.txt").exists());
+    }
+
+    @Test
+    void aTreeMissingIsReported(@TempDir File dir) throws Exception {
+        List<TreeDeleter.Report> reports = run(new TreeDeleter.Deletion(null, new LocalStorage(dir),
+                new String[]{"none"}, null));
+        assertEquals(Message.FILE_NOT_EXIST, reports.get(reports.size() - 1).message);
+    }
+}